@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+/**
+ * Maps barometric pressure, in hPa, and its tendency to the weather icon and the LED bar graph
+ * shown by the station.
+ */
+final class Barometer {
+    static final float RANGE_LOW = 965.f;
+    static final float RANGE_HIGH = 1035.f;
+    static final float RANGE_SUNNY = 1010.f;
+    static final float RANGE_RAINY = 990.f;
+
+    static final int WEATHER_SUNNY = 0;
+    static final int WEATHER_CLOUDY = 1;
+    static final int WEATHER_RAINY = 2;
+
+    // Tendencies in hPa per hour: the pressure is steady within 1.5 hPa in 3 hours, and a fall
+    // of 6 hPa in 3 hours announces a storm.
+    static final float TENDENCY_STEADY = 0.5f;
+    static final float TENDENCY_RAPID_FALL = -2.f;
+
+    // Margins by which a pressure or a tendency must cross a threshold to change what is shown,
+    // so that a reading hovering at a threshold does not make it flicker.
+    static final float PRESSURE_HYSTERESIS = 0.5f;
+    static final float TENDENCY_HYSTERESIS = 0.1f;
+
+    private Barometer() {
+    }
+
+    static int weather(float pressure) {
+        if (pressure > RANGE_SUNNY) {
+            return WEATHER_SUNNY;
+        } else if (pressure < RANGE_RAINY) {
+            return WEATHER_RAINY;
+        }
+        return WEATHER_CLOUDY;
+    }
+
+    /**
+     * Returns the weather expected from the pressure and its tendencies over the last hour and
+     * the last three hours, NaN when unknown: a falling pressure brings clouds or rain, a rising
+     * one clears the sky. Without a tendency, the weather follows the pressure alone.
+     */
+    static int forecast(float pressure, float tendency1h, float tendency3h) {
+        if (tendency1h <= TENDENCY_RAPID_FALL) {
+            return WEATHER_RAINY;
+        }
+        float tendency = Float.isNaN(tendency3h) ? tendency1h : tendency3h;
+        if (tendency < -TENDENCY_STEADY) {
+            return pressure < RANGE_SUNNY ? WEATHER_RAINY : WEATHER_CLOUDY;
+        } else if (tendency > TENDENCY_STEADY) {
+            return pressure > RANGE_RAINY ? WEATHER_SUNNY : WEATHER_CLOUDY;
+        }
+        return weather(pressure);
+    }
+
+    /**
+     * Returns whether {@code weather} is still a forecast for some pressure and tendencies
+     * within the hysteresis margins of the given ones, in which case it should be kept.
+     */
+    static boolean isNearForecast(int weather, float pressure, float tendency1h,
+                                  float tendency3h) {
+        // Higher pressures and tendencies only ever give sunnier forecasts.
+        int sunnier = forecast(pressure + PRESSURE_HYSTERESIS, tendency1h + TENDENCY_HYSTERESIS,
+                tendency3h + TENDENCY_HYSTERESIS);
+        int rainier = forecast(pressure - PRESSURE_HYSTERESIS, tendency1h - TENDENCY_HYSTERESIS,
+                tendency3h - TENDENCY_HYSTERESIS);
+        return weather >= sunnier && weather <= rainier;
+    }
+
+    /**
+     * Returns the pressure in three hours if it keeps its tendency, in hPa per hour over the
+     * last three hours, or the current pressure if the tendency is unknown.
+     */
+    static float projected(float pressure, float tendency3h) {
+        return Float.isNaN(tendency3h) ? pressure : pressure + 3 * tendency3h;
+    }
+
+    /**
+     * Returns how many of {@code pixels} LEDs to light for the given pressure.
+     */
+    static int litPixels(float pressure, int pixels) {
+        float t = (pressure - RANGE_LOW) / (RANGE_HIGH - RANGE_LOW);
+        int n = (int) Math.ceil(pixels * t);
+        return Math.max(0, Math.min(n, pixels));
+    }
+
+    /**
+     * Returns how many of {@code pixels} LEDs to light for the given pressure, keeping
+     * {@code previous} while the pressure is within the hysteresis margin of it.
+     */
+    static int litPixels(float pressure, int pixels, int previous) {
+        if (previous >= litPixels(pressure - PRESSURE_HYSTERESIS, pixels)
+                && previous <= litPixels(pressure + PRESSURE_HYSTERESIS, pixels)) {
+            return previous;
+        }
+        return litPixels(pressure, pixels);
+    }
+
+    /**
+     * Fills {@code colors} with the bar graph for the given pressure: the last pixels take
+     * their color from {@code rainbow}, the others are turned off.
+     */
+    static void fillBar(float pressure, int[] rainbow, int[] colors) {
+        fillPixels(litPixels(pressure, rainbow.length), rainbow, colors);
+    }
+
+    /**
+     * Fills {@code colors} with a bar graph of {@code n} lit pixels.
+     */
+    static void fillPixels(int n, int[] rainbow, int[] colors) {
+        for (int i = 0; i < rainbow.length; i++) {
+            colors[i] = i >= rainbow.length - n ? rainbow[i] : 0;
+        }
+    }
+}
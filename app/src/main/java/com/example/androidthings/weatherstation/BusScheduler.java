@@ -0,0 +1,174 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.util.ArrayDeque;
+
+/**
+ * Coalesces the display writes on one peripheral bus, running them on a dedicated thread so
+ * that callers never block on the bus.
+ *
+ * Work is described by preallocated {@link Transfer}s. Submitting a transfer that is already
+ * queued is a no-op, so a transfer reading its data when it runs gives last-write-wins
+ * coalescing without allocating. Queued transfers run in submission order. The scheduler keeps
+ * track of how long each transfer occupies the bus.
+ */
+class BusScheduler {
+
+    /**
+     * A unit of work on the bus, typically one register write or read.
+     */
+    static final class Transfer {
+        final String name;
+        private final Runnable mAction;
+
+        // Guarded by the scheduler lock.
+        private boolean mQueued;
+        private long mSubmitted;
+        private long mCoalesced;
+
+        // Only written by the bus thread.
+        private volatile long mRuns;
+        private volatile long mBusyNanos;
+
+        Transfer(String name, Runnable action) {
+            this.name = name;
+            mAction = action;
+        }
+
+        long getRunCount() {
+            return mRuns;
+        }
+
+        long getBusyNanos() {
+            return mBusyNanos;
+        }
+    }
+
+    private final String mBusName;
+    private final Object mLock = new Object();
+    private final ArrayDeque<Transfer> mQueue = new ArrayDeque<>();
+    private boolean mRunning;
+    private Thread mThread;
+    private volatile long mBusyNanos;
+    private long mStartNanos;
+
+    BusScheduler(String busName) {
+        mBusName = busName;
+    }
+
+    void start() {
+        synchronized (mLock) {
+            mRunning = true;
+        }
+        mStartNanos = System.nanoTime();
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        }, "bus-" + mBusName);
+        mThread.start();
+    }
+
+    /**
+     * Runs the transfers still queued, then stops the bus thread.
+     */
+    void stop() {
+        synchronized (mLock) {
+            mRunning = false;
+            mLock.notifyAll();
+        }
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues a transfer unless it is already waiting to run.
+     *
+     * @return false if the transfer was coalesced with the pending one.
+     */
+    boolean submit(Transfer transfer) {
+        synchronized (mLock) {
+            transfer.mSubmitted++;
+            if (transfer.mQueued) {
+                transfer.mCoalesced++;
+                return false;
+            }
+            transfer.mQueued = true;
+            mQueue.addLast(transfer);
+            mLock.notifyAll();
+            return true;
+        }
+    }
+
+    long getSubmittedCount(Transfer transfer) {
+        synchronized (mLock) {
+            return transfer.mSubmitted;
+        }
+    }
+
+    long getCoalescedCount(Transfer transfer) {
+        synchronized (mLock) {
+            return transfer.mCoalesced;
+        }
+    }
+
+    /**
+     * Returns the total time spent running transfers.
+     */
+    long getBusyNanos() {
+        return mBusyNanos;
+    }
+
+    /**
+     * Returns the fraction of time the bus was busy since {@link #start()}.
+     */
+    float getUtilization() {
+        long elapsed = System.nanoTime() - mStartNanos;
+        return elapsed > 0 ? (float) mBusyNanos / elapsed : 0f;
+    }
+
+    private void runLoop() {
+        while (true) {
+            Transfer transfer = null;
+            synchronized (mLock) {
+                while ((transfer = mQueue.pollFirst()) == null) {
+                    if (!mRunning) {
+                        return;
+                    }
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                // Dequeue before running so a submit during the transfer queues it again.
+                transfer.mQueued = false;
+            }
+            long start = System.nanoTime();
+            transfer.mAction.run();
+            long busy = System.nanoTime() - start;
+            transfer.mRuns++;
+            transfer.mBusyNanos += busy;
+            mBusyNanos += busy;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+/**
+ * Identifiers of the measurement channels produced by the weather station.
+ *
+ * Sensor channels are numbered from 0 to {@link #COUNT}. Each of them also has derived channels
+ * carrying the statistics of a window of its samples, see {@link WindowAggregator}. The forecast
+ * channels carry the pressure tendencies, in hPa per hour, and the weather forecast, see
+ * {@link PressureTrend}. All identifiers are below {@link #ID_LIMIT}.
+ */
+final class Channel {
+    static final int TEMPERATURE = 0;
+    static final int PRESSURE = 1;
+    static final int COUNT = 2;
+    static final int PRESSURE_TENDENCY_1H = 8;
+    static final int PRESSURE_TENDENCY_3H = 9;
+    static final int FORECAST = 10;
+    static final int ID_LIMIT = 32;
+
+    static final int STAT_MIN = 0;
+    static final int STAT_MAX = 1;
+    static final int STAT_MEAN = 2;
+    static final int STAT_STDDEV = 3;
+    static final int STAT_COUNT = 4;
+
+    private static final int AGGREGATE_BASE = 16;
+    private static final String[] STAT_NAMES = {"min", "max", "mean", "stddev"};
+
+    private Channel() {
+    }
+
+    /**
+     * Returns the derived channel carrying statistic {@code stat} of sensor channel
+     * {@code channel}.
+     */
+    static int aggregate(int channel, int stat) {
+        return AGGREGATE_BASE + channel * STAT_COUNT + stat;
+    }
+
+    static boolean isAggregate(int channel) {
+        return channel >= AGGREGATE_BASE && channel < AGGREGATE_BASE + COUNT * STAT_COUNT;
+    }
+
+    static boolean isForecast(int channel) {
+        return channel >= PRESSURE_TENDENCY_1H && channel <= FORECAST;
+    }
+
+    static boolean isValid(int channel) {
+        return (channel >= 0 && channel < COUNT) || isAggregate(channel) || isForecast(channel);
+    }
+
+    /**
+     * Returns the channel called {@code name}, see {@link #name(int)}, or -1.
+     */
+    static int forName(String name) {
+        for (int channel = PRESSURE_TENDENCY_1H; channel <= FORECAST; channel++) {
+            if (name(channel).equals(name)) {
+                return channel;
+            }
+        }
+        for (int channel = 0; channel < COUNT; channel++) {
+            if (name(channel).equals(name)) {
+                return channel;
+            }
+            for (int stat = 0; stat < STAT_COUNT; stat++) {
+                if (name(aggregate(channel, stat)).equals(name)) {
+                    return aggregate(channel, stat);
+                }
+            }
+        }
+        return -1;
+    }
+
+    static String name(int channel) {
+        switch (channel) {
+            case TEMPERATURE:
+                return "temperature";
+            case PRESSURE:
+                return "pressure";
+            case PRESSURE_TENDENCY_1H:
+                return "pressure_tendency_1h";
+            case PRESSURE_TENDENCY_3H:
+                return "pressure_tendency_3h";
+            case FORECAST:
+                return "forecast";
+            default:
+                if (isAggregate(channel)) {
+                    int index = channel - AGGREGATE_BASE;
+                    return name(index / STAT_COUNT) + "_" + STAT_NAMES[index % STAT_COUNT];
+                }
+                throw new IllegalArgumentException("Unknown channel: " + channel);
+        }
+    }
+}
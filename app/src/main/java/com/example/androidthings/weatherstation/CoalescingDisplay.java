@@ -0,0 +1,56 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+/**
+ * {@link SegmentDisplay} writing through a {@link BusScheduler}: callers return immediately,
+ * and only the latest value is written when the bus gets to it.
+ */
+class CoalescingDisplay implements SegmentDisplay {
+
+    private final BusScheduler mBus;
+    private final BusScheduler.Transfer mTransfer;
+    private volatile float mValue;
+
+    CoalescingDisplay(final SegmentDisplay display, BusScheduler bus) {
+        mBus = bus;
+        mTransfer = new BusScheduler.Transfer("display", new Runnable() {
+            @Override
+            public void run() {
+                display.display(mValue);
+            }
+        });
+    }
+
+    @Override
+    public void display(float value) {
+        mValue = value;
+        mBus.submit(mTransfer);
+    }
+
+    long getSubmittedCount() {
+        return mBus.getSubmittedCount(mTransfer);
+    }
+
+    long getWrittenCount() {
+        return mTransfer.getRunCount();
+    }
+
+    long getBusyNanos() {
+        return mTransfer.getBusyNanos();
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+/**
+ * Report-by-exception filter: a sample is reported only if its value moved by more than the
+ * dead-band of its channel since the last reported sample, or if nothing was reported on the
+ * channel for the heartbeat interval.
+ *
+ * Time is taken from the sample timestamps only, so the filter behaves the same when replaying
+ * recorded samples. A sensor that stops delivering samples gets no heartbeat from them: the
+ * caller also schedules one {@link #getHeartbeatMs()} after each report, and calls
+ * {@link #heartbeat(long)} when it fires. Not thread-safe.
+ */
+class DeadbandFilter {
+
+    private final long mHeartbeatMs;
+    private final float[] mDeadbands = new float[Channel.COUNT];
+    private final float[] mLastValues = new float[Channel.COUNT];
+    private final long[] mLastTimestamps = new long[Channel.COUNT];
+    private final boolean[] mReported = new boolean[Channel.COUNT];
+    private long mReportedCount;
+    private long mSuppressedCount;
+
+    /**
+     * @param heartbeatMs longest time without reporting a sample of a channel.
+     */
+    DeadbandFilter(long heartbeatMs) {
+        if (heartbeatMs <= 0) {
+            throw new IllegalArgumentException("Invalid heartbeat: " + heartbeatMs);
+        }
+        mHeartbeatMs = heartbeatMs;
+    }
+
+    /**
+     * Sets the change of value below which samples of {@code channel} are suppressed; 0, the
+     * default, only suppresses unchanged values.
+     */
+    DeadbandFilter setDeadband(int channel, float deadband) {
+        if (!(deadband >= 0)) {
+            throw new IllegalArgumentException("Invalid dead-band: " + deadband);
+        }
+        mDeadbands[channel] = deadband;
+        return this;
+    }
+
+    long getHeartbeatMs() {
+        return mHeartbeatMs;
+    }
+
+    /**
+     * Records that the latest values of all channels were reported at {@code timestampMs} by a
+     * scheduled heartbeat, so the next heartbeat of each channel is due from then.
+     */
+    void heartbeat(long timestampMs) {
+        for (int channel = 0; channel < Channel.COUNT; channel++) {
+            if (mReported[channel]) {
+                mLastTimestamps[channel] = timestampMs;
+            }
+        }
+    }
+
+    /**
+     * Returns whether the sample should be reported. Samples of derived channels are always
+     * reported.
+     */
+    boolean accept(int channel, long timestampMs, float value) {
+        if (channel < 0 || channel >= Channel.COUNT) {
+            mReportedCount++;
+            return true;
+        }
+        if (mReported[channel]
+                && !(Math.abs(value - mLastValues[channel]) > mDeadbands[channel])
+                && timestampMs - mLastTimestamps[channel] < mHeartbeatMs) {
+            mSuppressedCount++;
+            return false;
+        }
+        mReported[channel] = true;
+        mLastValues[channel] = value;
+        mLastTimestamps[channel] = timestampMs;
+        mReportedCount++;
+        return true;
+    }
+
+    long getReportedCount() {
+        return mReportedCount;
+    }
+
+    long getSuppressedCount() {
+        return mSuppressedCount;
+    }
+}
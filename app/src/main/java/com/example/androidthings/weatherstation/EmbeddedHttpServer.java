@@ -0,0 +1,254 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Minimal HTTP/1.1 server answering GET requests on the local network, e.g. Prometheus scraping
+ * {@link Metrics}.
+ *
+ * Requests are served one at a time on a single low priority thread, each on its own
+ * connection: the clients are a few monitoring tools polling every few seconds, and none of them
+ * may compete with the sensor path. Handlers build their whole response in memory.
+ */
+class EmbeddedHttpServer {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int SO_TIMEOUT_MS = (int) TimeUnit.SECONDS.toMillis(5);
+    private static final int MAX_REQUEST_HEAD_BYTES = 8192;
+
+    /**
+     * Answers GET requests for one path, on the server thread.
+     */
+    interface Handler {
+        /**
+         * Writes the body of the response.
+         *
+         * @param parameters the decoded query parameters.
+         * @return the content type of the body.
+         * @throws IllegalArgumentException if a parameter is invalid, answered with a 400 and
+         *                                  the exception's message.
+         * @throws IOException              answered with a 500.
+         */
+        String handle(Map<String, String> parameters, Appendable body) throws IOException;
+    }
+
+    private final int mPort;
+    private final Map<String, Handler> mHandlers = new ConcurrentHashMap<>();
+    private ServerSocket mServerSocket;
+    private Thread mThread;
+    private volatile long mRequests;
+    private volatile long mErrors;
+
+    /**
+     * @param port the port to listen on, or 0 for any free one.
+     */
+    EmbeddedHttpServer(int port) {
+        mPort = port;
+    }
+
+    /**
+     * Serves {@code path}, e.g. {@code /metrics}, with {@code handler}.
+     */
+    EmbeddedHttpServer addHandler(String path, Handler handler) {
+        mHandlers.put(path, handler);
+        return this;
+    }
+
+    /**
+     * Starts listening. Returns once the port is bound.
+     */
+    void start() throws IOException {
+        final ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(mPort));
+        mServerSocket = serverSocket;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try (Socket socket = serverSocket.accept()) {
+                        serve(socket);
+                    } catch (IOException e) {
+                        // A client gone or too slow, or the server closed.
+                        if (!serverSocket.isClosed()) {
+                            mErrors++;
+                        }
+                    }
+                }
+            }
+        }, "httpServer");
+        mThread.setDaemon(true);
+        mThread.setPriority(Thread.MIN_PRIORITY);
+        mThread.start();
+    }
+
+    /**
+     * Stops listening, and waits for the request being served if any.
+     */
+    void close() throws IOException {
+        if (mServerSocket == null) {
+            return;
+        }
+        mServerSocket.close();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the port listened on, once started.
+     */
+    int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    long getRequestCount() {
+        return mRequests;
+    }
+
+    /**
+     * Returns the number of requests that failed in a handler, or before a response was sent.
+     */
+    long getErrorCount() {
+        return mErrors;
+    }
+
+    private void serve(Socket socket) throws IOException {
+        socket.setSoTimeout(SO_TIMEOUT_MS);
+        socket.setTcpNoDelay(true);
+        String requestLine = readHead(new BufferedInputStream(socket.getInputStream()));
+        mRequests++;
+        String[] parts = requestLine.split(" ");
+        if (parts.length != 3 || !parts[2].startsWith("HTTP/")) {
+            respond(socket, 400, "Bad Request", "text/plain", "Malformed request line\n");
+            return;
+        }
+        if (!parts[0].equals("GET")) {
+            respond(socket, 405, "Method Not Allowed", "text/plain", "Only GET is supported\n");
+            return;
+        }
+        String target = parts[1];
+        int query = target.indexOf('?');
+        String path = query < 0 ? target : target.substring(0, query);
+        Handler handler = mHandlers.get(path);
+        if (handler == null) {
+            respond(socket, 404, "Not Found", "text/plain", "No such path: " + path + "\n");
+            return;
+        }
+        StringBuilder body = new StringBuilder();
+        String contentType;
+        try {
+            Map<String, String> parameters = query < 0
+                    ? new HashMap<String, String>()
+                    : parseQuery(target.substring(query + 1));
+            contentType = handler.handle(parameters, body);
+        } catch (IllegalArgumentException e) {
+            respond(socket, 400, "Bad Request", "text/plain", e.getMessage() + "\n");
+            return;
+        } catch (IOException e) {
+            mErrors++;
+            respond(socket, 500, "Internal Server Error", "text/plain", e + "\n");
+            return;
+        }
+        respond(socket, 200, "OK", contentType, body);
+    }
+
+    /**
+     * Reads the request line and headers, and returns the request line.
+     */
+    private static String readHead(InputStream in) throws IOException {
+        StringBuilder head = new StringBuilder();
+        int lineEnd = -1;
+        int previous = -1;
+        while (true) {
+            int c = in.read();
+            if (c < 0) {
+                throw new SocketException("Connection closed in the request head");
+            }
+            if (head.length() >= MAX_REQUEST_HEAD_BYTES) {
+                throw new SocketException("Request head too long");
+            }
+            if (c == '\n') {
+                if (lineEnd < 0) {
+                    lineEnd = head.length();
+                }
+                if (previous == '\n') {
+                    break;
+                }
+            }
+            if (c != '\r') {
+                head.append((char) c);
+                previous = c;
+            }
+        }
+        return head.substring(0, lineEnd);
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> parameters = new HashMap<>();
+        try {
+            for (String pair : query.split("&")) {
+                if (pair.isEmpty()) {
+                    continue;
+                }
+                int equals = pair.indexOf('=');
+                String name = equals < 0 ? pair : pair.substring(0, equals);
+                String value = equals < 0 ? "" : pair.substring(equals + 1);
+                parameters.put(URLDecoder.decode(name, "UTF-8"),
+                        URLDecoder.decode(value, "UTF-8"));
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        return parameters;
+    }
+
+    private static void respond(Socket socket, int status, String reason, String contentType,
+                                CharSequence body) throws IOException {
+        byte[] content = body.toString().getBytes(UTF_8);
+        String head = "HTTP/1.1 " + status + " " + reason + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Content-Length: " + content.length + "\r\n"
+                + "Connection: close\r\n\r\n";
+        OutputStream out = socket.getOutputStream();
+        byte[] headBytes = head.getBytes(UTF_8);
+        byte[] response = new byte[headBytes.length + content.length];
+        System.arraycopy(headBytes, 0, response, 0, headBytes.length);
+        System.arraycopy(content, 0, response, headBytes.length, content.length);
+        // One write, so the response is not split by Nagle's algorithm.
+        out.write(response);
+        out.flush();
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Structured event log cheap enough for the sensor path.
+ *
+ * Events are declared once with {@link #define}, with a format applied only when they are
+ * read. Logging one copies its timestamp and up to three numeric arguments into a preallocated
+ * ring buffer: it neither allocates nor formats, and the level and sampling filters are checked
+ * first. A background thread drains the records to the {@link Sink}s, e.g. a binary
+ * {@link EventLogFile} decoded offline, or logcat in debug builds.
+ *
+ * Any thread may log. When the buffer is full, records are dropped and counted rather than
+ * blocking the caller.
+ */
+class EventLog {
+
+    // Same values as android.util.Log.
+    static final int VERBOSE = 2;
+    static final int DEBUG = 3;
+    static final int INFO = 4;
+    static final int WARN = 5;
+    static final int ERROR = 6;
+
+    private static final List<Event> sEvents = new CopyOnWriteArrayList<>();
+
+    /**
+     * A kind of event, with the format of its arguments.
+     */
+    static final class Event {
+        final int id;
+        final String name;
+        final int level;
+        final String format;
+        final String types;
+        private volatile int mSampling = 1;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        Event(int id, String name, int level, String format, String types) {
+            if (types.length() > ARGS) {
+                throw new IllegalArgumentException("At most " + ARGS + " arguments");
+            }
+            for (int i = 0; i < types.length(); i++) {
+                if ("ldc".indexOf(types.charAt(i)) < 0) {
+                    throw new IllegalArgumentException("Unknown argument type: " + types);
+                }
+            }
+            this.id = id;
+            this.name = name;
+            this.level = level;
+            this.format = format;
+            this.types = types;
+        }
+
+        /**
+         * Only keeps one in {@code every} occurrences of this event.
+         */
+        Event setSampling(int every) {
+            if (every < 1) {
+                throw new IllegalArgumentException("Sampling must be positive: " + every);
+            }
+            mSampling = every;
+            return this;
+        }
+
+        /**
+         * Formats the arguments of one occurrence of this event.
+         */
+        String format(long a0, long a1, long a2) {
+            long[] raw = {a0, a1, a2};
+            Object[] args = new Object[types.length()];
+            for (int i = 0; i < args.length; i++) {
+                switch (types.charAt(i)) {
+                    case 'd':
+                        args[i] = Double.longBitsToDouble(raw[i]);
+                        break;
+                    case 'c':
+                        args[i] = Channel.name((int) raw[i]);
+                        break;
+                    default:
+                        args[i] = raw[i];
+                        break;
+                }
+            }
+            return name + ": " + String.format(Locale.US, format, args);
+        }
+
+        private boolean isSampled() {
+            int sampling = mSampling;
+            return sampling == 1 || mCount.getAndIncrement() % sampling == 0;
+        }
+    }
+
+    /**
+     * Receives the records drained from the buffer, on the drain thread.
+     */
+    interface Sink {
+        void write(Event event, long timeMillis, long a0, long a1, long a2) throws IOException;
+
+        /**
+         * Called after each drain, and with the number of records dropped since the previous
+         * one if there were any.
+         */
+        void flush(long dropped) throws IOException;
+
+        void close() throws IOException;
+    }
+
+    /**
+     * Declares a kind of event.
+     *
+     * @param format a {@link String#format} pattern for the arguments.
+     * @param types  one character per argument: {@code l} for an integer, {@code d} for a
+     *               floating point number, {@code c} for a {@link Channel}.
+     */
+    static Event define(String name, int level, String format, String types) {
+        synchronized (sEvents) {
+            Event event = new Event(sEvents.size(), name, level, format, types);
+            sEvents.add(event);
+            return event;
+        }
+    }
+
+    /**
+     * Returns the event declared with the given id, or null.
+     */
+    static Event getEvent(int id) {
+        return id >= 0 && id < sEvents.size() ? sEvents.get(id) : null;
+    }
+
+    private static final int ARGS = 3;
+    // Per record: time, event id, then the arguments.
+    private static final int RECORD_LONGS = 2 + ARGS;
+    private static final long DRAIN_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final int mMask;
+    private final long[] mRecords;
+    // Per slot, the position it can be written at, or that position + 1 once written.
+    private final AtomicLongArray mSequences;
+    private final AtomicLong mTail = new AtomicLong();
+    // Only accessed by the drain thread.
+    private long mHead;
+
+    // Wall clock time at the origin of System.nanoTime(), to timestamp records cheaply.
+    private final long mClockOffsetNanos =
+            TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - System.nanoTime();
+
+    private final List<Sink> mSinks = new ArrayList<>();
+    private volatile int mLevel = DEBUG;
+    private final AtomicLong mLogged = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    // Only written by the drain thread.
+    private long mReportedDropped;
+    private volatile long mSinkErrors;
+
+    private Thread mThread;
+    private volatile boolean mRunning;
+
+    /**
+     * @param capacity number of records buffered, rounded up to a power of two.
+     */
+    EventLog(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mMask = size - 1;
+        mRecords = new long[size * RECORD_LONGS];
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds a destination for the records, before {@link #start()}.
+     */
+    EventLog addSink(Sink sink) {
+        mSinks.add(sink);
+        return this;
+    }
+
+    /**
+     * Discards events below the given level.
+     */
+    void setLevel(int level) {
+        mLevel = level;
+    }
+
+    void start() {
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (mRunning) {
+                    drain();
+                    LockSupport.parkNanos(DRAIN_INTERVAL_NANOS);
+                }
+                drain();
+            }
+        }, "eventLogDrain");
+        mThread.setDaemon(true);
+        mThread.setPriority(Thread.MIN_PRIORITY);
+        mThread.start();
+    }
+
+    /**
+     * Drains the records left, then closes the sinks.
+     *
+     * @throws IOException the first error closing a sink; all are closed regardless.
+     */
+    void close() throws IOException {
+        if (mThread != null) {
+            mRunning = false;
+            LockSupport.unpark(mThread);
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            drain();
+        }
+        IOException error = null;
+        for (Sink sink : mSinks) {
+            try {
+                sink.close();
+            } catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Returns whether an occurrence of the event passes the level and sampling filters. Each
+     * call counts as an occurrence for sampling.
+     */
+    boolean isLoggable(Event event) {
+        return event.level >= mLevel && event.isSampled();
+    }
+
+    void log(Event event) {
+        log(event, 0, 0, 0);
+    }
+
+    void log(Event event, long a0) {
+        log(event, a0, 0, 0);
+    }
+
+    void log(Event event, long a0, long a1) {
+        log(event, a0, a1, 0);
+    }
+
+    void log(Event event, long a0, double a1) {
+        log(event, a0, Double.doubleToRawLongBits(a1), 0);
+    }
+
+    void log(Event event, long a0, long a1, long a2) {
+        if (!isLoggable(event)) {
+            return;
+        }
+        long position;
+        int slot;
+        while (true) {
+            position = mTail.get();
+            slot = (int) position & mMask;
+            long sequence = mSequences.get(slot);
+            if (sequence == position) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (sequence < position) {
+                // The drain thread has not caught up with this slot: full.
+                mDropped.incrementAndGet();
+                return;
+            }
+            // Otherwise another thread claimed the slot first.
+        }
+        int offset = slot * RECORD_LONGS;
+        mRecords[offset] = System.nanoTime();
+        mRecords[offset + 1] = event.id;
+        mRecords[offset + 2] = a0;
+        mRecords[offset + 3] = a1;
+        mRecords[offset + 4] = a2;
+        mSequences.lazySet(slot, position + 1);
+        mLogged.incrementAndGet();
+    }
+
+    long getLoggedCount() {
+        return mLogged.get();
+    }
+
+    long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * Returns the number of records or flushes that a sink failed to write.
+     */
+    long getSinkErrorCount() {
+        return mSinkErrors;
+    }
+
+    /**
+     * Writes the buffered records to the sinks. Called by the drain thread, or directly when
+     * the log has not been started.
+     */
+    void drain() {
+        while (true) {
+            int slot = (int) mHead & mMask;
+            if (mSequences.get(slot) != mHead + 1) {
+                break;
+            }
+            int offset = slot * RECORD_LONGS;
+            long timeMillis = TimeUnit.NANOSECONDS.toMillis(mRecords[offset] + mClockOffsetNanos);
+            Event event = getEvent((int) mRecords[offset + 1]);
+            long a0 = mRecords[offset + 2];
+            long a1 = mRecords[offset + 3];
+            long a2 = mRecords[offset + 4];
+            mSequences.lazySet(slot, mHead + mMask + 1);
+            mHead++;
+            for (Sink sink : mSinks) {
+                try {
+                    sink.write(event, timeMillis, a0, a1, a2);
+                } catch (IOException e) {
+                    mSinkErrors++;
+                }
+            }
+        }
+        long dropped = mDropped.get();
+        for (Sink sink : mSinks) {
+            try {
+                sink.flush(dropped - mReportedDropped);
+            } catch (IOException e) {
+                mSinkErrors++;
+            }
+        }
+        mReportedDropped = dropped;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * {@link EventLog.Sink} writing records in a compact binary form, turned back into text by
+ * {@link #decode(InputStream, Appendable)}.
+ *
+ * <pre>
+ * file        magic "WSE1", then tagged entries:
+ * definition  1, id int32, name UTF, level int8, format UTF, types UTF
+ * record      2, id int32, time int64 (ms since the epoch), one int64 per argument
+ * dropped     3, count int64
+ * </pre>
+ *
+ * Each event is defined in a file before its first record, so files can be decoded on their
+ * own. A file is started on every run, keeping the previous one as {@code <name>.1}, and when
+ * it grows past its size limit.
+ */
+class EventLogFile implements EventLog.Sink {
+
+    static final int MAGIC = 0x57534531; // "WSE1"
+
+    private static final int TAG_DEFINITION = 1;
+    private static final int TAG_RECORD = 2;
+    private static final int TAG_DROPPED = 3;
+
+    private static final String LEVELS = "??VDIWE";
+
+    private final File mFile;
+    private final long mMaxBytes;
+    private DataOutputStream mOutput;
+    // Events defined in the current file.
+    private final BitSet mDefined = new BitSet();
+
+    /**
+     * @param maxBytes size after which the file is rolled over.
+     */
+    EventLogFile(File file, long maxBytes) throws IOException {
+        mFile = file;
+        mMaxBytes = maxBytes;
+        roll();
+    }
+
+    @Override
+    public void write(EventLog.Event event, long timeMillis, long a0, long a1, long a2)
+            throws IOException {
+        if (mOutput.size() >= mMaxBytes) {
+            mOutput.close();
+            roll();
+        }
+        if (!mDefined.get(event.id)) {
+            mOutput.writeByte(TAG_DEFINITION);
+            mOutput.writeInt(event.id);
+            mOutput.writeUTF(event.name);
+            mOutput.writeByte(event.level);
+            mOutput.writeUTF(event.format);
+            mOutput.writeUTF(event.types);
+            mDefined.set(event.id);
+        }
+        mOutput.writeByte(TAG_RECORD);
+        mOutput.writeInt(event.id);
+        mOutput.writeLong(timeMillis);
+        int args = event.types.length();
+        if (args > 0) {
+            mOutput.writeLong(a0);
+        }
+        if (args > 1) {
+            mOutput.writeLong(a1);
+        }
+        if (args > 2) {
+            mOutput.writeLong(a2);
+        }
+    }
+
+    @Override
+    public void flush(long dropped) throws IOException {
+        if (dropped > 0) {
+            mOutput.writeByte(TAG_DROPPED);
+            mOutput.writeLong(dropped);
+        }
+        mOutput.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mOutput.close();
+    }
+
+    private void roll() throws IOException {
+        if (mFile.exists()) {
+            File previous = new File(mFile.getPath() + ".1");
+            if (previous.exists() && !previous.delete()) {
+                throw new IOException("Error deleting " + previous);
+            }
+            if (!mFile.renameTo(previous)) {
+                throw new IOException("Error renaming " + mFile);
+            }
+        }
+        mOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile)));
+        mOutput.writeInt(MAGIC);
+        mDefined.clear();
+    }
+
+    /**
+     * Writes one line of text per record of an event log file.
+     */
+    static void decode(InputStream in, Appendable out) throws IOException {
+        DataInputStream input = new DataInputStream(in);
+        if (input.readInt() != MAGIC) {
+            throw new IOException("Not an event log");
+        }
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS'Z'",
+                Locale.US);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        Map<Integer, EventLog.Event> events = new HashMap<>();
+        long[] args = new long[3];
+        try {
+            while (true) {
+                int tag = input.readUnsignedByte();
+                switch (tag) {
+                    case TAG_DEFINITION:
+                        int id = input.readInt();
+                        String name = input.readUTF();
+                        int level = input.readByte();
+                        String format = input.readUTF();
+                        String types = input.readUTF();
+                        events.put(id, new EventLog.Event(id, name, level, format, types));
+                        break;
+                    case TAG_RECORD:
+                        EventLog.Event event = events.get(input.readInt());
+                        if (event == null) {
+                            throw new IOException("Record of an undefined event");
+                        }
+                        long time = input.readLong();
+                        for (int i = 0; i < args.length; i++) {
+                            args[i] = i < event.types.length() ? input.readLong() : 0;
+                        }
+                        out.append(dateFormat.format(new Date(time))).append(' ')
+                                .append(LEVELS.charAt(Math.min(event.level, LEVELS.length() - 1)))
+                                .append(' ').append(event.format(args[0], args[1], args[2]))
+                                .append('\n');
+                        break;
+                    case TAG_DROPPED:
+                        long dropped = input.readLong();
+                        out.append("... ").append(String.valueOf(dropped))
+                                .append(" records dropped\n");
+                        break;
+                    default:
+                        throw new IOException("Unknown entry: " + tag);
+                }
+            }
+        } catch (EOFException e) {
+            // The end of the file, possibly in the middle of an entry after a crash.
+        }
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Payload format compressing each channel's samples as a Gorilla time series (Pelkonen et al.,
+ * "Gorilla: A Fast, Scalable, In-Memory Time Series Database", VLDB 2015): timestamps are
+ * stored as delta-of-deltas and values as the XOR with the previous value, so the slowly
+ * changing, regularly sampled BMP280 readings take a few bits each.
+ *
+ * <pre>
+ * version     byte    {@link #VERSION}
+ * deviceId    varint length, followed by as many UTF-8 bytes
+ * runs        varint  number of channel runs
+ * runs times:
+ *   channel   byte
+ *   count     varint  number of samples
+ *   length    varint  number of bytes of the bit stream that follows
+ *   stream    first timestamp (64 bits) and value (32 bits), then for each other sample:
+ *             delta-of-delta '0' | '10'+7 bits | '110'+9 bits | '1110'+12 bits | '1111'+64 bits
+ *             value xor      '0' | '10'+bits in the previous window
+ *                                | '11'+5 bits leading zeros+5 bits (length - 1)+bits
+ * </pre>
+ *
+ * Samples are grouped by channel, so decoding returns them channel by channel, each run in
+ * timestamp order. Channel ids must be below 64.
+ */
+class GorillaPayloadCodec implements PayloadCodec {
+
+    static final byte VERSION = 2;
+
+    // Worst case: '1111' + 64 bits of timestamp and '11' + 10 + 32 bits of value.
+    private static final int MAX_SAMPLE_BITS = 4 + 64 + 2 + 10 + 32;
+
+    private final BitWriter mWriter = new BitWriter();
+    private byte[] mBuffer = new byte[256];
+    private int mPosition;
+
+    private String mDeviceId;
+    private byte[] mDeviceIdBytes;
+
+    @Override
+    public byte[] encode(String deviceId, SampleBuffer samples, int from, int to) {
+        if (!deviceId.equals(mDeviceId)) {
+            mDeviceId = deviceId;
+            mDeviceIdBytes = deviceId.getBytes(StandardCharsets.UTF_8);
+        }
+        long channels = 0;
+        for (int i = from; i < to; i++) {
+            channels |= 1L << samples.channels[i];
+        }
+        mPosition = 0;
+        ensureCapacity(1 + 10 + mDeviceIdBytes.length + 10);
+        mBuffer[mPosition++] = VERSION;
+        writeVarint(mDeviceIdBytes.length);
+        System.arraycopy(mDeviceIdBytes, 0, mBuffer, mPosition, mDeviceIdBytes.length);
+        mPosition += mDeviceIdBytes.length;
+        writeVarint(Long.bitCount(channels));
+        while (channels != 0) {
+            int channel = Long.numberOfTrailingZeros(channels);
+            channels &= channels - 1;
+            encodeRun(channel, samples, from, to);
+        }
+        return Arrays.copyOf(mBuffer, mPosition);
+    }
+
+    @Override
+    public String decode(byte[] payload, SampleBuffer out) throws IOException {
+        BitReader reader = new BitReader(payload);
+        int version = (int) reader.readBits(8);
+        if (version != VERSION) {
+            throw new IOException("Unsupported payload version: " + version);
+        }
+        int length = (int) reader.readVarint();
+        String deviceId = new String(reader.readBytes(length), StandardCharsets.UTF_8);
+        long runs = reader.readVarint();
+        for (long run = 0; run < runs; run++) {
+            int channel = (int) reader.readBits(8);
+            long count = reader.readVarint();
+            int streamBytes = (int) reader.readVarint();
+            int end = reader.bytePosition() + streamBytes;
+            decodeRun(reader, channel, count, out);
+            reader.seekByte(end);
+        }
+        return deviceId;
+    }
+
+    @Override
+    public int maxSamplesPerPayload() {
+        return 4096;
+    }
+
+    @Override
+    public int estimateSampleBytes() {
+        return (MAX_SAMPLE_BITS + 7) / 8;
+    }
+
+    private void encodeRun(int channel, SampleBuffer samples, int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (samples.channels[i] == channel) {
+                count++;
+            }
+        }
+        mWriter.reset(count * MAX_SAMPLE_BITS);
+        long previousTimestamp = 0;
+        long previousDelta = 0;
+        int previousBits = 0;
+        int leading = -1;
+        int trailing = 0;
+        boolean first = true;
+        for (int i = from; i < to; i++) {
+            if (samples.channels[i] != channel) {
+                continue;
+            }
+            long timestamp = samples.timestamps[i];
+            int bits = Float.floatToRawIntBits(samples.values[i]);
+            if (first) {
+                mWriter.writeBits(timestamp, 64);
+                mWriter.writeBits(bits, 32);
+                first = false;
+            } else {
+                long delta = timestamp - previousTimestamp;
+                long deltaOfDelta = delta - previousDelta;
+                previousDelta = delta;
+                if (deltaOfDelta == 0) {
+                    mWriter.writeBits(0, 1);
+                } else if (deltaOfDelta >= -63 && deltaOfDelta <= 64) {
+                    mWriter.writeBits(0b10, 2);
+                    mWriter.writeBits(deltaOfDelta, 7);
+                } else if (deltaOfDelta >= -255 && deltaOfDelta <= 256) {
+                    mWriter.writeBits(0b110, 3);
+                    mWriter.writeBits(deltaOfDelta, 9);
+                } else if (deltaOfDelta >= -2047 && deltaOfDelta <= 2048) {
+                    mWriter.writeBits(0b1110, 4);
+                    mWriter.writeBits(deltaOfDelta, 12);
+                } else {
+                    mWriter.writeBits(0b1111, 4);
+                    mWriter.writeBits(deltaOfDelta, 64);
+                }
+
+                int xor = bits ^ previousBits;
+                if (xor == 0) {
+                    mWriter.writeBits(0, 1);
+                } else {
+                    int newLeading = Math.min(Integer.numberOfLeadingZeros(xor), 31);
+                    int newTrailing = Integer.numberOfTrailingZeros(xor);
+                    if (leading >= 0 && newLeading >= leading && newTrailing >= trailing) {
+                        // Meaningful bits fit in the previous window.
+                        mWriter.writeBits(0b10, 2);
+                        mWriter.writeBits(xor >>> trailing, 32 - leading - trailing);
+                    } else {
+                        leading = newLeading;
+                        trailing = newTrailing;
+                        int significant = 32 - leading - trailing;
+                        mWriter.writeBits(0b11, 2);
+                        mWriter.writeBits(leading, 5);
+                        mWriter.writeBits(significant - 1, 5);
+                        mWriter.writeBits(xor >>> trailing, significant);
+                    }
+                }
+            }
+            previousTimestamp = timestamp;
+            previousBits = bits;
+        }
+        int streamBytes = mWriter.byteLength();
+        ensureCapacity(mPosition + 1 + 10 + 10 + streamBytes);
+        mBuffer[mPosition++] = (byte) channel;
+        writeVarint(count);
+        writeVarint(streamBytes);
+        System.arraycopy(mWriter.buffer(), 0, mBuffer, mPosition, streamBytes);
+        mPosition += streamBytes;
+    }
+
+    private static void decodeRun(BitReader reader, int channel, long count, SampleBuffer out)
+            throws IOException {
+        long timestamp = 0;
+        long delta = 0;
+        int bits = 0;
+        int leading = 0;
+        int trailing = 0;
+        for (long i = 0; i < count; i++) {
+            if (i == 0) {
+                timestamp = reader.readBits(64);
+                bits = (int) reader.readBits(32);
+            } else {
+                long deltaOfDelta;
+                if (reader.readBits(1) == 0) {
+                    deltaOfDelta = 0;
+                } else if (reader.readBits(1) == 0) {
+                    deltaOfDelta = signExtend(reader.readBits(7), 7);
+                } else if (reader.readBits(1) == 0) {
+                    deltaOfDelta = signExtend(reader.readBits(9), 9);
+                } else if (reader.readBits(1) == 0) {
+                    deltaOfDelta = signExtend(reader.readBits(12), 12);
+                } else {
+                    deltaOfDelta = reader.readBits(64);
+                }
+                delta += deltaOfDelta;
+                timestamp += delta;
+
+                if (reader.readBits(1) != 0) {
+                    if (reader.readBits(1) != 0) {
+                        leading = (int) reader.readBits(5);
+                        trailing = 32 - leading - ((int) reader.readBits(5) + 1);
+                    }
+                    int significant = 32 - leading - trailing;
+                    bits ^= (int) reader.readBits(significant) << trailing;
+                }
+            }
+            if (!out.add(channel, timestamp, Float.intBitsToFloat(bits))) {
+                throw new IOException("Sample buffer too small");
+            }
+        }
+    }
+
+    // Values in [-(2^(n-1) - 1), 2^(n-1)] are stored in n bits; the top of the range wraps to
+    // the most negative pattern.
+    private static long signExtend(long value, int bits) {
+        long half = 1L << (bits - 1);
+        return value > half ? value - (1L << bits) : value;
+    }
+
+    private void writeVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            mBuffer[mPosition++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        mBuffer[mPosition++] = (byte) value;
+    }
+
+    private void ensureCapacity(int size) {
+        if (mBuffer.length < size) {
+            mBuffer = Arrays.copyOf(mBuffer, Math.max(size, mBuffer.length * 2));
+        }
+    }
+
+    private static final class BitWriter {
+        private byte[] mBytes = new byte[64];
+        private int mBitPosition;
+
+        void reset(int maxBits) {
+            int size = (maxBits + 7) / 8;
+            if (mBytes.length < size) {
+                mBytes = new byte[Math.max(size, mBytes.length * 2)];
+            } else {
+                Arrays.fill(mBytes, 0, Math.min(mBytes.length, byteLength()), (byte) 0);
+            }
+            mBitPosition = 0;
+        }
+
+        // Writes the low 'count' bits of value, most significant first.
+        void writeBits(long value, int count) {
+            for (int i = count - 1; i >= 0; i--) {
+                if (((value >>> i) & 1) != 0) {
+                    mBytes[mBitPosition >>> 3] |= (byte) (0x80 >>> (mBitPosition & 7));
+                }
+                mBitPosition++;
+            }
+        }
+
+        int byteLength() {
+            return (mBitPosition + 7) >>> 3;
+        }
+
+        byte[] buffer() {
+            return mBytes;
+        }
+    }
+
+    private static final class BitReader {
+        private final byte[] mData;
+        private long mBitPosition;
+
+        BitReader(byte[] data) {
+            mData = data;
+        }
+
+        long readBits(int count) throws IOException {
+            if (mBitPosition + count > (long) mData.length * 8) {
+                throw new IOException("Truncated payload");
+            }
+            long value = 0;
+            for (int i = 0; i < count; i++) {
+                int bit = (mData[(int) (mBitPosition >>> 3)] >>> (7 - (mBitPosition & 7))) & 1;
+                value = (value << 1) | bit;
+                mBitPosition++;
+            }
+            return value;
+        }
+
+        long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                long b = readBits(8);
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        byte[] readBytes(int length) throws IOException {
+            int start = bytePosition();
+            if (length < 0 || start + length > mData.length) {
+                throw new IOException("Truncated payload");
+            }
+            seekByte(start + length);
+            return Arrays.copyOfRange(mData, start, start + length);
+        }
+
+        int bytePosition() {
+            return (int) ((mBitPosition + 7) >>> 3);
+        }
+
+        void seekByte(int position) {
+            mBitPosition = (long) position * 8;
+        }
+    }
+}
@@ -0,0 +1,775 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * On-disk history of the sensor channels, kept for weeks and queried by time range, e.g. by
+ * {@link HistoryQueries} when the uplink is down.
+ *
+ * Each channel is stored in a directory of segment files, one per time partition, named after
+ * the partition's start time. A segment holds the partition's samples in time order as fixed
+ * 8-byte records, {@code [offset from the partition start in ms int32][value float32]}, after an
+ * 8-byte header. A sparse index holding the first offset and the minimum, maximum and sum of
+ * every block of {@value #INDEX_INTERVAL} records is kept in memory, and written next to the
+ * segment when it is sealed. A query reads the segments overlapping its range only,
+ * memory-mapped, from the first matching block of records, and a downsample only reads the
+ * records of the blocks that straddle two periods. Partitions older than the retention period
+ * are deleted.
+ *
+ * Samples are appended by a single writer thread, as a consumer of the {@link SensorEventBus},
+ * and become visible to queries when flushed, at most {@value #FLUSH_INTERVAL_MS}ms later.
+ * Queries may run on any thread. Samples older than the latest one of their channel are
+ * dropped.
+ */
+class HistoryArchive implements SampleSink, Closeable {
+
+    static final int MAGIC = 0x57534831; // "WSH1"
+
+    private static final int HEADER_BYTES = 8;
+    private static final int RECORD_BYTES = 8;
+    private static final int INDEX_INTERVAL = 256;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final long FLUSH_INTERVAL_MS = 1000;
+
+    private final File mDirectory;
+    private final long mPartitionMs;
+    private final long mRetentionMs;
+
+    // Segments of each channel, oldest first, guarded by this.
+    private final List<List<Segment>> mSegments = new ArrayList<>();
+
+    // Only accessed by the writer thread.
+    private final Segment[] mActive = new Segment[Channel.COUNT];
+    private final long[] mLastTimestamps = new long[Channel.COUNT];
+    private long mLastFlushNanos = System.nanoTime();
+
+    // Latest sample of each channel, including the ones not flushed yet, guarded by itself.
+    private final long[] mLatestTimestamps = new long[Channel.COUNT];
+    private final float[] mLatestValues = new float[Channel.COUNT];
+
+    private volatile long mWritten;
+    private volatile long mOutOfOrder;
+    private volatile long mWriteErrors;
+    private final LatencyHistogram mQueryLatency = new LatencyHistogram();
+
+    /**
+     * Opens the archive stored in {@code directory}, with the samples of previous runs.
+     *
+     * @param partitionMs time span of one segment file, at most 24 days.
+     * @param retentionMs age after which a partition is deleted, from the latest sample.
+     */
+    HistoryArchive(File directory, long partitionMs, long retentionMs) throws IOException {
+        if (partitionMs <= 0 || partitionMs > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid partition: " + partitionMs + "ms");
+        }
+        if (retentionMs < partitionMs) {
+            throw new IllegalArgumentException("Retention shorter than a partition: "
+                    + retentionMs + "ms");
+        }
+        mDirectory = directory;
+        mPartitionMs = partitionMs;
+        mRetentionMs = retentionMs;
+        Arrays.fill(mLatestValues, Float.NaN);
+        for (int channel = 0; channel < Channel.COUNT; channel++) {
+            mSegments.add(load(channel));
+        }
+    }
+
+    private List<Segment> load(int channel) throws IOException {
+        File directory = new File(mDirectory, Channel.name(channel));
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create history directory " + directory);
+        }
+        String[] names = directory.list();
+        long[] starts = new long[names != null ? names.length : 0];
+        int count = 0;
+        for (int i = 0; i < starts.length; i++) {
+            if (names[i].endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    starts[count] = Long.parseLong(
+                            names[i].substring(0, names[i].length() - SEGMENT_SUFFIX.length()));
+                    count++;
+                } catch (NumberFormatException e) {
+                    // Not one of ours.
+                }
+            }
+        }
+        Arrays.sort(starts, 0, count);
+        List<Segment> segments = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Segment segment = new Segment(directory, starts[i]);
+            if (segment.load()) {
+                segments.add(segment);
+            }
+        }
+        Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (last != null && last.mRecords > 0) {
+            ByteBuffer buffer = last.map(last.mRecords);
+            if (buffer != null) {
+                int position = HEADER_BYTES + (last.mRecords - 1) * RECORD_BYTES;
+                mLastTimestamps[channel] = last.start + buffer.getInt(position);
+                mLatestTimestamps[channel] = mLastTimestamps[channel];
+                mLatestValues[channel] = buffer.getFloat(position + 4);
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Appends a sample of a sensor channel; derived channels are not archived. Writer thread
+     * only.
+     */
+    @Override
+    public void onSample(int channel, long timestampMs, float value) {
+        if (channel < 0 || channel >= Channel.COUNT) {
+            return;
+        }
+        if (timestampMs < mLastTimestamps[channel]) {
+            mOutOfOrder++;
+            return;
+        }
+        try {
+            writableSegment(channel, timestampMs).append(timestampMs, value);
+        } catch (IOException e) {
+            mWriteErrors++;
+            return;
+        }
+        mLastTimestamps[channel] = timestampMs;
+        synchronized (mLatestTimestamps) {
+            mLatestTimestamps[channel] = timestampMs;
+            mLatestValues[channel] = value;
+        }
+        mWritten++;
+        long now = System.nanoTime();
+        if (now - mLastFlushNanos >= TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MS)) {
+            mLastFlushNanos = now;
+            flush();
+        }
+    }
+
+    /**
+     * Makes the samples appended so far visible to queries. Writer thread only.
+     */
+    void flush() {
+        for (Segment segment : mActive) {
+            if (segment != null) {
+                try {
+                    segment.flush();
+                } catch (IOException e) {
+                    mWriteErrors++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Flushes and seals the segments being written. Must not be called concurrently with
+     * {@link #onSample}.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException error = null;
+        for (int channel = 0; channel < mActive.length; channel++) {
+            if (mActive[channel] == null) {
+                continue;
+            }
+            try {
+                mActive[channel].seal();
+            } catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+            mActive[channel] = null;
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Receives the statistics of the samples of one step of a downsampled range.
+     */
+    interface StepSink {
+        void onStep(long startMs, int count, float min, float max, double sum);
+    }
+
+    /**
+     * Hands the archived samples of {@code channel} with a timestamp in {@code [fromMs, toMs)}
+     * to {@code sink}, oldest first, up to {@code limit} of them.
+     *
+     * @return the number of samples handed to the sink.
+     */
+    int scan(int channel, long fromMs, long toMs, int limit, SampleSink sink)
+            throws IOException {
+        long start = System.nanoTime();
+        int count = 0;
+        try {
+            for (Segment segment : overlapping(channel, fromMs, toMs)) {
+                int records = segment.mRecords;
+                ByteBuffer buffer = segment.map(records);
+                if (buffer == null) {
+                    continue;
+                }
+                for (int i = segment.lowerBound(buffer, records, fromMs); i < records; i++) {
+                    long timestampMs = segment.timestampAt(buffer, i);
+                    if (count == limit || timestampMs >= toMs) {
+                        return count;
+                    }
+                    sink.onSample(channel, timestampMs, segment.valueAt(buffer, i));
+                    count++;
+                }
+            }
+            return count;
+        } finally {
+            mQueryLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Hands the count, minimum, maximum and sum of the archived samples of {@code channel} in
+     * each period of {@code stepMs} from {@code fromMs} to {@code toMs} to {@code sink}, oldest
+     * first, skipping the periods without samples. Blocks of records that fall within one
+     * period are summarized from the index rather than read.
+     *
+     * @return the number of samples summarized.
+     */
+    long downsample(int channel, long fromMs, long toMs, long stepMs, StepSink sink)
+            throws IOException {
+        long start = System.nanoTime();
+        Downsampler steps = new Downsampler(fromMs, stepMs, sink);
+        try {
+            for (Segment segment : overlapping(channel, fromMs, toMs)) {
+                int records = segment.mRecords;
+                ByteBuffer buffer = segment.map(records);
+                if (buffer == null) {
+                    continue;
+                }
+                BlockIndex blocks = segment.getBlocks();
+                int i = segment.lowerBound(buffer, records, fromMs);
+                while (i < records) {
+                    long timestampMs = segment.timestampAt(buffer, i);
+                    if (timestampMs >= toMs) {
+                        steps.finish();
+                        return steps.mTotal;
+                    }
+                    int block = i / INDEX_INTERVAL;
+                    int blockEnd = i + INDEX_INTERVAL;
+                    if (i % INDEX_INTERVAL == 0 && blockEnd <= records) {
+                        long lastMs = segment.timestampAt(buffer, blockEnd - 1);
+                        if (lastMs < toMs && steps.isSameStep(timestampMs, lastMs)) {
+                            steps.add(timestampMs, INDEX_INTERVAL, blocks.mins[block],
+                                    blocks.maxs[block], blocks.sums[block]);
+                            i = blockEnd;
+                            continue;
+                        }
+                    }
+                    float value = segment.valueAt(buffer, i);
+                    steps.add(timestampMs, 1, value, value, value);
+                    i++;
+                }
+            }
+            steps.finish();
+            return steps.mTotal;
+        } finally {
+            mQueryLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    // Returns the segments of a channel holding samples and overlapping [fromMs, toMs).
+    private synchronized List<Segment> overlapping(int channel, long fromMs, long toMs) {
+        List<Segment> segments = new ArrayList<>();
+        for (Segment segment : mSegments.get(channel)) {
+            if (segment.start < toMs && segment.start + mPartitionMs > fromMs
+                    && segment.mRecords > 0) {
+                segments.add(segment);
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Accumulates the samples of the current step of a downsampled range.
+     */
+    private static final class Downsampler {
+        private final long mFromMs;
+        private final long mStepMs;
+        private final StepSink mSink;
+        long mTotal;
+
+        private long mStep = Long.MIN_VALUE;
+        private int mCount;
+        private float mMin;
+        private float mMax;
+        private double mSum;
+
+        Downsampler(long fromMs, long stepMs, StepSink sink) {
+            mFromMs = fromMs;
+            mStepMs = stepMs;
+            mSink = sink;
+        }
+
+        boolean isSameStep(long firstMs, long lastMs) {
+            return (firstMs - mFromMs) / mStepMs == (lastMs - mFromMs) / mStepMs;
+        }
+
+        void add(long timestampMs, int count, float min, float max, double sum) {
+            long step = (timestampMs - mFromMs) / mStepMs;
+            if (step != mStep) {
+                finish();
+                mStep = step;
+                mMin = Float.POSITIVE_INFINITY;
+                mMax = Float.NEGATIVE_INFINITY;
+            }
+            mCount += count;
+            mMin = Math.min(mMin, min);
+            mMax = Math.max(mMax, max);
+            mSum += sum;
+            mTotal += count;
+        }
+
+        void finish() {
+            if (mCount > 0) {
+                mSink.onStep(mFromMs + mStep * mStepMs, mCount, mMin, mMax, mSum);
+            }
+            mCount = 0;
+            mSum = 0;
+        }
+    }
+
+    /**
+     * Returns the timestamp of the latest sample of {@code channel}, or 0 if there is none.
+     */
+    long latestTimestamp(int channel) {
+        synchronized (mLatestTimestamps) {
+            return mLatestTimestamps[channel];
+        }
+    }
+
+    /**
+     * Returns the latest value of {@code channel}, or {@link Float#NaN} if there is none.
+     */
+    float latestValue(int channel) {
+        synchronized (mLatestTimestamps) {
+            return mLatestValues[channel];
+        }
+    }
+
+    long getWrittenCount() {
+        return mWritten;
+    }
+
+    long getOutOfOrderCount() {
+        return mOutOfOrder;
+    }
+
+    long getWriteErrorCount() {
+        return mWriteErrors;
+    }
+
+    LatencyHistogram getQueryLatency() {
+        return mQueryLatency;
+    }
+
+    /**
+     * Returns the size of the segment files, index files excluded.
+     */
+    synchronized long getSizeBytes() {
+        long bytes = 0;
+        for (List<Segment> segments : mSegments) {
+            for (Segment segment : segments) {
+                bytes += HEADER_BYTES + (long) segment.mRecords * RECORD_BYTES;
+            }
+        }
+        return bytes;
+    }
+
+    void registerMetrics(Metrics metrics) {
+        metrics.addCounter("weatherstation_archive_samples_total",
+                "Samples written to the on-disk history.", new Metrics.Value() {
+                    @Override
+                    public double get() {
+                        return getWrittenCount();
+                    }
+                });
+        metrics.addCounter("weatherstation_archive_out_of_order_samples_total",
+                "Samples older than the latest archived one, dropped.", new Metrics.Value() {
+                    @Override
+                    public double get() {
+                        return getOutOfOrderCount();
+                    }
+                });
+        metrics.addCounter("weatherstation_archive_write_errors_total",
+                "Failed writes to the on-disk history.", new Metrics.Value() {
+                    @Override
+                    public double get() {
+                        return getWriteErrorCount();
+                    }
+                });
+        metrics.addGauge("weatherstation_archive_size_bytes",
+                "Size of the on-disk history.", new Metrics.Value() {
+                    @Override
+                    public double get() {
+                        return getSizeBytes();
+                    }
+                });
+        metrics.addHistogram("weatherstation_archive_query_duration_seconds",
+                "Time to read the samples of one history query.", mQueryLatency);
+    }
+
+    private Segment writableSegment(int channel, long timestampMs) throws IOException {
+        long partitionStart = timestampMs - floorMod(timestampMs, mPartitionMs);
+        Segment active = mActive[channel];
+        if (active != null && active.start == partitionStart) {
+            return active;
+        }
+        if (active != null) {
+            active.seal();
+            mActive[channel] = null;
+        }
+        List<Segment> evicted = new ArrayList<>();
+        Segment segment;
+        synchronized (this) {
+            List<Segment> segments = mSegments.get(channel);
+            Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (last != null && last.start == partitionStart) {
+                // Left by a previous run.
+                segment = last;
+            } else {
+                segment = new Segment(new File(mDirectory, Channel.name(channel)),
+                        partitionStart);
+                segments.add(segment);
+            }
+            while (segments.get(0).start + mPartitionMs <= timestampMs - mRetentionMs) {
+                evicted.add(segments.remove(0));
+            }
+        }
+        for (Segment old : evicted) {
+            old.delete();
+        }
+        segment.openForAppend();
+        mActive[channel] = segment;
+        return segment;
+    }
+
+    private static long floorMod(long x, long y) {
+        long mod = x % y;
+        return mod < 0 ? mod + y : mod;
+    }
+
+    /**
+     * Sparse index of a segment: the offset of the first record of every block of
+     * {@value #INDEX_INTERVAL} records, and the minimum, maximum and sum of the block's values.
+     */
+    private static final class BlockIndex {
+        final int[] offsets;
+        final float[] mins;
+        final float[] maxs;
+        final double[] sums;
+
+        BlockIndex(int capacity) {
+            offsets = new int[capacity];
+            mins = new float[capacity];
+            maxs = new float[capacity];
+            sums = new double[capacity];
+        }
+
+        BlockIndex grow(int capacity) {
+            BlockIndex grown = new BlockIndex(capacity);
+            System.arraycopy(offsets, 0, grown.offsets, 0, offsets.length);
+            System.arraycopy(mins, 0, grown.mins, 0, mins.length);
+            System.arraycopy(maxs, 0, grown.maxs, 0, maxs.length);
+            System.arraycopy(sums, 0, grown.sums, 0, sums.length);
+            return grown;
+        }
+    }
+
+    /**
+     * The file of one partition of one channel.
+     */
+    private static final class Segment {
+        final long start;
+        final File file;
+        final File indexFile;
+
+        // Records flushed to the file, visible to queries.
+        volatile int mRecords;
+        // Replaced by the writer when it grows, guarded by this. The entries of a block are
+        // final once all of its records are flushed.
+        private BlockIndex mBlocks = new BlockIndex(16);
+        // Mapping of a sealed file kept for later queries, rather than mapping it again on
+        // each one and leaving the mappings to the garbage collector. Guarded by this.
+        private boolean mSealed;
+        private ByteBuffer mMapped;
+
+        // Only accessed by the writer thread.
+        private FileOutputStream mStream;
+        private DataOutputStream mOutput;
+        private int mWritten;
+
+        Segment(File directory, long start) {
+            this.start = start;
+            file = new File(directory, start + SEGMENT_SUFFIX);
+            indexFile = new File(directory, start + INDEX_SUFFIX);
+        }
+
+        /**
+         * Reads the record count and the index of an existing file.
+         *
+         * @return false if the file is not a segment.
+         */
+        boolean load() throws IOException {
+            try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+                if (input.readInt() != MAGIC) {
+                    return false;
+                }
+            } catch (EOFException e) {
+                return false;
+            }
+            int records = (int) Math.max(0, (file.length() - HEADER_BYTES) / RECORD_BYTES);
+            int entries = (records + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+            BlockIndex blocks = new BlockIndex(Math.max(16, entries));
+            if (!readIndex(blocks, entries)) {
+                // Not sealed, e.g. after a crash: rebuild the index from the records.
+                ByteBuffer buffer = map(records);
+                for (int i = 0; i < records; i++) {
+                    index(blocks, i, buffer.getInt(HEADER_BYTES + i * RECORD_BYTES),
+                            buffer.getFloat(HEADER_BYTES + i * RECORD_BYTES + 4));
+                }
+            }
+            setBlocks(blocks);
+            mWritten = records;
+            mRecords = records;
+            setSealed(true);
+            return true;
+        }
+
+        private boolean readIndex(BlockIndex blocks, int entries) throws IOException {
+            if (!indexFile.exists()) {
+                return false;
+            }
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(indexFile)))) {
+                if (input.readInt() != entries) {
+                    return false;
+                }
+                for (int i = 0; i < entries; i++) {
+                    blocks.offsets[i] = input.readInt();
+                    blocks.mins[i] = input.readFloat();
+                    blocks.maxs[i] = input.readFloat();
+                    blocks.sums[i] = input.readDouble();
+                }
+                return true;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+
+        void openForAppend() throws IOException {
+            setSealed(false);
+            if (file.exists()) {
+                // Drop a record torn by a crash, and the index about to be outdated.
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(HEADER_BYTES + (long) mWritten * RECORD_BYTES);
+                }
+                if (indexFile.exists() && !indexFile.delete()) {
+                    throw new IOException("Error deleting " + indexFile);
+                }
+                mStream = new FileOutputStream(file, true);
+                mOutput = new DataOutputStream(new BufferedOutputStream(mStream));
+            } else {
+                mStream = new FileOutputStream(file);
+                mOutput = new DataOutputStream(new BufferedOutputStream(mStream));
+                mOutput.writeInt(MAGIC);
+                mOutput.writeInt(0);
+            }
+        }
+
+        void append(long timestampMs, float value) throws IOException {
+            int offset = (int) (timestampMs - start);
+            BlockIndex blocks = mBlocks;
+            if (mWritten / INDEX_INTERVAL == blocks.offsets.length) {
+                setBlocks(blocks = blocks.grow(blocks.offsets.length * 2));
+            }
+            index(blocks, mWritten, offset, value);
+            mOutput.writeInt(offset);
+            mOutput.writeFloat(value);
+            mWritten++;
+        }
+
+        private static void index(BlockIndex blocks, int record, int offset, float value) {
+            int block = record / INDEX_INTERVAL;
+            if (record % INDEX_INTERVAL == 0) {
+                blocks.offsets[block] = offset;
+                blocks.mins[block] = value;
+                blocks.maxs[block] = value;
+                blocks.sums[block] = value;
+            } else {
+                blocks.mins[block] = Math.min(blocks.mins[block], value);
+                blocks.maxs[block] = Math.max(blocks.maxs[block], value);
+                blocks.sums[block] += value;
+            }
+        }
+
+        void flush() throws IOException {
+            mOutput.flush();
+            mRecords = mWritten;
+        }
+
+        /**
+         * Closes the file and writes its index, once its partition is over.
+         */
+        void seal() throws IOException {
+            try {
+                flush();
+                mStream.getFD().sync();
+            } finally {
+                mOutput.close();
+                mOutput = null;
+                mStream = null;
+            }
+            BlockIndex blocks = getBlocks();
+            int entries = (mRecords + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+            File temporary = new File(indexFile.getPath() + ".tmp");
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temporary)))) {
+                output.writeInt(entries);
+                for (int i = 0; i < entries; i++) {
+                    output.writeInt(blocks.offsets[i]);
+                    output.writeFloat(blocks.mins[i]);
+                    output.writeFloat(blocks.maxs[i]);
+                    output.writeDouble(blocks.sums[i]);
+                }
+            }
+            if (!temporary.renameTo(indexFile)) {
+                throw new IOException("Error renaming " + temporary);
+            }
+            setSealed(true);
+        }
+
+        void delete() {
+            setSealed(false);
+            // Mappings held by queries in flight stay valid.
+            file.delete();
+            indexFile.delete();
+        }
+
+        /**
+         * Maps the first {@code records} records read-only, or returns null if the file was
+         * deleted since, for retention.
+         */
+        ByteBuffer map(int records) throws IOException {
+            long bytes = HEADER_BYTES + (long) records * RECORD_BYTES;
+            synchronized (this) {
+                if (mMapped != null && mMapped.capacity() >= bytes) {
+                    return mMapped;
+                }
+            }
+            ByteBuffer buffer;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, bytes);
+            } catch (FileNotFoundException e) {
+                return null;
+            }
+            synchronized (this) {
+                if (mSealed) {
+                    mMapped = buffer;
+                }
+            }
+            return buffer;
+        }
+
+        long timestampAt(ByteBuffer buffer, int record) {
+            return start + buffer.getInt(HEADER_BYTES + record * RECORD_BYTES);
+        }
+
+        float valueAt(ByteBuffer buffer, int record) {
+            return buffer.getFloat(HEADER_BYTES + record * RECORD_BYTES + 4);
+        }
+
+        /**
+         * Returns the index of the first of {@code records} records at or after
+         * {@code timestampMs}, or {@code records} if there is none.
+         */
+        int lowerBound(ByteBuffer buffer, int records, long timestampMs) {
+            if (timestampMs <= start) {
+                return 0;
+            }
+            long offset = timestampMs - start;
+            int[] offsets = getBlocks().offsets;
+            // The last block starting before the offset holds the first matching record, or
+            // the next block starts with it.
+            int low = 0;
+            int high = (records + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (offsets[mid] < offset) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            if (low == 0) {
+                return 0;
+            }
+            int first = (low - 1) * INDEX_INTERVAL;
+            int last = Math.min(low * INDEX_INTERVAL, records);
+            while (first < last) {
+                int mid = (first + last) >>> 1;
+                if (buffer.getInt(HEADER_BYTES + mid * RECORD_BYTES) < offset) {
+                    first = mid + 1;
+                } else {
+                    last = mid;
+                }
+            }
+            return first;
+        }
+
+        synchronized BlockIndex getBlocks() {
+            return mBlocks;
+        }
+
+        private synchronized void setBlocks(BlockIndex blocks) {
+            mBlocks = blocks;
+        }
+
+        private synchronized void setSealed(boolean sealed) {
+            mSealed = sealed;
+            mMapped = null;
+        }
+    }
+}
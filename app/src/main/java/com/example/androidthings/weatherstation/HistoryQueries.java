@@ -0,0 +1,173 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP endpoints answering queries on a {@link HistoryArchive}, in CSV with a header line.
+ * Times are in milliseconds since the epoch, and ranges include {@code from} but not {@code to}.
+ *
+ * <pre>
+ * /history/latest                                    channel,timestamp_ms,value
+ * /history/range?channel=&amp;from=&amp;to=&amp;limit=          timestamp_ms,value
+ * /history/downsample?channel=&amp;from=&amp;to=&amp;step=      start_ms,count,min,max,mean
+ * </pre>
+ *
+ * {@code to} defaults to now and {@code from} to one hour before it. A range returns at most
+ * {@code limit} samples, {@value #MAX_SAMPLES} by default and at most, oldest first: the next
+ * page starts one millisecond after the last timestamp returned. A downsample returns one line
+ * per {@code step} milliseconds holding samples, at most {@value #MAX_BUCKETS} of them.
+ */
+class HistoryQueries {
+
+    static final String CONTENT_TYPE = "text/csv; charset=utf-8";
+
+    private static final int MAX_SAMPLES = 100000;
+    private static final int MAX_BUCKETS = 10000;
+    private static final long DEFAULT_RANGE_MS = TimeUnit.HOURS.toMillis(1);
+
+    private final HistoryArchive mArchive;
+
+    HistoryQueries(HistoryArchive archive) {
+        mArchive = archive;
+    }
+
+    void addTo(EmbeddedHttpServer server) {
+        server.addHandler("/history/latest", new EmbeddedHttpServer.Handler() {
+            @Override
+            public String handle(Map<String, String> parameters, Appendable body)
+                    throws IOException {
+                latest(body);
+                return CONTENT_TYPE;
+            }
+        });
+        server.addHandler("/history/range", new EmbeddedHttpServer.Handler() {
+            @Override
+            public String handle(Map<String, String> parameters, Appendable body)
+                    throws IOException {
+                long to = parseLong(parameters, "to", System.currentTimeMillis());
+                range(parseChannel(parameters), parseLong(parameters, "from",
+                        to - DEFAULT_RANGE_MS), to,
+                        (int) Math.min(parseLong(parameters, "limit", MAX_SAMPLES), MAX_SAMPLES),
+                        body);
+                return CONTENT_TYPE;
+            }
+        });
+        server.addHandler("/history/downsample", new EmbeddedHttpServer.Handler() {
+            @Override
+            public String handle(Map<String, String> parameters, Appendable body)
+                    throws IOException {
+                long to = parseLong(parameters, "to", System.currentTimeMillis());
+                downsample(parseChannel(parameters), parseLong(parameters, "from",
+                        to - DEFAULT_RANGE_MS), to, parseLong(parameters, "step", -1), body);
+                return CONTENT_TYPE;
+            }
+        });
+    }
+
+    void latest(Appendable out) throws IOException {
+        out.append("channel,timestamp_ms,value\n");
+        for (int channel = 0; channel < Channel.COUNT; channel++) {
+            long timestampMs = mArchive.latestTimestamp(channel);
+            if (timestampMs > 0) {
+                out.append(Channel.name(channel)).append(',')
+                        .append(String.valueOf(timestampMs)).append(',')
+                        .append(String.valueOf(mArchive.latestValue(channel))).append('\n');
+            }
+        }
+    }
+
+    void range(int channel, long fromMs, long toMs, int limit, final Appendable out)
+            throws IOException {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive: " + limit);
+        }
+        out.append("timestamp_ms,value\n");
+        final IOException[] error = new IOException[1];
+        mArchive.scan(channel, fromMs, toMs, limit, new SampleSink() {
+            @Override
+            public void onSample(int channel, long timestampMs, float value) {
+                try {
+                    out.append(String.valueOf(timestampMs)).append(',')
+                            .append(String.valueOf(value)).append('\n');
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            }
+        });
+        if (error[0] != null) {
+            throw error[0];
+        }
+    }
+
+    void downsample(int channel, long fromMs, long toMs, long stepMs, final Appendable out)
+            throws IOException {
+        if (stepMs <= 0) {
+            throw new IllegalArgumentException("step must be positive: " + stepMs);
+        }
+        if (toMs > fromMs && (toMs - fromMs) / stepMs >= MAX_BUCKETS) {
+            throw new IllegalArgumentException("More than " + MAX_BUCKETS + " steps");
+        }
+        out.append("start_ms,count,min,max,mean\n");
+        final IOException[] error = new IOException[1];
+        mArchive.downsample(channel, fromMs, toMs, stepMs, new HistoryArchive.StepSink() {
+            @Override
+            public void onStep(long startMs, int count, float min, float max, double sum) {
+                try {
+                    out.append(String.valueOf(startMs)).append(',')
+                            .append(String.valueOf(count)).append(',')
+                            .append(String.valueOf(min)).append(',')
+                            .append(String.valueOf(max)).append(',')
+                            .append(String.valueOf((float) (sum / count))).append('\n');
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            }
+        });
+        if (error[0] != null) {
+            throw error[0];
+        }
+    }
+
+    private static int parseChannel(Map<String, String> parameters) {
+        String name = parameters.get("channel");
+        if (name == null) {
+            throw new IllegalArgumentException("Missing channel");
+        }
+        int channel = Channel.forName(name);
+        if (channel < 0 || channel >= Channel.COUNT) {
+            throw new IllegalArgumentException("Unknown channel: " + name);
+        }
+        return channel;
+    }
+
+    private static long parseLong(Map<String, String> parameters, String name,
+                                  long defaultValue) {
+        String value = parameters.get(name);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes samples as the JSON documents historically published by the weather station:
+ *
+ * <pre>
+ * {"deviceId": "rpi3", "channel": "pubsub", "timestamp": 1500000000000,
+ *  "data": {"temperature": "21.5", "pressure": "1013.2"}}
+ * </pre>
+ *
+ * A payload holding more than one sample per channel lists them under {@code "samples"}
+ * instead of {@code "data"}, each entry having a {@code "timestamp"} and one channel value.
+ */
+class JsonPayloadCodec implements PayloadCodec {
+
+    @Override
+    public byte[] encode(String deviceId, SampleBuffer samples, int from, int to) {
+        try {
+            JSONObject messagePayload = new JSONObject();
+            messagePayload.put("deviceId", deviceId);
+            messagePayload.put("channel", "pubsub");
+            if (isSnapshot(samples, from, to)) {
+                long timestamp = 0;
+                JSONObject sensorData = new JSONObject();
+                for (int i = from; i < to; i++) {
+                    timestamp = Math.max(timestamp, samples.timestamps[i]);
+                    sensorData.put(Channel.name(samples.channels[i]),
+                            String.valueOf(samples.values[i]));
+                }
+                messagePayload.put("timestamp", timestamp);
+                messagePayload.put("data", sensorData);
+            } else {
+                messagePayload.put("timestamp", samples.timestamps[from]);
+                JSONArray entries = new JSONArray();
+                for (int i = from; i < to; i++) {
+                    JSONObject entry = new JSONObject();
+                    entry.put("timestamp", samples.timestamps[i]);
+                    entry.put(Channel.name(samples.channels[i]), String.valueOf(samples.values[i]));
+                    entries.put(entry);
+                }
+                messagePayload.put("samples", entries);
+            }
+            return messagePayload.toString().getBytes(StandardCharsets.UTF_8);
+        } catch (JSONException e) {
+            // Only thrown for non-finite numbers, which timestamps never are.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String decode(byte[] payload, SampleBuffer out) throws IOException {
+        try {
+            JSONObject messagePayload = new JSONObject(new String(payload, StandardCharsets.UTF_8));
+            if (messagePayload.has("data")) {
+                long timestamp = messagePayload.getLong("timestamp");
+                decodeValues(messagePayload.getJSONObject("data"), timestamp, out);
+            } else if (messagePayload.has("samples")) {
+                JSONArray entries = messagePayload.getJSONArray("samples");
+                for (int i = 0; i < entries.length(); i++) {
+                    JSONObject entry = entries.getJSONObject(i);
+                    decodeValues(entry, entry.getLong("timestamp"), out);
+                }
+            }
+            return messagePayload.getString("deviceId");
+        } catch (JSONException | IllegalArgumentException e) {
+            throw new IOException("Malformed JSON payload", e);
+        }
+    }
+
+    @Override
+    public int maxSamplesPerPayload() {
+        // One message per sample keeps payloads readable by existing consumers.
+        return 1;
+    }
+
+    @Override
+    public int estimateSampleBytes() {
+        return 128;
+    }
+
+    private static boolean isSnapshot(SampleBuffer samples, int from, int to) {
+        int seen = 0;
+        for (int i = from; i < to; i++) {
+            int bit = 1 << samples.channels[i];
+            if ((seen & bit) != 0) {
+                return false;
+            }
+            seen |= bit;
+        }
+        return true;
+    }
+
+    private static void decodeValues(JSONObject values, long timestamp, SampleBuffer out)
+            throws JSONException, IOException {
+        for (int channel = 0; channel < Channel.ID_LIMIT; channel++) {
+            if (!Channel.isValid(channel)) {
+                continue;
+            }
+            String name = Channel.name(channel);
+            if (values.has(name)) {
+                if (!out.add(channel, timestamp, Float.parseFloat(values.getString(name)))) {
+                    throw new IOException("Sample buffer too small");
+                }
+            }
+        }
+    }
+}
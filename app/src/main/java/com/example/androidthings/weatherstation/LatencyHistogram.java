@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in nanoseconds with logarithmic buckets: every power of two is split in
+ * {@value #SUB_BUCKETS} linear sub-buckets, so percentiles are within 12.5% of the recorded
+ * values over the whole range, in a fixed 4KB of memory.
+ *
+ * Recording is lock-free and allocation-free, and may happen on any number of threads. Reads
+ * are not atomic with respect to concurrent recordings.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+
+    /**
+     * Records one duration; negative durations are recorded as 0.
+     */
+    void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        mBuckets.incrementAndGet(bucketOf(nanos));
+        mCount.incrementAndGet();
+        mSum.addAndGet(nanos);
+        long max;
+        while (nanos > (max = mMax.get()) && !mMax.compareAndSet(max, nanos)) {
+            // Retry.
+        }
+    }
+
+    long getCount() {
+        return mCount.get();
+    }
+
+    long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * Returns the total of the recorded durations.
+     */
+    long getSum() {
+        return mSum.get();
+    }
+
+    /**
+     * Returns an upper bound of the given percentile, between 0 and 1, of the recorded
+     * durations, or 0 if nothing was recorded.
+     */
+    long getPercentile(double percentile) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mMax.set(0);
+        mSum.set(0);
+    }
+
+    /**
+     * Copies the count of every bucket into {@code counts}, which must hold
+     * {@link #getBucketCount()} values.
+     */
+    void getBucketCounts(long[] counts) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = mBuckets.get(i);
+        }
+    }
+
+    static int getBucketCount() {
+        return BUCKETS;
+    }
+
+    /**
+     * Returns the largest duration counted in bucket {@code index}.
+     */
+    static long upperBoundOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    private static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((nanos >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "count=%d p50=%dus p90=%dus p99=%dus max=%dus",
+                getCount(), toMicros(getPercentile(0.5)), toMicros(getPercentile(0.9)),
+                toMicros(getPercentile(0.99)), toMicros(getMax()));
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders frames to a {@link LedStrip} from a dedicated thread.
+ *
+ * {@link #write} only copies the frame into a back buffer and returns, so callers never block on
+ * the SPI bus. The render thread swaps buffers and writes the newest frame at most
+ * {@code maxFramesPerSecond} times per second, coalescing bursts, and skips frames identical to
+ * the one already shown.
+ */
+class LedRenderer implements LedStrip {
+
+    private final LedStrip mOutput;
+    private final long mMinFrameIntervalNanos;
+    private final Object mLock = new Object();
+
+    // Guarded by mLock.
+    private int[] mBack;
+    private boolean mPending;
+    private boolean mRunning;
+    private long mSubmitted;
+
+    // Only touched by the render thread.
+    private int[] mFront;
+    private final int[] mShown;
+    private boolean mShownValid;
+
+    private Thread mThread;
+    private volatile long mWritten;
+    private volatile long mSkipped;
+
+    LedRenderer(LedStrip output, int length, int maxFramesPerSecond) {
+        mOutput = output;
+        mMinFrameIntervalNanos = TimeUnit.SECONDS.toNanos(1) / maxFramesPerSecond;
+        mBack = new int[length];
+        mFront = new int[length];
+        mShown = new int[length];
+    }
+
+    void start() {
+        synchronized (mLock) {
+            mRunning = true;
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                renderLoop();
+            }
+        }, "ledRenderer");
+        mThread.start();
+    }
+
+    /**
+     * Stops the render thread. A pending frame is dropped.
+     */
+    void stop() {
+        synchronized (mLock) {
+            mRunning = false;
+            mLock.notifyAll();
+        }
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void write(int[] colors) {
+        synchronized (mLock) {
+            System.arraycopy(colors, 0, mBack, 0, Math.min(colors.length, mBack.length));
+            mSubmitted++;
+            if (!mPending) {
+                mPending = true;
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of frames submitted with {@link #write}.
+     */
+    long getSubmittedCount() {
+        synchronized (mLock) {
+            return mSubmitted;
+        }
+    }
+
+    /**
+     * Returns the number of frames actually written to the strip.
+     */
+    long getWrittenCount() {
+        return mWritten;
+    }
+
+    /**
+     * Returns the number of frames not written because they matched the one shown. Frames
+     * replaced by a newer one before being rendered account for the rest of the difference.
+     */
+    long getSkippedCount() {
+        return mSkipped;
+    }
+
+    private void renderLoop() {
+        long lastWrite = System.nanoTime() - mMinFrameIntervalNanos;
+        while (true) {
+            synchronized (mLock) {
+                while (mRunning && !mPending) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!mRunning) {
+                    return;
+                }
+            }
+            // Let more frames coalesce until the next slot.
+            long wait = lastWrite + mMinFrameIntervalNanos - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            synchronized (mLock) {
+                if (!mRunning) {
+                    return;
+                }
+                int[] frame = mBack;
+                mBack = mFront;
+                mFront = frame;
+                mPending = false;
+            }
+            if (mShownValid && Arrays.equals(mFront, mShown)) {
+                mSkipped++;
+                continue;
+            }
+            mOutput.write(mFront);
+            System.arraycopy(mFront, 0, mShown, 0, mShown.length);
+            mShownValid = true;
+            mWritten++;
+            lastWrite = System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.util.Log;
+
+/**
+ * {@link EventLog.Sink} formatting records to logcat, for debug builds.
+ */
+class LogcatEventSink implements EventLog.Sink {
+    private static final String TAG = EventLog.class.getSimpleName();
+
+    @Override
+    public void write(EventLog.Event event, long timeMillis, long a0, long a1, long a2) {
+        Log.println(event.level, TAG, event.format(a0, a1, a2));
+    }
+
+    @Override
+    public void flush(long dropped) {
+        if (dropped > 0) {
+            Log.w(TAG, dropped + " records dropped");
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
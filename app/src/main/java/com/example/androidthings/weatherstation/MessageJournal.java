@@ -0,0 +1,406 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only on-disk journal of message payloads waiting to be published, with the sequence
+ * number each message was given when it was first accepted and, for the messages of peer
+ * stations, the session it was numbered in.
+ *
+ * The journal is a directory of fixed-size, memory-mapped segment files written strictly
+ * sequentially. Each record is stored as
+ * {@code [length][crc32][sequence][session length][session][payload]}, the length counting the
+ * session and the payload, and the CRC covering everything after it; the length is written last
+ * so a record torn by a crash is detected and dropped on recovery. When the journal reaches
+ * its maximum number of segments the oldest segment is evicted. Readers {@link #peek} records
+ * from a persisted cursor and {@link #commit} them once they have been published, so a crash
+ * between the two replays records rather than losing them.
+ *
+ * Records and the cursor are written to shared memory mappings, which survive a crash of the
+ * app but not a power loss. {@link #flush} forces the records appended so far to disk, and
+ * {@link #commit} forces the cursor; a power loss loses the records appended since the last
+ * flush, and may replay the ones published since the last commit.
+ *
+ * Not thread-safe: callers must serialize access to it.
+ */
+class MessageJournal implements Closeable {
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CURSOR_FILE = "cursor";
+    static final int RECORD_HEADER_BYTES = 18;
+    private static final byte[] NO_SESSION = new byte[0];
+    private static final int CURSOR_BYTES = 16;
+
+    private final File mDirectory;
+    private final int mSegmentBytes;
+    private final int mMaxSegments;
+    private final CRC32 mCrc = new CRC32();
+
+    // Ids of the segments on disk, oldest first. The last one is the write segment.
+    private final ArrayDeque<Long> mSegments = new ArrayDeque<>();
+    private MappedByteBuffer mWriteBuffer;
+
+    private long mReadSegment;
+    private int mReadPosition;
+    private long mPeekSegment;
+    private int mPeekPosition;
+    private long mMappedReadSegment = -1;
+    private ByteBuffer mMappedReadBuffer;
+
+    private final MappedByteBuffer mCursorBuffer;
+    private final RandomAccessFile mCursorFile;
+
+    private long mEvictedSegments;
+
+    /**
+     * Opens the journal stored in {@code directory}, recovering any records left over from a
+     * previous run.
+     *
+     * @param segmentBytes size of each segment file; payloads and their session are at most
+     *                     {@code segmentBytes - RECORD_HEADER_BYTES}.
+     * @param maxSegments  maximum number of segments kept before the oldest one is evicted.
+     */
+    MessageJournal(File directory, int segmentBytes, int maxSegments) throws IOException {
+        if (segmentBytes <= RECORD_HEADER_BYTES) {
+            throw new IllegalArgumentException("segmentBytes too small: " + segmentBytes);
+        }
+        if (maxSegments < 2) {
+            throw new IllegalArgumentException("maxSegments must be at least 2: " + maxSegments);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + directory);
+        }
+        mDirectory = directory;
+        mSegmentBytes = segmentBytes;
+        mMaxSegments = maxSegments;
+
+        String[] names = directory.list();
+        long[] ids = new long[names != null ? names.length : 0];
+        int count = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (names[i].endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    ids[count] = Long.parseLong(
+                            names[i].substring(0, names[i].length() - SEGMENT_SUFFIX.length()));
+                    count++;
+                } catch (NumberFormatException e) {
+                    // Not one of ours.
+                }
+            }
+        }
+        Arrays.sort(ids, 0, count);
+        for (int i = 0; i < count; i++) {
+            mSegments.addLast(ids[i]);
+        }
+        if (mSegments.isEmpty()) {
+            mSegments.addLast(0L);
+        }
+        mWriteBuffer = map(mSegments.getLast(), FileChannel.MapMode.READ_WRITE);
+        recoverWritePosition();
+
+        mCursorFile = new RandomAccessFile(new File(directory, CURSOR_FILE), "rw");
+        mCursorBuffer = mCursorFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                CURSOR_BYTES);
+        readCursor();
+    }
+
+    /**
+     * Appends a record, evicting the oldest segment if the journal is full.
+     *
+     * @param session session of the peer station that numbered the message, or null for a
+     *                message of this station.
+     */
+    void append(long sequence, String session, byte[] data) throws IOException {
+        byte[] origin = session != null ? session.getBytes(StandardCharsets.UTF_8) : NO_SESSION;
+        int length = origin.length + data.length;
+        if (origin.length > 0xFFFF || RECORD_HEADER_BYTES + length > mSegmentBytes) {
+            throw new IllegalArgumentException("Record too large: " + data.length);
+        }
+        if (mWriteBuffer.remaining() < RECORD_HEADER_BYTES + length) {
+            rollSegment();
+        }
+        int start = mWriteBuffer.position();
+        mWriteBuffer.position(start + 8);
+        mWriteBuffer.putLong(sequence);
+        mWriteBuffer.putShort((short) origin.length);
+        mWriteBuffer.put(origin);
+        mWriteBuffer.put(data);
+        mWriteBuffer.putInt(start + 4, crc(mWriteBuffer, start, length));
+        // Publish the record by writing its length last.
+        mWriteBuffer.putInt(start, length);
+    }
+
+    /**
+     * Forces the records appended so far to disk, e.g. after appending a batch of them.
+     */
+    void flush() {
+        mWriteBuffer.force();
+    }
+
+    boolean isEmpty() {
+        return mReadSegment == mSegments.getLast() && mReadPosition == mWriteBuffer.position();
+    }
+
+    long getEvictedSegmentCount() {
+        return mEvictedSegments;
+    }
+
+    /**
+     * Returns the highest sequence number of the records of this station left to read, or -1 if
+     * there are none, so that new messages can be numbered after the ones replayed from the
+     * journal.
+     */
+    long getMaxSequence() throws IOException {
+        long max = -1;
+        long segment = mReadSegment;
+        int position = mReadPosition;
+        while (true) {
+            ByteBuffer buffer = readBuffer(segment);
+            int limit = segment == mSegments.getLast()
+                    ? mWriteBuffer.position() : buffer.capacity();
+            int length = position + RECORD_HEADER_BYTES <= limit ? buffer.getInt(position) : 0;
+            if (length <= 0 || position + RECORD_HEADER_BYTES + length > limit) {
+                Long next = nextSegment(segment);
+                if (next == null) {
+                    return max;
+                }
+                segment = next;
+                position = 0;
+                continue;
+            }
+            if (buffer.getShort(position + 16) == 0) {
+                max = Math.max(max, buffer.getLong(position + 8));
+            }
+            position += RECORD_HEADER_BYTES + length;
+        }
+    }
+
+    /**
+     * Reads records from the cursor without consuming them.
+     *
+     * @param sequences receives the sequence numbers of the records, at most
+     *                  {@code sequences.length} of them.
+     * @param sessions  receives the session of each record, null for this station's; may be
+     *                  null.
+     * @return the number of records added to {@code out}.
+     */
+    int peek(List<byte[]> out, long[] sequences, String[] sessions, int maxBytes)
+            throws IOException {
+        mPeekSegment = mReadSegment;
+        mPeekPosition = mReadPosition;
+        int records = 0;
+        int bytes = 0;
+        while (records < sequences.length) {
+            ByteBuffer buffer = readBuffer(mPeekSegment);
+            int limit = mPeekSegment == mSegments.getLast()
+                    ? mWriteBuffer.position() : buffer.capacity();
+            int length = mPeekPosition + RECORD_HEADER_BYTES <= limit
+                    ? buffer.getInt(mPeekPosition) : 0;
+            if (length <= 0 || mPeekPosition + RECORD_HEADER_BYTES + length > limit) {
+                Long next = nextSegment(mPeekSegment);
+                if (next == null) {
+                    break;
+                }
+                mPeekSegment = next;
+                mPeekPosition = 0;
+                continue;
+            }
+            if (records > 0 && bytes + length > maxBytes) {
+                break;
+            }
+            int start = mPeekPosition;
+            mPeekPosition += RECORD_HEADER_BYTES + length;
+            int sessionBytes = buffer.getShort(start + 16) & 0xFFFF;
+            if (crc(buffer, start, length) != buffer.getInt(start + 4) || sessionBytes > length) {
+                // Corrupted record: skip it.
+                continue;
+            }
+            byte[] session = new byte[sessionBytes];
+            byte[] data = new byte[length - sessionBytes];
+            ByteBuffer record = buffer.duplicate();
+            record.position(start + RECORD_HEADER_BYTES);
+            record.get(session);
+            record.get(data);
+            out.add(data);
+            sequences[records] = buffer.getLong(start + 8);
+            if (sessions != null) {
+                sessions[records] = sessionBytes > 0
+                        ? new String(session, StandardCharsets.UTF_8) : null;
+            }
+            records++;
+            bytes += length;
+        }
+        return records;
+    }
+
+    /**
+     * Consumes the records returned by the last call to {@link #peek} and deletes the segments
+     * that have been fully read. Records may be appended between the two calls; if that evicted
+     * the segments being read, the records that are left are kept.
+     */
+    void commit() throws IOException {
+        if (!mSegments.contains(mPeekSegment) || mPeekSegment < mReadSegment
+                || (mPeekSegment == mReadSegment && mPeekPosition < mReadPosition)) {
+            return;
+        }
+        mReadSegment = mPeekSegment;
+        mReadPosition = mPeekPosition;
+        while (mSegments.getFirst() != mReadSegment) {
+            deleteSegment(mSegments.removeFirst());
+        }
+        writeCursor();
+        mCursorBuffer.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mWriteBuffer.force();
+        mCursorBuffer.force();
+        mCursorFile.close();
+    }
+
+    private void rollSegment() throws IOException {
+        mWriteBuffer.force();
+        long id = mSegments.getLast() + 1;
+        if (mSegments.size() == mMaxSegments) {
+            long oldest = mSegments.removeFirst();
+            deleteSegment(oldest);
+            mEvictedSegments++;
+            if (mPeekSegment == oldest) {
+                mPeekSegment = mSegments.getFirst();
+                mPeekPosition = 0;
+            }
+            if (mReadSegment == oldest) {
+                mReadSegment = mSegments.getFirst();
+                mReadPosition = 0;
+                writeCursor();
+            }
+        }
+        mSegments.addLast(id);
+        mWriteBuffer = map(id, FileChannel.MapMode.READ_WRITE);
+    }
+
+    private void recoverWritePosition() {
+        int position = 0;
+        while (position + RECORD_HEADER_BYTES <= mSegmentBytes) {
+            int length = mWriteBuffer.getInt(position);
+            if (length <= 0 || position + RECORD_HEADER_BYTES + length > mSegmentBytes) {
+                break;
+            }
+            if (crc(mWriteBuffer, position, length) != mWriteBuffer.getInt(position + 4)) {
+                break;
+            }
+            position += RECORD_HEADER_BYTES + length;
+        }
+        // Clear the torn tail so it cannot be mistaken for records later on.
+        for (int i = position; i < mSegmentBytes; i++) {
+            mWriteBuffer.put(i, (byte) 0);
+        }
+        mWriteBuffer.position(position);
+    }
+
+    // CRC of the record at start, from its sequence to the end of its payload.
+    private int crc(ByteBuffer buffer, int start, int length) {
+        ByteBuffer record = buffer.duplicate();
+        record.limit(start + RECORD_HEADER_BYTES + length);
+        record.position(start + 8);
+        mCrc.reset();
+        mCrc.update(record);
+        return (int) mCrc.getValue();
+    }
+
+    private void readCursor() {
+        long segment = mCursorBuffer.getLong(0);
+        int position = mCursorBuffer.getInt(8);
+        int check = mCursorBuffer.getInt(12);
+        if (check == (int) (segment ^ (segment >>> 32) ^ position ^ 0x5eed)
+                && mSegments.contains(segment)) {
+            mReadSegment = segment;
+            mReadPosition = position;
+        } else {
+            mReadSegment = mSegments.getFirst();
+            mReadPosition = 0;
+        }
+        mPeekSegment = mReadSegment;
+        mPeekPosition = mReadPosition;
+    }
+
+    private void writeCursor() {
+        mCursorBuffer.putLong(0, mReadSegment);
+        mCursorBuffer.putInt(8, mReadPosition);
+        mCursorBuffer.putInt(12,
+                (int) (mReadSegment ^ (mReadSegment >>> 32) ^ mReadPosition ^ 0x5eed));
+    }
+
+    private Long nextSegment(long id) {
+        for (Long segment : mSegments) {
+            if (segment > id) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    private ByteBuffer readBuffer(long id) throws IOException {
+        if (id == mSegments.getLast()) {
+            return mWriteBuffer;
+        }
+        if (mMappedReadSegment != id) {
+            mMappedReadBuffer = map(id, FileChannel.MapMode.READ_ONLY);
+            mMappedReadSegment = id;
+        }
+        return mMappedReadBuffer;
+    }
+
+    private MappedByteBuffer map(long id, FileChannel.MapMode mode) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segmentFile(id),
+                mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+        try {
+            // The mapping stays valid after the file is closed.
+            return file.getChannel().map(mode, 0, mSegmentBytes);
+        } finally {
+            file.close();
+        }
+    }
+
+    private void deleteSegment(long id) {
+        if (mMappedReadSegment == id) {
+            mMappedReadSegment = -1;
+            mMappedReadBuffer = null;
+        }
+        //noinspection ResultOfMethodCallIgnored
+        segmentFile(id).delete();
+    }
+
+    private File segmentFile(long id) {
+        return new File(mDirectory, String.format(Locale.US, "%020d%s", id, SEGMENT_SUFFIX));
+    }
+}
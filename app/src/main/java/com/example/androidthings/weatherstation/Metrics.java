@@ -0,0 +1,292 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Registry of the station's counters, gauges and latency histograms, written out in the
+ * Prometheus text exposition format for {@link EmbeddedHttpServer} to serve.
+ *
+ * Updating a metric is lock-free and allocation-free: counters are {@link AtomicLong}s and
+ * histograms are {@link LatencyHistogram}s, in fixed memory. Most metrics are not copied here
+ * at all: the registry reads the counters the components already keep through a {@link Value}
+ * when scraped. Only registration and scraping take a lock.
+ */
+class Metrics {
+
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final String TYPE_COUNTER = "counter";
+    private static final String TYPE_GAUGE = "gauge";
+    private static final String TYPE_HISTOGRAM = "histogram";
+
+    private static final Pattern NAME = Pattern.compile("[a-zA-Z_:][a-zA-Z0-9_:]*");
+
+    // Bucket bounds of the exported histograms, in seconds, and the same in nanoseconds.
+    private static final String[] BOUNDS = {"0.00001", "0.00005", "0.0001", "0.00025",
+            "0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1", "0.25", "0.5",
+            "1", "2.5", "5", "10"};
+    private static final long[] BOUND_NANOS = new long[BOUNDS.length];
+
+    static {
+        for (int i = 0; i < BOUNDS.length; i++) {
+            BOUND_NANOS[i] = Math.round(Double.parseDouble(BOUNDS[i]) * 1e9);
+        }
+    }
+
+    /**
+     * Reads the current value of a metric kept elsewhere; called on the scraping thread.
+     */
+    interface Value {
+        double get();
+    }
+
+    /**
+     * A counter owned by the registry.
+     */
+    static final class Counter implements Value {
+        private final AtomicLong mCount = new AtomicLong();
+
+        void increment() {
+            mCount.incrementAndGet();
+        }
+
+        void add(long delta) {
+            mCount.addAndGet(delta);
+        }
+
+        long getCount() {
+            return mCount.get();
+        }
+
+        @Override
+        public double get() {
+            return mCount.get();
+        }
+    }
+
+    private static final class Family {
+        final String name;
+        final String help;
+        final String type;
+        final List<Child> children = new ArrayList<>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private static final class Child {
+        // Formatted label pairs, without braces; empty without labels.
+        final String labels;
+        final Value value;
+        final LatencyHistogram histogram;
+
+        Child(String labels, Value value, LatencyHistogram histogram) {
+            this.labels = labels;
+            this.value = value;
+            this.histogram = histogram;
+        }
+    }
+
+    private final Map<String, Family> mFamilies = new LinkedHashMap<>();
+
+    /**
+     * Creates a counter.
+     *
+     * @param labels label names and values, alternating.
+     */
+    Counter counter(String name, String help, String... labels) {
+        Counter counter = new Counter();
+        add(name, help, TYPE_COUNTER, labels, counter, null);
+        return counter;
+    }
+
+    /**
+     * Exports a count kept by a component, which must only ever increase.
+     */
+    void addCounter(String name, String help, Value value, String... labels) {
+        add(name, help, TYPE_COUNTER, labels, value, null);
+    }
+
+    void addGauge(String name, String help, Value value, String... labels) {
+        add(name, help, TYPE_GAUGE, labels, value, null);
+    }
+
+    /**
+     * Creates a histogram of durations, exported in seconds.
+     */
+    LatencyHistogram histogram(String name, String help, String... labels) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        addHistogram(name, help, histogram, labels);
+        return histogram;
+    }
+
+    /**
+     * Exports a histogram of durations kept by a component, in seconds.
+     */
+    void addHistogram(String name, String help, LatencyHistogram histogram, String... labels) {
+        add(name, help, TYPE_HISTOGRAM, labels, null, histogram);
+    }
+
+    private synchronized void add(String name, String help, String type, String[] labels,
+                                  Value value, LatencyHistogram histogram) {
+        if (!NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("Invalid metric name: " + name);
+        }
+        Family family = mFamilies.get(name);
+        if (family == null) {
+            family = new Family(name, help, type);
+            mFamilies.put(name, family);
+        } else if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is a " + family.type);
+        }
+        String formatted = formatLabels(labels);
+        for (Child child : family.children) {
+            if (child.labels.equals(formatted)) {
+                throw new IllegalArgumentException("Duplicate metric: " + name + "{"
+                        + formatted + "}");
+            }
+        }
+        family.children.add(new Child(formatted, value, histogram));
+    }
+
+    /**
+     * Writes every metric in the Prometheus text format, version 0.0.4.
+     *
+     * Histogram buckets are derived from the {@link LatencyHistogram} buckets, whose bounds do
+     * not line up with the exported ones: a duration is counted in the first exported bucket
+     * holding its whole {@link LatencyHistogram} bucket, so up to 12.5% above its bound.
+     */
+    synchronized void writePrometheus(Appendable out) throws IOException {
+        long[] counts = null;
+        for (Family family : mFamilies.values()) {
+            out.append("# HELP ").append(family.name).append(' ');
+            escape(family.help, false, out);
+            out.append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type)
+                    .append('\n');
+            for (Child child : family.children) {
+                if (child.histogram == null) {
+                    writeSample(out, family.name, child.labels, null, child.value.get());
+                    continue;
+                }
+                if (counts == null) {
+                    counts = new long[LatencyHistogram.getBucketCount()];
+                }
+                writeHistogram(out, family.name, child, counts);
+            }
+        }
+    }
+
+    private static void writeHistogram(Appendable out, String name, Child child, long[] counts)
+            throws IOException {
+        LatencyHistogram histogram = child.histogram;
+        // Read before the buckets: a recording in between can only make the sum fall behind.
+        long sumNanos = histogram.getSum();
+        histogram.getBucketCounts(counts);
+        long cumulative = 0;
+        int bucket = 0;
+        for (int i = 0; i < BOUNDS.length; i++) {
+            while (bucket < counts.length
+                    && LatencyHistogram.upperBoundOf(bucket) <= BOUND_NANOS[i]) {
+                cumulative += counts[bucket++];
+            }
+            writeSample(out, name + "_bucket", child.labels, BOUNDS[i], cumulative);
+        }
+        while (bucket < counts.length) {
+            cumulative += counts[bucket++];
+        }
+        // Counted from the buckets rather than getCount(), so that it equals the +Inf bucket.
+        writeSample(out, name + "_bucket", child.labels, "+Inf", cumulative);
+        writeSample(out, name + "_sum", child.labels, null, sumNanos / 1e9);
+        writeSample(out, name + "_count", child.labels, null, cumulative);
+    }
+
+    private static void writeSample(Appendable out, String name, String labels, String le,
+                                    double value) throws IOException {
+        out.append(name);
+        if (!labels.isEmpty() || le != null) {
+            out.append('{').append(labels);
+            if (le != null) {
+                if (!labels.isEmpty()) {
+                    out.append(',');
+                }
+                out.append("le=\"").append(le).append('"');
+            }
+            out.append('}');
+        }
+        out.append(' ');
+        if (Double.isNaN(value)) {
+            out.append("NaN");
+        } else if (Double.isInfinite(value)) {
+            out.append(value > 0 ? "+Inf" : "-Inf");
+        } else if (value == (long) value) {
+            out.append(String.valueOf((long) value));
+        } else {
+            out.append(String.valueOf(value));
+        }
+        out.append('\n');
+    }
+
+    private static String formatLabels(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name and value pairs");
+        }
+        StringBuilder formatted = new StringBuilder();
+        try {
+            for (int i = 0; i < labels.length; i += 2) {
+                if (!NAME.matcher(labels[i]).matches() || labels[i].equals("le")) {
+                    throw new IllegalArgumentException("Invalid label name: " + labels[i]);
+                }
+                if (i > 0) {
+                    formatted.append(',');
+                }
+                formatted.append(labels[i]).append("=\"");
+                escape(labels[i + 1], true, formatted);
+                formatted.append('"');
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return formatted.toString();
+    }
+
+    private static void escape(String text, boolean quotes, Appendable out) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\') {
+                out.append("\\\\");
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else if (c == '"' && quotes) {
+                out.append("\\\"");
+            } else {
+                out.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.io.IOException;
+
+/**
+ * Converts samples to and from the payload of a published message.
+ *
+ * Implementations may reuse internal buffers and are not thread-safe.
+ */
+interface PayloadCodec {
+
+    /**
+     * Encodes samples {@code [from, to)} of {@code samples} into one message payload.
+     */
+    byte[] encode(String deviceId, SampleBuffer samples, int from, int to);
+
+    /**
+     * Decodes a payload produced by {@link #encode}, appending its samples to {@code out}.
+     *
+     * @return the id of the device that produced the payload.
+     * @throws IOException if the payload is malformed or {@code out} is too small.
+     */
+    String decode(byte[] payload, SampleBuffer out) throws IOException;
+
+    /**
+     * Returns the maximum number of samples worth putting in a single payload.
+     */
+    int maxSamplesPerPayload();
+
+    /**
+     * Returns an upper bound of the encoded size of one sample, used to size batches.
+     */
+    int estimateSampleBytes();
+}
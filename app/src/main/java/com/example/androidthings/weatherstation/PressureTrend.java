@@ -0,0 +1,218 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Forecasts the weather from the barometric tendency: the slope of the least-squares line
+ * through the pressure samples of the last hour and of the last three hours.
+ *
+ * Samples are summed into one-minute buckets. Each horizon keeps the regression sums of the
+ * buckets it covers, adding a bucket when it closes and subtracting it when it gets too old, so
+ * a sample costs a few additions and the memory is fixed whatever the sampling rate. The
+ * tendencies are updated once per bucket, the forecast with every sample, with some hysteresis,
+ * see {@link Barometer#isNearForecast}.
+ *
+ * Time is taken from the sample timestamps only. Samples must be added from a single thread;
+ * the results may be read from any thread.
+ */
+class PressureTrend {
+
+    static final int HORIZON_1H = 0;
+    static final int HORIZON_3H = 1;
+
+    static final long BUCKET_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final int[] HORIZON_BUCKETS = {60, 180};
+    private static final int BUCKETS = 180;
+    private static final double BUCKET_SECONDS = BUCKET_MS / 1000.;
+
+    // Pressures are summed relative to this, keeping the sums, and their rounding errors, small.
+    private static final float REFERENCE_HPA = 1013.25f;
+
+    // Sums of the samples of each bucket, with times in seconds from the start of the bucket,
+    // indexed by bucket number modulo BUCKETS.
+    private final int[] mCounts = new int[BUCKETS];
+    private final double[] mSumT = new double[BUCKETS];
+    private final double[] mSumTT = new double[BUCKETS];
+    private final double[] mSumP = new double[BUCKETS];
+    private final double[] mSumTP = new double[BUCKETS];
+    // Bucket number, timestamp / BUCKET_MS, of the bucket being filled.
+    private long mBucket = Long.MIN_VALUE;
+
+    private final Horizon[] mHorizons = new Horizon[HORIZON_BUCKETS.length];
+    private volatile int mForecast = -1;
+    // Forecast without hysteresis, and the number of its changes the hysteresis held back.
+    private int mRawForecast = -1;
+    private volatile long mSuppressedChanges;
+
+    PressureTrend() {
+        for (int i = 0; i < mHorizons.length; i++) {
+            mHorizons[i] = new Horizon(HORIZON_BUCKETS[i]);
+        }
+    }
+
+    /**
+     * Adds a pressure sample, in hPa, and returns the forecast, see {@link #getForecast()}.
+     * Samples older than the current minute are ignored.
+     */
+    int add(long timestampMs, float pressure) {
+        long bucket = timestampMs / BUCKET_MS;
+        if (bucket != mBucket) {
+            if (bucket < mBucket) {
+                return mForecast;
+            }
+            advance(bucket);
+        }
+        int slot = (int) (bucket % BUCKETS);
+        double t = (timestampMs - bucket * BUCKET_MS) / 1000.;
+        double p = pressure - REFERENCE_HPA;
+        mCounts[slot]++;
+        mSumT[slot] += t;
+        mSumTT[slot] += t * t;
+        mSumP[slot] += p;
+        mSumTP[slot] += t * p;
+
+        float tendency1h = mHorizons[HORIZON_1H].mTendency;
+        float tendency3h = mHorizons[HORIZON_3H].mTendency;
+        int raw = Barometer.forecast(pressure, tendency1h, tendency3h);
+        int forecast = mForecast;
+        if (raw != forecast) {
+            if (forecast < 0 || !Barometer.isNearForecast(forecast, pressure, tendency1h,
+                    tendency3h)) {
+                mForecast = forecast = raw;
+            } else if (raw != mRawForecast) {
+                mSuppressedChanges++;
+            }
+        }
+        mRawForecast = raw;
+        return forecast;
+    }
+
+    /**
+     * Returns the pressure tendency over {@code horizon}, in hPa per hour, or NaN until samples
+     * cover half of it. Updated once per minute.
+     */
+    float getTendency(int horizon) {
+        return mHorizons[horizon].mTendency;
+    }
+
+    /**
+     * Returns the forecast for the last sample, one of the {@code Barometer.WEATHER_*}
+     * constants, or -1 before the first sample.
+     */
+    int getForecast() {
+        return mForecast;
+    }
+
+    /**
+     * Returns how many times the forecast would have changed without hysteresis.
+     */
+    long getSuppressedChangeCount() {
+        return mSuppressedChanges;
+    }
+
+    // Closes the current bucket and starts filling the given one.
+    private void advance(long bucket) {
+        long previous = mBucket;
+        if (previous == Long.MIN_VALUE) {
+            previous = bucket - BUCKETS;
+        } else {
+            int slot = (int) (previous % BUCKETS);
+            for (Horizon horizon : mHorizons) {
+                horizon.add(slot, 0, 1);
+            }
+        }
+        for (Horizon horizon : mHorizons) {
+            horizon.advance(previous, bucket);
+        }
+        // Reset the slots of the buckets skipped and of the new one.
+        for (long b = Math.max(previous + 1, bucket - BUCKETS + 1); b <= bucket; b++) {
+            int slot = (int) (b % BUCKETS);
+            mCounts[slot] = 0;
+            mSumT[slot] = 0;
+            mSumTT[slot] = 0;
+            mSumP[slot] = 0;
+            mSumTP[slot] = 0;
+        }
+        mBucket = bucket;
+    }
+
+    /**
+     * Regression sums of the closed buckets of one horizon, with times in seconds from the
+     * start of the bucket being filled.
+     */
+    private final class Horizon {
+        private final int mBuckets;
+        private long mCount;
+        private double mSumT;
+        private double mSumTT;
+        private double mSumP;
+        private double mSumTP;
+        // First bucket of the current run of samples, to tell when they cover enough time.
+        private long mFirstBucket;
+        volatile float mTendency = Float.NaN;
+
+        Horizon(int buckets) {
+            mBuckets = buckets;
+        }
+
+        // Adds, or with sign -1 subtracts, the sums of the bucket in slot, which starts
+        // offsetSeconds after the origin.
+        void add(int slot, double offsetSeconds, int sign) {
+            int n = PressureTrend.this.mCounts[slot];
+            if (n == 0) {
+                return;
+            }
+            double t = PressureTrend.this.mSumT[slot];
+            double p = PressureTrend.this.mSumP[slot];
+            mCount += sign * n;
+            mSumT += sign * (t + n * offsetSeconds);
+            mSumTT += sign * (PressureTrend.this.mSumTT[slot] + 2 * offsetSeconds * t
+                    + n * offsetSeconds * offsetSeconds);
+            mSumP += sign * p;
+            mSumTP += sign * (PressureTrend.this.mSumTP[slot] + offsetSeconds * p);
+        }
+
+        // Moves the origin from bucket previous to bucket next, drops the buckets no longer
+        // covered, and updates the tendency.
+        void advance(long previous, long next) {
+            double shift = (next - previous) * BUCKET_SECONDS;
+            mSumTT += -2 * shift * mSumT + mCount * shift * shift;
+            mSumT -= mCount * shift;
+            mSumTP -= shift * mSumP;
+            for (long b = previous - mBuckets + 1; b <= Math.min(next - mBuckets, previous);
+                 b++) {
+                add((int) (b % BUCKETS), (b - next) * BUCKET_SECONDS, -1);
+            }
+            if (mCount == 0) {
+                // Also clears the rounding errors accumulated by the subtractions.
+                mSumT = mSumTT = mSumP = mSumTP = 0;
+                mFirstBucket = next;
+                mTendency = Float.NaN;
+                return;
+            }
+            double denominator = mCount * mSumTT - mSumT * mSumT;
+            if (next - mFirstBucket < mBuckets / 2 || mCount < 2 || denominator <= 0) {
+                mTendency = Float.NaN;
+                return;
+            }
+            double slope = (mCount * mSumTP - mSumT * mSumP) / denominator;
+            mTendency = (float) (slope * TimeUnit.HOURS.toSeconds(1));
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.util.List;
+
+/**
+ * Bounded buffer collecting sensor samples until they are published together in one
+ * multi-message request. A batch is ready as soon as it reaches the sample count, the byte size
+ * or the age limit of its {@link Policy}, whichever comes first.
+ *
+ * Samples are added from the sensor thread and drained from the publisher thread; the two
+ * buffers are swapped on drain so neither side ever allocates.
+ */
+class PublishBatcher {
+
+    // Cloud Pub/Sub rejects publish requests with more than 1000 messages.
+    static final int MAX_MESSAGES_PER_REQUEST = 1000;
+
+    static final class Policy {
+        final int maxSamples;
+        final int maxBytes;
+        final long maxAgeMs;
+
+        Policy(int maxSamples, int maxBytes, long maxAgeMs) {
+            if (maxSamples <= 0 || maxSamples > MAX_MESSAGES_PER_REQUEST) {
+                throw new IllegalArgumentException("maxSamples out of range: " + maxSamples);
+            }
+            if (maxBytes <= 0) {
+                throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+            }
+            if (maxAgeMs <= 0) {
+                throw new IllegalArgumentException("maxAgeMs must be positive: " + maxAgeMs);
+            }
+            this.maxSamples = maxSamples;
+            this.maxBytes = maxBytes;
+            this.maxAgeMs = maxAgeMs;
+        }
+    }
+
+    private final Policy mPolicy;
+    private SampleBuffer mPending;
+    private SampleBuffer mSpare;
+    private int mPendingBytes;
+    private long mDropped;
+
+    PublishBatcher(Policy policy) {
+        mPolicy = policy;
+        mPending = new SampleBuffer(policy.maxSamples);
+        mSpare = new SampleBuffer(policy.maxSamples);
+    }
+
+    Policy getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * Adds a sample to the pending batch.
+     *
+     * @param sizeBytes estimated size of the sample once encoded in a message.
+     * @return true if the batch is ready to be published after this sample. It has no room
+     * for another one, so a caller that cannot wait for the publisher to drain it must drain
+     * it before adding the next sample.
+     */
+    synchronized boolean add(int channel, long timestampMs, float value, int sizeBytes) {
+        if (mPendingBytes + sizeBytes > mPolicy.maxBytes || !mPending.add(channel, timestampMs,
+                value)) {
+            // The publisher is lagging behind a ready batch; keep what we have and count the
+            // loss.
+            mDropped++;
+            return true;
+        }
+        mPendingBytes += sizeBytes;
+        return mPending.size() == mPolicy.maxSamples
+                || mPendingBytes + sizeBytes > mPolicy.maxBytes;
+    }
+
+    synchronized int size() {
+        return mPending.size();
+    }
+
+    synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * Returns the pending samples and starts a new, empty batch. The returned buffer stays valid
+     * until the next call to this method.
+     */
+    synchronized SampleBuffer drain() {
+        SampleBuffer drained = mPending;
+        mSpare.clear();
+        mPending = mSpare;
+        mSpare = drained;
+        mPendingBytes = 0;
+        return drained;
+    }
+
+    /**
+     * Drains the pending samples and encodes them into {@code payloads}, each holding at most
+     * {@link PayloadCodec#maxSamplesPerPayload()} samples.
+     *
+     * @return the number of samples drained.
+     */
+    int drainTo(PayloadCodec codec, String deviceId, List<byte[]> payloads) {
+        SampleBuffer samples = drain();
+        int perPayload = codec.maxSamplesPerPayload();
+        for (int from = 0; from < samples.size(); from += perPayload) {
+            int to = Math.min(from + perPayload, samples.size());
+            payloads.add(codec.encode(deviceId, samples, from, to));
+        }
+        return samples.size();
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends publish requests concurrently, so that one slow request does not hold back the ones
+ * behind it.
+ *
+ * At most {@link Policy#maxInFlight} requests are sent at a time, and at most
+ * {@link Policy#maxPending} are accepted, including those waiting to be retried. A failed
+ * request is retried after an exponential backoff with full jitter, up to
+ * {@link Policy#maxAttempts} times. After {@link Policy#breakerThreshold} consecutive failures
+ * a circuit breaker opens: requests fail immediately for {@link Policy#breakerCooldownMs}, then
+ * a single request probes whether the service is back.
+ *
+ * Requests may complete out of order. Every message carries the sequence number given by the
+ * caller, kept across retries, for the receiving side to restore the order.
+ */
+class PublishPipeline {
+
+    /**
+     * Outcome of a request, called on a pipeline thread, or on the submitting thread if the
+     * request is rejected.
+     */
+    interface Callback {
+        void onSuccess(List<byte[]> payloads);
+
+        void onFailure(List<byte[]> payloads, long[] sequences, String[] sessions,
+                       IOException e);
+    }
+
+    static final class Policy {
+        final int maxInFlight;
+        final int maxPending;
+        final int maxAttempts;
+        final long initialBackoffMs;
+        final long maxBackoffMs;
+        final int breakerThreshold;
+        final long breakerCooldownMs;
+
+        Policy(int maxInFlight, int maxPending, int maxAttempts, long initialBackoffMs,
+               long maxBackoffMs, int breakerThreshold, long breakerCooldownMs) {
+            if (maxInFlight <= 0 || maxPending < maxInFlight) {
+                throw new IllegalArgumentException("Invalid maxInFlight " + maxInFlight
+                        + " or maxPending " + maxPending);
+            }
+            if (maxAttempts <= 0) {
+                throw new IllegalArgumentException("maxAttempts must be positive: "
+                        + maxAttempts);
+            }
+            if (initialBackoffMs <= 0 || maxBackoffMs < initialBackoffMs) {
+                throw new IllegalArgumentException("Invalid backoff " + initialBackoffMs
+                        + "ms to " + maxBackoffMs + "ms");
+            }
+            if (breakerThreshold <= 0 || breakerCooldownMs <= 0) {
+                throw new IllegalArgumentException("Invalid circuit breaker "
+                        + breakerThreshold + " failures, " + breakerCooldownMs + "ms");
+            }
+            this.maxInFlight = maxInFlight;
+            this.maxPending = maxPending;
+            this.maxAttempts = maxAttempts;
+            this.initialBackoffMs = initialBackoffMs;
+            this.maxBackoffMs = maxBackoffMs;
+            this.breakerThreshold = breakerThreshold;
+            this.breakerCooldownMs = breakerCooldownMs;
+        }
+    }
+
+    private final PublishTransport mTransport;
+    private final Policy mPolicy;
+    private final ScheduledThreadPoolExecutor mExecutor;
+    private final AtomicInteger mPending = new AtomicInteger();
+    // Requests accepted and not completed yet. Removing a request from it decides who calls
+    // back, its own thread or shutdown().
+    private final Set<Request> mRequests =
+            Collections.newSetFromMap(new ConcurrentHashMap<Request, Boolean>());
+
+    // Circuit breaker state, guarded by mLock.
+    private final Object mLock = new Object();
+    private int mConsecutiveFailures;
+    private long mOpenUntilMs;
+    private boolean mProbing;
+
+    private final Random mRandom = new Random();
+    private final AtomicLong mSent = new AtomicLong();
+    private final AtomicLong mRetried = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+    // Duration of every attempt, successful or not.
+    private final LatencyHistogram mSendLatency = new LatencyHistogram();
+
+    /**
+     * @param transport sends the requests; it is not closed by the pipeline.
+     */
+    PublishPipeline(PublishTransport transport, Policy policy) {
+        mTransport = transport;
+        mPolicy = policy;
+        mExecutor = new ScheduledThreadPoolExecutor(policy.maxInFlight, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "publishPipeline-" + mCount.incrementAndGet());
+            }
+        });
+        // Retries still waiting on shutdown are dropped, and failed by shutdown().
+        mExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * Returns {@code count} consecutive sequence numbers starting at {@code first}.
+     */
+    static long[] sequences(long first, int count) {
+        long[] sequences = new long[count];
+        for (int i = 0; i < count; i++) {
+            sequences[i] = first + i;
+        }
+        return sequences;
+    }
+
+    /**
+     * Queues a request. The callback is called exactly once, possibly before this method
+     * returns if the pipeline is full, shut down or its circuit breaker is open.
+     *
+     * @param sequences sequence number of each payload, assigned by the caller when it first
+     *                  accepted the message so that a rejected or journaled message keeps it.
+     * @param sessions  session of the peer station that numbered each payload, see
+     *                  {@link PublishTransport#send}; may be null.
+     * @return false if the request was rejected.
+     */
+    boolean submit(List<byte[]> payloads, long[] sequences, String[] sessions,
+                   Callback callback) {
+        if (sequences.length != payloads.size()
+                || (sessions != null && sessions.length != payloads.size())) {
+            throw new IllegalArgumentException(sequences.length + " sequence numbers for "
+                    + payloads.size() + " payloads");
+        }
+        Request request = new Request(payloads, sequences, sessions, callback);
+        if (!tryAcquire()) {
+            reject(request, "Too many pending requests");
+            return false;
+        }
+        if (!allowRequest()) {
+            mPending.decrementAndGet();
+            reject(request, "Circuit breaker open");
+            return false;
+        }
+        mRequests.add(request);
+        try {
+            mExecutor.execute(request);
+        } catch (RejectedExecutionException e) {
+            mRequests.remove(request);
+            mPending.decrementAndGet();
+            reject(request, "Pipeline shut down");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stops accepting requests and waits for the ones in flight to complete. Requests waiting
+     * for a retry, and those still in flight after the timeout, fail before this method
+     * returns; one of the latter may still reach its destination, whose messages then arrive
+     * twice with the same sequence numbers.
+     */
+    void shutdown(long timeoutMs) throws InterruptedException {
+        mExecutor.shutdown();
+        try {
+            mExecutor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+        } finally {
+            for (Request request : mRequests) {
+                fail(request, new IOException("Pipeline shut down"));
+            }
+        }
+    }
+
+    boolean isCircuitOpen() {
+        synchronized (mLock) {
+            return System.currentTimeMillis() < mOpenUntilMs;
+        }
+    }
+
+    int getPendingCount() {
+        return mPending.get();
+    }
+
+    long getSentCount() {
+        return mSent.get();
+    }
+
+    long getRetriedCount() {
+        return mRetried.get();
+    }
+
+    long getFailedCount() {
+        return mFailed.get();
+    }
+
+    long getRejectedCount() {
+        return mRejected.get();
+    }
+
+    LatencyHistogram getSendLatency() {
+        return mSendLatency;
+    }
+
+    private boolean tryAcquire() {
+        int pending;
+        do {
+            pending = mPending.get();
+            if (pending >= mPolicy.maxPending) {
+                return false;
+            }
+        } while (!mPending.compareAndSet(pending, pending + 1));
+        return true;
+    }
+
+    // Closed: every request goes. Open: none until the cooldown expires. Half-open: a single
+    // probe goes, and its outcome closes or reopens the circuit.
+    private boolean allowRequest() {
+        synchronized (mLock) {
+            if (mConsecutiveFailures < mPolicy.breakerThreshold) {
+                return true;
+            }
+            if (System.currentTimeMillis() < mOpenUntilMs || mProbing) {
+                return false;
+            }
+            mProbing = true;
+            return true;
+        }
+    }
+
+    private void onAttemptSucceeded() {
+        synchronized (mLock) {
+            mConsecutiveFailures = 0;
+            mProbing = false;
+        }
+    }
+
+    // Leaves the failure count as it was, but lets another request probe the circuit.
+    private void onAttemptAborted() {
+        synchronized (mLock) {
+            mProbing = false;
+        }
+    }
+
+    /**
+     * @return whether the request may be retried.
+     */
+    private boolean onAttemptFailed(Request request) {
+        synchronized (mLock) {
+            mConsecutiveFailures++;
+            if (mProbing || mConsecutiveFailures == mPolicy.breakerThreshold) {
+                mOpenUntilMs = System.currentTimeMillis() + mPolicy.breakerCooldownMs;
+                mProbing = false;
+                return false;
+            }
+            return mConsecutiveFailures < mPolicy.breakerThreshold
+                    && request.attempts < mPolicy.maxAttempts;
+        }
+    }
+
+    private long backoffMs(int attempts) {
+        long ceiling = mPolicy.initialBackoffMs << Math.min(attempts - 1, 30);
+        if (ceiling <= 0 || ceiling > mPolicy.maxBackoffMs) {
+            ceiling = mPolicy.maxBackoffMs;
+        }
+        return 1 + (long) (mRandom.nextDouble() * ceiling);
+    }
+
+    private void reject(Request request, String reason) {
+        mRejected.incrementAndGet();
+        request.callback.onFailure(request.payloads, request.sequences, request.sessions,
+                new IOException(reason));
+    }
+
+    private void fail(Request request, IOException e) {
+        if (!mRequests.remove(request)) {
+            // Already failed by shutdown().
+            return;
+        }
+        mPending.decrementAndGet();
+        mFailed.incrementAndGet();
+        request.callback.onFailure(request.payloads, request.sequences, request.sessions, e);
+    }
+
+    private final class Request implements Runnable {
+        final List<byte[]> payloads;
+        final long[] sequences;
+        final String[] sessions;
+        final Callback callback;
+        int attempts;
+
+        Request(List<byte[]> payloads, long[] sequences, String[] sessions, Callback callback) {
+            this.payloads = payloads;
+            this.sequences = sequences;
+            this.sessions = sessions;
+            this.callback = callback;
+        }
+
+        @Override
+        public void run() {
+            if (!mRequests.contains(this)) {
+                // Already failed by shutdown().
+                return;
+            }
+            // The circuit may have opened while this request was waiting for a retry.
+            if (attempts > 0 && !allowRequest()) {
+                fail(this, new IOException("Circuit breaker open"));
+                return;
+            }
+            attempts++;
+            long start = System.nanoTime();
+            try {
+                mTransport.send(payloads, sequences, sessions);
+            } catch (IOException e) {
+                mSendLatency.record(System.nanoTime() - start);
+                if (!onAttemptFailed(this)) {
+                    fail(this, e);
+                    return;
+                }
+                mRetried.incrementAndGet();
+                try {
+                    mExecutor.schedule(this, backoffMs(attempts), TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException shutdown) {
+                    fail(this, e);
+                }
+                return;
+            } catch (RuntimeException e) {
+                // A bug in the transport or the payloads rather than an outage: a retry would
+                // fail the same way. The request completes, releasing its slot.
+                mSendLatency.record(System.nanoTime() - start);
+                onAttemptAborted();
+                fail(this, new IOException("Send failed", e));
+                return;
+            }
+            mSendLatency.record(System.nanoTime() - start);
+            onAttemptSucceeded();
+            if (!mRequests.remove(this)) {
+                // Failed by shutdown() while in flight.
+                return;
+            }
+            mPending.decrementAndGet();
+            mSent.incrementAndGet();
+            callback.onSuccess(payloads);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Carries publish requests from the station to their destination.
+ *
+ * {@link RestPublishTransport} publishes to Cloud Pub/Sub over its REST API, and
+ * {@link StreamPublishTransport} streams frames over one long-lived connection, e.g. to a local
+ * gateway. Requests are sent by the {@link PublishPipeline} threads, possibly concurrently.
+ */
+interface PublishTransport extends Closeable {
+
+    /**
+     * Sends one request and returns once the destination has accepted it. Implementations
+     * bound the duration of a request with their own timeouts.
+     *
+     * @param sequences sequence number of each payload.
+     * @param sessions  session of the peer station that numbered each payload, when forwarding
+     *                  its messages, null for this station's; null if all are this station's.
+     */
+    void send(List<byte[]> payloads, long[] sequences, String[] sessions) throws IOException;
+}
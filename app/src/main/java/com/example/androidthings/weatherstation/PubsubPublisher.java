@@ -17,34 +17,26 @@
 package com.example.androidthings.weatherstation;
 
 import android.content.Context;
-import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.net.ConnectivityManager;
+import android.net.Network;
 import android.net.NetworkInfo;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
-import android.util.Base64;
 import android.util.Log;
 
 import com.google.api.client.extensions.android.http.AndroidHttp;
-import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
-import com.google.api.client.http.HttpTransport;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.jackson2.JacksonFactory;
-import com.google.api.services.pubsub.Pubsub;
 import com.google.api.services.pubsub.PubsubScopes;
-import com.google.api.services.pubsub.model.PublishRequest;
-import com.google.api.services.pubsub.model.PubsubMessage;
-
-import org.json.JSONException;
-import org.json.JSONObject;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 // TODO(proppy): move to a service class.
 class PubsubPublisher {
@@ -53,153 +45,905 @@ class PubsubPublisher {
     private final Context mContext;
     private final String mAppname;
     private final String mTopic;
+    private final int mCredentialResourceId;
+    // Only set with the default REST transport.
+    private TokenManager mTokenManager;
+
+    // Sends requests concurrently, with retries, see PublishPipeline.
+    private PublishTransport mTransport;
+    private PublishPipeline mPipeline;
+    private static final PublishPipeline.Policy PIPELINE_POLICY = new PublishPipeline.Policy(
+            4, 64, 5, TimeUnit.SECONDS.toMillis(1), TimeUnit.MINUTES.toMillis(1),
+            5, TimeUnit.MINUTES.toMillis(1));
+    private static final long CLOSE_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
 
-    private Pubsub mPubsub;
-    private HttpTransport mHttpTransport;
+    // Published messages carry the time this publisher was created and a sequence number in
+    // this session, for subscribers to order them.
+    private final String mSession = String.valueOf(System.currentTimeMillis());
+    // Sequence number of the next message accepted, on the publisher thread. A message keeps
+    // its number through retries and the journal; new ones are numbered after those left in the
+    // journal, which are replayed in this session.
+    private long mNextSequence;
 
     private Handler mHandler;
     private HandlerThread mHandlerThread;
 
-    private float mLastTemperature = Float.NaN;
-    private float mLastPressure = Float.NaN;
+    private final TimeSeriesStore mHistory;
+
+    // Only set in batching mode, see PublishBatcher.
+    private final PublishBatcher mBatcher;
+    private volatile boolean mBatching;
+
+    // Queue of samples waiting to be batched, drained on the publisher thread.
+    private static final int SAMPLE_QUEUE_CAPACITY = 4096;
+    private SensorEventBus mEventBus;
+    private SensorEventBus.Subscription mSubscription;
+
+    // Set to publish snapshots when values change rather than periodically, see
+    // setReportByException().
+    private DeadbandFilter mDeadband;
+    private volatile boolean mReporting;
+
+    // Set to publish the statistics of windows of samples, see setAggregationWindow().
+    private WindowAggregator mAggregator;
+    private boolean mPublishRawSamples = true;
+    // About 10 minutes of samples at 13Hz, in 230KB per channel.
+    private static final int MAX_SAMPLES_PER_WINDOW = 8192;
+
+    // Set to publish the pressure tendencies and the forecast, see setPressureTrend().
+    private PressureTrend mPressureTrend;
+    // Time of the last forecast added to a batch, on the publisher thread.
+    private long mForecastMs = Long.MIN_VALUE;
+
+    // Messages that could not be published, replayed once the network is back. Appended to
+    // by the pipeline threads as well, under mJournalLock.
+    private MessageJournal mJournal;
+    private final Object mJournalLock = new Object();
+    // Messages too large to journal, dropped, guarded by mJournalLock.
+    private long mJournalDropped;
+    // Set while a batch of journaled messages is being replayed.
+    private final AtomicBoolean mDraining = new AtomicBoolean();
 
     private static final long PUBLISH_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
 
+    // 64 segments of 256KB: about 16MB, or days of readings, kept while offline.
+    private static final int JOURNAL_SEGMENT_BYTES = 256 * 1024;
+    // Largest message the journal can keep along with the session of a peer; the gateway
+    // refuses larger ones from its peers.
+    static final int MAX_MESSAGE_BYTES = JOURNAL_SEGMENT_BYTES
+            - MessageJournal.RECORD_HEADER_BYTES - StationGateway.MAX_SESSION_BYTES;
+    private static final int JOURNAL_MAX_SEGMENTS = 64;
+    private static final int DRAIN_BATCH_BYTES = 1024 * 1024;
+
+    private PayloadCodec mCodec = new JsonPayloadCodec();
+
+    // Set to also publish the messages of peer stations, see serveAsGateway(). Only accessed
+    // by the thread calling start() and close().
+    private int mGatewayPort = -1;
+    private String mGatewayToken;
+    private StationGateway mGateway;
+    // Merged batches of at most 1000 messages, 1MB or 1 second: long enough to gather the
+    // messages of many peers, short enough not to hold back their acks, sent once a batch is
+    // journaled.
+    private static final PublishBatcher.Policy GATEWAY_BATCH_POLICY = new PublishBatcher.Policy(
+            PublishBatcher.MAX_MESSAGES_PER_REQUEST, 1024 * 1024, TimeUnit.SECONDS.toMillis(1));
+    private static final int GATEWAY_TIMEOUT_MS = (int) TimeUnit.SECONDS.toMillis(10);
+
+    // Set by the first start().
+    private boolean mInitialized;
+
+    private volatile EventLog mEventLog;
+    private static final EventLog.Event EVENT_NOTHING_TO_PUBLISH = EventLog.define(
+            "publish_skipped", EventLog.DEBUG, "no sensor measurement to publish", "");
+    private static final EventLog.Event EVENT_PUBLISH_SNAPSHOT = EventLog.define(
+            "publish_snapshot", EventLog.DEBUG, "%d samples", "l");
+    private static final EventLog.Event EVENT_PUBLISH_BATCH = EventLog.define(
+            "publish_batch", EventLog.DEBUG, "%d samples in %d messages", "ll");
+    private static final EventLog.Event EVENT_REPLAYED = EventLog.define(
+            "journal_replayed", EventLog.DEBUG, "%d messages", "l");
+    private static final EventLog.Event EVENT_GATEWAY_BATCH = EventLog.define(
+            "gateway_batch", EventLog.DEBUG, "%d messages from peers", "l");
+    // The sensor channels and the forecast channels.
+    private final SampleBuffer mSnapshot = new SampleBuffer(Channel.COUNT + 3);
+    private final SampleSink mSnapshotSink = new SampleSink() {
+        @Override
+        public void onSample(int channel, long timestampMs, float value) {
+            mSnapshot.add(channel, timestampMs, value);
+        }
+    };
+    private final SampleSink mBatchSink = new SampleSink() {
+        @Override
+        public void onSample(int channel, long timestampMs, float value) {
+            addSample(channel, timestampMs, value);
+        }
+    };
+
+    private Metrics mMetrics;
+
+    /**
+     * @param history the station history, read for the latest values to publish.
+     */
     PubsubPublisher(Context context, String appname, String project, String topic,
-                    int credentialResourceId) throws IOException {
+                    int credentialResourceId, TimeSeriesStore history) {
+        this(context, appname, project, topic, credentialResourceId, history, null);
+    }
+
+    /**
+     * @param history     the station history, read for the latest values to publish.
+     * @param batchPolicy if not null, every sample is buffered and published in batches flushed
+     *                    according to this policy instead of one snapshot per minute.
+     */
+    PubsubPublisher(Context context, String appname, String project, String topic,
+                    int credentialResourceId, TimeSeriesStore history,
+                    PublishBatcher.Policy batchPolicy) {
         mContext = context;
+        mHistory = history;
+        mBatcher = batchPolicy != null ? new PublishBatcher(batchPolicy) : null;
         mAppname = appname;
         mTopic = "projects/" + project + "/topics/" + topic;
+        mCredentialResourceId = credentialResourceId;
 
         mHandlerThread = new HandlerThread("pubsubPublisherThread");
         mHandlerThread.start();
         mHandler = new Handler(mHandlerThread.getLooper());
+    }
 
-        InputStream jsonCredentials = mContext.getResources().openRawResource(credentialResourceId);
-        final GoogleCredential credentials;
-        try {
-            credentials = GoogleCredential.fromStream(jsonCredentials).createScoped(
-                    Collections.singleton(PubsubScopes.PUBSUB));
-        } finally {
+    // Posted by the first start(), once the transport and the metrics are set.
+    private final Runnable mInitRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mTransport == null) {
+                // Parses the credentials and gets a token ahead of the first request.
+                mTokenManager = new TokenManager(mContext, mCredentialResourceId,
+                        Collections.singleton(PubsubScopes.PUBSUB));
+                mTokenManager.start();
+                mTransport = new RestPublishTransport(AndroidHttp.newCompatibleTransport(),
+                        mTokenManager, mAppname, mTopic, mSession);
+            }
+            mPipeline = new PublishPipeline(mTransport, PIPELINE_POLICY);
+            if (mMetrics != null) {
+                registerMetrics(mMetrics);
+            }
             try {
-                jsonCredentials.close();
+                MessageJournal journal = new MessageJournal(
+                        new File(mContext.getFilesDir(), "journal"),
+                        JOURNAL_SEGMENT_BYTES, JOURNAL_MAX_SEGMENTS);
+                mNextSequence = Math.max(mNextSequence, journal.getMaxSequence() + 1);
+                synchronized (mJournalLock) {
+                    mJournal = journal;
+                }
+                if (!journal.isEmpty()) {
+                    mHandler.post(mDrainRunnable);
+                }
             } catch (IOException e) {
-                Log.e(TAG, "Error closing input stream", e);
+                Log.e(TAG, "Error opening journal, offline messages will be lost", e);
             }
         }
-        mHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                mHttpTransport = AndroidHttp.newCompatibleTransport();
-                JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
-                mPubsub = new Pubsub.Builder(mHttpTransport, jsonFactory, credentials)
-                        .setApplicationName(mAppname).build();
-            }
-        });
-    }
+    };
 
     public void start() {
-        mHandler.post(mPublishRunnable);
+        if (!mInitialized) {
+            mInitialized = true;
+            mHandler.post(mInitRunnable);
+            if (mGatewayPort >= 0) {
+                startGateway();
+            }
+        }
+        getConnectivityManager().registerDefaultNetworkCallback(mNetworkCallback, mHandler);
+        if (mBatcher != null) {
+            mBatching = true;
+        } else if (mDeadband != null) {
+            mReporting = true;
+            scheduleHeartbeat();
+        } else {
+            mHandler.post(mPublishRunnable);
+        }
     }
 
     public void stop() {
+        getConnectivityManager().unregisterNetworkCallback(mNetworkCallback);
         mHandler.removeCallbacks(mPublishRunnable);
+        mReporting = false;
+        mHandler.removeCallbacks(mReportRunnable);
+        mHandler.removeCallbacks(mHeartbeatRunnable);
+        if (mBatcher != null) {
+            mBatching = false;
+            mHandler.removeCallbacks(mFlushRunnable);
+            mHandler.post(mFlushRunnable);
+        }
     }
 
     public void close() {
+        if (mGateway != null) {
+            // Its last batch is journaled before the journal is closed below.
+            try {
+                mGateway.close();
+            } catch (IOException e) {
+                Log.d(TAG, "error closing gateway");
+            }
+            Log.d(TAG, "gateway received " + mGateway.getMessageCount() + " messages, dropped "
+                    + mGateway.getDuplicateCount() + " duplicates");
+            mGateway = null;
+        }
+        try {
+            getConnectivityManager().unregisterNetworkCallback(mNetworkCallback);
+        } catch (IllegalArgumentException e) {
+            // Already unregistered by stop().
+        }
         mHandler.removeCallbacks(mPublishRunnable);
+        mHandler.removeCallbacks(mDrainRunnable);
+        mReporting = false;
+        mHandler.removeCallbacks(mReportRunnable);
+        mHandler.removeCallbacks(mHeartbeatRunnable);
+        if (mDeadband != null) {
+            Log.d(TAG, "reported " + mDeadband.getReportedCount() + " samples, suppressed "
+                    + mDeadband.getSuppressedCount());
+        }
+        if (mSubscription != null) {
+            mEventBus.unsubscribe(mSubscription);
+            Log.d(TAG, "dropped " + mSubscription.getDroppedCount() + " queued samples");
+            mSubscription = null;
+        }
+        if (mBatcher != null) {
+            mBatching = false;
+            // Send or journal whatever is pending before shutting down the transport.
+            mHandler.removeCallbacks(mFlushRunnable);
+            mHandler.post(mFlushRunnable);
+        }
         mHandler.post(new Runnable() {
             @Override
             public void run() {
+                if (mPipeline == null) {
+                    // Never started.
+                    return;
+                }
+                // Requests that cannot complete in time fail, and their callback journals them
+                // before the journal is closed below.
+                try {
+                    mPipeline.shutdown(CLOSE_TIMEOUT_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                Log.d(TAG, "sent " + mPipeline.getSentCount() + " requests, retried "
+                        + mPipeline.getRetriedCount() + ", failed " + mPipeline.getFailedCount()
+                        + ", rejected " + mPipeline.getRejectedCount());
                 try {
-                    mHttpTransport.shutdown();
+                    mTransport.close();
                 } catch (IOException e) {
-                    Log.d(TAG, "error destroying http transport");
-                } finally {
-                    mHttpTransport = null;
-                    mPubsub = null;
+                    Log.d(TAG, "error closing transport");
+                }
+                if (mTokenManager != null) {
+                    Log.d(TAG, "token refreshes: " + mTokenManager.getRefreshLatency()
+                            + ", failed " + mTokenManager.getRefreshFailureCount() + ", "
+                            + mTokenManager.getRefreshMillis() + "ms in total");
+                    mTokenManager.close();
+                }
+                synchronized (mJournalLock) {
+                    if (mJournal != null) {
+                        try {
+                            mJournal.close();
+                        } catch (IOException e) {
+                            Log.e(TAG, "Error closing journal", e);
+                        } finally {
+                            mJournal = null;
+                        }
+                    }
                 }
             }
         });
         mHandlerThread.quitSafely();
     }
 
-    public SensorEventListener getTemperatureListener() {
-        return mTemperatureListener;
+    /**
+     * Sets how requests are sent, by default to the Cloud Pub/Sub topic with a
+     * {@link RestPublishTransport}. The transport is closed with the publisher. Must be called
+     * before {@link #start()}.
+     */
+    public void setTransport(PublishTransport transport) {
+        mTransport = transport;
     }
 
-    public SensorEventListener getPressureListener() {
-        return mPressureListener;
+    /**
+     * Publishes through the {@link StationGateway} of another station, listening on
+     * {@code host}:{@code port} and expecting {@code token}, instead of to Cloud Pub/Sub: the
+     * credentials are not used. Cannot be combined with {@link #serveAsGateway}. Must be
+     * called before {@link #start()}.
+     */
+    public void publishThroughGateway(String host, int port, String token) {
+        if (mGatewayPort >= 0) {
+            throw new IllegalStateException("Already serving as a gateway");
+        }
+        setTransport(new StreamPublishTransport(host, port, Build.DEVICE, mSession, token,
+                GATEWAY_TIMEOUT_MS));
+    }
+
+    /**
+     * Also receives the messages of peer stations publishing through this one, on
+     * {@code port}, and publishes them in batches merged across stations, see
+     * {@link StationGateway}. Peers must present {@code token}, which must not be empty. Peer
+     * messages are journaled before they are acknowledged, then replayed with the sequence
+     * number and session of their station; without a journal they are refused. Cannot be
+     * combined with {@link #publishThroughGateway}, whose stream carries a single session. Must
+     * be called before {@link #start()}.
+     */
+    public void serveAsGateway(int port, String token) {
+        if (token.isEmpty()) {
+            throw new IllegalArgumentException("Empty gateway token");
+        }
+        if (mTransport instanceof StreamPublishTransport) {
+            throw new IllegalStateException("Already publishing through a gateway");
+        }
+        mGatewayPort = port;
+        mGatewayToken = token;
+    }
+
+    /**
+     * Sets where to log each publish, replay or skipped snapshot. Nothing is logged without
+     * one.
+     */
+    public void setEventLog(EventLog eventLog) {
+        mEventLog = eventLog;
+    }
+
+    /**
+     * Exports the publish latency, outcome counts and queue depths to {@code metrics}. Must be
+     * called before {@link #subscribe(SensorEventBus)}.
+     */
+    public void setMetrics(Metrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Returns the identifier of this run of the publisher, sent along with the sequence numbers
+     * of the messages.
+     */
+    public String getSession() {
+        return mSession;
+    }
+
+    /**
+     * Sets the format of published payloads, JSON by default. Must be called before
+     * {@link #start()}.
+     */
+    public void setPayloadCodec(PayloadCodec codec) {
+        mCodec = codec;
+    }
+
+    /**
+     * Publishes the min, max, mean and standard deviation of each window of samples as
+     * derived channels, see {@link WindowAggregator}, instead of or alongside the samples
+     * themselves. Only applies in batching mode; must be called before
+     * {@link #subscribe(SensorEventBus)}.
+     *
+     * @param slideMs {@code windowMs} for tumbling windows, less for sliding windows.
+     */
+    public void setAggregationWindow(long windowMs, long slideMs, boolean publishRawSamples) {
+        WindowAggregator.Listener listener = WindowAggregator.toDerivedChannels(mBatchSink);
+        mAggregator = slideMs == windowMs
+                ? WindowAggregator.tumbling(windowMs, listener)
+                : WindowAggregator.sliding(windowMs, slideMs, MAX_SAMPLES_PER_WINDOW, listener);
+        mPublishRawSamples = publishRawSamples;
+    }
+
+    /**
+     * Publishes a snapshot as soon as a sample passes {@code filter}, instead of once per
+     * minute: changes beyond the dead-band propagate immediately, unchanged readings are
+     * suppressed and the filter's heartbeat bounds the time between two messages, even if the
+     * sensors stop delivering samples. Only applies outside of batching mode; must be called
+     * before {@link #subscribe(SensorEventBus)}.
+     */
+    public void setReportByException(DeadbandFilter filter) {
+        mDeadband = filter;
+    }
+
+    /**
+     * Publishes the pressure tendencies and the weather forecast of {@code trend} as the
+     * forecast channels, see {@link Channel}: in every snapshot, or once per minute in batching
+     * mode. Must be called before {@link #subscribe(SensorEventBus)}.
+     */
+    public void setPressureTrend(PressureTrend trend) {
+        mPressureTrend = trend;
+    }
+
+    /**
+     * Receives the samples to publish from {@code bus}. Not needed in periodic snapshot mode,
+     * which reads the history instead.
+     */
+    public void subscribe(SensorEventBus bus) {
+        if (mBatcher == null && mDeadband == null) {
+            return;
+        }
+        mEventBus = bus;
+        mSubscription = bus.subscribe(TAG, SensorEventBus.DROP_OLDEST, SAMPLE_QUEUE_CAPACITY,
+                new SampleSink() {
+                    @Override
+                    public void onSample(int channel, long timestampMs, float value) {
+                        if (mBatcher == null) {
+                            reportSample(channel, timestampMs, value);
+                            return;
+                        }
+                        if (mAggregator != null) {
+                            mAggregator.onSample(channel, timestampMs, value);
+                        }
+                        if (mPublishRawSamples) {
+                            addSample(channel, timestampMs, value);
+                        }
+                        if (mPressureTrend != null && channel == Channel.PRESSURE
+                                && timestampMs - mForecastMs >= PressureTrend.BUCKET_MS) {
+                            mForecastMs = timestampMs;
+                            addForecast(mBatchSink, timestampMs);
+                        }
+                    }
+                }, new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        mHandler.post(command);
+                    }
+                });
+        if (mMetrics != null) {
+            mSubscription.registerMetrics(mMetrics);
+        }
     }
 
     private Runnable mPublishRunnable = new Runnable() {
         @Override
         public void run() {
-            ConnectivityManager connectivityManager =
-                    (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
-            NetworkInfo activeNetwork = connectivityManager.getActiveNetworkInfo();
-            if (activeNetwork == null || !activeNetwork.isConnectedOrConnecting()) {
-                Log.e(TAG, "no active network");
-                return;
-            }
-
             try {
-                JSONObject messagePayload = createMessagePayload(mLastTemperature, mLastPressure);
-                if (!messagePayload.has("data")) {
-                    Log.d(TAG, "no sensor measurement to publish");
-                    return;
-                }
-                Log.d(TAG, "publishing message: " + messagePayload);
-                PubsubMessage m = new PubsubMessage();
-                m.setData(Base64.encodeToString(messagePayload.toString().getBytes(),
-                        Base64.NO_WRAP));
-                PublishRequest request = new PublishRequest();
-                request.setMessages(Collections.singletonList(m));
-                mPubsub.projects().topics().publish(mTopic, request).execute();
-            } catch (JSONException | IOException e) {
-                Log.e(TAG, "Error publishing message", e);
+                publishSnapshot();
             } finally {
                 mHandler.postDelayed(mPublishRunnable, PUBLISH_INTERVAL_MS);
             }
         }
 
-        private JSONObject createMessagePayload(float temperature, float pressure)
-                throws JSONException {
-            JSONObject sensorData = new JSONObject();
-            if (!Float.isNaN(temperature)) {
-                sensorData.put("temperature", String.valueOf(temperature));
+    };
+
+    // Posted when a sample passes the dead-band filter; samples passing it while it is pending
+    // share one snapshot.
+    private Runnable mReportRunnable = new Runnable() {
+        @Override
+        public void run() {
+            publishSnapshot();
+            scheduleHeartbeat();
+        }
+    };
+
+    // Posted one heartbeat interval after the last snapshot, so that one is published even if
+    // the sensors stop delivering samples.
+    private Runnable mHeartbeatRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!mReporting) {
+                return;
             }
-            if (!Float.isNaN(pressure)) {
-                sensorData.put("pressure", String.valueOf(pressure));
+            mDeadband.heartbeat(System.currentTimeMillis());
+            publishSnapshot();
+            scheduleHeartbeat();
+        }
+    };
+
+    private void scheduleHeartbeat() {
+        mHandler.removeCallbacks(mHeartbeatRunnable);
+        if (mReporting) {
+            mHandler.postDelayed(mHeartbeatRunnable, mDeadband.getHeartbeatMs());
+        }
+    }
+
+    private void publishSnapshot() {
+        long now = System.currentTimeMillis();
+        mSnapshot.clear();
+        for (int channel = 0; channel < Channel.COUNT; channel++) {
+            float value = mHistory.lastValue(channel);
+            if (!Float.isNaN(value)) {
+                mSnapshot.add(channel, now, value);
             }
-            JSONObject messagePayload = new JSONObject();
-            messagePayload.put("deviceId", Build.DEVICE);
-            messagePayload.put("channel", "pubsub");
-            messagePayload.put("timestamp", System.currentTimeMillis());
-            if (sensorData.has("temperature") || sensorData.has("pressure")) {
-                messagePayload.put("data", sensorData);
+        }
+        if (!mSnapshot.isEmpty()) {
+            addForecast(mSnapshotSink, now);
+        }
+        if (mSnapshot.isEmpty()) {
+            log(EVENT_NOTHING_TO_PUBLISH, 0, 0);
+            return;
+        }
+        log(EVENT_PUBLISH_SNAPSHOT, mSnapshot.size(), 0);
+        publishOrJournal(Collections.singletonList(
+                mCodec.encode(Build.DEVICE, mSnapshot, 0, mSnapshot.size())));
+    }
+
+    // Hands the tendencies and the forecast known so far to sink.
+    private void addForecast(SampleSink sink, long timestampMs) {
+        PressureTrend trend = mPressureTrend;
+        if (trend == null) {
+            return;
+        }
+        float tendency = trend.getTendency(PressureTrend.HORIZON_1H);
+        if (!Float.isNaN(tendency)) {
+            sink.onSample(Channel.PRESSURE_TENDENCY_1H, timestampMs, tendency);
+        }
+        tendency = trend.getTendency(PressureTrend.HORIZON_3H);
+        if (!Float.isNaN(tendency)) {
+            sink.onSample(Channel.PRESSURE_TENDENCY_3H, timestampMs, tendency);
+        }
+        int forecast = trend.getForecast();
+        if (forecast >= 0) {
+            sink.onSample(Channel.FORECAST, timestampMs, forecast);
+        }
+    }
+
+    private Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mBatcher.size() == 0) {
+                return;
             }
-            return messagePayload;
+            List<byte[]> payloads = new ArrayList<>();
+            int samples = mBatcher.drainTo(mCodec, Build.DEVICE, payloads);
+            log(EVENT_PUBLISH_BATCH, samples, payloads.size());
+            publishOrJournal(payloads);
         }
     };
 
-    private SensorEventListener mTemperatureListener = new SensorEventListener() {
+    // Replays the journal in large batches. One batch is in flight at a time, as records are
+    // only committed once published; fresh flushes go through the pipeline alongside it.
+    private Runnable mDrainRunnable = new Runnable() {
         @Override
-        public void onSensorChanged(SensorEvent event) {
-            mLastTemperature = event.values[0];
+        public void run() {
+            if (mPipeline == null || !isNetworkAvailable() || !mDraining.compareAndSet(false,
+                    true)) {
+                return;
+            }
+            final List<byte[]> payloads = new ArrayList<>();
+            long[] sequences = new long[PublishBatcher.MAX_MESSAGES_PER_REQUEST];
+            String[] sessions = new String[sequences.length];
+            try {
+                synchronized (mJournalLock) {
+                    if (mJournal == null) {
+                        mDraining.set(false);
+                        return;
+                    }
+                    mJournal.peek(payloads, sequences, sessions, DRAIN_BATCH_BYTES);
+                    if (payloads.isEmpty()) {
+                        mJournal.commit();
+                        mDraining.set(false);
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error reading journal", e);
+                mDraining.set(false);
+                return;
+            }
+            long[] peeked = Arrays.copyOf(sequences, payloads.size());
+            String[] peekedSessions = Arrays.copyOf(sessions, payloads.size());
+            mPipeline.submit(payloads, peeked, peekedSessions, new PublishPipeline.Callback() {
+                @Override
+                public void onSuccess(List<byte[]> payloads) {
+                    log(EVENT_REPLAYED, payloads.size(), 0);
+                    boolean more = false;
+                    synchronized (mJournalLock) {
+                        if (mJournal != null) {
+                            try {
+                                mJournal.commit();
+                                more = !mJournal.isEmpty();
+                            } catch (IOException e) {
+                                Log.e(TAG, "Error committing journal", e);
+                            }
+                        }
+                    }
+                    mDraining.set(false);
+                    if (more) {
+                        mHandler.post(mDrainRunnable);
+                    }
+                }
+
+                @Override
+                public void onFailure(List<byte[]> payloads, long[] sequences,
+                                      String[] sessions, IOException e) {
+                    // Leave the records in the journal; the next successful publish retries.
+                    Log.e(TAG, "Error replaying journal", e);
+                    mDraining.set(false);
+                }
+            });
         }
+    };
 
+    // Journals the messages of fresh batches that could not be published.
+    private final PublishPipeline.Callback mPublishCallback = new PublishPipeline.Callback() {
         @Override
-        public void onAccuracyChanged(Sensor sensor, int accuracy) {}
-    };
+        public void onSuccess(List<byte[]> payloads) {
+            boolean backlog;
+            synchronized (mJournalLock) {
+                backlog = mJournal != null && !mJournal.isEmpty();
+            }
+            if (backlog) {
+                mHandler.post(mDrainRunnable);
+            }
+        }
 
-    private SensorEventListener mPressureListener = new SensorEventListener() {
         @Override
-        public void onSensorChanged(SensorEvent event) {
-            mLastPressure = event.values[0];
+        public void onFailure(List<byte[]> payloads, long[] sequences, String[] sessions,
+                              IOException e) {
+            Log.e(TAG, "Error publishing message", e);
+            journal(payloads, sequences, sessions);
         }
+    };
 
+    private ConnectivityManager.NetworkCallback mNetworkCallback =
+            new ConnectivityManager.NetworkCallback() {
         @Override
-        public void onAccuracyChanged(Sensor sensor, int accuracy) {}
+        public void onAvailable(Network network) {
+            mHandler.post(mDrainRunnable);
+        }
     };
+
+    private static final String PUBLISH_REQUESTS = "weatherstation_publish_requests_total";
+    private static final String PUBLISH_REQUESTS_HELP = "Publish requests by outcome.";
+    private static final String[] REQUEST_OUTCOMES = {"sent", "failed", "rejected"};
+    private static final String GATEWAY_MESSAGES = "weatherstation_gateway_messages_total";
+    private static final String GATEWAY_MESSAGES_HELP =
+            "Messages received from peer stations by outcome.";
+    private static final String[] MESSAGE_OUTCOMES = {"forwarded", "duplicate"};
+
+    // Runs on the publisher thread, once the pipeline is created.
+    private void registerMetrics(Metrics metrics) {
+        final PublishPipeline pipeline = mPipeline;
+        metrics.addHistogram("weatherstation_publish_request_duration_seconds",
+                "Time to send one publish request, including failed attempts.",
+                pipeline.getSendLatency());
+        Metrics.Value[] requests = {
+                new Metrics.Value() {
+                    @Override
+                    public double get() {
+                        return pipeline.getSentCount();
+                    }
+                },
+                new Metrics.Value() {
+                    @Override
+                    public double get() {
+                        return pipeline.getFailedCount();
+                    }
+                },
+                new Metrics.Value() {
+                    @Override
+                    public double get() {
+                        return pipeline.getRejectedCount();
+                    }
+                }};
+        for (int i = 0; i < REQUEST_OUTCOMES.length; i++) {
+            metrics.addCounter(PUBLISH_REQUESTS, PUBLISH_REQUESTS_HELP, requests[i],
+                    "outcome", REQUEST_OUTCOMES[i]);
+        }
+        metrics.addCounter("weatherstation_publish_retries_total",
+                "Publish attempts retried after a failure.", new Metrics.Value() {
+                    @Override
+                    public double get() {
+                        return pipeline.getRetriedCount();
+                    }
+                });
+        metrics.addGauge("weatherstation_publish_pending_requests",
+                "Publish requests in flight or waiting for a retry.", new Metrics.Value() {
+                    @Override
+                    public double get() {
+                        return pipeline.getPendingCount();
+                    }
+                });
+        metrics.addGauge("weatherstation_publish_circuit_open",
+                "1 while publishing is suspended after repeated failures.", new Metrics.Value() {
+                    @Override
+                    public double get() {
+                        return pipeline.isCircuitOpen() ? 1 : 0;
+                    }
+                });
+        metrics.addCounter("weatherstation_journal_evicted_segments_total",
+                "Journal segments of unpublished messages dropped for space.",
+                new Metrics.Value() {
+                    @Override
+                    public double get() {
+                        synchronized (mJournalLock) {
+                            return mJournal != null ? mJournal.getEvictedSegmentCount() : 0;
+                        }
+                    }
+                });
+        metrics.addCounter("weatherstation_journal_dropped_messages_total",
+                "Unpublished messages too large to journal, dropped.", new Metrics.Value() {
+                    @Override
+                    public double get() {
+                        synchronized (mJournalLock) {
+                            return mJournalDropped;
+                        }
+                    }
+                });
+        if (mBatcher != null) {
+            metrics.addGauge("weatherstation_publish_batch_samples",
+                    "Samples waiting in the current batch.", new Metrics.Value() {
+                        @Override
+                        public double get() {
+                            return mBatcher.size();
+                        }
+                    });
+            metrics.addCounter("weatherstation_publish_batch_dropped_samples_total",
+                    "Samples dropped because the batch was full.", new Metrics.Value() {
+                        @Override
+                        public double get() {
+                            return mBatcher.getDroppedCount();
+                        }
+                    });
+        }
+        final TokenManager tokenManager = mTokenManager;
+        if (tokenManager != null) {
+            metrics.addHistogram("weatherstation_token_refresh_duration_seconds",
+                    "Time to get a new access token.", tokenManager.getRefreshLatency());
+            metrics.addCounter("weatherstation_token_refresh_failures_total",
+                    "Failed access token refreshes.", new Metrics.Value() {
+                        @Override
+                        public double get() {
+                            return tokenManager.getRefreshFailureCount();
+                        }
+                    });
+        }
+    }
+
+    private void startGateway() {
+        StationGateway gateway = new StationGateway(mGatewayPort, mGatewayToken,
+                MAX_MESSAGE_BYTES, GATEWAY_BATCH_POLICY, new StationGateway.Uplink() {
+                    // Journaled on the gateway thread, so that the peers are only acknowledged
+                    // once their messages survive a crash, then replayed from the journal.
+                    @Override
+                    public boolean store(List<byte[]> payloads, long[] sequences,
+                                         String[] sessions) {
+                        if (!journal(payloads, sequences, sessions)) {
+                            return false;
+                        }
+                        log(EVENT_GATEWAY_BATCH, payloads.size(), 0);
+                        mHandler.post(mDrainRunnable);
+                        return true;
+                    }
+                });
+        try {
+            gateway.start();
+        } catch (IOException e) {
+            Log.e(TAG, "Error starting gateway on port " + mGatewayPort, e);
+            return;
+        }
+        mGateway = gateway;
+        if (mMetrics != null) {
+            registerGatewayMetrics(mMetrics, gateway);
+        }
+    }
+
+    private static void registerGatewayMetrics(Metrics metrics, final StationGateway gateway) {
+        metrics.addGauge("weatherstation_gateway_peers",
+                "Peer stations connected to the gateway.", new Metrics.Value() {
+                    @Override
+                    public double get() {
+                        return gateway.getConnectionCount();
+                    }
+                });
+        metrics.addCounter("weatherstation_gateway_requests_total",
+                "Publish requests received from peer stations.", new Metrics.Value() {
+                    @Override
+                    public double get() {
+                        return gateway.getRequestCount();
+                    }
+                });
+        Metrics.Value[] messages = {
+                new Metrics.Value() {
+                    @Override
+                    public double get() {
+                        return gateway.getMessageCount();
+                    }
+                },
+                new Metrics.Value() {
+                    @Override
+                    public double get() {
+                        return gateway.getDuplicateCount();
+                    }
+                }};
+        for (int i = 0; i < MESSAGE_OUTCOMES.length; i++) {
+            metrics.addCounter(GATEWAY_MESSAGES, GATEWAY_MESSAGES_HELP, messages[i],
+                    "outcome", MESSAGE_OUTCOMES[i]);
+        }
+        metrics.addCounter("weatherstation_gateway_batches_total",
+                "Batches of peer messages handed to the publish pipeline.", new Metrics.Value() {
+                    @Override
+                    public double get() {
+                        return gateway.getBatchCount();
+                    }
+                });
+        metrics.addCounter("weatherstation_gateway_errors_total",
+                "Peer connections dropped for an I/O or protocol error.", new Metrics.Value() {
+                    @Override
+                    public double get() {
+                        return gateway.getErrorCount();
+                    }
+                });
+    }
+
+    private void log(EventLog.Event event, long a0, long a1) {
+        EventLog eventLog = mEventLog;
+        if (eventLog != null) {
+            eventLog.log(event, a0, a1);
+        }
+    }
+
+    private ConnectivityManager getConnectivityManager() {
+        return (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    private boolean isNetworkAvailable() {
+        NetworkInfo activeNetwork = getConnectivityManager().getActiveNetworkInfo();
+        return activeNetwork != null && activeNetwork.isConnectedOrConnecting();
+    }
+
+    /**
+     * Numbers the payloads and hands them to the publish pipeline, or stores them in the
+     * journal if we are offline. The pipeline journals them if they cannot be published. Must
+     * be called on the publisher thread.
+     */
+    private void publishOrJournal(List<byte[]> payloads) {
+        long[] sequences = PublishPipeline.sequences(mNextSequence, payloads.size());
+        mNextSequence += payloads.size();
+        if (isNetworkAvailable() && mPipeline != null) {
+            mPipeline.submit(payloads, sequences, null, mPublishCallback);
+        } else {
+            Log.e(TAG, "no active network");
+            journal(payloads, sequences, null);
+        }
+    }
+
+    /**
+     * Called on the publisher, pipeline and gateway threads.
+     *
+     * @param sessions session of the peer station of each message, see
+     *                 {@link MessageJournal#append}; may be null.
+     * @return false if there is no journal or it failed to store the messages.
+     */
+    private boolean journal(List<byte[]> payloads, long[] sequences, String[] sessions) {
+        synchronized (mJournalLock) {
+            if (mJournal == null) {
+                return false;
+            }
+            try {
+                for (int i = 0; i < payloads.size(); i++) {
+                    try {
+                        mJournal.append(sequences[i], sessions != null ? sessions[i] : null,
+                                payloads.get(i));
+                    } catch (IllegalArgumentException e) {
+                        // Larger than a segment: it could never be replayed.
+                        mJournalDropped++;
+                        Log.w(TAG, "Dropping message too large to journal: "
+                                + payloads.get(i).length + " bytes");
+                    }
+                }
+                mJournal.flush();
+            } catch (IOException e) {
+                Log.e(TAG, "Error journaling messages", e);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Runs on the publisher thread.
+    private void reportSample(int channel, long timestampMs, float value) {
+        if (mReporting && mDeadband.accept(channel, timestampMs, value)) {
+            mHandler.removeCallbacks(mReportRunnable);
+            mHandler.post(mReportRunnable);
+        }
+    }
+
+    // Runs on the publisher thread.
+    private void addSample(int channel, long timestampMs, float value) {
+        if (!mBatching) {
+            return;
+        }
+        if (mBatcher.add(channel, timestampMs, value, mCodec.estimateSampleBytes())) {
+            // Flush right away: a posted flush would run after the samples already queued on
+            // this thread, which the full batch has no room for.
+            mHandler.removeCallbacks(mFlushRunnable);
+            mFlushRunnable.run();
+        } else if (mBatcher.size() == 1) {
+            // First sample of a new batch: make sure it does not wait longer than maxAgeMs.
+            mHandler.postDelayed(mFlushRunnable, mBatcher.getPolicy().maxAgeMs);
+        }
+    }
 }
\ No newline at end of file
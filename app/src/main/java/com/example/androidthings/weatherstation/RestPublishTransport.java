@@ -0,0 +1,102 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.Base64;
+import com.google.api.services.pubsub.Pubsub;
+import com.google.api.services.pubsub.model.PublishRequest;
+import com.google.api.services.pubsub.model.PubsubMessage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes to a Cloud Pub/Sub topic with the Google API client, one HTTPS request per publish.
+ * Requests are authorized by a {@link TokenManager}, which keeps its token fresh.
+ *
+ * Every message carries a {@code session} and a {@code seq} attribute, for subscribers to
+ * restore the order of messages from a station.
+ */
+class RestPublishTransport implements PublishTransport {
+
+    private static final int CONNECT_TIMEOUT_MS = (int) TimeUnit.SECONDS.toMillis(15);
+    private static final int READ_TIMEOUT_MS = (int) TimeUnit.SECONDS.toMillis(30);
+
+    private final HttpTransport mHttpTransport;
+    private final Pubsub mPubsub;
+    private final String mTopic;
+    private final String mSession;
+    private volatile boolean mClosed;
+
+    /**
+     * @param credentials authorizes each request, e.g. a {@link TokenManager}.
+     * @param topic       full topic name, {@code projects/<project>/topics/<topic>}.
+     * @param session     identifies this run of the station in the {@code session} attribute.
+     */
+    RestPublishTransport(HttpTransport httpTransport, final HttpRequestInitializer credentials,
+                         String appname, String topic, String session) {
+        mHttpTransport = httpTransport;
+        mTopic = topic;
+        mSession = session;
+        JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+        mPubsub = new Pubsub.Builder(httpTransport, jsonFactory, new HttpRequestInitializer() {
+            @Override
+            public void initialize(HttpRequest request) throws IOException {
+                credentials.initialize(request);
+                request.setConnectTimeout(CONNECT_TIMEOUT_MS);
+                request.setReadTimeout(READ_TIMEOUT_MS);
+            }
+        }).setApplicationName(appname).build();
+    }
+
+    @Override
+    public void send(List<byte[]> payloads, long[] sequences, String[] sessions)
+            throws IOException {
+        if (mClosed) {
+            throw new IOException("Transport closed");
+        }
+        List<PubsubMessage> messages = new ArrayList<>(payloads.size());
+        for (int i = 0; i < payloads.size(); i++) {
+            Map<String, String> attributes = new HashMap<>(4);
+            attributes.put("session",
+                    sessions != null && sessions[i] != null ? sessions[i] : mSession);
+            attributes.put("seq", String.valueOf(sequences[i]));
+            PubsubMessage m = new PubsubMessage();
+            m.setData(Base64.encodeBase64String(payloads.get(i)));
+            m.setAttributes(attributes);
+            messages.add(m);
+        }
+        PublishRequest request = new PublishRequest();
+        request.setMessages(messages);
+        mPubsub.projects().topics().publish(mTopic, request).execute();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mClosed = true;
+        mHttpTransport.shutdown();
+    }
+}
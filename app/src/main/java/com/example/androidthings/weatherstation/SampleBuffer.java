@@ -0,0 +1,61 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+/**
+ * Fixed-capacity list of samples stored in parallel primitive arrays, so it can be filled and
+ * reused without allocating per sample. Not thread-safe.
+ */
+final class SampleBuffer {
+    final int[] channels;
+    final long[] timestamps;
+    final float[] values;
+    private int mSize;
+
+    SampleBuffer(int capacity) {
+        channels = new int[capacity];
+        timestamps = new long[capacity];
+        values = new float[capacity];
+    }
+
+    boolean add(int channel, long timestampMs, float value) {
+        if (mSize == channels.length) {
+            return false;
+        }
+        channels[mSize] = channel;
+        timestamps[mSize] = timestampMs;
+        values[mSize] = value;
+        mSize++;
+        return true;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    int capacity() {
+        return channels.length;
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    void clear() {
+        mSize = 0;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+/**
+ * Smooths the readings of one channel, to keep the sensor's noise off the display and the LED
+ * bar. Filters keep a fixed amount of state and do not allocate per sample; they can be
+ * chained, e.g. a median window to drop outliers followed by a Kalman filter.
+ *
+ * NaN readings are passed through without updating the state. Filters are not thread-safe.
+ */
+abstract class SampleFilter {
+
+    /**
+     * Returns the filtered value of a reading.
+     */
+    abstract float filter(long timestampMs, float value);
+
+    /**
+     * Creates a filter returning the median of the last {@code window} readings.
+     */
+    static SampleFilter median(int window) {
+        return new Median(window);
+    }
+
+    /**
+     * Creates an exponential moving average with a time constant of {@code timeConstantMs}:
+     * readings older than that weigh about a third of the result, whatever the sampling rate.
+     */
+    static SampleFilter ema(long timeConstantMs) {
+        return new Ema(timeConstantMs);
+    }
+
+    /**
+     * Creates a one-dimensional Kalman filter for a value drifting randomly.
+     *
+     * @param processNoise     variance the value gains per second.
+     * @param measurementNoise variance of the sensor's noise.
+     */
+    static SampleFilter kalman(float processNoise, float measurementNoise) {
+        return new Kalman(processNoise, measurementNoise);
+    }
+
+    /**
+     * Creates a filter applying {@code filters} in turn.
+     */
+    static SampleFilter chain(SampleFilter... filters) {
+        return new Chain(filters.clone());
+    }
+
+    private static final class Median extends SampleFilter {
+        // Readings in arrival order, and the same sorted.
+        private final float[] mWindow;
+        private final float[] mSorted;
+        private int mSize;
+        private int mNext;
+
+        Median(int window) {
+            if (window <= 0) {
+                throw new IllegalArgumentException("Invalid window: " + window);
+            }
+            mWindow = new float[window];
+            mSorted = new float[window];
+        }
+
+        @Override
+        float filter(long timestampMs, float value) {
+            if (Float.isNaN(value)) {
+                return value;
+            }
+            int i;
+            if (mSize == mWindow.length) {
+                // Remove the oldest reading from the sorted ones.
+                float oldest = mWindow[mNext];
+                i = 0;
+                while (mSorted[i] != oldest) {
+                    i++;
+                }
+                System.arraycopy(mSorted, i + 1, mSorted, i, mSize - i - 1);
+                mSize--;
+            }
+            mWindow[mNext] = value;
+            mNext = (mNext + 1) % mWindow.length;
+            i = mSize;
+            while (i > 0 && mSorted[i - 1] > value) {
+                mSorted[i] = mSorted[i - 1];
+                i--;
+            }
+            mSorted[i] = value;
+            mSize++;
+            return (mSize & 1) == 1 ? mSorted[mSize / 2]
+                    : (mSorted[mSize / 2 - 1] + mSorted[mSize / 2]) / 2;
+        }
+    }
+
+    private static final class Ema extends SampleFilter {
+        private final double mTimeConstantMs;
+        private boolean mStarted;
+        private long mLastMs;
+        private double mValue;
+
+        Ema(long timeConstantMs) {
+            if (timeConstantMs <= 0) {
+                throw new IllegalArgumentException("Invalid time constant: " + timeConstantMs);
+            }
+            mTimeConstantMs = timeConstantMs;
+        }
+
+        @Override
+        float filter(long timestampMs, float value) {
+            if (Float.isNaN(value)) {
+                return value;
+            }
+            if (!mStarted) {
+                mStarted = true;
+                mValue = value;
+            } else {
+                double alpha = 1 - Math.exp(-Math.max(0, timestampMs - mLastMs)
+                        / mTimeConstantMs);
+                mValue += alpha * (value - mValue);
+            }
+            mLastMs = timestampMs;
+            return (float) mValue;
+        }
+    }
+
+    private static final class Kalman extends SampleFilter {
+        private final double mProcessNoise;
+        private final double mMeasurementNoise;
+        private boolean mStarted;
+        private long mLastMs;
+        private double mEstimate;
+        private double mVariance;
+
+        Kalman(float processNoise, float measurementNoise) {
+            if (!(processNoise >= 0) || !(measurementNoise > 0)) {
+                throw new IllegalArgumentException("Invalid noise: " + processNoise + ", "
+                        + measurementNoise);
+            }
+            mProcessNoise = processNoise;
+            mMeasurementNoise = measurementNoise;
+        }
+
+        @Override
+        float filter(long timestampMs, float value) {
+            if (Float.isNaN(value)) {
+                return value;
+            }
+            if (!mStarted) {
+                mStarted = true;
+                mEstimate = value;
+                mVariance = mMeasurementNoise;
+            } else {
+                mVariance += mProcessNoise * Math.max(0, timestampMs - mLastMs) / 1000.;
+                double gain = mVariance / (mVariance + mMeasurementNoise);
+                mEstimate += gain * (value - mEstimate);
+                mVariance *= 1 - gain;
+            }
+            mLastMs = timestampMs;
+            return (float) mEstimate;
+        }
+    }
+
+    private static final class Chain extends SampleFilter {
+        private final SampleFilter[] mFilters;
+
+        Chain(SampleFilter[] filters) {
+            mFilters = filters;
+        }
+
+        @Override
+        float filter(long timestampMs, float value) {
+            for (SampleFilter filter : mFilters) {
+                value = filter.filter(timestampMs, value);
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sampling period and maximum report latency to register each sensor type with.
+ *
+ * A non-zero report latency lets sensors with a hardware FIFO batch their events and deliver
+ * them in bursts, so the CPU wakes up once per burst instead of once per sample. Events in a
+ * burst arrive late, so their time must be taken from {@link #getEventTimeMillis}, not from the
+ * delivery time.
+ */
+class SamplingPolicy {
+    private static final String TAG = SamplingPolicy.class.getSimpleName();
+
+    private static final class Rate {
+        final int samplingPeriodUs;
+        final int maxReportLatencyUs;
+
+        Rate(int samplingPeriodUs, int maxReportLatencyUs) {
+            this.samplingPeriodUs = samplingPeriodUs;
+            this.maxReportLatencyUs = maxReportLatencyUs;
+        }
+    }
+
+    // Period of SensorManager.SENSOR_DELAY_NORMAL, delivered without batching.
+    private static final Rate DEFAULT_RATE = new Rate(200000, 0);
+
+    private final SparseArray<Rate> mRates = new SparseArray<>();
+
+    /**
+     * Sets how often a sensor type is sampled and how long its events may be held in the
+     * sensor FIFO before being delivered.
+     */
+    SamplingPolicy setRate(int sensorType, int samplingPeriodUs, int maxReportLatencyUs) {
+        if (samplingPeriodUs < 0 || maxReportLatencyUs < 0) {
+            throw new IllegalArgumentException("Negative period or latency");
+        }
+        mRates.put(sensorType, new Rate(samplingPeriodUs, maxReportLatencyUs));
+        return this;
+    }
+
+    int getSamplingPeriodUs(int sensorType) {
+        return mRates.get(sensorType, DEFAULT_RATE).samplingPeriodUs;
+    }
+
+    int getMaxReportLatencyUs(int sensorType) {
+        return mRates.get(sensorType, DEFAULT_RATE).maxReportLatencyUs;
+    }
+
+    /**
+     * Registers {@code listener} for {@code sensor} at the rate set for its type. Events are
+     * delivered on the thread of {@code handler}.
+     */
+    boolean registerListener(SensorManager sensorManager, SensorEventListener listener,
+                             Sensor sensor, Handler handler) {
+        Rate rate = mRates.get(sensor.getType(), DEFAULT_RATE);
+        int samplingPeriodUs = Math.max(rate.samplingPeriodUs, sensor.getMinDelay());
+        if (rate.maxReportLatencyUs > 0 && sensor.getFifoMaxEventCount() == 0) {
+            Log.d(TAG, sensor.getName() + " has no FIFO, its events will not be batched");
+        }
+        Log.d(TAG, "Sampling " + sensor.getName() + " every "
+                + TimeUnit.MICROSECONDS.toMillis(samplingPeriodUs) + "ms, reporting within "
+                + TimeUnit.MICROSECONDS.toMillis(rate.maxReportLatencyUs) + "ms");
+        return sensorManager.registerListener(listener, sensor, samplingPeriodUs,
+                rate.maxReportLatencyUs, handler);
+    }
+
+    /**
+     * Returns the wall clock time, in milliseconds, at which an event was sampled.
+     */
+    static long getEventTimeMillis(SensorEvent event) {
+        // Event timestamps are based on elapsedRealtimeNanos. The wall clock time of boot is
+        // computed for every event because the wall clock can be set after boot, by NTP for
+        // instance.
+        long bootTimeMs = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+        return bootTimeMs + TimeUnit.NANOSECONDS.toMillis(event.timestamp);
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Compact binary capture of the sensor samples delivered to the station, written by
+ * {@link Recorder} and read back by {@link Reader}, to be replayed by {@link SensorReplayer}.
+ *
+ * <pre>
+ * file    magic "WSC1", then one entry per sample:
+ * sample  channel int8, time varint (ms since the previous sample, zigzag encoded),
+ *         value varint (float bits xor those of the previous value of the channel)
+ * </pre>
+ *
+ * Consecutive readings of a channel share their sign, exponent and leading mantissa bits, so a
+ * sample usually takes 4 to 6 bytes.
+ */
+final class SensorCapture {
+
+    static final int MAGIC = 0x57534331; // "WSC1"
+
+    private SensorCapture() {
+    }
+
+    /**
+     * Writes the samples it receives to a capture file. A file is started on every run,
+     * keeping the previous one as {@code <name>.1}, and when it grows past its size limit.
+     * Not thread-safe.
+     */
+    static final class Recorder implements SampleSink, Closeable {
+        // Bounds what a crash loses.
+        private static final long FLUSH_INTERVAL_MS = 1000;
+
+        private final File mFile;
+        private final long mMaxBytes;
+        private DataOutputStream mOutput;
+        private long mLastTimestampMs;
+        private final int[] mLastBits = new int[Channel.ID_LIMIT];
+        private long mFlushedMs;
+        private long mRecorded;
+        private long mErrors;
+
+        /**
+         * @param maxBytes size after which the file is rolled over.
+         */
+        Recorder(File file, long maxBytes) throws IOException {
+            mFile = file;
+            mMaxBytes = maxBytes;
+            roll();
+        }
+
+        @Override
+        public void onSample(int channel, long timestampMs, float value) {
+            if (mOutput == null || channel < 0 || channel >= Channel.ID_LIMIT) {
+                return;
+            }
+            try {
+                if (mOutput.size() >= mMaxBytes) {
+                    mOutput.close();
+                    roll();
+                }
+                int bits = Float.floatToRawIntBits(value);
+                long delta = timestampMs - mLastTimestampMs;
+                mOutput.writeByte(channel);
+                writeVarint(mOutput, (delta << 1) ^ (delta >> 63));
+                writeVarint(mOutput, (bits ^ mLastBits[channel]) & 0xFFFFFFFFL);
+                mLastTimestampMs = timestampMs;
+                mLastBits[channel] = bits;
+                mRecorded++;
+                if (timestampMs - mFlushedMs >= FLUSH_INTERVAL_MS) {
+                    mOutput.flush();
+                    mFlushedMs = timestampMs;
+                }
+            } catch (IOException e) {
+                // Stop recording rather than write a corrupt capture.
+                mErrors++;
+                close();
+            }
+        }
+
+        long getRecordedCount() {
+            return mRecorded;
+        }
+
+        long getErrorCount() {
+            return mErrors;
+        }
+
+        @Override
+        public void close() {
+            if (mOutput == null) {
+                return;
+            }
+            try {
+                mOutput.close();
+            } catch (IOException e) {
+                mErrors++;
+            }
+            mOutput = null;
+        }
+
+        private void roll() throws IOException {
+            if (mFile.exists()) {
+                File previous = new File(mFile.getPath() + ".1");
+                if (previous.exists() && !previous.delete()) {
+                    throw new IOException("Error deleting " + previous);
+                }
+                if (!mFile.renameTo(previous)) {
+                    throw new IOException("Error renaming " + mFile);
+                }
+            }
+            mOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile),
+                    64 * 1024));
+            mOutput.writeInt(MAGIC);
+            mLastTimestampMs = 0;
+            Arrays.fill(mLastBits, 0);
+        }
+
+        private static void writeVarint(DataOutputStream output, long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                output.writeByte((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            output.writeByte((int) value);
+        }
+    }
+
+    /**
+     * Reads the samples of a capture in order: {@link #next()} loads the next one into
+     * {@link #channel}, {@link #timestampMs} and {@link #value}.
+     */
+    static final class Reader implements Closeable {
+        private final DataInputStream mInput;
+        private final int[] mLastBits = new int[Channel.ID_LIMIT];
+
+        int channel;
+        long timestampMs;
+        float value;
+
+        Reader(InputStream in) throws IOException {
+            mInput = new DataInputStream(in);
+            if (mInput.readInt() != MAGIC) {
+                throw new IOException("Not a sensor capture");
+            }
+        }
+
+        /**
+         * @return false at the end of the capture, possibly in the middle of a sample after a
+         * crash.
+         */
+        boolean next() throws IOException {
+            try {
+                int c = mInput.readUnsignedByte();
+                if (c >= Channel.ID_LIMIT) {
+                    throw new IOException("Invalid channel: " + c);
+                }
+                long delta = readVarint();
+                int bits = (int) readVarint() ^ mLastBits[c];
+                channel = c;
+                timestampMs += (delta >>> 1) ^ -(delta & 1);
+                value = Float.intBitsToFloat(bits);
+                mLastBits[c] = bits;
+                return true;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            mInput.close();
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = mInput.readUnsignedByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Invalid varint");
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Dispatches the samples of a single sensor subscription to any number of consumers.
+ *
+ * Each consumer has its own lock-free single-producer single-consumer queue, drained on the
+ * {@link Executor} it subscribed with, so a slow consumer never blocks the producer or the other
+ * consumers. When a consumer falls behind, its {@link #DROP_OLDEST} queue discards the oldest
+ * samples, while a {@link #CONFLATE} queue only keeps the latest sample of each channel.
+ *
+ * Samples must be published from a single thread. Subscribing and unsubscribing are thread-safe.
+ */
+class SensorEventBus {
+
+    /** Keep the most recent samples, dropping the oldest ones when the queue is full. */
+    static final int DROP_OLDEST = 0;
+    /** Only keep the latest sample of each channel. */
+    static final int CONFLATE = 1;
+
+    private final CopyOnWriteArrayList<Subscription> mSubscriptions =
+            new CopyOnWriteArrayList<>();
+
+    /**
+     * Subscribes {@code consumer} to every sample published from now on.
+     *
+     * @param capacity samples queued for a {@link #DROP_OLDEST} consumer, rounded up to a power
+     *                 of two; ignored for {@link #CONFLATE}.
+     * @param executor runs the consumer; may run it inline, on the publishing thread.
+     */
+    Subscription subscribe(String name, int policy, int capacity,
+                           SampleSink consumer, Executor executor) {
+        Subscription subscription;
+        switch (policy) {
+            case DROP_OLDEST:
+                subscription = new DropOldestSubscription(name, consumer, executor, capacity);
+                break;
+            case CONFLATE:
+                subscription = new ConflatingSubscription(name, consumer, executor);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown policy: " + policy);
+        }
+        mSubscriptions.add(subscription);
+        return subscription;
+    }
+
+    void unsubscribe(Subscription subscription) {
+        mSubscriptions.remove(subscription);
+    }
+
+    void publish(int channel, long timestampMs, float value) {
+        for (Subscription subscription : mSubscriptions) {
+            subscription.offer(channel, timestampMs, value);
+            subscription.schedule();
+        }
+    }
+
+    abstract static class Subscription implements Runnable {
+        private final String mName;
+        private final SampleSink mConsumer;
+        private final Executor mExecutor;
+        // Set while a drain is pending on the executor, so at most one is scheduled.
+        private final AtomicBoolean mScheduled = new AtomicBoolean();
+        private final AtomicLong mDropped = new AtomicLong();
+        private volatile long mDelivered;
+
+        Subscription(String name, SampleSink consumer, Executor executor) {
+            mName = name;
+            mConsumer = consumer;
+            mExecutor = executor;
+        }
+
+        String getName() {
+            return mName;
+        }
+
+        /**
+         * Returns the number of samples this consumer missed, discarded or conflated.
+         */
+        long getDroppedCount() {
+            return mDropped.get();
+        }
+
+        long getDeliveredCount() {
+            return mDelivered;
+        }
+
+        @Override
+        public void run() {
+            do {
+                mScheduled.set(false);
+                long delivered = mDelivered;
+                while (poll(mConsumer)) {
+                    delivered++;
+                }
+                mDelivered = delivered;
+                // A sample offered after the last poll but before the flag was cleared would
+                // otherwise wait for the next one.
+            } while (!isEmpty() && mScheduled.compareAndSet(false, true));
+        }
+
+        void schedule() {
+            if (mScheduled.compareAndSet(false, true)) {
+                mExecutor.execute(this);
+            }
+        }
+
+        /**
+         * Exports the delivered and dropped counts and the queue depth of this subscription,
+         * labelled with its name.
+         */
+        void registerMetrics(Metrics metrics) {
+            metrics.addCounter("weatherstation_bus_delivered_samples_total",
+                    "Samples handed to each consumer of the event bus.", new Metrics.Value() {
+                        @Override
+                        public double get() {
+                            return getDeliveredCount();
+                        }
+                    }, "consumer", mName);
+            metrics.addCounter("weatherstation_bus_dropped_samples_total",
+                    "Samples missed, discarded or conflated by each consumer of the event bus.",
+                    new Metrics.Value() {
+                        @Override
+                        public double get() {
+                            return getDroppedCount();
+                        }
+                    }, "consumer", mName);
+            metrics.addGauge("weatherstation_bus_queued_samples",
+                    "Samples waiting for each consumer of the event bus.", new Metrics.Value() {
+                        @Override
+                        public double get() {
+                            return getQueuedCount();
+                        }
+                    }, "consumer", mName);
+        }
+
+        void countDropped() {
+            mDropped.incrementAndGet();
+        }
+
+        /** Called on the producer thread. */
+        abstract void offer(int channel, long timestampMs, float value);
+
+        /** Called on the consumer; hands one sample to {@code consumer} if there is one. */
+        abstract boolean poll(SampleSink consumer);
+
+        abstract boolean isEmpty();
+
+        /**
+         * Returns the number of samples waiting for the consumer; approximate while samples
+         * are flowing.
+         */
+        abstract int getQueuedCount();
+    }
+
+    /**
+     * Ring buffer of samples. When it is full the producer claims the oldest slot by advancing
+     * the head with a CAS; the consumer reads a slot before claiming it the same way, and
+     * discards what it read if the producer won the race.
+     */
+    private static final class DropOldestSubscription extends Subscription {
+        private final int mMask;
+        private final int[] mChannels;
+        private final long[] mTimestamps;
+        private final float[] mValues;
+        private final AtomicLong mHead = new AtomicLong();
+        private final AtomicLong mTail = new AtomicLong();
+
+        DropOldestSubscription(String name, SampleSink consumer,
+                               Executor executor, int capacity) {
+            super(name, consumer, executor);
+            if (capacity < 1 || capacity > 1 << 30) {
+                throw new IllegalArgumentException("Invalid capacity: " + capacity);
+            }
+            int size = Integer.highestOneBit(capacity);
+            if (size < capacity) {
+                size <<= 1;
+            }
+            mMask = size - 1;
+            mChannels = new int[size];
+            mTimestamps = new long[size];
+            mValues = new float[size];
+        }
+
+        @Override
+        void offer(int channel, long timestampMs, float value) {
+            long tail = mTail.get();
+            long head = mHead.get();
+            if (tail - head > mMask && mHead.compareAndSet(head, head + 1)) {
+                countDropped();
+            }
+            // If the CAS failed the consumer has just freed a slot.
+            int index = (int) tail & mMask;
+            mChannels[index] = channel;
+            mTimestamps[index] = timestampMs;
+            mValues[index] = value;
+            mTail.lazySet(tail + 1);
+        }
+
+        @Override
+        boolean poll(SampleSink consumer) {
+            while (true) {
+                long head = mHead.get();
+                if (head == mTail.get()) {
+                    return false;
+                }
+                int index = (int) head & mMask;
+                int channel = mChannels[index];
+                long timestampMs = mTimestamps[index];
+                float value = mValues[index];
+                if (mHead.compareAndSet(head, head + 1)) {
+                    consumer.onSample(channel, timestampMs, value);
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        boolean isEmpty() {
+            return mHead.get() == mTail.get();
+        }
+
+        @Override
+        int getQueuedCount() {
+            long head = mHead.get();
+            return (int) Math.max(0, Math.min(mTail.get() - head, mMask + 1));
+        }
+    }
+
+    /**
+     * Latest sample of each channel, guarded by a per-channel sequence lock: the producer makes
+     * the sequence odd while it writes, and the consumer retries a read that overlapped a write.
+     */
+    private static final class ConflatingSubscription extends Subscription {
+        private static final int SEQUENCE = 0;
+        private static final int TIMESTAMP = 1;
+        private static final int VALUE = 2;
+        private static final int FIELDS = 3;
+
+        // Sequence, timestamp and value bits of each channel. All accesses are volatile so the
+        // reads of a slot cannot be reordered around the reads of its sequence.
+        private final AtomicLongArray mSlots = new AtomicLongArray(Channel.COUNT * FIELDS);
+        // Sequence of the last sample of each channel handed to the consumer. Also read by the
+        // producer, to count conflated samples.
+        private final AtomicLongArray mConsumed = new AtomicLongArray(Channel.COUNT);
+        private int mNextChannel;
+
+        ConflatingSubscription(String name, SampleSink consumer,
+                               Executor executor) {
+            super(name, consumer, executor);
+        }
+
+        @Override
+        void offer(int channel, long timestampMs, float value) {
+            int slot = channel * FIELDS;
+            long sequence = mSlots.get(slot + SEQUENCE);
+            // Replacing a sample the consumer has not seen yet. The count is approximate, as the
+            // consumer may be reading it right now.
+            if (sequence != mConsumed.get(channel)) {
+                countDropped();
+            }
+            mSlots.set(slot + SEQUENCE, sequence + 1);
+            mSlots.set(slot + TIMESTAMP, timestampMs);
+            mSlots.set(slot + VALUE, Float.floatToRawIntBits(value));
+            mSlots.set(slot + SEQUENCE, sequence + 2);
+        }
+
+        @Override
+        boolean poll(SampleSink consumer) {
+            for (int i = 0; i < Channel.COUNT; i++) {
+                int channel = mNextChannel;
+                mNextChannel = (mNextChannel + 1) % Channel.COUNT;
+                int slot = channel * FIELDS;
+                long sequence;
+                long timestampMs;
+                long bits;
+                do {
+                    sequence = mSlots.get(slot + SEQUENCE);
+                    timestampMs = mSlots.get(slot + TIMESTAMP);
+                    bits = mSlots.get(slot + VALUE);
+                } while ((sequence & 1) != 0 || sequence != mSlots.get(slot + SEQUENCE));
+                if (sequence != mConsumed.get(channel)) {
+                    mConsumed.lazySet(channel, sequence);
+                    consumer.onSample(channel, timestampMs, Float.intBitsToFloat((int) bits));
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        boolean isEmpty() {
+            for (int channel = 0; channel < Channel.COUNT; channel++) {
+                if (mSlots.get(channel * FIELDS + SEQUENCE) != mConsumed.get(channel)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        int getQueuedCount() {
+            int queued = 0;
+            for (int channel = 0; channel < Channel.COUNT; channel++) {
+                if (mSlots.get(channel * FIELDS + SEQUENCE) != mConsumed.get(channel)) {
+                    queued++;
+                }
+            }
+            return queued;
+        }
+    }
+}
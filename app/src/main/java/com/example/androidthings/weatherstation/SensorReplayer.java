@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Feeds the samples of a {@link SensorCapture} to a {@link SampleSink}, with their original
+ * timestamps, at the pace they were captured, a number of times faster, or as fast as the sink
+ * takes them. Components that take time from the sample timestamps, like the forecast and the
+ * aggregation windows, behave the same at any speed.
+ */
+class SensorReplayer {
+
+    /**
+     * Speed replaying samples without waiting between them.
+     */
+    static final double MAX_SPEED = Double.POSITIVE_INFINITY;
+
+    private final double mSpeed;
+    private volatile long mReplayed;
+    private volatile long mFirstTimestampMs;
+    private volatile long mLastTimestampMs;
+
+    /**
+     * @param speed 1 for the original pace, N for N times faster, or {@link #MAX_SPEED}.
+     */
+    SensorReplayer(double speed) {
+        if (!(speed > 0)) {
+            throw new IllegalArgumentException("Invalid speed: " + speed);
+        }
+        mSpeed = speed;
+    }
+
+    /**
+     * Replays the capture {@code file} into {@code sink} on the calling thread, until its end
+     * or until the thread is interrupted.
+     *
+     * @return the number of samples replayed.
+     */
+    long replay(File file, SampleSink sink) throws IOException {
+        try (SensorCapture.Reader reader = new SensorCapture.Reader(new BufferedInputStream(
+                new FileInputStream(file), 64 * 1024))) {
+            return replay(reader, sink);
+        }
+    }
+
+    long replay(SensorCapture.Reader reader, SampleSink sink) throws IOException {
+        long startNanos = System.nanoTime();
+        long count = 0;
+        while (reader.next()) {
+            if (count == 0) {
+                mFirstTimestampMs = reader.timestampMs;
+            } else if (mSpeed != MAX_SPEED) {
+                long dueNanos = startNanos + (long) (TimeUnit.MILLISECONDS.toNanos(
+                        reader.timestampMs - mFirstTimestampMs) / mSpeed);
+                long wait;
+                while ((wait = dueNanos - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                    if (Thread.currentThread().isInterrupted()) {
+                        return count;
+                    }
+                }
+            }
+            sink.onSample(reader.channel, reader.timestampMs, reader.value);
+            mLastTimestampMs = reader.timestampMs;
+            mReplayed = ++count;
+            if ((count & 1023) == 0 && Thread.currentThread().isInterrupted()) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    long getReplayedCount() {
+        return mReplayed;
+    }
+
+    /**
+     * Returns the time covered by the samples replayed so far, in milliseconds.
+     */
+    long getReplayedMillis() {
+        return mReplayed > 0 ? mLastTimestampMs - mFirstTimestampMs : 0;
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Brings up the station's components in two phases and records when each of them started and
+ * finished.
+ *
+ * The components needed to sense ({@link #PHASE_SENSING}) are initialized concurrently, each on
+ * its own thread, since opening a peripheral mostly waits on its bus. The optional ones
+ * ({@link #PHASE_DEFERRED}), like the LED strip, the speaker or the cloud publisher, only start
+ * once all of the former are done, so they never delay the first sample. The time from
+ * {@link #start()} to the first sample is measured with {@link #onSample()}. Components that
+ * have not started yet can be skipped with {@link #cancel()}.
+ */
+class StartupOrchestrator {
+
+    static final int PHASE_SENSING = 0;
+    static final int PHASE_DEFERRED = 1;
+
+    /**
+     * Initializes one component.
+     */
+    interface Step {
+        void run() throws IOException;
+    }
+
+    interface Listener {
+        /**
+         * Called on the component's thread when its initialization failed.
+         *
+         * @param required whether the station cannot run without the component.
+         */
+        void onFailure(String name, boolean required, IOException e);
+
+        /**
+         * Called once every component has been initialized, successfully or not.
+         */
+        void onComplete();
+    }
+
+    /**
+     * The startup of one component.
+     */
+    private static final class Entry {
+        final String name;
+        final int phase;
+        final boolean required;
+        private final Executor mExecutor;
+        private final Step mStep;
+
+        // Set by whoever runs or cancels the component first.
+        private final AtomicBoolean mClaimed = new AtomicBoolean();
+        private volatile boolean mCancelled;
+
+        // Written by the component's thread.
+        private volatile long mStartNanos = -1;
+        private volatile long mEndNanos = -1;
+        private volatile IOException mError;
+
+        private Entry(String name, int phase, boolean required, Executor executor, Step step) {
+            this.name = name;
+            this.phase = phase;
+            this.required = required;
+            mExecutor = executor;
+            mStep = step;
+        }
+    }
+
+    private final Listener mListener;
+    private final List<Entry> mEntries = new ArrayList<>();
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private final AtomicInteger mRemainingSensing = new AtomicInteger();
+    private final AtomicInteger mRemaining = new AtomicInteger();
+    private final AtomicLong mFirstSampleNanos = new AtomicLong(-1);
+    private long mStartNanos = -1;
+
+    StartupOrchestrator(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Adds a component to initialize on its own thread, before {@link #start()}.
+     *
+     * @param required if false, a failure is reported to the listener but does not make the
+     *                 station unusable.
+     */
+    StartupOrchestrator add(String name, int phase, boolean required, Step step) {
+        return add(name, phase, required, null, step);
+    }
+
+    /**
+     * Adds a component to initialize on the given executor, e.g. for drivers that must be
+     * created on a looper thread.
+     */
+    StartupOrchestrator add(String name, int phase, boolean required, Executor executor,
+                            Step step) {
+        if (phase != PHASE_SENSING && phase != PHASE_DEFERRED) {
+            throw new IllegalArgumentException("Unknown phase: " + phase);
+        }
+        if (mStartNanos >= 0) {
+            throw new IllegalStateException("Already started");
+        }
+        mEntries.add(new Entry(name, phase, required, executor, step));
+        return this;
+    }
+
+    /**
+     * Starts the sensing components, and the deferred ones once those are done. Returns right
+     * away.
+     */
+    void start() {
+        if (mStartNanos >= 0) {
+            throw new IllegalStateException("Already started");
+        }
+        mStartNanos = System.nanoTime();
+        int sensing = 0;
+        for (Entry entry : mEntries) {
+            if (entry.phase == PHASE_SENSING) {
+                sensing++;
+            }
+        }
+        mRemainingSensing.set(sensing);
+        mRemaining.set(mEntries.size());
+        if (mEntries.isEmpty()) {
+            mDone.countDown();
+            if (mListener != null) {
+                mListener.onComplete();
+            }
+        } else if (sensing == 0) {
+            startPhase(PHASE_DEFERRED);
+        } else {
+            startPhase(PHASE_SENSING);
+        }
+    }
+
+    /**
+     * Skips the components that have not started yet, such as those waiting for a busy looper
+     * or for the sensing phase, so that {@link #await} only waits for the ones running. They
+     * count as initialized, but are neither run nor reported as failed.
+     */
+    void cancel() {
+        if (mStartNanos < 0) {
+            throw new IllegalStateException("Not started");
+        }
+        List<Entry> cancelled = new ArrayList<>();
+        for (Entry entry : mEntries) {
+            if (entry.mClaimed.compareAndSet(false, true)) {
+                entry.mCancelled = true;
+                cancelled.add(entry);
+            }
+        }
+        for (Entry entry : cancelled) {
+            finish(entry);
+        }
+    }
+
+    /**
+     * Records the arrival of a sample; only the first call counts. May be called from any
+     * thread.
+     *
+     * @return true for the first sample.
+     */
+    boolean onSample() {
+        return mFirstSampleNanos.get() < 0
+                && mFirstSampleNanos.compareAndSet(-1, System.nanoTime());
+    }
+
+    /**
+     * Returns the time from {@link #start()} to the first sample, or -1 before it.
+     */
+    long getTimeToFirstSampleMillis() {
+        long firstSample = mFirstSampleNanos.get();
+        return firstSample < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(firstSample - mStartNanos);
+    }
+
+    /**
+     * Waits for all the components to be initialized, successfully or not.
+     *
+     * @return false if some are still initializing after the timeout.
+     */
+    boolean await(long timeoutMs) throws InterruptedException {
+        return mDone.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns one line per component with its phase, start and duration in milliseconds from
+     * {@link #start()}, and its outcome, followed by the time to the first sample.
+     */
+    String getTimeline() {
+        StringBuilder timeline = new StringBuilder();
+        for (Entry entry : mEntries) {
+            long start = entry.mStartNanos;
+            long end = entry.mEndNanos;
+            timeline.append(String.format(Locale.US, "%-10s %-8s %8s %8s  %s%n",
+                    entry.name, entry.phase == PHASE_SENSING ? "sensing" : "deferred",
+                    start < 0 ? "-"
+                            : "+" + TimeUnit.NANOSECONDS.toMillis(start - mStartNanos) + "ms",
+                    end < 0 ? "-" : TimeUnit.NANOSECONDS.toMillis(end - start) + "ms",
+                    entry.mCancelled ? "cancelled" : end < 0 ? "running" : entry.mError != null
+                            ? "failed: " + entry.mError.getMessage() : "ok"));
+        }
+        long firstSample = getTimeToFirstSampleMillis();
+        timeline.append("first sample: ")
+                .append(firstSample < 0 ? "-" : "+" + firstSample + "ms");
+        return timeline.toString();
+    }
+
+    private void startPhase(int phase) {
+        for (final Entry entry : mEntries) {
+            if (entry.phase != phase) {
+                continue;
+            }
+            Runnable runnable = new Runnable() {
+                @Override
+                public void run() {
+                    runEntry(entry);
+                }
+            };
+            if (entry.mExecutor != null) {
+                entry.mExecutor.execute(runnable);
+            } else {
+                new Thread(runnable, "startup-" + entry.name).start();
+            }
+        }
+    }
+
+    private void runEntry(Entry entry) {
+        if (!entry.mClaimed.compareAndSet(false, true)) {
+            // Cancelled.
+            return;
+        }
+        entry.mStartNanos = System.nanoTime();
+        try {
+            entry.mStep.run();
+        } catch (IOException e) {
+            entry.mError = e;
+        } finally {
+            entry.mEndNanos = System.nanoTime();
+        }
+        if (entry.mError != null && mListener != null) {
+            mListener.onFailure(entry.name, entry.required, entry.mError);
+        }
+        finish(entry);
+    }
+
+    private void finish(Entry entry) {
+        if (entry.phase == PHASE_SENSING && mRemainingSensing.decrementAndGet() == 0) {
+            startPhase(PHASE_DEFERRED);
+        }
+        if (mRemaining.decrementAndGet() == 0) {
+            mDone.countDown();
+            if (mListener != null) {
+                mListener.onComplete();
+            }
+        }
+    }
+}
@@ -0,0 +1,688 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receives the messages of peer stations over the local network and forwards them upstream in
+ * large multi-station batches, so that a site shares one uplink and one set of credentials.
+ *
+ * Peers publish with a {@link StreamPublishTransport} pointed at the gateway, whose protocol it
+ * speaks, and must present the token shared by the stations of the site when they connect.
+ * Messages gather in a pending batch, which is handed to the {@link Uplink} to store when it
+ * reaches the message count or byte size of its policy, or its age limit. A request is only
+ * acknowledged once the batch holding its messages is stored, so a gateway crash loses nothing
+ * its peers consider published; if the uplink cannot store a batch, the peers with messages in
+ * it are disconnected to send them again. Payloads are forwarded as they are, with the
+ * sequence number and session their station gave them. A peer sending a wrong token or a
+ * message larger than the gateway can keep is disconnected.
+ *
+ * A peer retrying a request whose acknowledgment was lost, or replaying it from its journal,
+ * sends the same payloads again, possibly with other sequence numbers or in another session.
+ * The gateway remembers a fingerprint of the station and content of the last
+ * {@link #RECENT_MESSAGES} messages stored, and of those in the pending batch, and drops the
+ * repeats.
+ *
+ * Messages are parsed one at a time as they arrive, so a peer takes at most a buffer the size
+ * of the largest message.
+ *
+ * All the connections are served by one thread with non-blocking I/O, so the number of peers is
+ * not bound by the number of threads.
+ */
+class StationGateway implements Closeable {
+
+    /**
+     * Publishes the batches of the gateway.
+     */
+    interface Uplink {
+        /**
+         * Stores a batch of messages, e.g. in a journal to publish them from. Called on the
+         * gateway thread, which holds the acks of the messages until it returns, so it should
+         * return quickly. The gateway no longer uses the batch afterwards.
+         *
+         * @param sequences sequence number each message was given by its station.
+         * @param sessions  session of the station of each message.
+         * @return false if the batch could not be stored.
+         */
+        boolean store(List<byte[]> payloads, long[] sequences, String[] sessions);
+    }
+
+    // About ten hours of messages from a hundred stations publishing every minute, in 1.5MB.
+    static final int RECENT_MESSAGES = 64 * 1024;
+    // Longest session a peer may present, in UTF-8 bytes, so that the uplink can store it.
+    static final int MAX_SESSION_BYTES = 64;
+
+    private static final int MAX_CONNECTIONS = 1024;
+    private static final int INITIAL_BUFFER_BYTES = 16 * 1024;
+    // Sequence number and length ahead of each payload.
+    private static final int MESSAGE_HEADER_BYTES = 12;
+
+    private final int mPort;
+    private final byte[] mToken;
+    private final int mMaxMessageBytes;
+    // Bounds the memory a single peer can take: its largest message, or its hello.
+    private final int mMaxInputBytes;
+    private final PublishBatcher.Policy mPolicy;
+    private final Uplink mUplink;
+
+    private Selector mSelector;
+    private ServerSocketChannel mServer;
+    private Thread mThread;
+    private volatile boolean mClosed;
+
+    // Owned by the gateway thread. The pending batch, with the sequence number, session and
+    // fingerprint of each message, and the connections to ack or drop once it is stored.
+    private List<byte[]> mBatch = new ArrayList<>();
+    private final long[] mBatchSequences;
+    private final String[] mBatchSessions;
+    private final long[] mBatchFingerprints;
+    private final RecentFingerprints mBatchRecent;
+    private List<Connection> mBatchConnections = new ArrayList<>();
+    private int mBatchBytes;
+    private long mBatchStartMs;
+    private final RecentFingerprints mRecent = new RecentFingerprints(RECENT_MESSAGES);
+
+    private volatile int mConnections;
+    private volatile long mRequests;
+    private volatile long mMessages;
+    private volatile long mDuplicates;
+    private volatile long mBatches;
+    private volatile long mErrors;
+
+    /**
+     * @param port            the port to listen on, or 0 for any free one.
+     * @param token           secret the peers must present, not empty.
+     * @param maxMessageBytes largest payload accepted, e.g. what the uplink can journal along
+     *                        with a session of {@link #MAX_SESSION_BYTES}.
+     * @param policy          when to hand a batch to {@code uplink}; {@code maxSamples} counts
+     *                        messages.
+     */
+    StationGateway(int port, String token, int maxMessageBytes, PublishBatcher.Policy policy,
+                   Uplink uplink) {
+        if (token.isEmpty()) {
+            throw new IllegalArgumentException("Empty gateway token");
+        }
+        if (maxMessageBytes <= 0 || maxMessageBytes > Integer.MAX_VALUE / 2) {
+            throw new IllegalArgumentException("Invalid message size: " + maxMessageBytes);
+        }
+        mPort = port;
+        mToken = token.getBytes(StandardCharsets.UTF_8);
+        mMaxMessageBytes = maxMessageBytes;
+        mMaxInputBytes = Math.max(INITIAL_BUFFER_BYTES, MESSAGE_HEADER_BYTES + maxMessageBytes);
+        mPolicy = policy;
+        mUplink = uplink;
+        mBatchSequences = new long[policy.maxSamples];
+        mBatchSessions = new String[policy.maxSamples];
+        mBatchFingerprints = new long[policy.maxSamples];
+        mBatchRecent = new RecentFingerprints(Math.max(2, policy.maxSamples));
+    }
+
+    /**
+     * Starts listening. Returns once the port is bound.
+     */
+    void start() throws IOException {
+        mSelector = Selector.open();
+        mServer = ServerSocketChannel.open();
+        ServerSocket socket = mServer.socket();
+        socket.setReuseAddress(true);
+        socket.bind(new InetSocketAddress(mPort));
+        mServer.configureBlocking(false);
+        mServer.register(mSelector, SelectionKey.OP_ACCEPT);
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "stationGateway");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    int getPort() {
+        return mServer.socket().getLocalPort();
+    }
+
+    /**
+     * Stops listening, hands the pending batch to the uplink and disconnects the peers.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mThread == null) {
+            return;
+        }
+        mClosed = true;
+        mSelector.wakeup();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the number of peers connected.
+     */
+    int getConnectionCount() {
+        return mConnections;
+    }
+
+    long getRequestCount() {
+        return mRequests;
+    }
+
+    /**
+     * Returns the number of messages received and forwarded, not counting the duplicates.
+     */
+    long getMessageCount() {
+        return mMessages;
+    }
+
+    long getDuplicateCount() {
+        return mDuplicates;
+    }
+
+    long getBatchCount() {
+        return mBatches;
+    }
+
+    /**
+     * Returns the number of connections dropped for an I/O or a protocol error.
+     */
+    long getErrorCount() {
+        return mErrors;
+    }
+
+    private void serve() {
+        try {
+            while (!mClosed) {
+                long timeoutMs = 0;
+                if (!mBatch.isEmpty()) {
+                    timeoutMs = Math.max(1, mBatchStartMs + mPolicy.maxAgeMs - nowMs());
+                }
+                mSelector.select(timeoutMs);
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        // Dropped while storing a batch for another peer.
+                        continue;
+                    }
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            if (key.isReadable()) {
+                                read(key);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                write(key);
+                            }
+                        }
+                    } catch (IOException e) {
+                        mErrors++;
+                        if (key.channel() != mServer) {
+                            disconnect(key);
+                        }
+                    }
+                }
+                if (!mBatch.isEmpty() && nowMs() - mBatchStartMs >= mPolicy.maxAgeMs) {
+                    flush();
+                }
+            }
+        } catch (IOException e) {
+            // The selector failed; nothing more can be served.
+            mErrors++;
+        } finally {
+            // Stored first, so that the acks it releases are sent if they can be.
+            if (!mBatch.isEmpty()) {
+                flush();
+            }
+            for (SelectionKey key : mSelector.keys()) {
+                disconnect(key);
+            }
+            try {
+                mServer.close();
+                mSelector.close();
+            } catch (IOException e) {
+                // Nothing left to do with them.
+            }
+            mConnections = 0;
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = mServer.accept()) != null) {
+            if (mConnections >= MAX_CONNECTIONS) {
+                mErrors++;
+                channel.close();
+                continue;
+            }
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                channel.socket().setKeepAlive(true);
+                SelectionKey key = channel.register(mSelector, SelectionKey.OP_READ);
+                key.attach(new Connection(key));
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            mConnections++;
+        }
+    }
+
+    private void disconnect(SelectionKey key) {
+        if (key.attachment() instanceof Connection && key.isValid()) {
+            mConnections--;
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // Gone anyway.
+        }
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        if (!connection.input.hasRemaining()) {
+            if (connection.input.capacity() >= mMaxInputBytes) {
+                throw new IOException("Hello too large");
+            }
+            ByteBuffer larger = ByteBuffer.allocate(
+                    Math.min(connection.input.capacity() * 2, mMaxInputBytes));
+            connection.input.flip();
+            larger.put(connection.input);
+            connection.input = larger;
+        }
+        if (((SocketChannel) key.channel()).read(connection.input) < 0) {
+            disconnect(key);
+            return;
+        }
+        ByteBuffer input = connection.input;
+        input.flip();
+        try {
+            while (connection.deviceId == null ? readHello(connection) : readMessage(connection)) {
+                // Consume every complete frame.
+            }
+        } finally {
+            input.compact();
+        }
+        // Dropped if a batch with its messages could not be stored.
+        if (key.isValid()) {
+            write(key);
+        }
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        ByteBuffer output = connection.output;
+        if (output.position() == 0) {
+            return;
+        }
+        output.flip();
+        ((SocketChannel) key.channel()).write(output);
+        output.compact();
+        key.interestOps(output.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                : SelectionKey.OP_READ);
+    }
+
+    // Reads the magic, device id, session and token sent on connect, if all there.
+    private boolean readHello(Connection connection) throws IOException {
+        ByteBuffer input = connection.input;
+        int start = input.position();
+        if (input.remaining() < 4) {
+            return false;
+        }
+        if (input.getInt(start) != StreamPublishTransport.MAGIC) {
+            throw new IOException("Not a station stream");
+        }
+        int deviceIdEnd = utfEnd(input, start + 4);
+        int sessionEnd = utfEnd(input, deviceIdEnd);
+        int tokenEnd = utfEnd(input, sessionEnd);
+        if (tokenEnd < 0) {
+            return false;
+        }
+        // Written with writeUTF, so read back with readUTF.
+        byte[] hello = new byte[tokenEnd - start - 4];
+        input.position(start + 4);
+        input.get(hello);
+        DataInputStream fields = new DataInputStream(new ByteArrayInputStream(hello));
+        String deviceId = fields.readUTF();
+        String session = fields.readUTF();
+        // Compared in constant time, so the token cannot be guessed a byte at a time.
+        if (!MessageDigest.isEqual(mToken, fields.readUTF().getBytes(StandardCharsets.UTF_8))) {
+            throw new IOException("Invalid token from " + deviceId);
+        }
+        int sessionBytes = session.getBytes(StandardCharsets.UTF_8).length;
+        if (sessionBytes == 0 || sessionBytes > MAX_SESSION_BYTES) {
+            throw new IOException("Invalid session from " + deviceId + ": " + session);
+        }
+        connection.deviceId = deviceId;
+        connection.session = session;
+        connection.seed = fingerprint(0, input, start + 6, deviceIdEnd - start - 6);
+        return true;
+    }
+
+    // Returns the end of the string written by writeUTF at position, or -1 if not all there.
+    private static int utfEnd(ByteBuffer input, int position) {
+        if (position < 0 || input.limit() - position < 2) {
+            return -1;
+        }
+        int end = position + 2 + (input.getShort(position) & 0xFFFF);
+        return end <= input.limit() ? end : -1;
+    }
+
+    // Reads the count of a request, or one of its messages, if all there and adds the message
+    // to the batch unless it is a repeat. Returns false once the input is consumed, or the
+    // connection dropped.
+    private boolean readMessage(Connection connection) throws IOException {
+        ByteBuffer input = connection.input;
+        int start = input.position();
+        if (connection.remaining == 0) {
+            if (input.remaining() < 4) {
+                return false;
+            }
+            int count = input.getInt(start);
+            if (count < 0) {
+                throw new IOException("Invalid message count: " + count);
+            }
+            if (connection.acking) {
+                throw new IOException("Request before the ack of the previous one");
+            }
+            input.position(start + 4);
+            connection.remaining = count;
+            connection.sequence = -1;
+            if (count == 0) {
+                endRequest(connection);
+            }
+            return true;
+        }
+        if (input.remaining() < MESSAGE_HEADER_BYTES) {
+            return false;
+        }
+        int length = input.getInt(start + 8);
+        if (length < 0 || length > mMaxMessageBytes) {
+            throw new IOException("Invalid message length: " + length);
+        }
+        if (input.remaining() < MESSAGE_HEADER_BYTES + length) {
+            return false;
+        }
+        if (!mBatch.isEmpty() && mBatchBytes + length > mPolicy.maxBytes) {
+            flush();
+            if (!connection.key.isValid()) {
+                return false;
+            }
+        }
+        connection.sequence = input.getLong(start);
+        int offset = start + MESSAGE_HEADER_BYTES;
+        long fingerprint = fingerprint(connection.seed, input, offset, length);
+        if (!mRecent.contains(fingerprint) && mBatchRecent.add(fingerprint)) {
+            byte[] payload = new byte[length];
+            input.position(offset);
+            input.get(payload);
+            add(connection, payload, fingerprint);
+            mMessages++;
+        } else {
+            input.position(offset + length);
+            mDuplicates++;
+        }
+        if (--connection.remaining == 0 && connection.key.isValid()) {
+            endRequest(connection);
+        }
+        return connection.key.isValid();
+    }
+
+    // Acks the request read if none of its messages can still be lost, else once the batch is
+    // stored: it holds either its messages or the ones they repeat.
+    private void endRequest(Connection connection) throws IOException {
+        mRequests++;
+        if (mBatch.isEmpty()) {
+            ack(connection);
+        } else {
+            connection.acking = true;
+            join(connection);
+        }
+    }
+
+    private void ack(Connection connection) throws IOException {
+        if (connection.output.remaining() < 8) {
+            throw new IOException("Peer not reading acks");
+        }
+        connection.output.putLong(connection.sequence);
+    }
+
+    private void join(Connection connection) {
+        if (!connection.inBatch) {
+            connection.inBatch = true;
+            mBatchConnections.add(connection);
+        }
+    }
+
+    private void add(Connection connection, byte[] payload, long fingerprint) {
+        if (mBatch.isEmpty()) {
+            mBatchStartMs = nowMs();
+        }
+        int i = mBatch.size();
+        mBatch.add(payload);
+        mBatchSequences[i] = connection.sequence;
+        mBatchSessions[i] = connection.session;
+        mBatchFingerprints[i] = fingerprint;
+        mBatchBytes += payload.length;
+        join(connection);
+        if (mBatch.size() >= mPolicy.maxSamples || mBatchBytes >= mPolicy.maxBytes) {
+            flush();
+        }
+    }
+
+    // Stores the batch, then sends the acks it held back, or drops its peers if it failed.
+    private void flush() {
+        List<byte[]> batch = mBatch;
+        int size = batch.size();
+        mBatch = new ArrayList<>(size);
+        mBatchBytes = 0;
+        mBatches++;
+        boolean stored = mUplink.store(batch, Arrays.copyOf(mBatchSequences, size),
+                Arrays.copyOf(mBatchSessions, size));
+        Arrays.fill(mBatchSessions, 0, size, null);
+        mBatchRecent.clear();
+        if (stored) {
+            for (int i = 0; i < size; i++) {
+                mRecent.add(mBatchFingerprints[i]);
+            }
+        }
+        List<Connection> connections = mBatchConnections;
+        mBatchConnections = new ArrayList<>();
+        for (Connection connection : connections) {
+            connection.inBatch = false;
+            if (!connection.key.isValid()) {
+                continue;
+            }
+            try {
+                if (!stored) {
+                    throw new IOException("Batch not stored");
+                }
+                if (connection.acking) {
+                    connection.acking = false;
+                    ack(connection);
+                    write(connection.key);
+                }
+            } catch (IOException e) {
+                mErrors++;
+                disconnect(connection.key);
+            }
+        }
+    }
+
+    private static long nowMs() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    // 64-bit hash of length bytes of buffer from offset, mixed with seed.
+    private static long fingerprint(long seed, ByteBuffer buffer, int offset, int length) {
+        long h = mix(seed ^ length);
+        int end = offset + length;
+        int i = offset;
+        for (; i + 8 <= end; i += 8) {
+            h = mix(h ^ buffer.getLong(i));
+        }
+        long tail = 0;
+        for (; i < end; i++) {
+            tail = tail << 8 | (buffer.get(i) & 0xFF);
+        }
+        return mix(h ^ tail);
+    }
+
+    // Finalizer of MurmurHash3: every input bit affects every output bit.
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static final class Connection {
+        final SelectionKey key;
+        // Received bytes not consumed yet, in write mode.
+        ByteBuffer input = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+        // Acks not sent yet, in write mode. A peer waits for each ack before its next request.
+        final ByteBuffer output = ByteBuffer.allocate(64);
+        // Null until the hello is read.
+        String deviceId;
+        String session;
+        long seed;
+        // Messages of the current request still to read, and the sequence number of the last
+        // one read.
+        int remaining;
+        long sequence;
+        // Set while the pending batch holds messages of this peer, or its ack.
+        boolean inBatch;
+        // Set while the ack of the request read waits for the batch to be stored.
+        boolean acking;
+
+        Connection(SelectionKey key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * The last fingerprints added, in a ring, indexed by an open-addressing hash set, so that
+     * neither adding nor evicting allocates.
+     */
+    private static final class RecentFingerprints {
+        private final long[] mRing;
+        private int mNext;
+        private int mSize;
+        // At most half full; 0 marks an empty slot.
+        private final long[] mTable;
+        private final int mMask;
+
+        RecentFingerprints(int capacity) {
+            mRing = new long[capacity];
+            mTable = new long[Integer.highestOneBit(capacity - 1) * 4];
+            mMask = mTable.length - 1;
+        }
+
+        boolean contains(long fingerprint) {
+            if (fingerprint == 0) {
+                fingerprint = 1;
+            }
+            for (int i = slot(fingerprint); mTable[i] != 0; i = (i + 1) & mMask) {
+                if (mTable[i] == fingerprint) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void clear() {
+            Arrays.fill(mTable, 0);
+            mNext = 0;
+            mSize = 0;
+        }
+
+        /**
+         * @return false if the fingerprint is already there.
+         */
+        boolean add(long fingerprint) {
+            if (fingerprint == 0) {
+                fingerprint = 1;
+            }
+            for (int i = slot(fingerprint); mTable[i] != 0; i = (i + 1) & mMask) {
+                if (mTable[i] == fingerprint) {
+                    return false;
+                }
+            }
+            if (mSize == mRing.length) {
+                remove(mRing[mNext]);
+            } else {
+                mSize++;
+            }
+            int i = slot(fingerprint);
+            while (mTable[i] != 0) {
+                i = (i + 1) & mMask;
+            }
+            mTable[i] = fingerprint;
+            mRing[mNext] = fingerprint;
+            mNext = (mNext + 1) % mRing.length;
+            return true;
+        }
+
+        // Removes a fingerprint in the table, moving back the ones probed past it.
+        private void remove(long fingerprint) {
+            int i = slot(fingerprint);
+            while (mTable[i] != fingerprint) {
+                i = (i + 1) & mMask;
+            }
+            for (int j = (i + 1) & mMask; mTable[j] != 0; j = (j + 1) & mMask) {
+                int home = slot(mTable[j]);
+                boolean between = i < j ? i < home && home <= j : i < home || home <= j;
+                if (!between) {
+                    mTable[i] = mTable[j];
+                    i = j;
+                }
+            }
+            mTable[i] = 0;
+        }
+
+        private int slot(long fingerprint) {
+            return (int) (fingerprint ^ (fingerprint >>> 32)) & mMask;
+        }
+    }
+}
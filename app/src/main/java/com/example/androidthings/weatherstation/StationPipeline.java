@@ -0,0 +1,252 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.util.Arrays;
+
+/**
+ * Processing applied to every sensor sample: record it in the history, filter its noise, update
+ * the weather forecast and refresh the segment display and the barometer LED bar. It receives
+ * samples as a consumer of the {@link SensorEventBus}.
+ *
+ * The history keeps the raw readings; the display, the LED bar and the forecast use the
+ * filtered ones. The display is only written when its value moves by more than the hysteresis
+ * band of its channel, and the LED bar when its number of lit pixels changes, so that the
+ * sensor's jitter does not turn into peripheral writes.
+ *
+ * It does not depend on the Android framework, so the same code drives the real peripherals on
+ * the device and simulated ones on a plain JVM. Samples must be delivered from a single thread.
+ */
+class StationPipeline implements SampleSink {
+
+    interface BarometerListener {
+        /**
+         * Called when the forecast changes, with one of the {@code Barometer.WEATHER_*}
+         * constants.
+         */
+        void onForecastChanged(int weather);
+    }
+
+    private final TimeSeriesStore mHistory;
+    private final int[] mRainbow;
+    private final int[] mBarFrame;
+    private final PressureTrend mPressureTrend = new PressureTrend();
+    private int mForecast = -1;
+
+    // Indexed by channel. Set before samples flow.
+    private final SampleFilter[] mFilters = new SampleFilter[Channel.COUNT];
+    private final float[] mDisplayBands = new float[Channel.COUNT];
+    // Latest filtered values, also read by setDisplayChannel() on other threads: a stale value
+    // is replaced by the next sample.
+    private final float[] mFiltered = new float[Channel.COUNT];
+
+    // What the display and the strip show, to skip writes that would not change it. Cleared
+    // to force the next write.
+    private volatile SegmentDisplay mShownDisplay;
+    private float mShownValue;
+    private LedStrip mShownStrip;
+    private int mShownPixels;
+    private volatile long mDisplayWritesAvoided;
+    private volatile long mLedWritesAvoided;
+
+    // Peripherals may be attached from other threads while samples are flowing.
+    private volatile SegmentDisplay mDisplay;
+    private volatile LedStrip mLedStrip;
+    private BarometerListener mBarometerListener;
+    private volatile int mDisplayChannel = Channel.TEMPERATURE;
+
+    // Time spent in each stage, including handing the values to the peripherals.
+    private final LatencyHistogram mDisplayDuration = new LatencyHistogram();
+    private final LatencyHistogram mBarometerDuration = new LatencyHistogram();
+
+    /**
+     * @param rainbow colors of the LED bar graph, one per LED.
+     */
+    StationPipeline(TimeSeriesStore history, int[] rainbow) {
+        mHistory = history;
+        mRainbow = rainbow;
+        mBarFrame = new int[rainbow.length];
+        Arrays.fill(mFiltered, Float.NaN);
+    }
+
+    /**
+     * Sets filters and display hysteresis suited to the BMP280, which jitters by a few
+     * hundredths of a degree and of a hectopascal: a median of 5 readings drops the outliers
+     * and a Kalman filter smooths the rest over a few seconds.
+     */
+    void setBmp280Filters() {
+        setFilter(Channel.TEMPERATURE, SampleFilter.chain(SampleFilter.median(5),
+                SampleFilter.kalman(1e-4f, 0.05f * 0.05f)));
+        setFilter(Channel.PRESSURE, SampleFilter.chain(SampleFilter.median(5),
+                SampleFilter.kalman(1e-5f, 0.1f * 0.1f)));
+        setDisplayHysteresis(Channel.TEMPERATURE, 0.05f);
+        setDisplayHysteresis(Channel.PRESSURE, 0.5f);
+    }
+
+    /**
+     * Sets the filter applied to the readings of {@code channel} before they are shown, or
+     * null for none. Must be called before samples flow.
+     */
+    void setFilter(int channel, SampleFilter filter) {
+        mFilters[channel] = filter;
+    }
+
+    /**
+     * Sets how much a filtered reading of {@code channel} must move from the value on the
+     * display to be shown, 0 by default. Must be called before samples flow.
+     */
+    void setDisplayHysteresis(int channel, float band) {
+        if (!(band >= 0)) {
+            throw new IllegalArgumentException("Invalid band: " + band);
+        }
+        mDisplayBands[channel] = band;
+    }
+
+    TimeSeriesStore getHistory() {
+        return mHistory;
+    }
+
+    void setDisplay(SegmentDisplay display) {
+        mDisplay = display;
+    }
+
+    /**
+     * Sets the strip showing the barometer bar graph. The frame passed to it is reused for the
+     * next sample, so the strip must consume it synchronously or copy it, like
+     * {@link LedRenderer} does.
+     */
+    void setLedStrip(LedStrip ledStrip) {
+        mLedStrip = ledStrip;
+    }
+
+    /**
+     * Returns the forecast computed from the pressure samples, which may be read from any
+     * thread.
+     */
+    PressureTrend getPressureTrend() {
+        return mPressureTrend;
+    }
+
+    void setBarometerListener(BarometerListener listener) {
+        mBarometerListener = listener;
+    }
+
+    LatencyHistogram getDisplayDuration() {
+        return mDisplayDuration;
+    }
+
+    LatencyHistogram getBarometerDuration() {
+        return mBarometerDuration;
+    }
+
+    /**
+     * Returns the number of samples of the displayed channel not written to the display,
+     * because they were within its hysteresis band.
+     */
+    long getDisplayWritesAvoided() {
+        return mDisplayWritesAvoided;
+    }
+
+    /**
+     * Returns the number of pressure samples not written to the LED strip, because the bar
+     * graph did not change.
+     */
+    long getLedWritesAvoided() {
+        return mLedWritesAvoided;
+    }
+
+    int getDisplayChannel() {
+        return mDisplayChannel;
+    }
+
+    /**
+     * Selects the channel shown on the display and shows its latest value. May be called from
+     * any thread.
+     */
+    void setDisplayChannel(int channel) {
+        mDisplayChannel = channel;
+        mShownDisplay = null;
+        updateDisplay(mFiltered[channel]);
+    }
+
+    @Override
+    public void onSample(int channel, long timestampMs, float value) {
+        mHistory.append(channel, timestampMs, value);
+        SampleFilter filter = mFilters[channel];
+        float filtered = filter != null ? filter.filter(timestampMs, value) : value;
+        mFiltered[channel] = filtered;
+        if (channel == mDisplayChannel) {
+            showOnDisplay(channel, filtered);
+        }
+        if (channel == Channel.PRESSURE) {
+            updateBarometer(timestampMs, filtered);
+        }
+    }
+
+    private void showOnDisplay(int channel, float value) {
+        SegmentDisplay display = mDisplay;
+        if (display == null) {
+            return;
+        }
+        if (display == mShownDisplay && Math.abs(value - mShownValue) < mDisplayBands[channel]) {
+            mDisplayWritesAvoided++;
+            return;
+        }
+        mShownDisplay = display;
+        mShownValue = value;
+        updateDisplay(value);
+    }
+
+    private void updateDisplay(float value) {
+        SegmentDisplay display = mDisplay;
+        if (display != null) {
+            long start = System.nanoTime();
+            display.display(value);
+            mDisplayDuration.record(System.nanoTime() - start);
+        }
+    }
+
+    private void updateBarometer(long timestampMs, float pressure) {
+        long start = System.nanoTime();
+        int forecast = mPressureTrend.add(timestampMs, pressure);
+        if (forecast != mForecast) {
+            mForecast = forecast;
+            if (mBarometerListener != null) {
+                mBarometerListener.onForecastChanged(forecast);
+            }
+        }
+        LedStrip ledStrip = mLedStrip;
+        if (ledStrip != null) {
+            // The bar shows where the pressure is heading.
+            float projected = Barometer.projected(pressure,
+                    mPressureTrend.getTendency(PressureTrend.HORIZON_3H));
+            if (ledStrip != mShownStrip) {
+                mShownStrip = ledStrip;
+                mShownPixels = -1;
+            }
+            int pixels = Barometer.litPixels(projected, mRainbow.length, mShownPixels);
+            if (pixels == mShownPixels) {
+                mLedWritesAvoided++;
+            } else {
+                mShownPixels = pixels;
+                Barometer.fillPixels(pixels, mRainbow, mBarFrame);
+                ledStrip.write(mBarFrame);
+            }
+        }
+        mBarometerDuration.record(System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+
+/**
+ * Streams publish requests as length-prefixed frames over one long-lived TCP connection, for a
+ * local gateway or broker, e.g. a {@link StationGateway}, without the per-request cost of HTTP,
+ * TLS and JSON.
+ *
+ * <pre>
+ * on connect   magic     4 bytes  "WSF1"
+ *              deviceId  UTF      (as written by DataOutputStream.writeUTF)
+ *              session   UTF
+ *              token     UTF      shared secret of the server, empty if it has none
+ * per request  count     int32    number of messages
+ *              then per message:
+ *                seq     int64
+ *                length  int32
+ *                payload length bytes
+ * reply        seq       int64    sequence number of the last message of the request
+ * </pre>
+ *
+ * A request is complete once its reply is read. Requests are serialized on the connection; a
+ * failed connection is dropped and reopened by the next request. Every message is sent in the
+ * session of the connection, so the transport cannot forward the messages of peer stations.
+ */
+class StreamPublishTransport implements PublishTransport {
+
+    static final int MAGIC = 0x57534631; // "WSF1"
+
+    private final String mHost;
+    private final int mPort;
+    private final String mDeviceId;
+    private final String mSession;
+    private final String mToken;
+    private final int mTimeoutMs;
+
+    // Guarded by this.
+    private Socket mSocket;
+    private DataOutputStream mOutput;
+    private DataInputStream mInput;
+    private boolean mClosed;
+
+    /**
+     * @param token     secret presented to the server on connect, e.g. the token of a
+     *                  {@link StationGateway}.
+     * @param timeoutMs bound on connecting and on waiting for a reply.
+     */
+    StreamPublishTransport(String host, int port, String deviceId, String session, String token,
+                           int timeoutMs) {
+        mHost = host;
+        mPort = port;
+        mDeviceId = deviceId;
+        mSession = session;
+        mToken = token;
+        mTimeoutMs = timeoutMs;
+    }
+
+    @Override
+    public synchronized void send(List<byte[]> payloads, long[] sequences, String[] sessions)
+            throws IOException {
+        if (sessions != null) {
+            for (String session : sessions) {
+                if (session != null) {
+                    throw new IllegalArgumentException("Cannot forward peer messages");
+                }
+            }
+        }
+        if (mClosed) {
+            throw new IOException("Transport closed");
+        }
+        if (payloads.isEmpty()) {
+            return;
+        }
+        try {
+            if (mSocket == null) {
+                connect();
+            }
+            mOutput.writeInt(payloads.size());
+            for (int i = 0; i < payloads.size(); i++) {
+                byte[] payload = payloads.get(i);
+                mOutput.writeLong(sequences[i]);
+                mOutput.writeInt(payload.length);
+                mOutput.write(payload);
+            }
+            mOutput.flush();
+            long last = sequences[payloads.size() - 1];
+            long ack = mInput.readLong();
+            if (ack != last) {
+                throw new IOException("Unexpected ack " + ack + ", expected " + last);
+            }
+        } catch (IOException e) {
+            disconnect();
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        mClosed = true;
+        disconnect();
+    }
+
+    private void connect() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(mHost, mPort), mTimeoutMs);
+            socket.setSoTimeout(mTimeoutMs);
+            mOutput = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            mInput = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            mOutput.writeInt(MAGIC);
+            mOutput.writeUTF(mDeviceId);
+            mOutput.writeUTF(mSession);
+            mOutput.writeUTF(mToken);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        mSocket = socket;
+    }
+
+    private void disconnect() {
+        if (mSocket == null) {
+            return;
+        }
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+            // Nothing left to do with it.
+        }
+        mSocket = null;
+        mOutput = null;
+        mInput = null;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+/**
+ * Fixed-capacity ring buffer holding the history of one channel as parallel {@code long[]}
+ * timestamps and {@code float[]} values.
+ *
+ * There must be a single writer, typically the sensor listener. Any number of threads may read
+ * concurrently without locking: the writer publishes each sample by bumping a volatile counter,
+ * and readers re-check that counter after copying to discard slots that were overwritten in the
+ * meantime. Timestamps are expected to be non-decreasing.
+ */
+final class TimeSeries {
+
+    private final long[] mTimestamps;
+    private final float[] mValues;
+    private final int mMask;
+
+    // Number of samples ever appended. Slot (count - 1) & mMask holds the latest sample.
+    private volatile long mCount;
+
+    /**
+     * @param capacity minimum number of samples kept. One slot is reserved for the writer and the
+     *                 arrays are sized to a power of two, so the actual capacity may be larger.
+     */
+    TimeSeries(int capacity) {
+        if (capacity <= 0 || capacity >= (1 << 30)) {
+            throw new IllegalArgumentException("capacity out of range: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity + 1);
+        if (size < capacity + 1) {
+            size <<= 1;
+        }
+        mTimestamps = new long[size];
+        mValues = new float[size];
+        mMask = size - 1;
+    }
+
+    int capacity() {
+        return mMask;
+    }
+
+    /**
+     * Returns the number of samples currently held, at most {@link #capacity()}.
+     */
+    int size() {
+        return (int) Math.min(mCount, mMask);
+    }
+
+    boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    /**
+     * Appends a sample, overwriting the oldest one once the buffer is full. Writer thread only.
+     */
+    void append(long timestampMs, float value) {
+        long count = mCount;
+        int slot = (int) (count & mMask);
+        mTimestamps[slot] = timestampMs;
+        mValues[slot] = value;
+        mCount = count + 1;
+    }
+
+    /**
+     * Returns the latest value, or {@link Float#NaN} if nothing was appended yet.
+     */
+    float lastValue() {
+        long count = mCount;
+        return count == 0 ? Float.NaN : mValues[(int) ((count - 1) & mMask)];
+    }
+
+    /**
+     * Returns the timestamp of the latest sample, or 0 if nothing was appended yet.
+     */
+    long lastTimestamp() {
+        long count = mCount;
+        return count == 0 ? 0 : mTimestamps[(int) ((count - 1) & mMask)];
+    }
+
+    /**
+     * Copies the latest {@code n} samples, oldest first, into the given arrays.
+     *
+     * @return the number of samples copied, bounded by {@code n}, the arrays length and the
+     * number of samples held.
+     */
+    int last(int n, long[] outTimestamps, float[] outValues) {
+        n = Math.min(n, Math.min(outTimestamps.length, outValues.length));
+        while (true) {
+            long end = mCount;
+            long start = Math.max(end - n, Math.max(0, end - mMask));
+            int copied = copy(start, end, outTimestamps, outValues);
+            if (copied >= 0) {
+                return copied;
+            }
+        }
+    }
+
+    /**
+     * Copies the samples whose timestamp is in {@code [fromMs, toMs)}, oldest first, into the
+     * given arrays. If more samples match than the arrays can hold, the oldest ones are returned.
+     *
+     * @return the number of samples copied.
+     */
+    int range(long fromMs, long toMs, long[] outTimestamps, float[] outValues) {
+        int max = Math.min(outTimestamps.length, outValues.length);
+        while (true) {
+            long end = mCount;
+            long oldest = Math.max(0, end - mMask);
+            long start = lowerBound(oldest, end, fromMs);
+            long stop = lowerBound(start, end, toMs);
+            int copied = copy(start, Math.min(stop, start + max), outTimestamps, outValues);
+            if (copied >= 0) {
+                return copied;
+            }
+        }
+    }
+
+    // Copies samples [start, end) and returns how many, or -1 if the writer overwrote some of
+    // them while we were copying.
+    private int copy(long start, long end, long[] outTimestamps, float[] outValues) {
+        int n = (int) (end - start);
+        for (int i = 0; i < n; i++) {
+            int slot = (int) ((start + i) & mMask);
+            outTimestamps[i] = mTimestamps[slot];
+            outValues[i] = mValues[slot];
+        }
+        // The writer may be filling slot mCount & mMask, which held sample mCount - mMask - 1.
+        return mCount - start <= mMask ? n : -1;
+    }
+
+    // Returns the index of the first sample in [start, end) with a timestamp >= timestampMs.
+    private long lowerBound(long start, long end, long timestampMs) {
+        while (start < end) {
+            long mid = (start + end) >>> 1;
+            if (mTimestamps[(int) (mid & mMask)] < timestampMs) {
+                start = mid + 1;
+            } else {
+                end = mid;
+            }
+        }
+        return start;
+    }
+}
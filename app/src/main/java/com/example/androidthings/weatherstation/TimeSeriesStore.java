@@ -0,0 +1,47 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+/**
+ * In-memory history of every {@link Channel}, shared by the display, the barometer UI and the
+ * publisher. Each channel has a single writer and lock-free readers, see {@link TimeSeries}.
+ */
+final class TimeSeriesStore {
+
+    private final TimeSeries[] mSeries = new TimeSeries[Channel.COUNT];
+
+    /**
+     * @param capacity number of samples kept per channel. Each sample takes 12 bytes.
+     */
+    TimeSeriesStore(int capacity) {
+        for (int i = 0; i < mSeries.length; i++) {
+            mSeries[i] = new TimeSeries(capacity);
+        }
+    }
+
+    TimeSeries get(int channel) {
+        return mSeries[channel];
+    }
+
+    void append(int channel, long timestampMs, float value) {
+        mSeries[channel].append(timestampMs, value);
+    }
+
+    float lastValue(int channel) {
+        return mSeries[channel].lastValue();
+    }
+}
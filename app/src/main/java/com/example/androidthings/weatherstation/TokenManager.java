@@ -0,0 +1,322 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.api.client.extensions.android.http.AndroidHttp;
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the OAuth access token of a service account valid, so publish requests never wait for
+ * a token round trip.
+ *
+ * The token is refreshed on a background thread a few minutes before it expires, and retried
+ * with backoff when that fails. The current token and its expiry are cached in the app's
+ * private storage, so that after a restart a token that is still valid is used right away. The
+ * service account key itself is never written out: it is parsed from the JSON resource. The
+ * credential still refreshes the token itself when a request finds it expired, e.g. after a
+ * long outage.
+ */
+class TokenManager implements HttpRequestInitializer {
+    private static final String TAG = TokenManager.class.getSimpleName();
+
+    // Tokens last one hour: refresh them well before a request could find them expired.
+    private static final long REFRESH_AHEAD_MS = TimeUnit.MINUTES.toMillis(5);
+    private static final long MIN_RETRY_MS = TimeUnit.SECONDS.toMillis(15);
+    private static final long MAX_RETRY_MS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final String TOKEN_CACHE = "token.cache";
+    private static final int CACHE_VERSION = 1;
+
+    private final Context mContext;
+    private final int mCredentialResourceId;
+    private final Collection<String> mScopes;
+    private final HttpTransport mHttpTransport = AndroidHttp.newCompatibleTransport();
+    private final JsonFactory mJsonFactory = JacksonFactory.getDefaultInstance();
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    // Guarded by this.
+    private GoogleCredential mCredential;
+
+    // Only written by the token thread.
+    private long mRetryMs = MIN_RETRY_MS;
+    private volatile long mRefreshNanos;
+    private final LatencyHistogram mRefreshLatency = new LatencyHistogram();
+    private final AtomicLong mRefreshFailures = new AtomicLong();
+
+    /**
+     * @param credentialResourceId raw resource holding the service account JSON key.
+     */
+    TokenManager(Context context, int credentialResourceId, Collection<String> scopes) {
+        mContext = context;
+        mCredentialResourceId = credentialResourceId;
+        mScopes = scopes;
+    }
+
+    /**
+     * Starts loading the credential and keeping its token fresh in the background.
+     */
+    void start() {
+        mThread = new HandlerThread("tokenManagerThread");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                GoogleCredential credential;
+                try {
+                    credential = getCredential();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error loading credentials", e);
+                    scheduleRetry();
+                    return;
+                }
+                scheduleRefresh(credential);
+            }
+        });
+    }
+
+    void close() {
+        mHandler.removeCallbacksAndMessages(null);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mHttpTransport.shutdown();
+                } catch (IOException e) {
+                    Log.d(TAG, "error closing transport");
+                }
+            }
+        });
+        mThread.quitSafely();
+    }
+
+    /**
+     * Authorizes {@code request} with the current token.
+     */
+    @Override
+    public void initialize(HttpRequest request) throws IOException {
+        getCredential().initialize(request);
+    }
+
+    /**
+     * Returns the credential to authorize requests with, loading it on the first call, with
+     * the cached token if it is still valid.
+     */
+    synchronized GoogleCredential getCredential() throws IOException {
+        if (mCredential == null) {
+            long start = SystemClock.elapsedRealtime();
+            GoogleCredential credential = parseCredential();
+            File cache = new File(mContext.getFilesDir(), TOKEN_CACHE);
+            try {
+                readCachedToken(cache, credential, System.currentTimeMillis());
+            } catch (IOException e) {
+                Log.w(TAG, "Ignoring unreadable token cache", e);
+            }
+            mCredential = credential;
+            Log.d(TAG, "parsed credentials in " + (SystemClock.elapsedRealtime() - start)
+                    + "ms");
+        }
+        return mCredential;
+    }
+
+    /**
+     * Returns how long successful refreshes took.
+     */
+    LatencyHistogram getRefreshLatency() {
+        return mRefreshLatency;
+    }
+
+    /**
+     * Returns the total time spent refreshing tokens, failed attempts included.
+     */
+    long getRefreshMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mRefreshNanos);
+    }
+
+    long getRefreshFailureCount() {
+        return mRefreshFailures.get();
+    }
+
+    private final Runnable mRefreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            GoogleCredential credential;
+            try {
+                credential = getCredential();
+            } catch (IOException e) {
+                Log.e(TAG, "Error loading credentials", e);
+                scheduleRetry();
+                return;
+            }
+            long start = System.nanoTime();
+            boolean refreshed;
+            try {
+                refreshed = credential.refreshToken();
+            } catch (IOException e) {
+                Log.w(TAG, "Error refreshing token", e);
+                refreshed = false;
+            }
+            long elapsed = System.nanoTime() - start;
+            mRefreshNanos += elapsed;
+            if (!refreshed) {
+                mRefreshFailures.incrementAndGet();
+                scheduleRetry();
+                return;
+            }
+            mRefreshLatency.record(elapsed);
+            mRetryMs = MIN_RETRY_MS;
+            try {
+                writeCachedToken(new File(mContext.getFilesDir(), TOKEN_CACHE), credential);
+            } catch (IOException e) {
+                Log.w(TAG, "Error caching token", e);
+            }
+            scheduleRefresh(credential);
+        }
+    };
+
+    private void scheduleRefresh(GoogleCredential credential) {
+        mHandler.postDelayed(mRefreshRunnable,
+                getRefreshDelay(credential, System.currentTimeMillis()));
+    }
+
+    /**
+     * Returns how long to wait before refreshing the token of {@code credential}: until a few
+     * minutes before it expires, or not at all without a token.
+     */
+    static long getRefreshDelay(GoogleCredential credential, long nowMillis) {
+        Long expiration = credential.getExpirationTimeMilliseconds();
+        if (expiration == null || credential.getAccessToken() == null) {
+            return 0;
+        }
+        return Math.max(0, expiration - REFRESH_AHEAD_MS - nowMillis);
+    }
+
+    private void scheduleRetry() {
+        mHandler.postDelayed(mRefreshRunnable, mRetryMs);
+        mRetryMs = Math.min(mRetryMs * 2, MAX_RETRY_MS);
+    }
+
+    private GoogleCredential parseCredential() throws IOException {
+        GoogleCredential credential;
+        InputStream jsonCredentials = mContext.getResources()
+                .openRawResource(mCredentialResourceId);
+        try {
+            credential = GoogleCredential.fromStream(jsonCredentials, mHttpTransport,
+                    mJsonFactory).createScoped(mScopes);
+        } finally {
+            try {
+                jsonCredentials.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing input stream", e);
+            }
+        }
+        return credential;
+    }
+
+    /**
+     * Sets the token saved in {@code cache} by a previous run on the credential, if it is still
+     * valid for long enough to be worth using.
+     *
+     * @return whether the cached token was used.
+     */
+    static boolean readCachedToken(File cache, GoogleCredential credential, long nowMillis)
+            throws IOException {
+        DataInputStream input;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(cache)));
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+        try {
+            if (input.readInt() != CACHE_VERSION
+                    || !input.readUTF().equals(String.valueOf(credential.getServiceAccountId()))) {
+                return false;
+            }
+            String accessToken = input.readUTF();
+            long expiration = input.readLong();
+            if (expiration - nowMillis <= REFRESH_AHEAD_MS) {
+                return false;
+            }
+            credential.setAccessToken(accessToken);
+            credential.setExpirationTimeMilliseconds(expiration);
+            return true;
+        } finally {
+            closeQuietly(input);
+        }
+    }
+
+    /**
+     * Saves the token of the credential to {@code cache}, through a temporary file renamed over
+     * it so a crash never leaves a partial cache behind.
+     */
+    static void writeCachedToken(File cache, GoogleCredential credential) throws IOException {
+        String accessToken = credential.getAccessToken();
+        Long expiration = credential.getExpirationTimeMilliseconds();
+        if (accessToken == null || expiration == null) {
+            return;
+        }
+        File temporary = new File(cache.getPath() + ".tmp");
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temporary)));
+        try {
+            output.writeInt(CACHE_VERSION);
+            output.writeUTF(String.valueOf(credential.getServiceAccountId()));
+            output.writeUTF(accessToken);
+            output.writeLong(expiration);
+        } finally {
+            output.close();
+        }
+        if (!temporary.renameTo(cache)) {
+            throw new IOException("Error renaming " + temporary);
+        }
+    }
+
+    private static void closeQuietly(InputStream input) {
+        try {
+            input.close();
+        } catch (IOException e) {
+            // Nothing left to do with it.
+        }
+    }
+}
@@ -27,7 +27,9 @@ import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.KeyEvent;
 import android.view.animation.LinearInterpolator;
@@ -42,43 +44,142 @@ import com.google.android.things.contrib.driver.pwmspeaker.Speaker;
 import com.google.android.things.pio.Gpio;
 import com.google.android.things.pio.PeripheralManager;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 public class WeatherStationActivity extends Activity {
 
     private static final String TAG = WeatherStationActivity.class.getSimpleName();
 
-    private enum DisplayMode {
-        TEMPERATURE,
-        PRESSURE
-    }
-
     private SensorManager mSensorManager;
 
+    // Same resolution as SENSOR_DELAY_NORMAL, but sensors with a FIFO may hold their events for
+    // a few seconds and deliver them in one burst: weather changes slowly, and the station
+    // wakes up far less often.
+    private static final SamplingPolicy SAMPLING_POLICY = new SamplingPolicy()
+            .setRate(Sensor.TYPE_AMBIENT_TEMPERATURE, (int) TimeUnit.MILLISECONDS.toMicros(200),
+                    (int) TimeUnit.SECONDS.toMicros(5))
+            .setRate(Sensor.TYPE_PRESSURE, (int) TimeUnit.MILLISECONDS.toMicros(200),
+                    (int) TimeUnit.SECONDS.toMicros(5));
+
     private ButtonInputDriver mButtonInputDriver;
     private Bmx280SensorDriver mEnvironmentalSensorDriver;
     private AlphanumericDisplay mDisplay;
-    private DisplayMode mDisplayMode = DisplayMode.TEMPERATURE;
+    private CoalescingDisplay mCoalescingDisplay;
+    private BusScheduler mI2cBus;
 
     private Apa102 mLedstrip;
+    private LedRenderer mLedRenderer;
     private int[] mRainbow = new int[7];
     private static final int LEDSTRIP_BRIGHTNESS = 1;
-    private static final float BAROMETER_RANGE_LOW = 965.f;
-    private static final float BAROMETER_RANGE_HIGH = 1035.f;
-    private static final float BAROMETER_RANGE_SUNNY = 1010.f;
-    private static final float BAROMETER_RANGE_RAINY = 990.f;
+    private static final int LEDSTRIP_MAX_FPS = 30;
 
-    private Gpio mLed;
+    // Read on the main thread, opened on a startup thread.
+    private volatile Gpio mLed;
 
     private int SPEAKER_READY_DELAY_MS = 300;
     private Speaker mSpeaker;
 
-    private float mLastTemperature;
-    private float mLastPressure;
+    // About a day of history per channel at the default sensor rate, in 6MB each.
+    private static final int HISTORY_CAPACITY = (1 << 19) - 1;
+    private final TimeSeriesStore mHistory = new TimeSeriesStore(HISTORY_CAPACITY);
+    private StationPipeline mPipeline;
+
+    // Each sensor is registered once; its samples are fanned out to the pipeline, the publisher
+    // and any other consumer by the event bus.
+    private final SensorEventBus mEventBus = new SensorEventBus();
+    private static final int PIPELINE_QUEUE_CAPACITY = 64;
+
+    // Sensor events are delivered and processed on their own thread, so that layout, animations
+    // or the speaker on the main thread cannot delay them. Only UI updates go to the main thread.
+    private HandlerThread mSensorThread;
+    private Handler mSensorHandler;
+
+    // Time from a sensor event to its reading being written to the display. Only the writes
+    // that happen are recorded: readings filtered out or coalesced on the I2C bus are not.
+    private final LatencyHistogram mDisplayLatency = new LatencyHistogram();
+    // Timestamp of the sensor event being processed, 0 for replayed samples. Sensor thread only.
+    private long mSensorEventNanos;
+    // Timestamp of the sensor event whose reading is queued for the display, 0 if none.
+    private volatile long mDisplayEventNanos;
+    private static final long LATENCY_LOG_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+
+    // Runs the pipeline inline, on the sensor thread.
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    // Logs sensor and publisher events off their threads, to a binary file decoded with
+    // EventLogFile.decode(), and to logcat in debug builds.
+    private EventLog mEventLog;
+    private static final int EVENT_LOG_CAPACITY = 4096;
+    private static final long EVENT_LOG_MAX_BYTES = 4 * 1024 * 1024;
+    // The readings themselves are in the history: every tenth is enough to follow the sensors.
+    private static final EventLog.Event EVENT_SENSOR_CHANGED = EventLog.define(
+            "sensor_changed", EventLog.DEBUG, "%s=%.2f", "cd").setSampling(10);
+    private static final EventLog.Event EVENT_ACCURACY_CHANGED = EventLog.define(
+            "accuracy_changed", EventLog.DEBUG, "%s accuracy=%d", "cl");
 
     private PubsubPublisher mPubsubPublisher;
+
+    // Counters and latency histograms of the hot paths, scraped by Prometheus from
+    // http://<device>:8080/metrics.
+    private final Metrics mMetrics = new Metrics();
+    private static final int HTTP_PORT = 8080;
+    private EmbeddedHttpServer mHttpServer;
+
+    // Weeks of samples on disk, queried over HTTP at /history/..., see HistoryQueries. Written
+    // on its own thread.
+    private HistoryArchive mArchive;
+    private HandlerThread mArchiveThread;
+    private SensorEventBus.Subscription mArchiveSubscription;
+    private static final long ARCHIVE_PARTITION_MS = TimeUnit.HOURS.toMillis(1);
+    private static final long ARCHIVE_RETENTION_MS = TimeUnit.DAYS.toMillis(28);
+    private static final int ARCHIVE_QUEUE_CAPACITY = 4096;
+
+    // Raw sensor samples recorded to capture.bin, about a week per file, to be replayed on the
+    // device or with the simulator. Written on its own thread.
+    private SensorCapture.Recorder mCaptureRecorder;
+    private HandlerThread mCaptureThread;
+    private SensorEventBus.Subscription mCaptureSubscription;
+    private static final long CAPTURE_MAX_BYTES = 32 * 1024 * 1024;
+    private static final int CAPTURE_QUEUE_CAPACITY = 4096;
+
+    // Set to the path of a capture to replay it instead of reading the sensor, e.g.
+    // adb shell am start -n <package>/.WeatherStationActivity --es replay <path> --ef replaySpeed 60
+    // A speed of 0, the default, replays the capture as fast as possible.
+    private static final String EXTRA_REPLAY = "replay";
+    private static final String EXTRA_REPLAY_SPEED = "replaySpeed";
+    private boolean mReplaying;
+    // Indexed by channel; only the sensor channels are set.
+    private final Metrics.Counter[] mSensorEvents = new Metrics.Counter[Channel.COUNT];
+    private final LatencyHistogram[] mSensorEventDuration = new LatencyHistogram[Channel.COUNT];
+
+    private StartupOrchestrator mStartup;
+    private static final long STARTUP_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
+    private final Executor mMainExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mHandler.post(command);
+        }
+    };
     private ImageView mImageView;
 
+    // Publish in batches of at most 500 samples, 256KB or one minute. With PUBLISH_AGGREGATES,
+    // the statistics of every minute of samples are published rather than the samples themselves.
+    private static final long AGGREGATION_WINDOW_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final PublishBatcher.Policy PUBLISH_BATCH_POLICY = new PublishBatcher.Policy(
+            500, 256 * 1024, TimeUnit.MINUTES.toMillis(1));
+    // With REPORT_BY_EXCEPTION, publish a snapshot when the temperature moves by more than
+    // 0.1C or the pressure by more than 0.5hPa, and at least every 15 minutes.
+    private static final long REPORT_HEARTBEAT_MS = TimeUnit.MINUTES.toMillis(15);
+
     private static final int MSG_UPDATE_BAROMETER_UI = 1;
     private final Handler mHandler = new Handler() {
         private int mBarometerImage = -1;
@@ -88,12 +189,16 @@ public class WeatherStationActivity extends Activity {
             switch (msg.what) {
                 case MSG_UPDATE_BAROMETER_UI:
                     int img;
-                    if (mLastPressure > BAROMETER_RANGE_SUNNY) {
-                        img = R.drawable.ic_sunny;
-                    } else if (mLastPressure < BAROMETER_RANGE_RAINY) {
-                        img = R.drawable.ic_rainy;
-                    } else {
-                        img = R.drawable.ic_cloudy;
+                    switch (msg.arg1) {
+                        case Barometer.WEATHER_SUNNY:
+                            img = R.drawable.ic_sunny;
+                            break;
+                        case Barometer.WEATHER_RAINY:
+                            img = R.drawable.ic_rainy;
+                            break;
+                        default:
+                            img = R.drawable.ic_cloudy;
+                            break;
                     }
                     if (img != mBarometerImage) {
                         mImageView.setImageResource(img);
@@ -111,20 +216,12 @@ public class WeatherStationActivity extends Activity {
         public void onDynamicSensorConnected(Sensor sensor) {
             if (sensor.getType() == Sensor.TYPE_AMBIENT_TEMPERATURE) {
                 // Our sensor is connected. Start receiving temperature data.
-                mSensorManager.registerListener(mTemperatureListener, sensor,
-                        SensorManager.SENSOR_DELAY_NORMAL);
-                if (mPubsubPublisher != null) {
-                    mSensorManager.registerListener(mPubsubPublisher.getTemperatureListener(), sensor,
-                            SensorManager.SENSOR_DELAY_NORMAL);
-                }
+                SAMPLING_POLICY.registerListener(mSensorManager, mTemperatureListener, sensor,
+                        mSensorHandler);
             } else if (sensor.getType() == Sensor.TYPE_PRESSURE) {
                 // Our sensor is connected. Start receiving pressure data.
-                mSensorManager.registerListener(mPressureListener, sensor,
-                        SensorManager.SENSOR_DELAY_NORMAL);
-                if (mPubsubPublisher != null) {
-                    mSensorManager.registerListener(mPubsubPublisher.getPressureListener(), sensor,
-                            SensorManager.SENSOR_DELAY_NORMAL);
-                }
+                SAMPLING_POLICY.registerListener(mSensorManager, mPressureListener, sensor,
+                        mSensorHandler);
             }
         }
 
@@ -138,16 +235,19 @@ public class WeatherStationActivity extends Activity {
     private SensorEventListener mTemperatureListener = new SensorEventListener() {
         @Override
         public void onSensorChanged(SensorEvent event) {
-            mLastTemperature = event.values[0];
-            Log.d(TAG, "sensor changed: " + mLastTemperature);
-            if (mDisplayMode == DisplayMode.TEMPERATURE) {
-                updateDisplay(mLastTemperature);
-            }
+            long start = System.nanoTime();
+            // Events of a batched burst are all delivered at once: the display, LED and UI
+            // updates they trigger are coalesced downstream.
+            mSensorEventNanos = event.timestamp;
+            onSensorSample(Channel.TEMPERATURE, SamplingPolicy.getEventTimeMillis(event),
+                    event.values[0]);
+            mSensorEventNanos = 0;
+            recordSensorEvent(Channel.TEMPERATURE, start);
         }
 
         @Override
         public void onAccuracyChanged(Sensor sensor, int accuracy) {
-            Log.d(TAG, "accuracy changed: " + accuracy);
+            mEventLog.log(EVENT_ACCURACY_CHANGED, Channel.TEMPERATURE, accuracy);
         }
     };
 
@@ -155,17 +255,46 @@ public class WeatherStationActivity extends Activity {
     private SensorEventListener mPressureListener = new SensorEventListener() {
         @Override
         public void onSensorChanged(SensorEvent event) {
-            mLastPressure = event.values[0];
-            Log.d(TAG, "sensor changed: " + mLastPressure);
-            if (mDisplayMode == DisplayMode.PRESSURE) {
-                updateDisplay(mLastPressure);
-            }
-            updateBarometer(mLastPressure);
+            long start = System.nanoTime();
+            mSensorEventNanos = event.timestamp;
+            onSensorSample(Channel.PRESSURE, SamplingPolicy.getEventTimeMillis(event),
+                    event.values[0]);
+            mSensorEventNanos = 0;
+            recordSensorEvent(Channel.PRESSURE, start);
         }
 
         @Override
         public void onAccuracyChanged(Sensor sensor, int accuracy) {
-            Log.d(TAG, "accuracy changed: " + accuracy);
+            mEventLog.log(EVENT_ACCURACY_CHANGED, Channel.PRESSURE, accuracy);
+        }
+    };
+
+    // Hands a sensor reading, or a replayed one, to the consumers of the event bus. Called on
+    // the sensor thread.
+    private void onSensorSample(int channel, long timestampMs, float value) {
+        mEventLog.log(EVENT_SENSOR_CHANGED, channel, value);
+        mEventBus.publish(channel, timestampMs, value);
+        onSample();
+    }
+
+    // Counts the event and the time onSensorChanged() took, pipeline included.
+    private void recordSensorEvent(int channel, long startNanos) {
+        mSensorEventDuration[channel].record(System.nanoTime() - startNanos);
+        mSensorEvents[channel].increment();
+    }
+
+    private void onSample() {
+        if (mStartup.onSample()) {
+            Log.i(TAG, "First sample " + mStartup.getTimeToFirstSampleMillis()
+                    + "ms after startup, " + SystemClock.elapsedRealtime() + "ms after boot");
+        }
+    }
+
+    private final Runnable mLogLatencyRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Log.i(TAG, "event-to-display latency: " + mDisplayLatency);
+            mSensorHandler.postDelayed(mLogLatencyRunnable, LATENCY_LOG_INTERVAL_MS);
         }
     };
 
@@ -177,17 +306,97 @@ public class WeatherStationActivity extends Activity {
         setContentView(R.layout.activity_main);
         mImageView = (ImageView) findViewById(R.id.imageView);
 
-        mSensorManager = ((SensorManager) getSystemService(SENSOR_SERVICE));
-
-        // GPIO button that generates 'A' keypresses (handled by onKeyUp method)
+        mEventLog = new EventLog(EVENT_LOG_CAPACITY);
         try {
-            mButtonInputDriver = new ButtonInputDriver(BoardDefaults.getButtonGpioPin(),
-                    Button.LogicState.PRESSED_WHEN_LOW, KeyEvent.KEYCODE_A);
-            mButtonInputDriver.register();
-            Log.d(TAG, "Initialized GPIO Button that generates a keypress with KEYCODE_A");
+            mEventLog.addSink(new EventLogFile(new File(getFilesDir(), "events.log"),
+                    EVENT_LOG_MAX_BYTES));
         } catch (IOException e) {
-            throw new RuntimeException("Error initializing GPIO button", e);
+            Log.e(TAG, "Error opening event log", e);
+        }
+        if (BuildConfig.DEBUG) {
+            mEventLog.addSink(new LogcatEventSink());
+        }
+        mEventLog.start();
+        registerMetrics();
+
+        mSensorManager = ((SensorManager) getSystemService(SENSOR_SERVICE));
+        mSensorThread = new HandlerThread("sensorThread");
+        mSensorThread.start();
+        mSensorHandler = new Handler(mSensorThread.getLooper());
+        mSensorHandler.postDelayed(mLogLatencyRunnable, LATENCY_LOG_INTERVAL_MS);
+        for (int i = 0; i < mRainbow.length; i++) {
+            float[] hsv = {i * 360.f / mRainbow.length, 1.0f, 1.0f};
+            mRainbow[i] = Color.HSVToColor(255, hsv);
+        }
+        mPipeline = new StationPipeline(mHistory, mRainbow);
+        mPipeline.setBmp280Filters();
+        mPipeline.setBarometerListener(new StationPipeline.BarometerListener() {
+            @Override
+            public void onForecastChanged(int weather) {
+                // Called on the sensor thread: only the icon update goes to the main thread.
+                mHandler.obtainMessage(MSG_UPDATE_BAROMETER_UI, weather, 0).sendToTarget();
+            }
+        });
+        mEventBus.subscribe("pipeline", SensorEventBus.DROP_OLDEST, PIPELINE_QUEUE_CAPACITY,
+                mPipeline, DIRECT_EXECUTOR).registerMetrics(mMetrics);
+        LatencyHistogram[] stageDurations = {
+                mPipeline.getDisplayDuration(), mPipeline.getBarometerDuration()};
+        for (int i = 0; i < PIPELINE_STAGES.length; i++) {
+            mMetrics.addHistogram(STAGE_DURATION, STAGE_DURATION_HELP, stageDurations[i],
+                    "stage", PIPELINE_STAGES[i]);
+        }
+        final PressureTrend trend = mPipeline.getPressureTrend();
+        Metrics.Value[] writesAvoided = {
+                new Metrics.Value() {
+                    @Override
+                    public double get() {
+                        return mPipeline.getDisplayWritesAvoided();
+                    }
+                },
+                new Metrics.Value() {
+                    @Override
+                    public double get() {
+                        return mPipeline.getLedWritesAvoided();
+                    }
+                },
+                new Metrics.Value() {
+                    @Override
+                    public double get() {
+                        return trend.getSuppressedChangeCount();
+                    }
+                }};
+        for (int i = 0; i < FILTERED_DEVICES.length; i++) {
+            mMetrics.addCounter(WRITES_AVOIDED, WRITES_AVOIDED_HELP, writesAvoided[i],
+                    "device", FILTERED_DEVICES[i]);
         }
+        for (int i = 0; i < TENDENCY_HORIZONS.length; i++) {
+            final int horizon = TENDENCY_HORIZONS[i];
+            mMetrics.addGauge(TENDENCY, TENDENCY_HELP, new Metrics.Value() {
+                @Override
+                public double get() {
+                    return trend.getTendency(horizon);
+                }
+            }, "horizon", TENDENCY_HORIZON_NAMES[i]);
+        }
+
+        // Independent peripherals are opened concurrently; the ones the station can sense
+        // without are only opened once the sensors are up.
+        mStartup = new StartupOrchestrator(mStartupListener);
+
+        // GPIO button that generates 'A' keypresses (handled by onKeyUp method)
+        // The button driver registers its GPIO callback on the calling thread's looper.
+        mStartup.add("button", StartupOrchestrator.PHASE_SENSING, true, mMainExecutor,
+                new StartupOrchestrator.Step() {
+                    @Override
+                    public void run() throws IOException {
+                        mButtonInputDriver = new ButtonInputDriver(
+                                BoardDefaults.getButtonGpioPin(),
+                                Button.LogicState.PRESSED_WHEN_LOW, KeyEvent.KEYCODE_A);
+                        mButtonInputDriver.register();
+                        Log.d(TAG, "Initialized GPIO Button that generates a keypress with "
+                                + "KEYCODE_A");
+                    }
+                });
 
         // I2C
         // Note: In this sample we only use one I2C bus, but multiple peripherals can be connected
@@ -196,53 +405,368 @@ public class WeatherStationActivity extends Activity {
         // the pins a certain way; this may be necessary if the default address conflicts with
         // another peripheral's. In our case, the temperature sensor and the display have
         // different default addresses, so everything just works.
-        try {
-            mEnvironmentalSensorDriver = new Bmx280SensorDriver(BoardDefaults.getI2cBus());
+        // Display writes go through a scheduler owning the bus, so they never block the main
+        // thread and a burst of readings only refreshes the display once. The BMP280 is read by
+        // its sensor driver directly.
+        mI2cBus = new BusScheduler(BoardDefaults.getI2cBus());
+        mI2cBus.start();
+        mMetrics.addCounter("weatherstation_i2c_busy_seconds_total",
+                "Time the I2C bus spent on display writes.", new Metrics.Value() {
+                    @Override
+                    public double get() {
+                        return mI2cBus.getBusyNanos() / 1e9;
+                    }
+                });
+        final String replay = getIntent().getStringExtra(EXTRA_REPLAY);
+        if (replay != null) {
+            // The capture takes the place of the sensor, on the same thread.
+            mReplaying = true;
+            float speed = getIntent().getFloatExtra(EXTRA_REPLAY_SPEED, 0);
+            final SensorReplayer replayer = new SensorReplayer(
+                    speed > 0 ? speed : SensorReplayer.MAX_SPEED);
+            mSensorHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    long start = SystemClock.elapsedRealtime();
+                    try {
+                        replayer.replay(new File(replay), new SampleSink() {
+                            @Override
+                            public void onSample(int channel, long timestampMs, float value) {
+                                onSensorSample(channel, timestampMs, value);
+                            }
+                        });
+                    } catch (IOException e) {
+                        Log.e(TAG, "Error replaying " + replay, e);
+                    }
+                    Log.i(TAG, "Replayed " + replayer.getReplayedCount() + " samples covering "
+                            + replayer.getReplayedMillis() + "ms in "
+                            + (SystemClock.elapsedRealtime() - start) + "ms");
+                }
+            });
+        } else {
             mSensorManager.registerDynamicSensorCallback(mDynamicSensorCallback);
-            mEnvironmentalSensorDriver.registerTemperatureSensor();
-            mEnvironmentalSensorDriver.registerPressureSensor();
-            Log.d(TAG, "Initialized I2C BMP280");
-        } catch (IOException e) {
-            throw new RuntimeException("Error initializing BMP280", e);
         }
+        mStartup.add("bmp280", StartupOrchestrator.PHASE_SENSING, true,
+                new StartupOrchestrator.Step() {
+                    @Override
+                    public void run() throws IOException {
+                        mEnvironmentalSensorDriver = new Bmx280SensorDriver(
+                                BoardDefaults.getI2cBus());
+                        mEnvironmentalSensorDriver.registerTemperatureSensor();
+                        mEnvironmentalSensorDriver.registerPressureSensor();
+                        Log.d(TAG, "Initialized I2C BMP280");
+                    }
+                });
+
+        mStartup.add("display", StartupOrchestrator.PHASE_SENSING, false,
+                new StartupOrchestrator.Step() {
+                    @Override
+                    public void run() throws IOException {
+                        final AlphanumericDisplay display =
+                                new AlphanumericDisplay(BoardDefaults.getI2cBus());
+                        display.setEnabled(true);
+                        display.clear();
+                        mDisplay = display;
+                        final LatencyHistogram writes = mMetrics.histogram(PERIPHERAL_WRITES,
+                                PERIPHERAL_WRITES_HELP, "device", "display");
+                        final Metrics.Counter errors = mMetrics.counter(PERIPHERAL_ERRORS,
+                                PERIPHERAL_ERRORS_HELP, "device", "display");
+                        final CoalescingDisplay coalescing = new CoalescingDisplay(
+                                new SegmentDisplay() {
+                                    @Override
+                                    public void display(float value) {
+                                        long eventNanos = mDisplayEventNanos;
+                                        long start = System.nanoTime();
+                                        try {
+                                            display.display(value);
+                                        } catch (IOException e) {
+                                            errors.increment();
+                                            Log.e(TAG, "Error setting display", e);
+                                        }
+                                        writes.record(System.nanoTime() - start);
+                                        if (eventNanos != 0) {
+                                            mDisplayLatency.record(
+                                                    SystemClock.elapsedRealtimeNanos()
+                                                            - eventNanos);
+                                        }
+                                    }
+                                }, mI2cBus);
+                        mCoalescingDisplay = coalescing;
+                        mPipeline.setDisplay(new SegmentDisplay() {
+                            @Override
+                            public void display(float value) {
+                                // A change of display channel on another thread shows a
+                                // reading that no sensor event is waiting for.
+                                mDisplayEventNanos = Thread.currentThread() == mSensorThread
+                                        ? mSensorEventNanos : 0;
+                                coalescing.display(value);
+                            }
+                        });
+                        Log.d(TAG, "Initialized I2C Display");
+                    }
+                });
 
-        try {
-            mDisplay = new AlphanumericDisplay(BoardDefaults.getI2cBus());
-            mDisplay.setEnabled(true);
-            mDisplay.clear();
-            Log.d(TAG, "Initialized I2C Display");
-        } catch (IOException e) {
-            Log.e(TAG, "Error initializing display", e);
-            Log.d(TAG, "Display disabled");
-            mDisplay = null;
-        }
+        // GPIO led
+        mStartup.add("led", StartupOrchestrator.PHASE_SENSING, true,
+                new StartupOrchestrator.Step() {
+                    @Override
+                    public void run() throws IOException {
+                        PeripheralManager pioManager = PeripheralManager.getInstance();
+                        Gpio led = pioManager.openGpio(BoardDefaults.getLedGpioPin());
+                        led.setEdgeTriggerType(Gpio.EDGE_NONE);
+                        led.setDirection(Gpio.DIRECTION_OUT_INITIALLY_LOW);
+                        led.setActiveType(Gpio.ACTIVE_HIGH);
+                        mLed = led;
+                    }
+                });
 
         // SPI ledstrip
-        try {
-            mLedstrip = new Apa102(BoardDefaults.getSpiBus(), Apa102.Mode.BGR);
-            mLedstrip.setBrightness(LEDSTRIP_BRIGHTNESS);
-            for (int i = 0; i < mRainbow.length; i++) {
-                float[] hsv = {i * 360.f / mRainbow.length, 1.0f, 1.0f};
-                mRainbow[i] = Color.HSVToColor(255, hsv);
+        mStartup.add("ledstrip", StartupOrchestrator.PHASE_DEFERRED, false,
+                new StartupOrchestrator.Step() {
+                    @Override
+                    public void run() throws IOException {
+                        final Apa102 ledstrip = new Apa102(BoardDefaults.getSpiBus(),
+                                Apa102.Mode.BGR);
+                        mLedstrip = ledstrip;
+                        ledstrip.setBrightness(LEDSTRIP_BRIGHTNESS);
+                        final LatencyHistogram writes = mMetrics.histogram(PERIPHERAL_WRITES,
+                                PERIPHERAL_WRITES_HELP, "device", "ledstrip");
+                        final Metrics.Counter errors = mMetrics.counter(PERIPHERAL_ERRORS,
+                                PERIPHERAL_ERRORS_HELP, "device", "ledstrip");
+                        mLedRenderer = new LedRenderer(new LedStrip() {
+                            @Override
+                            public void write(int[] colors) {
+                                long start = System.nanoTime();
+                                try {
+                                    ledstrip.write(colors);
+                                } catch (IOException e) {
+                                    errors.increment();
+                                    Log.e(TAG, "Error setting ledstrip", e);
+                                }
+                                writes.record(System.nanoTime() - start);
+                            }
+                        }, mRainbow.length, LEDSTRIP_MAX_FPS);
+                        mLedRenderer.start();
+                        mPipeline.setLedStrip(mLedRenderer);
+                    }
+                });
+
+        // PWM speaker
+        mStartup.add("speaker", StartupOrchestrator.PHASE_DEFERRED, true,
+                new StartupOrchestrator.Step() {
+                    @Override
+                    public void run() throws IOException {
+                        mSpeaker = new Speaker(BoardDefaults.getSpeakerPwmPin());
+                        // Animators run on the main thread.
+                        mHandler.postDelayed(mSpeakerChirpRunnable, SPEAKER_READY_DELAY_MS);
+                    }
+                });
+
+        // start Cloud PubSub Publisher if cloud credentials are present, or publish through the
+        // gateway station of the site if one is configured.
+        final int credentialId = getResources().getIdentifier("credentials", "raw",
+                getPackageName());
+        final boolean throughGateway = !BuildConfig.GATEWAY_HOST.isEmpty();
+        if (credentialId != 0 || throughGateway) {
+            mStartup.add("cloud", StartupOrchestrator.PHASE_DEFERRED, false,
+                    new StartupOrchestrator.Step() {
+                        @Override
+                        public void run() {
+                            // Credentials are loaded in the background; if they cannot be,
+                            // messages are journaled.
+                            PubsubPublisher publisher = new PubsubPublisher(
+                                    WeatherStationActivity.this, "weatherstation",
+                                    BuildConfig.PROJECT_ID, BuildConfig.PUBSUB_TOPIC,
+                                    credentialId, mHistory, BuildConfig.REPORT_BY_EXCEPTION
+                                            ? null : PUBLISH_BATCH_POLICY);
+                            if (BuildConfig.REPORT_BY_EXCEPTION) {
+                                publisher.setReportByException(
+                                        new DeadbandFilter(REPORT_HEARTBEAT_MS)
+                                                .setDeadband(Channel.TEMPERATURE, 0.1f)
+                                                .setDeadband(Channel.PRESSURE, 0.5f));
+                            }
+                            if (throughGateway) {
+                                publisher.publishThroughGateway(BuildConfig.GATEWAY_HOST,
+                                        BuildConfig.GATEWAY_PORT, BuildConfig.GATEWAY_TOKEN);
+                            } else if (BuildConfig.SERVE_GATEWAY) {
+                                if (BuildConfig.GATEWAY_TOKEN.isEmpty()) {
+                                    Log.e(TAG, "GATEWAY_TOKEN not set, not serving peers");
+                                } else {
+                                    publisher.serveAsGateway(BuildConfig.GATEWAY_PORT,
+                                            BuildConfig.GATEWAY_TOKEN);
+                                }
+                            }
+                            if (BuildConfig.PUBLISH_AGGREGATES) {
+                                publisher.setPayloadCodec(new GorillaPayloadCodec());
+                                publisher.setAggregationWindow(AGGREGATION_WINDOW_MS,
+                                        AGGREGATION_WINDOW_MS, false);
+                            }
+                            publisher.setPressureTrend(mPipeline.getPressureTrend());
+                            publisher.setMetrics(mMetrics);
+                            publisher.subscribe(mEventBus);
+                            publisher.setEventLog(mEventLog);
+                            publisher.start();
+                            mPubsubPublisher = publisher;
+                        }
+                    });
+        }
+
+        if (!mReplaying) {
+            mStartup.add("capture", StartupOrchestrator.PHASE_DEFERRED, false,
+                    new StartupOrchestrator.Step() {
+                        @Override
+                        public void run() throws IOException {
+                            final SensorCapture.Recorder recorder = new SensorCapture.Recorder(
+                                    new File(getFilesDir(), "capture.bin"), CAPTURE_MAX_BYTES);
+                            mCaptureRecorder = recorder;
+                            mCaptureThread = new HandlerThread("captureThread");
+                            mCaptureThread.start();
+                            final Handler handler = new Handler(mCaptureThread.getLooper());
+                            mCaptureSubscription = mEventBus.subscribe("capture",
+                                    SensorEventBus.DROP_OLDEST, CAPTURE_QUEUE_CAPACITY, recorder,
+                                    new Executor() {
+                                        @Override
+                                        public void execute(Runnable command) {
+                                            handler.post(command);
+                                        }
+                                    });
+                            mCaptureSubscription.registerMetrics(mMetrics);
+                            mMetrics.addCounter("weatherstation_capture_errors_total",
+                                    "Errors writing the sensor capture, which stop it.",
+                                    new Metrics.Value() {
+                                        @Override
+                                        public double get() {
+                                            return recorder.getErrorCount();
+                                        }
+                                    });
+                        }
+                    });
+        }
+
+        // The history endpoints are added once the archive is open.
+        mStartup.add("archive", StartupOrchestrator.PHASE_DEFERRED, false,
+                new StartupOrchestrator.Step() {
+                    @Override
+                    public void run() throws IOException {
+                        HistoryArchive archive = new HistoryArchive(
+                                new File(getFilesDir(), "history"), ARCHIVE_PARTITION_MS,
+                                ARCHIVE_RETENTION_MS);
+                        archive.registerMetrics(mMetrics);
+                        mArchive = archive;
+                        mArchiveThread = new HandlerThread("archiveThread");
+                        mArchiveThread.start();
+                        final Handler handler = new Handler(mArchiveThread.getLooper());
+                        mArchiveSubscription = mEventBus.subscribe("archive",
+                                SensorEventBus.DROP_OLDEST, ARCHIVE_QUEUE_CAPACITY, archive,
+                                new Executor() {
+                                    @Override
+                                    public void execute(Runnable command) {
+                                        handler.post(command);
+                                    }
+                                });
+                        mArchiveSubscription.registerMetrics(mMetrics);
+                        new HistoryQueries(archive).addTo(mHttpServer);
+                    }
+                });
+
+        // Serves the metrics and the history to the local network; the station runs the same
+        // without.
+        mHttpServer = new EmbeddedHttpServer(HTTP_PORT)
+                .addHandler("/metrics", new EmbeddedHttpServer.Handler() {
+                    @Override
+                    public String handle(Map<String, String> parameters, Appendable body)
+                            throws IOException {
+                        mMetrics.writePrometheus(body);
+                        return Metrics.CONTENT_TYPE;
+                    }
+                });
+        mStartup.add("http", StartupOrchestrator.PHASE_DEFERRED, false,
+                new StartupOrchestrator.Step() {
+                    @Override
+                    public void run() throws IOException {
+                        mHttpServer.start();
+                        Log.d(TAG, "Serving metrics on port " + mHttpServer.getPort());
+                    }
+                });
+        mStartup.start();
+    }
+
+    private static final String PERIPHERAL_WRITES = "weatherstation_peripheral_write_seconds";
+    private static final String PERIPHERAL_WRITES_HELP = "Time to write to each peripheral.";
+    private static final String PERIPHERAL_ERRORS = "weatherstation_peripheral_errors_total";
+    private static final String PERIPHERAL_ERRORS_HELP = "Failed writes to each peripheral.";
+    private static final String STAGE_DURATION = "weatherstation_pipeline_stage_duration_seconds";
+    private static final String STAGE_DURATION_HELP =
+            "Time spent in each stage of the sensor pipeline.";
+    private static final String[] PIPELINE_STAGES = {"display", "barometer"};
+    private static final String WRITES_AVOIDED = "weatherstation_pipeline_writes_avoided_total";
+    private static final String WRITES_AVOIDED_HELP =
+            "Updates skipped because the filtered readings did not change what is shown.";
+    private static final String[] FILTERED_DEVICES = {"display", "ledstrip", "icon"};
+    private static final String TENDENCY = "weatherstation_pressure_tendency_hpa_per_hour";
+    private static final String TENDENCY_HELP = "Pressure tendency over each horizon.";
+    private static final int[] TENDENCY_HORIZONS = {
+            PressureTrend.HORIZON_1H, PressureTrend.HORIZON_3H};
+    private static final String[] TENDENCY_HORIZON_NAMES = {"1h", "3h"};
+    private static final String SENSOR_EVENTS = "weatherstation_sensor_events_total";
+    private static final String SENSOR_EVENTS_HELP = "Sensor events received.";
+    private static final String SENSOR_EVENT_DURATION =
+            "weatherstation_sensor_event_duration_seconds";
+    private static final String SENSOR_EVENT_DURATION_HELP =
+            "Time spent in onSensorChanged(), including the pipeline.";
+
+    // Metrics of the components created in onCreate(); the others register as they start.
+    private void registerMetrics() {
+        for (int channel : new int[] {Channel.TEMPERATURE, Channel.PRESSURE}) {
+            mSensorEvents[channel] = mMetrics.counter(SENSOR_EVENTS, SENSOR_EVENTS_HELP,
+                    "channel", Channel.name(channel));
+            mSensorEventDuration[channel] = mMetrics.histogram(SENSOR_EVENT_DURATION,
+                    SENSOR_EVENT_DURATION_HELP, "channel", Channel.name(channel));
+        }
+        mMetrics.addHistogram("weatherstation_event_to_display_seconds",
+                "Time from a sensor event to its reading being written to the display.",
+                mDisplayLatency);
+        mMetrics.addCounter("weatherstation_event_log_records_total",
+                "Records logged to the event log.", new Metrics.Value() {
+                    @Override
+                    public double get() {
+                        return mEventLog.getLoggedCount();
+                    }
+                });
+        mMetrics.addCounter("weatherstation_event_log_dropped_records_total",
+                "Records dropped because the event log buffer was full.", new Metrics.Value() {
+                    @Override
+                    public double get() {
+                        return mEventLog.getDroppedCount();
+                    }
+                });
+    }
+
+    private final StartupOrchestrator.Listener mStartupListener =
+            new StartupOrchestrator.Listener() {
+        @Override
+        public void onFailure(final String name, boolean required, final IOException e) {
+            if (required) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        throw new RuntimeException("Error initializing " + name, e);
+                    }
+                });
+            } else {
+                Log.e(TAG, "Error initializing " + name + ", disabled", e);
             }
-        } catch (IOException e) {
-            mLedstrip = null; // Led strip is optional.
         }
 
-        // GPIO led
-        try {
-            PeripheralManager pioManager = PeripheralManager.getInstance();
-            mLed = pioManager.openGpio(BoardDefaults.getLedGpioPin());
-            mLed.setEdgeTriggerType(Gpio.EDGE_NONE);
-            mLed.setDirection(Gpio.DIRECTION_OUT_INITIALLY_LOW);
-            mLed.setActiveType(Gpio.ACTIVE_HIGH);
-        } catch (IOException e) {
-            throw new RuntimeException("Error initializing led", e);
+        @Override
+        public void onComplete() {
+            Log.i(TAG, "Startup timeline:\n" + mStartup.getTimeline());
         }
+    };
 
-        // PWM speaker
-        try {
-            mSpeaker = new Speaker(BoardDefaults.getSpeakerPwmPin());
+    private final Runnable mSpeakerChirpRunnable = new Runnable() {
+        @Override
+        public void run() {
             final ValueAnimator slide = ValueAnimator.ofFloat(440, 440 * 4);
             slide.setDuration(50);
             slide.setRepeatCount(5);
@@ -268,37 +792,21 @@ public class WeatherStationActivity extends Activity {
                     }
                 }
             });
-            Handler handler = new Handler(getMainLooper());
-            handler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    slide.start();
-                }
-            }, SPEAKER_READY_DELAY_MS);
-        } catch (IOException e) {
-            throw new RuntimeException("Error initializing speaker", e);
-        }
-
-        // start Cloud PubSub Publisher if cloud credentials are present.
-        int credentialId = getResources().getIdentifier("credentials", "raw", getPackageName());
-        if (credentialId != 0) {
-            try {
-                mPubsubPublisher = new PubsubPublisher(this, "weatherstation",
-                        BuildConfig.PROJECT_ID, BuildConfig.PUBSUB_TOPIC, credentialId);
-                mPubsubPublisher.start();
-            } catch (IOException e) {
-                Log.e(TAG, "error creating pubsub publisher", e);
-            }
+            slide.start();
         }
-    }
+    };
 
     @Override
     public boolean onKeyDown(int keyCode, KeyEvent event) {
         if (keyCode == KeyEvent.KEYCODE_A) {
-            mDisplayMode = DisplayMode.PRESSURE;
-            updateDisplay(mLastPressure);
+            mPipeline.setDisplayChannel(Channel.PRESSURE);
+            Gpio led = mLed;
+            if (led == null) {
+                // Not opened yet.
+                return true;
+            }
             try {
-                mLed.setValue(true);
+                led.setValue(true);
             } catch (IOException e) {
                 Log.e(TAG, "error updating LED", e);
             }
@@ -310,10 +818,14 @@ public class WeatherStationActivity extends Activity {
     @Override
     public boolean onKeyUp(int keyCode, KeyEvent event) {
         if (keyCode == KeyEvent.KEYCODE_A) {
-            mDisplayMode = DisplayMode.TEMPERATURE;
-            updateDisplay(mLastTemperature);
+            mPipeline.setDisplayChannel(Channel.TEMPERATURE);
+            Gpio led = mLed;
+            if (led == null) {
+                // Not opened yet.
+                return true;
+            }
             try {
-                mLed.setValue(false);
+                led.setValue(false);
             } catch (IOException e) {
                 Log.e(TAG, "error updating LED", e);
             }
@@ -327,10 +839,41 @@ public class WeatherStationActivity extends Activity {
     protected void onDestroy() {
         super.onDestroy();
 
+        // Let the components still starting up finish before closing them. The ones not
+        // started yet are skipped: those posted to the main looper could never run while this
+        // thread waits.
+        mHandler.removeCallbacks(mSpeakerChirpRunnable);
+        mStartup.cancel();
+        try {
+            if (!mStartup.await(STARTUP_TIMEOUT_MS)) {
+                Log.w(TAG, "Startup still running:\n" + mStartup.getTimeline());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            mHttpServer.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing HTTP server", e);
+        }
+
         // Clean up sensor registrations
         mSensorManager.unregisterListener(mTemperatureListener);
         mSensorManager.unregisterListener(mPressureListener);
         mSensorManager.unregisterDynamicSensorCallback(mDynamicSensorCallback);
+        // Let the sensor thread finish the events in flight before closing the peripherals.
+        mSensorHandler.removeCallbacks(mLogLatencyRunnable);
+        if (mReplaying) {
+            mSensorThread.interrupt();
+        }
+        mSensorThread.quitSafely();
+        try {
+            mSensorThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Log.i(TAG, "event-to-display latency: " + mDisplayLatency);
 
         // Clean up peripheral.
         if (mEnvironmentalSensorDriver != null) {
@@ -350,6 +893,18 @@ public class WeatherStationActivity extends Activity {
             mButtonInputDriver = null;
         }
 
+        mPipeline.setDisplay(null);
+        mPipeline.setLedStrip(null);
+
+        // Let pending display writes finish before closing the display.
+        mI2cBus.stop();
+        if (mCoalescingDisplay != null) {
+            Log.d(TAG, "Display updates: " + mCoalescingDisplay.getSubmittedCount()
+                    + " requested, " + mCoalescingDisplay.getWrittenCount() + " written in "
+                    + TimeUnit.NANOSECONDS.toMillis(mCoalescingDisplay.getBusyNanos()) + "ms");
+            mCoalescingDisplay = null;
+        }
+        Log.d(TAG, "I2C bus utilization by display writes: " + mI2cBus.getUtilization());
         if (mDisplay != null) {
             try {
                 mDisplay.clear();
@@ -362,6 +917,14 @@ public class WeatherStationActivity extends Activity {
             }
         }
 
+        if (mLedRenderer != null) {
+            // Wait for the render thread to stop touching the strip before turning it off.
+            mLedRenderer.stop();
+            Log.d(TAG, "LED frames: " + mLedRenderer.getSubmittedCount() + " submitted, "
+                    + mLedRenderer.getWrittenCount() + " written, "
+                    + mLedRenderer.getSkippedCount() + " unchanged");
+            mLedRenderer = null;
+        }
         if (mLedstrip != null) {
             try {
                 mLedstrip.setBrightness(0);
@@ -385,46 +948,47 @@ public class WeatherStationActivity extends Activity {
             }
         }
 
-        // clean up Cloud PubSub publisher.
-        if (mPubsubPublisher != null) {
-            mSensorManager.unregisterListener(mPubsubPublisher.getTemperatureListener());
-            mSensorManager.unregisterListener(mPubsubPublisher.getPressureListener());
-            mPubsubPublisher.close();
-            mPubsubPublisher = null;
+        if (mCaptureRecorder != null) {
+            mEventBus.unsubscribe(mCaptureSubscription);
+            mCaptureThread.quitSafely();
+            try {
+                mCaptureThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mCaptureRecorder.close();
+            mCaptureRecorder = null;
         }
-    }
 
-    private void updateDisplay(float value) {
-        if (mDisplay != null) {
+        if (mArchive != null) {
+            // Let the samples queued for the archive be written before sealing it.
+            mEventBus.unsubscribe(mArchiveSubscription);
+            mArchiveThread.quitSafely();
+            try {
+                mArchiveThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
             try {
-                mDisplay.display(value);
+                mArchive.close();
             } catch (IOException e) {
-                Log.e(TAG, "Error setting display", e);
+                Log.e(TAG, "Error closing history archive", e);
             }
+            mArchive = null;
         }
-    }
 
-    private void updateBarometer(float pressure) {
-        // Update UI.
-        if (!mHandler.hasMessages(MSG_UPDATE_BAROMETER_UI)) {
-            mHandler.sendEmptyMessageDelayed(MSG_UPDATE_BAROMETER_UI, 100);
-        }
-        // Update led strip.
-        if (mLedstrip == null) {
-            return;
-        }
-        float t = (pressure - BAROMETER_RANGE_LOW) / (BAROMETER_RANGE_HIGH - BAROMETER_RANGE_LOW);
-        int n = (int) Math.ceil(mRainbow.length * t);
-        n = Math.max(0, Math.min(n, mRainbow.length));
-        int[] colors = new int[mRainbow.length];
-        for (int i = 0; i < n; i++) {
-            int ri = mRainbow.length - 1 - i;
-            colors[ri] = mRainbow[ri];
+        // clean up Cloud PubSub publisher.
+        if (mPubsubPublisher != null) {
+            mPubsubPublisher.close();
+            mPubsubPublisher = null;
         }
+
+        Log.d(TAG, "Event log: " + mEventLog.getLoggedCount() + " records, "
+                + mEventLog.getDroppedCount() + " dropped");
         try {
-            mLedstrip.write(colors);
+            mEventLog.close();
         } catch (IOException e) {
-            Log.e(TAG, "Error setting ledstrip", e);
+            Log.e(TAG, "Error closing event log", e);
         }
     }
 }
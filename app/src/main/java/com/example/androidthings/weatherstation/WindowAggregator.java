@@ -0,0 +1,298 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+/**
+ * Streaming aggregation of sensor samples over time windows.
+ *
+ * Windows are aligned on multiples of the slide and last {@code windowMs}: a tumbling window
+ * has a slide equal to its length, a sliding window a shorter one, so that its windows overlap.
+ * When the first sample past the end of a window arrives, the count, min, max, mean and
+ * population standard deviation of the samples in the window are reported to the
+ * {@link Listener}.
+ *
+ * Every sample is processed in constant amortized time and without allocation: the mean and
+ * variance are maintained with Welford's algorithm, and sliding windows keep their samples in a
+ * ring buffer with monotonic deques for the min and max. A sliding window holds at most
+ * {@code maxSamplesPerWindow} samples; older ones are evicted early and counted by
+ * {@link #getOverflowCount()}.
+ *
+ * Samples must be delivered from a single thread, in timestamp order per channel.
+ */
+class WindowAggregator implements SampleSink {
+
+    interface Listener {
+        /**
+         * Called with the statistics of the window [startMs, endMs) of {@code channel}. The
+         * {@code stats} object is reused for the next window.
+         */
+        void onWindow(int channel, long startMs, long endMs, Stats stats);
+    }
+
+    static final class Stats {
+        long count;
+        float min;
+        float max;
+        double mean;
+        double variance;
+
+        double stddev() {
+            return Math.sqrt(variance);
+        }
+    }
+
+    private final long mWindowMs;
+    private final long mSlideMs;
+    private final Listener mListener;
+    private final ChannelWindow[] mWindows = new ChannelWindow[Channel.COUNT];
+    private final Stats mStats = new Stats();
+    private long mOverflows;
+
+    /**
+     * Creates an aggregator of non-overlapping windows.
+     */
+    static WindowAggregator tumbling(long windowMs, Listener listener) {
+        return new WindowAggregator(windowMs, windowMs, 0, listener);
+    }
+
+    /**
+     * Creates an aggregator of windows of {@code windowMs} reported every {@code slideMs}.
+     */
+    static WindowAggregator sliding(long windowMs, long slideMs, int maxSamplesPerWindow,
+                                    Listener listener) {
+        return new WindowAggregator(windowMs, slideMs, maxSamplesPerWindow, listener);
+    }
+
+    /**
+     * Returns a listener publishing the statistics of each window to {@code sink} as samples
+     * of the derived channels {@link Channel#aggregate}, stamped with the end of the window.
+     */
+    static Listener toDerivedChannels(final SampleSink sink) {
+        return new Listener() {
+            @Override
+            public void onWindow(int channel, long startMs, long endMs, Stats stats) {
+                sink.onSample(Channel.aggregate(channel, Channel.STAT_MIN), endMs, stats.min);
+                sink.onSample(Channel.aggregate(channel, Channel.STAT_MAX), endMs, stats.max);
+                sink.onSample(Channel.aggregate(channel, Channel.STAT_MEAN), endMs,
+                        (float) stats.mean);
+                sink.onSample(Channel.aggregate(channel, Channel.STAT_STDDEV), endMs,
+                        (float) stats.stddev());
+            }
+        };
+    }
+
+    private WindowAggregator(long windowMs, long slideMs, int maxSamplesPerWindow,
+                             Listener listener) {
+        if (windowMs <= 0 || slideMs <= 0 || slideMs > windowMs) {
+            throw new IllegalArgumentException("Invalid window " + windowMs + "ms, slide "
+                    + slideMs + "ms");
+        }
+        boolean sliding = slideMs < windowMs;
+        if (sliding && (maxSamplesPerWindow < 1 || maxSamplesPerWindow > 1 << 30)) {
+            throw new IllegalArgumentException("Invalid maxSamplesPerWindow: "
+                    + maxSamplesPerWindow);
+        }
+        mWindowMs = windowMs;
+        mSlideMs = slideMs;
+        mListener = listener;
+        for (int channel = 0; channel < Channel.COUNT; channel++) {
+            mWindows[channel] = new ChannelWindow(sliding ? maxSamplesPerWindow : 0);
+        }
+    }
+
+    long getOverflowCount() {
+        return mOverflows;
+    }
+
+    /**
+     * Adds a sample of a sensor channel; samples of derived channels are ignored.
+     */
+    @Override
+    public void onSample(int channel, long timestampMs, float value) {
+        if (channel < 0 || channel >= Channel.COUNT) {
+            return;
+        }
+        ChannelWindow window = mWindows[channel];
+        if (window.endMs == Long.MIN_VALUE) {
+            window.endMs = nextBoundary(timestampMs);
+        }
+        while (timestampMs >= window.endMs) {
+            long startMs = window.endMs - mWindowMs;
+            window.evictBefore(startMs);
+            if (window.count > 0) {
+                window.getStats(mStats);
+                mListener.onWindow(channel, startMs, window.endMs, mStats);
+            }
+            if (!window.isSliding()) {
+                window.clear();
+            }
+            window.endMs += mSlideMs;
+            if (timestampMs >= window.endMs && window.isEmptyBefore(window.endMs - mWindowMs)) {
+                // Nothing left to report until the window holding this sample: skip the gap.
+                window.clear();
+                window.endMs = nextBoundary(timestampMs);
+            }
+        }
+        if (window.add(timestampMs, value)) {
+            mOverflows++;
+        }
+    }
+
+    private long nextBoundary(long timestampMs) {
+        return (timestampMs / mSlideMs + 1) * mSlideMs;
+    }
+
+    private static final class ChannelWindow {
+        long endMs = Long.MIN_VALUE;
+
+        // Welford's running count, mean and sum of squared differences from the mean.
+        long count;
+        double mean;
+        double m2;
+
+        // Min and max of a tumbling window.
+        float min;
+        float max;
+
+        // Samples of a sliding window, and the sequence numbers of the candidates for its min
+        // and max, in increasing and decreasing order of value respectively.
+        private final int mMask;
+        private final long[] mTimestamps;
+        private final float[] mValues;
+        private long mHead;
+        private long mTail;
+        private final long[] mMinQueue;
+        private long mMinHead;
+        private long mMinTail;
+        private final long[] mMaxQueue;
+        private long mMaxHead;
+        private long mMaxTail;
+
+        ChannelWindow(int capacity) {
+            int size = 0;
+            if (capacity > 0) {
+                size = Integer.highestOneBit(capacity);
+                if (size < capacity) {
+                    size <<= 1;
+                }
+            }
+            mMask = size - 1;
+            mTimestamps = new long[size];
+            mValues = new float[size];
+            mMinQueue = new long[size];
+            mMaxQueue = new long[size];
+        }
+
+        boolean isSliding() {
+            return mValues.length > 0;
+        }
+
+        /**
+         * @return true if the oldest sample had to be evicted to make room.
+         */
+        boolean add(long timestampMs, float value) {
+            boolean overflow = false;
+            if (isSliding()) {
+                if (mTail - mHead == mValues.length) {
+                    evictOldest();
+                    overflow = true;
+                }
+                int index = (int) mTail & mMask;
+                mTimestamps[index] = timestampMs;
+                mValues[index] = value;
+                while (mMinTail > mMinHead
+                        && mValues[(int) mMinQueue[(int) (mMinTail - 1) & mMask] & mMask] >= value) {
+                    mMinTail--;
+                }
+                mMinQueue[(int) mMinTail++ & mMask] = mTail;
+                while (mMaxTail > mMaxHead
+                        && mValues[(int) mMaxQueue[(int) (mMaxTail - 1) & mMask] & mMask] <= value) {
+                    mMaxTail--;
+                }
+                mMaxQueue[(int) mMaxTail++ & mMask] = mTail;
+                mTail++;
+            } else if (count == 0) {
+                min = value;
+                max = value;
+            } else {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            count++;
+            double delta = value - mean;
+            mean += delta / count;
+            m2 += delta * (value - mean);
+            return overflow;
+        }
+
+        void evictBefore(long startMs) {
+            while (mTail > mHead && mTimestamps[(int) mHead & mMask] < startMs) {
+                evictOldest();
+            }
+        }
+
+        boolean isEmptyBefore(long startMs) {
+            return mTail == mHead || mTimestamps[(int) (mTail - 1) & mMask] < startMs;
+        }
+
+        void getStats(Stats stats) {
+            stats.count = count;
+            if (isSliding()) {
+                stats.min = mValues[(int) mMinQueue[(int) mMinHead & mMask] & mMask];
+                stats.max = mValues[(int) mMaxQueue[(int) mMaxHead & mMask] & mMask];
+            } else {
+                stats.min = min;
+                stats.max = max;
+            }
+            stats.mean = mean;
+            stats.variance = count > 0 ? Math.max(0, m2 / count) : 0;
+        }
+
+        void clear() {
+            count = 0;
+            mean = 0;
+            m2 = 0;
+            mHead = mTail;
+            mMinHead = mMinTail;
+            mMaxHead = mMaxTail;
+        }
+
+        private void evictOldest() {
+            float value = mValues[(int) mHead & mMask];
+            if (mMinQueue[(int) mMinHead & mMask] == mHead) {
+                mMinHead++;
+            }
+            if (mMaxQueue[(int) mMaxHead & mMask] == mHead) {
+                mMaxHead++;
+            }
+            mHead++;
+            // Welford's update, reversed. Rounding errors accumulate with removals, so restart
+            // from exact values whenever a single sample is left.
+            if (--count == 0) {
+                mean = 0;
+                m2 = 0;
+            } else if (count == 1) {
+                mean = mValues[(int) mHead & mMask];
+                m2 = 0;
+            } else {
+                double delta = value - mean;
+                mean -= delta / count;
+                m2 -= delta * (value - mean);
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+public class BinaryPayloadCodecTest {
+
+    private final BinaryPayloadCodec mCodec = new BinaryPayloadCodec();
+
+    private void assertRoundTrip(String deviceId, SampleBuffer samples, int from, int to)
+            throws IOException {
+        byte[] payload = mCodec.encode(deviceId, samples, from, to);
+        SampleBuffer decoded = new SampleBuffer(Math.max(1, to - from));
+        assertEquals(deviceId, mCodec.decode(payload, decoded));
+        assertEquals(to - from, decoded.size());
+        for (int j = 0; j < decoded.size(); j++) {
+            int i = from + j;
+            String at = "sample " + j;
+            assertEquals(at, samples.channels[i], decoded.channels[j]);
+            assertEquals(at, samples.timestamps[i], decoded.timestamps[j]);
+            assertEquals(at, Float.floatToRawIntBits(samples.values[i]),
+                    Float.floatToRawIntBits(decoded.values[j]));
+        }
+    }
+
+    @Test
+    public void encodesDocumentedLayout() {
+        SampleBuffer samples = new SampleBuffer(2);
+        samples.add(Channel.TEMPERATURE, 300, 1f);
+        samples.add(Channel.PRESSURE, 200, -2f);
+        byte[] expected = {
+                BinaryPayloadCodec.VERSION,
+                2, 'i', 'd',
+                2,
+                (byte) 0xAC, 0x02,
+                0, 0, 0x3F, (byte) 0x80, 0, 0,
+                1, (byte) 0xC7, 0x01, (byte) 0xC0, 0, 0, 0};
+        assertEquals(Arrays.toString(expected),
+                Arrays.toString(mCodec.encode("id", samples, 0, 2)));
+    }
+
+    @Test
+    public void roundTripsSpecialValuesAndTimestamps() throws IOException {
+        SampleBuffer samples = new SampleBuffer(16);
+        float[] values = {0f, -0f, Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY,
+                Float.MIN_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, 1f, 1f, 2f,
+                Float.intBitsToFloat(0x7FC00001), 3.5f, -7.25f, 1e-30f, 1e30f};
+        long[] timestamps = {0, Long.MAX_VALUE, Long.MIN_VALUE, -1, 1, 1, 1, 63, 64, 319, 320,
+                2366, 2367, 1L << 40, (1L << 40) - 1, 5};
+        for (int i = 0; i < values.length; i++) {
+            samples.add(i % 2, timestamps[i], values[i]);
+        }
+        assertRoundTrip("st\u00e4tion-\u2603", samples, 0, samples.size());
+        assertRoundTrip("rpi3", samples, 3, 3);
+        assertRoundTrip("rpi3", samples, 5, 9);
+    }
+
+    @Test
+    public void roundTripsRandomBatches() throws IOException {
+        Random random = new Random(11);
+        for (int run = 0; run < 200; run++) {
+            int size = 1 + random.nextInt(600);
+            SampleBuffer samples = new SampleBuffer(size);
+            long timestamp = random.nextLong();
+            for (int i = 0; i < size; i++) {
+                timestamp += random.nextBoolean() ? random.nextInt(5000) - 1000
+                        : random.nextLong() >> random.nextInt(64);
+                samples.add(random.nextInt(128), timestamp,
+                        Float.intBitsToFloat(random.nextInt()));
+            }
+            // The buffer is reused, and grows, across payloads.
+            assertRoundTrip("device-" + run, samples, 0, size);
+        }
+    }
+
+    @Test
+    public void rejectsMalformedPayloads() {
+        SampleBuffer samples = new SampleBuffer(4);
+        samples.add(Channel.TEMPERATURE, 1500000000000L, 21.5f);
+        samples.add(Channel.PRESSURE, 1500000000100L, 1013f);
+        byte[] payload = mCodec.encode("rpi3", samples, 0, 2);
+        for (int length = 0; length < payload.length; length++) {
+            assertDecodeFails(Arrays.copyOf(payload, length), new SampleBuffer(4));
+        }
+        byte[] version = payload.clone();
+        version[0] = 99;
+        assertDecodeFails(version, new SampleBuffer(4));
+        assertDecodeFails(payload, new SampleBuffer(1));
+    }
+
+    private void assertDecodeFails(byte[] payload, SampleBuffer out) {
+        try {
+            mCodec.decode(payload, out);
+            fail("Decoded " + Arrays.toString(payload));
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class DeadbandFilterTest {
+
+    private static final long HEARTBEAT_MS = 60000;
+
+    /**
+     * Drives a filter the way the publisher does, on a fake clock: every report re-arms a
+     * heartbeat timer, which calls {@link DeadbandFilter#heartbeat(long)} when it fires.
+     */
+    private static class FakePublisher {
+        final DeadbandFilter filter = new DeadbandFilter(HEARTBEAT_MS)
+                .setDeadband(Channel.TEMPERATURE, 0.1f)
+                .setDeadband(Channel.PRESSURE, 0.5f);
+        long now = 1500000000000L;
+        long heartbeatAt = now + HEARTBEAT_MS;
+        int snapshots;
+        int heartbeats;
+
+        boolean onSample(int channel, float value) {
+            if (!filter.accept(channel, now, value)) {
+                return false;
+            }
+            snapshots++;
+            heartbeatAt = now + HEARTBEAT_MS;
+            return true;
+        }
+
+        void advance(long ms) {
+            long until = now + ms;
+            while (heartbeatAt <= until) {
+                now = heartbeatAt;
+                filter.heartbeat(now);
+                snapshots++;
+                heartbeats++;
+                heartbeatAt = now + HEARTBEAT_MS;
+            }
+            now = until;
+        }
+    }
+
+    @Test
+    public void reportsFirstSampleOfEachChannel() {
+        FakePublisher publisher = new FakePublisher();
+        assertTrue(publisher.onSample(Channel.TEMPERATURE, 21f));
+        assertTrue(publisher.onSample(Channel.PRESSURE, 1013f));
+    }
+
+    @Test
+    public void suppressesChangesWithinDeadband() {
+        FakePublisher publisher = new FakePublisher();
+        publisher.onSample(Channel.TEMPERATURE, 21f);
+        for (int i = 0; i < 100; i++) {
+            publisher.advance(100);
+            assertFalse(publisher.onSample(Channel.TEMPERATURE, i % 2 == 0 ? 21.05f : 20.95f));
+        }
+        assertEquals(1, publisher.filter.getReportedCount());
+        assertEquals(100, publisher.filter.getSuppressedCount());
+    }
+
+    @Test
+    public void reportsChangeBeyondDeadbandImmediately() {
+        FakePublisher publisher = new FakePublisher();
+        publisher.onSample(Channel.PRESSURE, 1013f);
+        publisher.advance(100);
+        assertFalse(publisher.onSample(Channel.PRESSURE, 1013.4f));
+        publisher.advance(100);
+        assertTrue(publisher.onSample(Channel.PRESSURE, 1013.6f));
+        // The dead-band is measured from the last reported value, not the last sample.
+        publisher.advance(100);
+        assertFalse(publisher.onSample(Channel.PRESSURE, 1013.2f));
+        publisher.advance(100);
+        assertTrue(publisher.onSample(Channel.PRESSURE, 1013f));
+    }
+
+    @Test
+    public void reportsUnchangedSampleAfterHeartbeatInterval() {
+        DeadbandFilter filter = new DeadbandFilter(HEARTBEAT_MS);
+        assertTrue(filter.accept(Channel.TEMPERATURE, 0, 21f));
+        assertFalse(filter.accept(Channel.TEMPERATURE, HEARTBEAT_MS - 1, 21f));
+        assertTrue(filter.accept(Channel.TEMPERATURE, HEARTBEAT_MS, 21f));
+        assertFalse(filter.accept(Channel.TEMPERATURE, HEARTBEAT_MS + 1, 21f));
+    }
+
+    @Test
+    public void heartbeatFiresWhileSensorIsStalled() {
+        FakePublisher publisher = new FakePublisher();
+        publisher.onSample(Channel.TEMPERATURE, 21f);
+        // No sample for ten minutes.
+        publisher.advance(10 * HEARTBEAT_MS);
+        assertEquals(10, publisher.heartbeats);
+        assertEquals(11, publisher.snapshots);
+    }
+
+    @Test
+    public void heartbeatRestartsSampleHeartbeat() {
+        FakePublisher publisher = new FakePublisher();
+        publisher.onSample(Channel.TEMPERATURE, 21f);
+        publisher.advance(HEARTBEAT_MS);
+        assertEquals(1, publisher.heartbeats);
+        // The value was just published by the heartbeat: a late sample must not repeat it.
+        publisher.advance(1);
+        assertFalse(publisher.onSample(Channel.TEMPERATURE, 21f));
+        publisher.advance(HEARTBEAT_MS - 2);
+        assertFalse(publisher.onSample(Channel.TEMPERATURE, 21f));
+    }
+
+    @Test
+    public void reportsReArmHeartbeat() {
+        FakePublisher publisher = new FakePublisher();
+        publisher.onSample(Channel.TEMPERATURE, 21f);
+        for (int i = 0; i < 10; i++) {
+            publisher.advance(HEARTBEAT_MS / 2);
+            assertTrue(publisher.onSample(Channel.TEMPERATURE, 21f + i + 1));
+        }
+        assertEquals(0, publisher.heartbeats);
+    }
+
+    @Test
+    public void reportsDerivedChannels() {
+        DeadbandFilter filter = new DeadbandFilter(HEARTBEAT_MS);
+        int derived = Channel.aggregate(Channel.TEMPERATURE, Channel.STAT_MEAN);
+        assertTrue(filter.accept(derived, 0, 21f));
+        assertTrue(filter.accept(derived, 1, 21f));
+        assertEquals(0, filter.getSuppressedCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeDeadband() {
+        new DeadbandFilter(HEARTBEAT_MS).setDeadband(Channel.PRESSURE, -1f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroHeartbeat() {
+        new DeadbandFilter(0);
+    }
+}
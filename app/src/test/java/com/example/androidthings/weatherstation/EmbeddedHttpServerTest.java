@@ -0,0 +1,135 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+public class EmbeddedHttpServerTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private EmbeddedHttpServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new EmbeddedHttpServer(0)
+                .addHandler("/echo", new EmbeddedHttpServer.Handler() {
+                    @Override
+                    public String handle(Map<String, String> parameters, Appendable body)
+                            throws IOException {
+                        String name = parameters.get("name");
+                        if (name == null) {
+                            throw new IllegalArgumentException("Missing name");
+                        }
+                        body.append("hello ").append(name);
+                        return "text/plain";
+                    }
+                })
+                .addHandler("/fail", new EmbeddedHttpServer.Handler() {
+                    @Override
+                    public String handle(Map<String, String> parameters, Appendable body)
+                            throws IOException {
+                        throw new IOException("disk");
+                    }
+                });
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.close();
+    }
+
+    @Test
+    public void servesHandlerWithDecodedParameters() throws IOException {
+        String response = request("GET /echo?name=st%C3%A4tion+1&x HTTP/1.1\r\nHost: a\r\n\r\n");
+        assertTrue(response, response.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertTrue(response, response.contains("Content-Length: 16\r\n"));
+        assertTrue(response, response.endsWith("\r\n\r\nhello st\u00e4tion 1"));
+    }
+
+    @Test
+    public void answersBadRequestForMalformedRequestLine() throws IOException {
+        assertStatus("HTTP/1.1 400 Bad Request", request("GET /echo\r\n\r\n"));
+        assertStatus("HTTP/1.1 400 Bad Request", request("GET /echo FTP/1.0\r\n\r\n"));
+    }
+
+    @Test
+    public void answersBadRequestForInvalidParameter() throws IOException {
+        String response = request("GET /echo HTTP/1.1\r\n\r\n");
+        assertStatus("HTTP/1.1 400 Bad Request", response);
+        assertTrue(response, response.endsWith("Missing name\n"));
+    }
+
+    @Test
+    public void answersNotFoundForUnknownPath() throws IOException {
+        String response = request("GET /metrics/ HTTP/1.1\r\n\r\n");
+        assertStatus("HTTP/1.1 404 Not Found", response);
+        assertTrue(response, response.endsWith("No such path: /metrics/\n"));
+    }
+
+    @Test
+    public void answersMethodNotAllowedForPost() throws IOException {
+        assertStatus("HTTP/1.1 405 Method Not Allowed",
+                request("POST /echo?name=a HTTP/1.1\r\nContent-Length: 0\r\n\r\n"));
+        assertEquals(0, mServer.getErrorCount());
+    }
+
+    @Test
+    public void countsHandlerErrors() throws IOException {
+        assertStatus("HTTP/1.1 500 Internal Server Error", request("GET /fail HTTP/1.1\r\n\r\n"));
+        assertEquals(1, mServer.getErrorCount());
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    private static void assertStatus(String statusLine, String response) {
+        assertTrue(response, response.startsWith(statusLine + "\r\n"));
+        assertTrue(response, response.contains("Connection: close\r\n"));
+    }
+
+    // The server closes the connection after each response, so the response is read to the end.
+    private String request(String request) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), mServer.getPort())) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            out.write(request.getBytes(UTF_8));
+            out.flush();
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                response.write(buffer, 0, read);
+            }
+            return new String(response.toByteArray(), UTF_8);
+        }
+    }
+}
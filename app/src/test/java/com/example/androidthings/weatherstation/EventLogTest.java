@@ -0,0 +1,215 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+public class EventLogTest {
+
+    private static final EventLog.Event EVENT_SAMPLE = EventLog.define(
+            "test_sample", EventLog.DEBUG, "%s = %.1f", "cd");
+    private static final EventLog.Event EVENT_PRODUCED = EventLog.define(
+            "test_produced", EventLog.DEBUG, "thread %d record %d", "ll");
+    private static final EventLog.Event EVENT_VERBOSE = EventLog.define(
+            "test_verbose", EventLog.VERBOSE, "%d", "l");
+
+    private static final class RecordingSink implements EventLog.Sink {
+        final List<EventLog.Event> events = new ArrayList<>();
+        final List<long[]> args = new ArrayList<>();
+        long dropped;
+        int flushes;
+        boolean closed;
+
+        @Override
+        public void write(EventLog.Event event, long timeMillis, long a0, long a1, long a2) {
+            events.add(event);
+            args.add(new long[] {a0, a1, a2});
+        }
+
+        @Override
+        public void flush(long dropped) {
+            this.dropped += dropped;
+            flushes++;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    @Test
+    public void drainsRecordsInOrder() throws IOException {
+        RecordingSink sink = new RecordingSink();
+        EventLog log = new EventLog(16).addSink(sink);
+        log.log(EVENT_SAMPLE, Channel.PRESSURE, 1013.25);
+        log.log(EVENT_PRODUCED, 1, 2);
+        log.drain();
+        assertEquals(2, sink.events.size());
+        assertSame(EVENT_SAMPLE, sink.events.get(0));
+        assertEquals(Channel.PRESSURE, sink.args.get(0)[0]);
+        assertEquals("test_sample: pressure = 1013.3", EVENT_SAMPLE.format(
+                sink.args.get(0)[0], sink.args.get(0)[1], sink.args.get(0)[2]));
+        assertSame(EVENT_PRODUCED, sink.events.get(1));
+        assertEquals(2, sink.args.get(1)[1]);
+        assertEquals(1, sink.flushes);
+        log.close();
+        assertTrue(sink.closed);
+    }
+
+    @Test
+    public void fullBufferDropsNewRecords() throws IOException {
+        RecordingSink sink = new RecordingSink();
+        // Rounded up to 8.
+        EventLog log = new EventLog(5).addSink(sink);
+        for (int i = 0; i < 20; i++) {
+            log.log(EVENT_PRODUCED, 0, i);
+        }
+        assertEquals(8, log.getLoggedCount());
+        assertEquals(12, log.getDroppedCount());
+        log.drain();
+        assertEquals(8, sink.events.size());
+        for (int i = 0; i < 8; i++) {
+            assertEquals(i, sink.args.get(i)[1]);
+        }
+        assertEquals(12, sink.dropped);
+
+        // The slots are free again, and drops are only reported once.
+        log.log(EVENT_PRODUCED, 0, 100);
+        log.drain();
+        assertEquals(9, sink.events.size());
+        assertEquals(100, sink.args.get(8)[1]);
+        assertEquals(12, sink.dropped);
+        log.close();
+    }
+
+    @Test
+    public void levelAndSamplingFilterEvents() throws IOException {
+        EventLog.Event sampled = EventLog.define("test_sampled", EventLog.INFO, "%d", "l")
+                .setSampling(3);
+        RecordingSink sink = new RecordingSink();
+        EventLog log = new EventLog(64).addSink(sink);
+        for (int i = 0; i < 9; i++) {
+            log.log(sampled, i);
+            log.log(EVENT_VERBOSE, i);
+        }
+        log.drain();
+        assertEquals(3, sink.events.size());
+        assertEquals(0, sink.args.get(0)[0]);
+        assertEquals(3, sink.args.get(1)[0]);
+        assertEquals(6, sink.args.get(2)[0]);
+
+        log.setLevel(EventLog.VERBOSE);
+        log.log(EVENT_VERBOSE, 42);
+        log.setLevel(EventLog.WARN);
+        log.log(EVENT_PRODUCED, 0, 0);
+        log.drain();
+        assertEquals(4, sink.events.size());
+        assertSame(EVENT_VERBOSE, sink.events.get(3));
+        assertEquals(0, log.getDroppedCount());
+        log.close();
+    }
+
+    @Test
+    public void sinkErrorsAreCountedNotThrown() throws IOException {
+        EventLog log = new EventLog(8).addSink(new EventLog.Sink() {
+            @Override
+            public void write(EventLog.Event event, long timeMillis, long a0, long a1, long a2)
+                    throws IOException {
+                throw new IOException("write");
+            }
+
+            @Override
+            public void flush(long dropped) {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        log.log(EVENT_PRODUCED, 0, 0);
+        log.log(EVENT_PRODUCED, 0, 1);
+        log.drain();
+        assertEquals(2, log.getSinkErrorCount());
+        log.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownArgumentType() {
+        new EventLog.Event(0, "bad", EventLog.INFO, "%s", "s");
+    }
+
+    // Producers race for slots while the drain thread empties them: every record is either
+    // drained or counted as dropped, and each producer's records keep their order.
+    @Test
+    public void concurrentProducersKeepTheirOrder() throws Exception {
+        final int producers = 4;
+        final int records = 200000;
+        RecordingSink sink = new RecordingSink();
+        final EventLog log = new EventLog(1024).addSink(sink);
+        log.start();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers];
+        for (int t = 0; t < producers; t++) {
+            final int id = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < records; i++) {
+                        log.log(EVENT_PRODUCED, id, i);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        log.close();
+
+        long[] last = new long[producers];
+        Arrays.fill(last, -1);
+        for (int i = 0; i < sink.events.size(); i++) {
+            assertSame(EVENT_PRODUCED, sink.events.get(i));
+            int id = (int) sink.args.get(i)[0];
+            long record = sink.args.get(i)[1];
+            assertTrue(record > last[id]);
+            last[id] = record;
+        }
+        assertEquals(log.getLoggedCount(), sink.events.size());
+        assertEquals(producers * records, log.getLoggedCount() + log.getDroppedCount());
+        assertEquals(log.getDroppedCount(), sink.dropped);
+        assertFalse(sink.events.isEmpty());
+    }
+}
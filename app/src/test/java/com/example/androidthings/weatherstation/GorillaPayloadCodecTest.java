@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class GorillaPayloadCodecTest {
+
+    private final GorillaPayloadCodec mCodec = new GorillaPayloadCodec();
+
+    // Both channels interleaved at 5Hz with some timestamp jitter, slowly drifting values at
+    // the BMP280's resolution.
+    private static SampleBuffer bmp280Series(int size, long seed) {
+        Random random = new Random(seed);
+        SampleBuffer samples = new SampleBuffer(size);
+        long timestamp = 1500000000000L;
+        float temperature = 21.3f;
+        float pressure = 1013.25f;
+        for (int i = 0; i < size; i++) {
+            timestamp += 100 + (random.nextInt(5) == 0 ? random.nextInt(7) - 3 : 0);
+            if (i % 2 == 0) {
+                temperature += random.nextInt(10) == 0 ? 0.01f : 0f;
+                samples.add(Channel.TEMPERATURE, timestamp, temperature);
+            } else {
+                pressure += random.nextInt(4) == 0 ? (random.nextInt(21) - 10) * 0.0016f : 0f;
+                samples.add(Channel.PRESSURE, timestamp, pressure);
+            }
+        }
+        return samples;
+    }
+
+    // Decodes the payload, and checks it holds the same samples, run by run in channel order.
+    private void assertRoundTrip(String deviceId, SampleBuffer samples, int from, int to)
+            throws IOException {
+        byte[] payload = mCodec.encode(deviceId, samples, from, to);
+        SampleBuffer decoded = new SampleBuffer(Math.max(1, to - from));
+        assertEquals(deviceId, mCodec.decode(payload, decoded));
+        assertEquals(to - from, decoded.size());
+        List<Integer> expected = new ArrayList<>();
+        for (int channel = 0; channel < 64; channel++) {
+            for (int i = from; i < to; i++) {
+                if (samples.channels[i] == channel) {
+                    expected.add(i);
+                }
+            }
+        }
+        for (int j = 0; j < expected.size(); j++) {
+            int i = expected.get(j);
+            String at = "sample " + j;
+            assertEquals(at, samples.channels[i], decoded.channels[j]);
+            assertEquals(at, samples.timestamps[i], decoded.timestamps[j]);
+            assertEquals(at, Float.floatToRawIntBits(samples.values[i]),
+                    Float.floatToRawIntBits(decoded.values[j]));
+        }
+    }
+
+    @Test
+    public void roundTripsSensorSeries() throws IOException {
+        SampleBuffer samples = bmp280Series(4096, 42);
+        assertRoundTrip("rpi3", samples, 0, samples.size());
+        assertRoundTrip("rpi3", samples, 1000, 1001);
+        assertRoundTrip("rpi3", samples, 17, 2049);
+    }
+
+    @Test
+    public void roundTripsEmptyBatch() throws IOException {
+        assertRoundTrip("rpi3", bmp280Series(4, 1), 2, 2);
+    }
+
+    @Test
+    public void roundTripsSpecialValuesAndTimestamps() throws IOException {
+        SampleBuffer samples = new SampleBuffer(16);
+        float[] values = {0f, -0f, Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY,
+                Float.MIN_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, 1f, 1f, 2f,
+                Float.intBitsToFloat(0x7FC00001), 3.5f, -7.25f, 1e-30f, 1e30f};
+        long[] timestamps = {0, Long.MAX_VALUE, Long.MIN_VALUE, -1, 1, 1, 1, 63, 64, 319, 320,
+                2366, 2367, 1L << 40, (1L << 40) - 1, 5};
+        for (int i = 0; i < values.length; i++) {
+            samples.add(Channel.PRESSURE, timestamps[i], values[i]);
+        }
+        assertRoundTrip("st\u00e4tion-\u2603", samples, 0, samples.size());
+    }
+
+    @Test
+    public void roundTripsRandomBatches() throws IOException {
+        Random random = new Random(7);
+        for (int run = 0; run < 200; run++) {
+            int size = 1 + random.nextInt(600);
+            SampleBuffer samples = new SampleBuffer(size);
+            long timestamp = random.nextLong();
+            for (int i = 0; i < size; i++) {
+                timestamp += random.nextBoolean() ? random.nextInt(5000) - 1000
+                        : random.nextLong() >> random.nextInt(64);
+                float value = random.nextBoolean() ? Float.intBitsToFloat(random.nextInt())
+                        : random.nextInt(100) / 4f;
+                samples.add(random.nextInt(Channel.ID_LIMIT), timestamp, value);
+            }
+            assertRoundTrip("device-" + run, samples, 0, size);
+        }
+    }
+
+    @Test
+    public void compressesSensorSeries() {
+        SampleBuffer samples = bmp280Series(4096, 42);
+        int gorilla = mCodec.encode("rpi3", samples, 0, samples.size()).length;
+        int binary = new BinaryPayloadCodec().encode("rpi3", samples, 0, samples.size()).length;
+        JsonPayloadCodec jsonCodec = new JsonPayloadCodec();
+        long json = 0;
+        for (int i = 0; i < samples.size(); i++) {
+            json += jsonCodec.encode("rpi3", samples, i, i + 1).length;
+        }
+        double bytesPerSample = (double) gorilla / samples.size();
+        assertTrue("bytes per sample: " + bytesPerSample, bytesPerSample < 1.5);
+        assertTrue("binary " + binary + ", gorilla " + gorilla, gorilla * 4 < binary);
+        assertTrue("json " + json + ", gorilla " + gorilla, gorilla * 50 < json);
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+public class HistoryArchiveTest {
+
+    private static final long START_MS = 1500000000000L;
+    private static final long PARTITION_MS = TimeUnit.HOURS.toMillis(1);
+    private static final long RETENTION_MS = TimeUnit.DAYS.toMillis(7);
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * Copy of the statistics of one step.
+     */
+    private static final class Step {
+        final long startMs;
+        final int count;
+        final float min;
+        final float max;
+        final double sum;
+
+        Step(long startMs, int count, float min, float max, double sum) {
+            this.startMs = startMs;
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.sum = sum;
+        }
+    }
+
+    private static final class StepRecorder implements HistoryArchive.StepSink {
+        final List<Step> steps = new ArrayList<>();
+
+        @Override
+        public void onStep(long startMs, int count, float min, float max, double sum) {
+            steps.add(new Step(startMs, count, min, max, sum));
+        }
+    }
+
+    private static final class SampleRecorder implements SampleSink {
+        final List<Long> timestamps = new ArrayList<>();
+        final List<Float> values = new ArrayList<>();
+
+        @Override
+        public void onSample(int channel, long timestampMs, float value) {
+            timestamps.add(timestampMs);
+            values.add(value);
+        }
+    }
+
+    // Writes about three hours of samples, with a few outages, and returns the last timestamp.
+    private static long fill(HistoryArchive archive, long seed) {
+        Random random = new Random(seed);
+        long timestamp = START_MS;
+        for (int i = 0; i < 20000; i++) {
+            timestamp += random.nextInt(200) == 0 ? TimeUnit.MINUTES.toMillis(5)
+                    : 100 + random.nextInt(900);
+            archive.onSample(Channel.PRESSURE, timestamp,
+                    1013f + (float) random.nextGaussian() * 2f);
+        }
+        archive.flush();
+        return timestamp;
+    }
+
+    // Steps computed from every sample returned by a scan of the range.
+    private static List<Step> reference(HistoryArchive archive, long fromMs, long toMs,
+                                        long stepMs) throws IOException {
+        SampleRecorder samples = new SampleRecorder();
+        archive.scan(Channel.PRESSURE, fromMs, toMs, Integer.MAX_VALUE, samples);
+        List<Step> steps = new ArrayList<>();
+        int i = 0;
+        while (i < samples.timestamps.size()) {
+            long step = (samples.timestamps.get(i) - fromMs) / stepMs;
+            int count = 0;
+            float min = Float.POSITIVE_INFINITY;
+            float max = Float.NEGATIVE_INFINITY;
+            double sum = 0;
+            while (i < samples.timestamps.size()
+                    && (samples.timestamps.get(i) - fromMs) / stepMs == step) {
+                float value = samples.values.get(i);
+                count++;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+                sum += value;
+                i++;
+            }
+            steps.add(new Step(fromMs + step * stepMs, count, min, max, sum));
+        }
+        return steps;
+    }
+
+    private static void assertDownsampleMatchesScan(HistoryArchive archive, long fromMs,
+                                                    long toMs, long stepMs) throws IOException {
+        List<Step> expected = reference(archive, fromMs, toMs, stepMs);
+        StepRecorder recorder = new StepRecorder();
+        long total = archive.downsample(Channel.PRESSURE, fromMs, toMs, stepMs, recorder);
+        long expectedTotal = 0;
+        assertEquals(expected.size(), recorder.steps.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Step e = expected.get(i);
+            Step a = recorder.steps.get(i);
+            assertEquals(e.startMs, a.startMs);
+            assertEquals(e.count, a.count);
+            assertEquals(e.min, a.min, 0f);
+            assertEquals(e.max, a.max, 0f);
+            assertEquals(e.sum, a.sum, 1e-9 * Math.abs(e.sum));
+            expectedTotal += e.count;
+        }
+        assertEquals(expectedTotal, total);
+    }
+
+    private static void assertDownsamplesMatchScan(HistoryArchive archive, long lastMs)
+            throws IOException {
+        long[] steps = {1000, TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(7),
+                TimeUnit.HOURS.toMillis(1), TimeUnit.DAYS.toMillis(1)};
+        for (long step : steps) {
+            assertDownsampleMatchesScan(archive, START_MS, lastMs + 1, step);
+            // Ranges and steps not aligned on the partitions nor on the blocks.
+            assertDownsampleMatchesScan(archive, START_MS + 12345, lastMs - 54321, step);
+            assertDownsampleMatchesScan(archive, START_MS + PARTITION_MS / 3,
+                    START_MS + 2 * PARTITION_MS + 777, step);
+        }
+    }
+
+    @Test
+    public void downsampleMatchesScanWhileWriting() throws IOException {
+        HistoryArchive archive = new HistoryArchive(mFolder.getRoot(), PARTITION_MS,
+                RETENTION_MS);
+        long last = fill(archive, 1);
+        assertDownsamplesMatchScan(archive, last);
+        archive.close();
+    }
+
+    @Test
+    public void downsampleMatchesScanFromSealedIndex() throws IOException {
+        HistoryArchive archive = new HistoryArchive(mFolder.getRoot(), PARTITION_MS,
+                RETENTION_MS);
+        long last = fill(archive, 2);
+        archive.close();
+        HistoryArchive reopened = new HistoryArchive(mFolder.getRoot(), PARTITION_MS,
+                RETENTION_MS);
+        assertEquals(last, reopened.latestTimestamp(Channel.PRESSURE));
+        assertDownsamplesMatchScan(reopened, last);
+        reopened.close();
+    }
+
+    @Test
+    public void downsampleMatchesScanFromRebuiltIndex() throws IOException {
+        HistoryArchive archive = new HistoryArchive(mFolder.getRoot(), PARTITION_MS,
+                RETENTION_MS);
+        long last = fill(archive, 3);
+        archive.close();
+        // As after a crash, before the segments were sealed.
+        File[] indexes = new File(mFolder.getRoot(), Channel.name(Channel.PRESSURE))
+                .listFiles();
+        for (File file : indexes) {
+            if (file.getName().endsWith(".idx")) {
+                assertEquals(true, file.delete());
+            }
+        }
+        HistoryArchive reopened = new HistoryArchive(mFolder.getRoot(), PARTITION_MS,
+                RETENTION_MS);
+        assertDownsamplesMatchScan(reopened, last);
+        reopened.close();
+    }
+
+    @Test
+    public void downsampleSkipsEmptySteps() throws IOException {
+        HistoryArchive archive = new HistoryArchive(mFolder.getRoot(), PARTITION_MS,
+                RETENTION_MS);
+        archive.onSample(Channel.TEMPERATURE, START_MS + 500, 20f);
+        archive.onSample(Channel.TEMPERATURE, START_MS + 700, 22f);
+        archive.onSample(Channel.TEMPERATURE, START_MS + 3500, 30f);
+        archive.flush();
+        StepRecorder recorder = new StepRecorder();
+        assertEquals(3, archive.downsample(Channel.TEMPERATURE, START_MS, START_MS + 10000,
+                1000, recorder));
+        assertEquals(2, recorder.steps.size());
+        Step first = recorder.steps.get(0);
+        assertEquals(START_MS, first.startMs);
+        assertEquals(2, first.count);
+        assertEquals(20f, first.min, 0f);
+        assertEquals(22f, first.max, 0f);
+        assertEquals(42.0, first.sum, 0.0);
+        assertEquals(START_MS + 3000, recorder.steps.get(1).startMs);
+        archive.close();
+    }
+
+    @Test
+    public void dropsOutOfOrderSamples() throws IOException {
+        HistoryArchive archive = new HistoryArchive(mFolder.getRoot(), PARTITION_MS,
+                RETENTION_MS);
+        archive.onSample(Channel.TEMPERATURE, START_MS + 1000, 20f);
+        archive.onSample(Channel.TEMPERATURE, START_MS + 500, 21f);
+        archive.flush();
+        assertEquals(1, archive.getWrittenCount());
+        assertEquals(1, archive.getOutOfOrderCount());
+        assertEquals(20f, archive.latestValue(Channel.TEMPERATURE), 0f);
+        archive.close();
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+public class JsonPayloadCodecTest {
+
+    private final JsonPayloadCodec mCodec = new JsonPayloadCodec();
+
+    // The message the publisher built before payload codecs, in PubsubPublisher's
+    // createMessagePayload().
+    private static byte[] legacyPayload(String deviceId, long timestamp, float temperature,
+                                        float pressure) throws JSONException {
+        JSONObject sensorData = new JSONObject();
+        if (!Float.isNaN(temperature)) {
+            sensorData.put("temperature", String.valueOf(temperature));
+        }
+        if (!Float.isNaN(pressure)) {
+            sensorData.put("pressure", String.valueOf(pressure));
+        }
+        JSONObject messagePayload = new JSONObject();
+        messagePayload.put("deviceId", deviceId);
+        messagePayload.put("channel", "pubsub");
+        messagePayload.put("timestamp", timestamp);
+        if (sensorData.has("temperature") || sensorData.has("pressure")) {
+            messagePayload.put("data", sensorData);
+        }
+        return messagePayload.toString().getBytes();
+    }
+
+    @Test
+    public void snapshotIsByteCompatibleWithLegacyMessage() throws JSONException {
+        Random random = new Random(13);
+        for (int run = 0; run < 100; run++) {
+            float temperature = 15 + random.nextInt(2000) / 100f;
+            float pressure = 980 + random.nextInt(6000) / 100f;
+            long timestamp = 1500000000000L + random.nextInt(1000000);
+            SampleBuffer samples = new SampleBuffer(2);
+            samples.add(Channel.TEMPERATURE, timestamp - 150, temperature);
+            samples.add(Channel.PRESSURE, timestamp, pressure);
+            assertArrayEquals(legacyPayload("rpi3", timestamp, temperature, pressure),
+                    mCodec.encode("rpi3", samples, 0, 2));
+            assertArrayEquals(legacyPayload("rpi3", timestamp, Float.NaN, pressure),
+                    mCodec.encode("rpi3", samples, 1, 2));
+        }
+    }
+
+    @Test
+    public void encodesSnapshotFields() throws JSONException {
+        SampleBuffer samples = new SampleBuffer(2);
+        samples.add(Channel.TEMPERATURE, 1500000000000L, 21.5f);
+        samples.add(Channel.PRESSURE, 1500000000100L, 1013.25f);
+        JSONObject message = new JSONObject(new String(mCodec.encode("rpi3", samples, 0, 2),
+                StandardCharsets.UTF_8));
+        assertEquals("rpi3", message.getString("deviceId"));
+        assertEquals("pubsub", message.getString("channel"));
+        assertEquals(1500000000100L, message.getLong("timestamp"));
+        assertEquals("21.5", message.getJSONObject("data").getString("temperature"));
+        assertEquals("1013.25", message.getJSONObject("data").getString("pressure"));
+        assertFalse(message.has("samples"));
+    }
+
+    @Test
+    public void roundTripsSnapshot() throws IOException {
+        SampleBuffer samples = new SampleBuffer(2);
+        samples.add(Channel.TEMPERATURE, 1500000000000L, 21.5f);
+        samples.add(Channel.PRESSURE, 1500000000000L, 1013.25f);
+        SampleBuffer decoded = new SampleBuffer(2);
+        assertEquals("rpi3", mCodec.decode(mCodec.encode("rpi3", samples, 0, 2), decoded));
+        assertEquals(2, decoded.size());
+        assertEquals(Channel.TEMPERATURE, decoded.channels[0]);
+        assertEquals(21.5f, decoded.values[0], 0f);
+        assertEquals(Channel.PRESSURE, decoded.channels[1]);
+        assertEquals(1013.25f, decoded.values[1], 0f);
+        assertEquals(1500000000000L, decoded.timestamps[1]);
+    }
+
+    @Test
+    public void roundTripsRepeatedChannelsAsSamples() throws IOException {
+        Random random = new Random(17);
+        SampleBuffer samples = new SampleBuffer(200);
+        long timestamp = 1500000000000L;
+        for (int i = 0; i < 200; i++) {
+            timestamp += random.nextInt(300);
+            float value = i % 7 == 0 ? Float.NaN : Float.intBitsToFloat(random.nextInt())
+                    % 10000f;
+            samples.add(random.nextInt(2), timestamp, value);
+        }
+        SampleBuffer decoded = new SampleBuffer(200);
+        byte[] payload = mCodec.encode("st\u00e4tion", samples, 0, 200);
+        assertEquals("st\u00e4tion", mCodec.decode(payload, decoded));
+        assertEquals(200, decoded.size());
+        for (int i = 0; i < 200; i++) {
+            assertEquals(samples.channels[i], decoded.channels[i]);
+            assertEquals(samples.timestamps[i], decoded.timestamps[i]);
+            assertEquals(Float.floatToIntBits(samples.values[i]),
+                    Float.floatToIntBits(decoded.values[i]));
+        }
+    }
+
+    @Test
+    public void decodesLegacyMessage() throws Exception {
+        SampleBuffer decoded = new SampleBuffer(2);
+        assertEquals("rpi3", mCodec.decode(legacyPayload("rpi3", 1500000000000L, 20.25f,
+                Float.NaN), decoded));
+        assertEquals(1, decoded.size());
+        assertEquals(Channel.TEMPERATURE, decoded.channels[0]);
+        assertEquals(20.25f, decoded.values[0], 0f);
+        assertEquals(1500000000000L, decoded.timestamps[0]);
+    }
+
+    @Test
+    public void rejectsMalformedPayloads() {
+        String[] payloads = {"", "{", "[]", "{\"deviceId\": \"rpi3\", \"timestamp\": 1, "
+                + "\"data\": {\"pressure\": \"high\"}}", "{\"timestamp\": 1, \"data\": {}}"};
+        for (String payload : payloads) {
+            try {
+                mCodec.decode(payload.getBytes(StandardCharsets.UTF_8), new SampleBuffer(2));
+                fail("Decoded " + payload);
+            } catch (IOException e) {
+                // Expected.
+            }
+        }
+    }
+}
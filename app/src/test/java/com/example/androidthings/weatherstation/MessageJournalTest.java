@@ -0,0 +1,237 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+public class MessageJournalTest {
+
+    private static final int SEGMENT_BYTES = 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static byte[] payload(int i, int length) {
+        byte[] payload = new byte[length];
+        for (int j = 0; j < length; j++) {
+            payload[j] = (byte) (i + j);
+        }
+        return payload;
+    }
+
+    @Test
+    public void replaysRecordsAfterReopening() throws IOException {
+        File directory = mFolder.newFolder();
+        MessageJournal journal = new MessageJournal(directory, SEGMENT_BYTES, 8);
+        assertTrue(journal.isEmpty());
+        // Across several segments.
+        for (int i = 0; i < 30; i++) {
+            journal.append(i, null, payload(i, 100));
+        }
+        assertFalse(journal.isEmpty());
+        journal.close();
+
+        journal = new MessageJournal(directory, SEGMENT_BYTES, 8);
+        List<byte[]> payloads = new ArrayList<>();
+        assertEquals(30, journal.peek(payloads, new long[100], null, Integer.MAX_VALUE));
+        for (int i = 0; i < 30; i++) {
+            assertArrayEquals(payload(i, 100), payloads.get(i));
+        }
+        journal.commit();
+        assertTrue(journal.isEmpty());
+        journal.close();
+
+        journal = new MessageJournal(directory, SEGMENT_BYTES, 8);
+        assertTrue(journal.isEmpty());
+        journal.close();
+    }
+
+    @Test
+    public void replaysRecordsPeekedButNotCommitted() throws IOException {
+        File directory = mFolder.newFolder();
+        MessageJournal journal = new MessageJournal(directory, SEGMENT_BYTES, 8);
+        for (int i = 0; i < 5; i++) {
+            journal.append(i, null, payload(i, 10));
+        }
+        List<byte[]> payloads = new ArrayList<>();
+        assertEquals(2, journal.peek(payloads, new long[2], null, Integer.MAX_VALUE));
+        journal.commit();
+        assertEquals(3, journal.peek(payloads, new long[10], null, Integer.MAX_VALUE));
+        // A crash before the commit.
+        journal.close();
+
+        journal = new MessageJournal(directory, SEGMENT_BYTES, 8);
+        payloads.clear();
+        long[] sequences = new long[10];
+        assertEquals(3, journal.peek(payloads, sequences, null, Integer.MAX_VALUE));
+        assertArrayEquals(payload(2, 10), payloads.get(0));
+        assertEquals(2, sequences[0]);
+        journal.close();
+    }
+
+    @Test
+    public void peekStopsAtByteLimit() throws IOException {
+        MessageJournal journal = new MessageJournal(mFolder.newFolder(), SEGMENT_BYTES, 8);
+        for (int i = 0; i < 5; i++) {
+            journal.append(i, null, payload(i, 50));
+        }
+        List<byte[]> payloads = new ArrayList<>();
+        assertEquals(2, journal.peek(payloads, new long[10], null, 120));
+        journal.commit();
+        // The first record is returned even when it alone is over the limit.
+        payloads.clear();
+        assertEquals(1, journal.peek(payloads, new long[10], null, 10));
+        assertArrayEquals(payload(2, 50), payloads.get(0));
+        journal.close();
+    }
+
+    @Test
+    public void evictsOldestSegmentsWhenFull() throws IOException {
+        MessageJournal journal = new MessageJournal(mFolder.newFolder(), SEGMENT_BYTES, 2);
+        for (int i = 0; i < 30; i++) {
+            journal.append(i, null, payload(i, 100));
+        }
+        assertTrue(journal.getEvictedSegmentCount() > 0);
+        List<byte[]> payloads = new ArrayList<>();
+        int count = journal.peek(payloads, new long[100], null, Integer.MAX_VALUE);
+        assertTrue(count < 30);
+        // The newest records are kept, in order.
+        for (int i = 0; i < count; i++) {
+            assertArrayEquals(payload(30 - count + i, 100), payloads.get(i));
+        }
+        journal.close();
+    }
+
+    @Test
+    public void replaysSequenceNumbersWithPayloads() throws IOException {
+        File directory = mFolder.newFolder();
+        MessageJournal journal = new MessageJournal(directory, SEGMENT_BYTES, 8);
+        // Out of order, as failed requests are journaled after newer offline messages.
+        long[] appended = {7, 3, 4, 12, 5};
+        for (int i = 0; i < appended.length; i++) {
+            journal.append(appended[i], null, payload(i, 100));
+        }
+        assertEquals(12, journal.getMaxSequence());
+        journal.close();
+
+        journal = new MessageJournal(directory, SEGMENT_BYTES, 8);
+        assertEquals(12, journal.getMaxSequence());
+        List<byte[]> payloads = new ArrayList<>();
+        long[] sequences = new long[10];
+        assertEquals(5, journal.peek(payloads, sequences, null, Integer.MAX_VALUE));
+        for (int i = 0; i < appended.length; i++) {
+            assertEquals(appended[i], sequences[i]);
+            assertArrayEquals(payload(i, 100), payloads.get(i));
+        }
+        journal.commit();
+        assertTrue(journal.isEmpty());
+        assertEquals(-1, journal.getMaxSequence());
+        journal.close();
+    }
+
+    @Test
+    public void replaysSessionsOfPeerRecords() throws IOException {
+        File directory = mFolder.newFolder();
+        MessageJournal journal = new MessageJournal(directory, SEGMENT_BYTES, 8);
+        journal.append(3, null, payload(1, 100));
+        journal.append(40, "peer-session", payload(2, 100));
+        journal.append(4, null, payload(3, 100));
+        // Numbered by the peer: not in the sequence of this station.
+        assertEquals(4, journal.getMaxSequence());
+        journal.close();
+
+        journal = new MessageJournal(directory, SEGMENT_BYTES, 8);
+        List<byte[]> payloads = new ArrayList<>();
+        long[] sequences = new long[10];
+        String[] sessions = new String[10];
+        assertEquals(3, journal.peek(payloads, sequences, sessions, Integer.MAX_VALUE));
+        assertArrayEquals(new long[] {3, 40, 4}, Arrays.copyOf(sequences, 3));
+        assertArrayEquals(new String[] {null, "peer-session", null}, Arrays.copyOf(sessions, 3));
+        assertArrayEquals(payload(2, 100), payloads.get(1));
+        journal.close();
+    }
+
+    @Test
+    public void peekStopsAtSequencesLength() throws IOException {
+        MessageJournal journal = new MessageJournal(mFolder.newFolder(), SEGMENT_BYTES, 8);
+        for (int i = 0; i < 20; i++) {
+            journal.append(i, null, payload(i, 50));
+        }
+        List<byte[]> payloads = new ArrayList<>();
+        long[] sequences = new long[3];
+        assertEquals(3, journal.peek(payloads, sequences, null, Integer.MAX_VALUE));
+        journal.commit();
+        payloads.clear();
+        assertEquals(3, journal.peek(payloads, sequences, null, Integer.MAX_VALUE));
+        assertArrayEquals(new long[] {3, 4, 5}, sequences);
+        journal.close();
+    }
+
+    @Test
+    public void largestRecordFitsInOneSegment() throws IOException {
+        MessageJournal journal = new MessageJournal(mFolder.newFolder(), SEGMENT_BYTES, 8);
+        byte[] largest = payload(1, SEGMENT_BYTES - MessageJournal.RECORD_HEADER_BYTES);
+        journal.append(1, null, payload(0, 10));
+        journal.append(2, null, largest);
+        List<byte[]> payloads = new ArrayList<>();
+        long[] sequences = new long[10];
+        assertEquals(2, journal.peek(payloads, sequences, null, Integer.MAX_VALUE));
+        assertArrayEquals(largest, payloads.get(1));
+        assertEquals(2, sequences[1]);
+        journal.close();
+    }
+
+    @Test
+    public void namesSegmentsWithAsciiDigitsInAnyLocale() throws IOException {
+        Locale locale = Locale.getDefault();
+        // Formats numbers with Arabic-Indic digits by default.
+        Locale.setDefault(new Locale("ar", "EG"));
+        try {
+            File directory = mFolder.newFolder();
+            MessageJournal journal = new MessageJournal(directory, SEGMENT_BYTES, 8);
+            for (int i = 0; i < 30; i++) {
+                journal.append(i, null, payload(i, 100));
+            }
+            journal.close();
+            for (String name : directory.list()) {
+                assertTrue(name, name.equals("cursor") || name.matches("[0-9]{20}\\.seg"));
+            }
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsRecordLargerThanSegment() throws IOException {
+        MessageJournal journal = new MessageJournal(mFolder.newFolder(), SEGMENT_BYTES, 8);
+        journal.append(0, null, new byte[SEGMENT_BYTES - MessageJournal.RECORD_HEADER_BYTES + 1]);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+public class MetricsTest {
+
+    @Test
+    public void writesGoldenExposition() throws IOException {
+        Metrics metrics = new Metrics();
+        Metrics.Counter samples = metrics.counter("weatherstation_samples_total",
+                "Samples read \\ published,\nby channel", "channel", "temperature");
+        samples.add(3);
+        metrics.counter("weatherstation_samples_total", "ignored", "channel",
+                "say \"hi\"\\\n");
+        metrics.addGauge("weatherstation_pressure_hpa", "Last pressure", new Metrics.Value() {
+            @Override
+            public double get() {
+                return 1013.25;
+            }
+        });
+        metrics.addGauge("weatherstation_temperature_celsius", "Last temperature",
+                new Metrics.Value() {
+                    @Override
+                    public double get() {
+                        return Double.NaN;
+                    }
+                });
+        LatencyHistogram latency = metrics.histogram("weatherstation_publish_seconds",
+                "Publish latency", "transport", "rest");
+        latency.record(0);
+        // Its LatencyHistogram bucket ends at 5119ns, within 10us.
+        latency.record(5000);
+        // Its bucket ends at 10239ns, so it is only counted from 50us.
+        latency.record(10000);
+        latency.record(TimeUnit.SECONDS.toNanos(2));
+        // Above every bound: only in +Inf.
+        latency.record(TimeUnit.SECONDS.toNanos(20));
+
+        StringBuilder out = new StringBuilder();
+        metrics.writePrometheus(out);
+        assertEquals(""
+                + "# HELP weatherstation_samples_total Samples read \\\\ published,\\nby channel\n"
+                + "# TYPE weatherstation_samples_total counter\n"
+                + "weatherstation_samples_total{channel=\"temperature\"} 3\n"
+                + "weatherstation_samples_total{channel=\"say \\\"hi\\\"\\\\\\n\"} 0\n"
+                + "# HELP weatherstation_pressure_hpa Last pressure\n"
+                + "# TYPE weatherstation_pressure_hpa gauge\n"
+                + "weatherstation_pressure_hpa 1013.25\n"
+                + "# HELP weatherstation_temperature_celsius Last temperature\n"
+                + "# TYPE weatherstation_temperature_celsius gauge\n"
+                + "weatherstation_temperature_celsius NaN\n"
+                + "# HELP weatherstation_publish_seconds Publish latency\n"
+                + "# TYPE weatherstation_publish_seconds histogram\n"
+                + bucket("0.00001", 2)
+                + bucket("0.00005", 3)
+                + bucket("0.0001", 3)
+                + bucket("0.00025", 3)
+                + bucket("0.0005", 3)
+                + bucket("0.001", 3)
+                + bucket("0.0025", 3)
+                + bucket("0.005", 3)
+                + bucket("0.01", 3)
+                + bucket("0.025", 3)
+                + bucket("0.05", 3)
+                + bucket("0.1", 3)
+                + bucket("0.25", 3)
+                + bucket("0.5", 3)
+                + bucket("1", 3)
+                + bucket("2.5", 4)
+                + bucket("5", 4)
+                + bucket("10", 4)
+                + bucket("+Inf", 5)
+                + "weatherstation_publish_seconds_sum{transport=\"rest\"} 22.000015\n"
+                + "weatherstation_publish_seconds_count{transport=\"rest\"} 5\n",
+                out.toString());
+    }
+
+    private static String bucket(String le, long count) {
+        return "weatherstation_publish_seconds_bucket{transport=\"rest\",le=\"" + le + "\"} "
+                + count + "\n";
+    }
+
+    // Each LatencyHistogram bucket is mapped to the first exported bound at or above its upper
+    // bound, so a duration is counted from at most 12.5% above its value, and +Inf is _count.
+    @Test
+    public void histogramBucketsBoundEveryDuration() throws IOException {
+        String[] bounds = {"0.00001", "0.00005", "0.0001", "0.00025", "0.0005", "0.001",
+                "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5",
+                "10"};
+        for (long nanos = 1; nanos < TimeUnit.SECONDS.toNanos(20); nanos = nanos * 9 / 8 + 1) {
+            Metrics metrics = new Metrics();
+            metrics.histogram("latency_seconds", "Latency").record(nanos);
+            StringBuilder out = new StringBuilder();
+            metrics.writePrometheus(out);
+            String text = out.toString();
+            for (String bound : bounds) {
+                long boundNanos = Math.round(Double.parseDouble(bound) * 1e9);
+                String le = "latency_seconds_bucket{le=\"" + bound + "\"} ";
+                int start = text.indexOf(le);
+                long count = Long.parseLong(text.substring(start + le.length(),
+                        text.indexOf('\n', start)));
+                if (nanos > boundNanos) {
+                    assertEquals(nanos + " in " + bound, 0, count);
+                } else if (nanos * 9 / 8 <= boundNanos) {
+                    assertEquals(nanos + " in " + bound, 1, count);
+                }
+            }
+            assertTrue(text.contains("latency_seconds_bucket{le=\"+Inf\"} 1\n"));
+            assertTrue(text.contains("latency_seconds_count 1\n"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidName() {
+        new Metrics().counter("weather-station", "help");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsLeLabel() {
+        new Metrics().counter("requests_total", "help", "le", "1");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDuplicateChild() {
+        Metrics metrics = new Metrics();
+        metrics.counter("requests_total", "help", "path", "/");
+        metrics.counter("requests_total", "help", "path", "/");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTypeChange() {
+        Metrics metrics = new Metrics();
+        metrics.counter("requests", "help");
+        metrics.histogram("requests", "help", "path", "/");
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+public class PressureTrendTest {
+
+    private static final long START_MS = 1500000000000L;
+    private static final long SAMPLE_MS = TimeUnit.SECONDS.toMillis(10);
+    private static final long HOUR_MS = TimeUnit.HOURS.toMillis(1);
+
+    // Slope in hPa per hour of the least-squares line through the samples of the buckets
+    // [firstBucket, lastBucket].
+    private static double regression(long[] timestamps, float[] pressures, int count,
+                                     long firstBucket, long lastBucket) {
+        int n = 0;
+        double sumT = 0;
+        double sumP = 0;
+        for (int i = 0; i < count; i++) {
+            long bucket = timestamps[i] / PressureTrend.BUCKET_MS;
+            if (bucket >= firstBucket && bucket <= lastBucket) {
+                n++;
+                sumT += (timestamps[i] - START_MS) / 1000.;
+                sumP += pressures[i];
+            }
+        }
+        double meanT = sumT / n;
+        double meanP = sumP / n;
+        double covariance = 0;
+        double variance = 0;
+        for (int i = 0; i < count; i++) {
+            long bucket = timestamps[i] / PressureTrend.BUCKET_MS;
+            if (bucket >= firstBucket && bucket <= lastBucket) {
+                double t = (timestamps[i] - START_MS) / 1000. - meanT;
+                covariance += t * (pressures[i] - meanP);
+                variance += t * t;
+            }
+        }
+        return covariance / variance * TimeUnit.HOURS.toSeconds(1);
+    }
+
+    @Test
+    public void tendencyOfSteadyRiseIsItsSlope() {
+        PressureTrend trend = new PressureTrend();
+        for (long t = START_MS; t < START_MS + 4 * HOUR_MS; t += SAMPLE_MS) {
+            trend.add(t, 1000f + 1.5f * (t - START_MS) / HOUR_MS);
+        }
+        assertEquals(1.5f, trend.getTendency(PressureTrend.HORIZON_1H), 1e-3f);
+        assertEquals(1.5f, trend.getTendency(PressureTrend.HORIZON_3H), 1e-3f);
+        assertEquals(Barometer.WEATHER_SUNNY, trend.getForecast());
+    }
+
+    @Test
+    public void tendenciesMatchDirectRegression() {
+        Random random = new Random(7);
+        int samples = (int) (6 * HOUR_MS / SAMPLE_MS);
+        long[] timestamps = new long[samples];
+        float[] pressures = new float[samples];
+        PressureTrend trend = new PressureTrend();
+        long firstBucket = START_MS / PressureTrend.BUCKET_MS;
+        long bucket = firstBucket;
+        for (int i = 0; i < samples; i++) {
+            timestamps[i] = START_MS + i * SAMPLE_MS + random.nextInt(1000);
+            // A slow swing with noise, so the tendency changes sign over the run.
+            double hours = (double) (timestamps[i] - START_MS) / HOUR_MS;
+            pressures[i] = (float) (1005 + 4 * Math.sin(hours) + random.nextGaussian() * 0.3);
+            trend.add(timestamps[i], pressures[i]);
+            long next = timestamps[i] / PressureTrend.BUCKET_MS;
+            if (next == bucket) {
+                continue;
+            }
+            bucket = next;
+            // The tendencies now cover the closed buckets of each horizon.
+            assertTendency(trend, PressureTrend.HORIZON_1H, 60, timestamps, pressures, i,
+                    firstBucket, bucket);
+            assertTendency(trend, PressureTrend.HORIZON_3H, 180, timestamps, pressures, i,
+                    firstBucket, bucket);
+        }
+    }
+
+    private static void assertTendency(PressureTrend trend, int horizon, int buckets,
+                                       long[] timestamps, float[] pressures, int count,
+                                       long firstBucket, long bucket) {
+        float tendency = trend.getTendency(horizon);
+        if (bucket - firstBucket < buckets / 2) {
+            assertTrue(Float.isNaN(tendency));
+            return;
+        }
+        double expected = regression(timestamps, pressures, count,
+                Math.max(firstBucket, bucket - buckets + 1), bucket - 1);
+        assertEquals(expected, tendency, 1e-3);
+    }
+
+    @Test
+    public void tendencyUnknownUntilHalfTheHorizonIsCovered() {
+        PressureTrend trend = new PressureTrend();
+        long t = START_MS;
+        for (; t < START_MS + HOUR_MS / 2 - PressureTrend.BUCKET_MS; t += SAMPLE_MS) {
+            trend.add(t, 1010f);
+        }
+        assertTrue(Float.isNaN(trend.getTendency(PressureTrend.HORIZON_1H)));
+        for (; t < START_MS + HOUR_MS / 2 + PressureTrend.BUCKET_MS; t += SAMPLE_MS) {
+            trend.add(t, 1010f);
+        }
+        assertEquals(0f, trend.getTendency(PressureTrend.HORIZON_1H), 1e-4f);
+        assertTrue(Float.isNaN(trend.getTendency(PressureTrend.HORIZON_3H)));
+    }
+
+    @Test
+    public void outageLongerThanHorizonResetsTendency() {
+        PressureTrend trend = new PressureTrend();
+        long t = START_MS;
+        for (; t < START_MS + 2 * HOUR_MS; t += SAMPLE_MS) {
+            trend.add(t, 1010f);
+        }
+        assertFalse(Float.isNaN(trend.getTendency(PressureTrend.HORIZON_1H)));
+        t += 4 * HOUR_MS;
+        for (long end = t + 5 * PressureTrend.BUCKET_MS; t < end; t += SAMPLE_MS) {
+            trend.add(t, 990f);
+        }
+        // Nothing is left of the samples before the outage, and too little since.
+        assertTrue(Float.isNaN(trend.getTendency(PressureTrend.HORIZON_1H)));
+        assertTrue(Float.isNaN(trend.getTendency(PressureTrend.HORIZON_3H)));
+    }
+
+    @Test
+    public void ignoresSamplesOlderThanCurrentMinute() {
+        PressureTrend trend = new PressureTrend();
+        for (long t = START_MS; t < START_MS + HOUR_MS; t += SAMPLE_MS) {
+            trend.add(t, 1000f + (float) (t - START_MS) / HOUR_MS);
+        }
+        float tendency = trend.getTendency(PressureTrend.HORIZON_1H);
+        int forecast = trend.getForecast();
+        assertEquals(forecast, trend.add(START_MS, 900f));
+        assertEquals(tendency, trend.getTendency(PressureTrend.HORIZON_1H), 0f);
+    }
+
+    @Test
+    public void forecastHoldsWithinHysteresis() {
+        PressureTrend trend = new PressureTrend();
+        assertEquals(-1, trend.getForecast());
+        assertEquals(Barometer.WEATHER_SUNNY, trend.add(START_MS, 1010.1f));
+        // Hovering around the threshold keeps the forecast, counting the changes held back.
+        assertEquals(Barometer.WEATHER_SUNNY, trend.add(START_MS + 1000, 1009.9f));
+        assertEquals(Barometer.WEATHER_SUNNY, trend.add(START_MS + 2000, 1010.1f));
+        assertEquals(Barometer.WEATHER_SUNNY, trend.add(START_MS + 3000, 1009.8f));
+        assertEquals(2, trend.getSuppressedChangeCount());
+        assertEquals(Barometer.WEATHER_CLOUDY, trend.add(START_MS + 4000, 1009f));
+        assertEquals(Barometer.WEATHER_CLOUDY, trend.getForecast());
+    }
+}
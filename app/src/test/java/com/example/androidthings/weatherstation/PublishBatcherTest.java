@@ -0,0 +1,68 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PublishBatcherTest {
+
+    @Test
+    public void readyWhenFull() {
+        PublishBatcher batcher = new PublishBatcher(new PublishBatcher.Policy(3, 1000, 60000));
+        assertFalse(batcher.add(Channel.TEMPERATURE, 1, 20f, 10));
+        assertFalse(batcher.add(Channel.TEMPERATURE, 2, 20f, 10));
+        assertTrue(batcher.add(Channel.TEMPERATURE, 3, 20f, 10));
+    }
+
+    @Test
+    public void readyBeforeExceedingBytes() {
+        PublishBatcher batcher = new PublishBatcher(new PublishBatcher.Policy(100, 25, 60000));
+        assertFalse(batcher.add(Channel.TEMPERATURE, 1, 20f, 10));
+        // A third sample would not fit.
+        assertTrue(batcher.add(Channel.TEMPERATURE, 2, 20f, 10));
+    }
+
+    @Test
+    public void drainingWhenReadyKeepsEverySample() {
+        PublishBatcher batcher = new PublishBatcher(new PublishBatcher.Policy(7, 1000, 60000));
+        int drained = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (batcher.add(Channel.PRESSURE, i, 1000f + i, 10)) {
+                drained += batcher.drain().size();
+            }
+        }
+        drained += batcher.drain().size();
+        assertEquals(1000, drained);
+        assertEquals(0, batcher.getDroppedCount());
+    }
+
+    @Test
+    public void dropsOnlyWhenReadyBatchIsNotDrained() {
+        PublishBatcher batcher = new PublishBatcher(new PublishBatcher.Policy(2, 1000, 60000));
+        batcher.add(Channel.PRESSURE, 1, 1000f, 10);
+        batcher.add(Channel.PRESSURE, 2, 1000f, 10);
+        assertTrue(batcher.add(Channel.PRESSURE, 3, 1000f, 10));
+        assertEquals(1, batcher.getDroppedCount());
+        SampleBuffer batch = batcher.drain();
+        assertEquals(2, batch.size());
+        assertEquals(2, batch.timestamps[1]);
+    }
+}
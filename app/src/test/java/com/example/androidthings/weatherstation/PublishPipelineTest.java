@@ -0,0 +1,266 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PublishPipelineTest {
+
+    private static final List<byte[]> PAYLOADS = Arrays.asList(new byte[] {1}, new byte[] {2});
+
+    /**
+     * Records the sequence numbers of every attempt, failing the first ones.
+     */
+    private static class FakeTransport implements PublishTransport {
+        final List<long[]> attempts = Collections.synchronizedList(new ArrayList<long[]>());
+        final CountDownLatch sending = new CountDownLatch(1);
+        private final AtomicInteger mFailures;
+        private final CountDownLatch mRelease;
+
+        FakeTransport(int failures, CountDownLatch release) {
+            mFailures = new AtomicInteger(failures);
+            mRelease = release;
+        }
+
+        @Override
+        public void send(List<byte[]> payloads, long[] sequences, String[] sessions)
+                throws IOException {
+            attempts.add(sequences.clone());
+            sending.countDown();
+            try {
+                mRelease.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (mFailures.getAndDecrement() > 0) {
+                throw new IOException("Unavailable");
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class Result implements PublishPipeline.Callback {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        volatile boolean success;
+        volatile IOException error;
+        volatile long[] failedSequences;
+
+        @Override
+        public void onSuccess(List<byte[]> payloads) {
+            success = true;
+            calls.incrementAndGet();
+            done.countDown();
+        }
+
+        @Override
+        public void onFailure(List<byte[]> payloads, long[] sequences, String[] sessions,
+                              IOException e) {
+            error = e;
+            failedSequences = sequences;
+            calls.incrementAndGet();
+            done.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        }
+    }
+
+    private static PublishPipeline.Policy policy(int maxInFlight, int maxPending) {
+        return new PublishPipeline.Policy(maxInFlight, maxPending, 5, 1, 10, 10,
+                TimeUnit.MINUTES.toMillis(1));
+    }
+
+    @Test
+    public void sequencesAreConsecutive() {
+        assertArrayEquals(new long[] {41, 42, 43}, PublishPipeline.sequences(41, 3));
+        assertEquals(0, PublishPipeline.sequences(7, 0).length);
+    }
+
+    @Test
+    public void retriesKeepSequenceNumbers() throws InterruptedException {
+        FakeTransport transport = new FakeTransport(2, new CountDownLatch(0));
+        PublishPipeline pipeline = new PublishPipeline(transport, policy(1, 4));
+        Result result = new Result();
+        assertTrue(pipeline.submit(PAYLOADS, new long[] {100, 101}, null, result));
+        result.await();
+        assertTrue(result.success);
+        assertEquals(3, transport.attempts.size());
+        for (long[] attempt : transport.attempts) {
+            assertArrayEquals(new long[] {100, 101}, attempt);
+        }
+        assertEquals(2, pipeline.getRetriedCount());
+        pipeline.shutdown(1000);
+    }
+
+    @Test
+    public void failsAfterMaxAttempts() throws InterruptedException {
+        FakeTransport transport = new FakeTransport(Integer.MAX_VALUE, new CountDownLatch(0));
+        PublishPipeline pipeline = new PublishPipeline(transport, policy(1, 4));
+        Result result = new Result();
+        pipeline.submit(PAYLOADS, new long[] {0, 1}, null, result);
+        result.await();
+        assertFalse(result.success);
+        assertEquals("Unavailable", result.error.getMessage());
+        assertEquals(5, transport.attempts.size());
+        assertEquals(1, pipeline.getFailedCount());
+        assertEquals(0, pipeline.getPendingCount());
+        pipeline.shutdown(1000);
+    }
+
+    @Test
+    public void runtimeExceptionFailsRequestWithoutRetry() throws InterruptedException {
+        final AtomicInteger attempts = new AtomicInteger();
+        PublishPipeline pipeline = new PublishPipeline(new PublishTransport() {
+            @Override
+            public void send(List<byte[]> payloads, long[] sequences, String[] sessions) {
+                if (attempts.incrementAndGet() == 1) {
+                    throw new IllegalStateException("Bug");
+                }
+            }
+
+            @Override
+            public void close() {
+            }
+        }, policy(1, 1));
+        Result result = new Result();
+        assertTrue(pipeline.submit(PAYLOADS, new long[] {0, 1}, null, result));
+        result.await();
+        assertFalse(result.success);
+        assertTrue(result.error.getCause() instanceof IllegalStateException);
+        assertArrayEquals(new long[] {0, 1}, result.failedSequences);
+        assertEquals(0, pipeline.getPendingCount());
+        assertEquals(1, pipeline.getFailedCount());
+        assertEquals(0, pipeline.getRetriedCount());
+        // Its slot is free again.
+        Result next = new Result();
+        assertTrue(pipeline.submit(PAYLOADS, new long[] {2, 3}, null, next));
+        next.await();
+        assertTrue(next.success);
+        assertEquals(2, attempts.get());
+        pipeline.shutdown(1000);
+    }
+
+    @Test
+    public void rejectedRequestKeepsItsSequenceNumbers() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        FakeTransport transport = new FakeTransport(0, release);
+        PublishPipeline pipeline = new PublishPipeline(transport, policy(1, 1));
+        Result first = new Result();
+        assertTrue(pipeline.submit(PAYLOADS, new long[] {0, 1}, null, first));
+        Result rejected = new Result();
+        assertFalse(pipeline.submit(PAYLOADS, new long[] {2, 3}, null, rejected));
+        // Called back before submit() returns.
+        assertEquals(1, rejected.calls.get());
+        assertArrayEquals(new long[] {2, 3}, rejected.failedSequences);
+        assertEquals(1, pipeline.getRejectedCount());
+        release.countDown();
+        first.await();
+        assertTrue(first.success);
+        pipeline.shutdown(1000);
+    }
+
+    @Test
+    public void circuitBreakerOpensAfterConsecutiveFailures() throws InterruptedException {
+        FakeTransport transport = new FakeTransport(Integer.MAX_VALUE, new CountDownLatch(0));
+        PublishPipeline pipeline = new PublishPipeline(transport, new PublishPipeline.Policy(1, 4,
+                1, 1, 10, 2, TimeUnit.MINUTES.toMillis(1)));
+        for (int i = 0; i < 2; i++) {
+            Result result = new Result();
+            pipeline.submit(PAYLOADS, PublishPipeline.sequences(2 * i, 2), null, result);
+            result.await();
+        }
+        assertTrue(pipeline.isCircuitOpen());
+        Result rejected = new Result();
+        assertFalse(pipeline.submit(PAYLOADS, new long[] {4, 5}, null, rejected));
+        assertEquals("Circuit breaker open", rejected.error.getMessage());
+        assertEquals(2, transport.attempts.size());
+        pipeline.shutdown(1000);
+    }
+
+    @Test
+    public void shutdownFailsRequestsWaitingForRetry() throws InterruptedException {
+        FakeTransport transport = new FakeTransport(Integer.MAX_VALUE, new CountDownLatch(0));
+        PublishPipeline pipeline = new PublishPipeline(transport, new PublishPipeline.Policy(1, 4,
+                5, TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(1), 10,
+                TimeUnit.MINUTES.toMillis(1)));
+        Result result = new Result();
+        pipeline.submit(PAYLOADS, new long[] {0, 1}, null, result);
+        while (pipeline.getRetriedCount() == 0) {
+            Thread.sleep(1);
+        }
+        pipeline.shutdown(1000);
+        assertEquals(1, result.calls.get());
+        assertFalse(result.success);
+        assertEquals(0, pipeline.getPendingCount());
+    }
+
+    @Test
+    public void shutdownFailsRequestsStillInFlight() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        FakeTransport transport = new FakeTransport(0, release);
+        PublishPipeline pipeline = new PublishPipeline(transport, policy(1, 2));
+        Result inFlight = new Result();
+        Result queued = new Result();
+        pipeline.submit(PAYLOADS, new long[] {5, 6}, null, inFlight);
+        pipeline.submit(PAYLOADS, new long[] {7, 8}, null, queued);
+        assertTrue(transport.sending.await(10, TimeUnit.SECONDS));
+        pipeline.shutdown(50);
+        // Both are failed before shutdown() returns, so the caller can journal them.
+        assertEquals(1, inFlight.calls.get());
+        assertNotNull(inFlight.failedSequences);
+        assertArrayEquals(new long[] {5, 6}, inFlight.failedSequences);
+        assertArrayEquals(new long[] {7, 8}, queued.failedSequences);
+        assertEquals(0, pipeline.getPendingCount());
+        // The request in flight completing later does not call back a second time.
+        release.countDown();
+        Thread.sleep(100);
+        assertEquals(1, inFlight.calls.get());
+        assertFalse(inFlight.success);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMismatchedSequences() {
+        PublishPipeline pipeline = new PublishPipeline(
+                new FakeTransport(0, new CountDownLatch(0)), policy(1, 1));
+        pipeline.submit(PAYLOADS, new long[] {0}, null, new Result());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidPolicy() {
+        new PublishPipeline.Policy(2, 1, 5, 1, 10, 10, 1000);
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.Json;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.client.util.Base64;
+import com.google.api.services.pubsub.model.PublishRequest;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class RestPublishTransportTest {
+
+    private static final String TOPIC = "projects/station/topics/readings";
+
+    /**
+     * Records the publish requests, and answers them with {@code status}, or fails to connect.
+     */
+    private static final class FakePubsub extends MockHttpTransport {
+        final List<MockLowLevelHttpRequest> requests = new ArrayList<>();
+        int status = 200;
+        boolean unreachable;
+        boolean shutdown;
+
+        @Override
+        public LowLevelHttpRequest buildRequest(String method, String url) {
+            MockLowLevelHttpRequest request = new MockLowLevelHttpRequest(url) {
+                @Override
+                public LowLevelHttpResponse execute() throws IOException {
+                    if (unreachable) {
+                        throw new ConnectException("Connection refused");
+                    }
+                    return super.execute();
+                }
+            };
+            request.setResponse(new MockLowLevelHttpResponse()
+                    .setStatusCode(status)
+                    .setContentType(Json.MEDIA_TYPE)
+                    .setContent(status == 200 ? "{\"messageIds\": [\"1\", \"2\"]}"
+                            : "{\"error\": {\"code\": " + status + "}}"));
+            requests.add(request);
+            return request;
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+        }
+    }
+
+    private static final HttpRequestInitializer BEARER = new HttpRequestInitializer() {
+        @Override
+        public void initialize(HttpRequest request) {
+            request.getHeaders().setAuthorization("Bearer token1");
+        }
+    };
+
+    private final FakePubsub mPubsub = new FakePubsub();
+
+    private RestPublishTransport newTransport(HttpRequestInitializer credentials) {
+        return new RestPublishTransport(mPubsub, credentials, "station", TOPIC, "session1");
+    }
+
+    @Test
+    public void publishesMessagesWithSessionAndSequence() throws IOException {
+        byte[] first = {1, 2, 3, (byte) 0xFF};
+        byte[] second = "{\"deviceId\":\"station\"}".getBytes("UTF-8");
+        newTransport(BEARER).send(Arrays.asList(first, second), new long[] {41, 42}, null);
+
+        assertEquals(1, mPubsub.requests.size());
+        MockLowLevelHttpRequest request = mPubsub.requests.get(0);
+        assertTrue(request.getUrl(), request.getUrl().endsWith("/v1/" + TOPIC + ":publish"));
+        assertEquals("Bearer token1", request.getFirstHeaderValue("Authorization"));
+        PublishRequest body = JacksonFactory.getDefaultInstance()
+                .fromString(request.getContentAsString(), PublishRequest.class);
+        assertEquals(2, body.getMessages().size());
+        assertArrayEquals(first, Base64.decodeBase64(body.getMessages().get(0).getData()));
+        assertArrayEquals(second, Base64.decodeBase64(body.getMessages().get(1).getData()));
+        assertEquals("session1", body.getMessages().get(1).getAttributes().get("session"));
+        assertEquals("41", body.getMessages().get(0).getAttributes().get("seq"));
+        assertEquals("42", body.getMessages().get(1).getAttributes().get("seq"));
+    }
+
+    @Test
+    public void publishesPeerMessagesWithTheirSession() throws IOException {
+        newTransport(BEARER).send(Arrays.asList(new byte[1], new byte[2]), new long[] {7, 3},
+                new String[] {"peer-session", null});
+
+        PublishRequest body = JacksonFactory.getDefaultInstance()
+                .fromString(mPubsub.requests.get(0).getContentAsString(), PublishRequest.class);
+        assertEquals("peer-session", body.getMessages().get(0).getAttributes().get("session"));
+        assertEquals("7", body.getMessages().get(0).getAttributes().get("seq"));
+        assertEquals("session1", body.getMessages().get(1).getAttributes().get("session"));
+        assertEquals("3", body.getMessages().get(1).getAttributes().get("seq"));
+    }
+
+    @Test
+    public void encodesLargePayloadOnOneLine() throws IOException {
+        byte[] payload = new byte[1000];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        newTransport(BEARER).send(Arrays.asList(payload), new long[] {1}, null);
+        PublishRequest body = JacksonFactory.getDefaultInstance()
+                .fromString(mPubsub.requests.get(0).getContentAsString(), PublishRequest.class);
+        String data = body.getMessages().get(0).getData();
+        assertTrue(data, data.matches("[A-Za-z0-9+/]+=*"));
+        assertArrayEquals(payload, Base64.decodeBase64(data));
+    }
+
+    @Test
+    public void errorResponseIsAnIOException() {
+        mPubsub.status = 503;
+        try {
+            newTransport(BEARER).send(Arrays.asList(new byte[1]), new long[] {1}, null);
+            fail();
+        } catch (HttpResponseException e) {
+            assertEquals(503, e.getStatusCode());
+        } catch (IOException e) {
+            fail(e.toString());
+        }
+    }
+
+    @Test(expected = ConnectException.class)
+    public void connectionFailureIsAnIOException() throws IOException {
+        mPubsub.unreachable = true;
+        newTransport(BEARER).send(Arrays.asList(new byte[1]), new long[] {1}, null);
+    }
+
+    @Test
+    public void credentialFailureIsAnIOException() {
+        try {
+            newTransport(new HttpRequestInitializer() {
+                @Override
+                public void initialize(HttpRequest request) throws IOException {
+                    throw new IOException("no token");
+                }
+            }).send(Arrays.asList(new byte[1]), new long[] {1}, null);
+            fail();
+        } catch (IOException e) {
+            assertEquals("no token", e.getMessage());
+        }
+        assertTrue(mPubsub.requests.isEmpty());
+    }
+
+    @Test
+    public void closedTransportFails() throws IOException {
+        RestPublishTransport transport = newTransport(BEARER);
+        transport.close();
+        assertTrue(mPubsub.shutdown);
+        try {
+            transport.send(Arrays.asList(new byte[1]), new long[] {1}, null);
+            fail();
+        } catch (IOException e) {
+            assertTrue(mPubsub.requests.isEmpty());
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class SampleFilterTest {
+
+    private static final long START_MS = 1500000000000L;
+
+    @Test
+    public void medianMatchesSortedWindow() {
+        Random random = new Random(3);
+        for (int window : new int[] {1, 2, 5, 8}) {
+            SampleFilter filter = SampleFilter.median(window);
+            float[] values = new float[1000];
+            for (int i = 0; i < values.length; i++) {
+                // Few distinct values, so the window often holds duplicates.
+                values[i] = random.nextInt(10);
+                int from = Math.max(0, i - window + 1);
+                float[] sorted = Arrays.copyOfRange(values, from, i + 1);
+                Arrays.sort(sorted);
+                int n = sorted.length;
+                float expected = (n & 1) == 1 ? sorted[n / 2]
+                        : (sorted[n / 2 - 1] + sorted[n / 2]) / 2;
+                assertEquals(expected, filter.filter(START_MS + i, values[i]), 0f);
+            }
+        }
+    }
+
+    @Test
+    public void medianDropsOutlier() {
+        SampleFilter filter = SampleFilter.median(3);
+        filter.filter(START_MS, 20f);
+        filter.filter(START_MS + 1, 21f);
+        assertEquals(21f, filter.filter(START_MS + 2, 85f), 0f);
+        assertEquals(21f, filter.filter(START_MS + 3, 20.5f), 0f);
+    }
+
+    @Test
+    public void emaWeighsByElapsedTime() {
+        SampleFilter filter = SampleFilter.ema(1000);
+        assertEquals(10f, filter.filter(START_MS, 10f), 0f);
+        // One time constant later, the new reading weighs 1 - 1/e.
+        float expected = (float) (10 + 10 * (1 - Math.exp(-1)));
+        assertEquals(expected, filter.filter(START_MS + 1000, 20f), 1e-5f);
+    }
+
+    @Test
+    public void emaDoesNotDependOnSamplingRate() {
+        SampleFilter slow = SampleFilter.ema(1000);
+        SampleFilter fast = SampleFilter.ema(1000);
+        slow.filter(START_MS, 0f);
+        fast.filter(START_MS, 0f);
+        float fastValue = 0f;
+        for (int i = 1; i <= 10; i++) {
+            fastValue = fast.filter(START_MS + i * 100, 5f);
+        }
+        assertEquals(slow.filter(START_MS + 1000, 5f), fastValue, 1e-5f);
+    }
+
+    @Test
+    public void kalmanConvergesOnConstantValue() {
+        Random random = new Random(5);
+        SampleFilter filter = SampleFilter.kalman(0.001f, 0.25f);
+        float estimate = 0f;
+        for (int i = 0; i < 500; i++) {
+            estimate = filter.filter(START_MS + i * 1000,
+                    1013f + (float) random.nextGaussian() * 0.5f);
+        }
+        assertEquals(1013f, estimate, 0.2f);
+    }
+
+    @Test
+    public void kalmanStartsAtFirstReadingAndAveragesTheNext() {
+        SampleFilter filter = SampleFilter.kalman(0f, 1f);
+        assertEquals(10f, filter.filter(START_MS, 10f), 0f);
+        // Without process noise, the estimate is the mean of the readings.
+        assertEquals(15f, filter.filter(START_MS + 1000, 20f), 1e-5f);
+        assertEquals(20f, filter.filter(START_MS + 2000, 30f), 1e-5f);
+    }
+
+    @Test
+    public void nanPassesThroughWithoutUpdatingState() {
+        SampleFilter[] filters = {SampleFilter.median(3), SampleFilter.ema(1000),
+                SampleFilter.kalman(0.01f, 1f)};
+        SampleFilter[] twins = {SampleFilter.median(3), SampleFilter.ema(1000),
+                SampleFilter.kalman(0.01f, 1f)};
+        for (int i = 0; i < filters.length; i++) {
+            filters[i].filter(START_MS, 10f);
+            twins[i].filter(START_MS, 10f);
+            assertTrue(Float.isNaN(filters[i].filter(START_MS + 500, Float.NaN)));
+            assertEquals(twins[i].filter(START_MS + 1000, 14f),
+                    filters[i].filter(START_MS + 1000, 14f), 0f);
+        }
+    }
+
+    @Test
+    public void chainAppliesFiltersInTurn() {
+        SampleFilter chain = SampleFilter.chain(SampleFilter.median(3),
+                SampleFilter.kalman(0f, 1f));
+        SampleFilter median = SampleFilter.median(3);
+        SampleFilter kalman = SampleFilter.kalman(0f, 1f);
+        float[] values = {20f, 21f, 85f, 20.5f, 19f};
+        for (int i = 0; i < values.length; i++) {
+            long t = START_MS + i * 1000;
+            assertEquals(kalman.filter(t, median.filter(t, values[i])),
+                    chain.filter(t, values[i]), 0f);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyMedianWindow() {
+        SampleFilter.median(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeMeasurementNoise() {
+        SampleFilter.kalman(0.01f, -1f);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class SensorCaptureTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static final class Recording implements SampleSink {
+        final List<Integer> channels = new ArrayList<>();
+        final List<Long> timestamps = new ArrayList<>();
+        final List<Integer> bits = new ArrayList<>();
+
+        @Override
+        public void onSample(int channel, long timestampMs, float value) {
+            channels.add(channel);
+            timestamps.add(timestampMs);
+            bits.add(Float.floatToRawIntBits(value));
+        }
+    }
+
+    @Test
+    public void replaysCapturedSamplesExactly() throws IOException {
+        Random random = new Random(7);
+        Recording captured = new Recording();
+        File file = mFolder.newFile("capture.bin");
+        SensorCapture.Recorder recorder = new SensorCapture.Recorder(file, Long.MAX_VALUE);
+        long timestampMs = 1480000000000L;
+        float[] special = {Float.NaN, -0f, Float.POSITIVE_INFINITY, Float.MIN_VALUE};
+        for (int i = 0; i < 10000; i++) {
+            int channel = random.nextInt(2) == 0 ? Channel.TEMPERATURE : Channel.PRESSURE;
+            // Mostly in order, sometimes late.
+            timestampMs += random.nextInt(10) == 0 ? -random.nextInt(5000) : random.nextInt(2000);
+            float value = i % 1000 == 0 ? special[i / 1000 % special.length]
+                    : channel == Channel.PRESSURE ? 1013f + random.nextFloat()
+                    : 20f + random.nextFloat();
+            recorder.onSample(channel, timestampMs, value);
+            captured.onSample(channel, timestampMs, value);
+        }
+        recorder.close();
+        assertEquals(10000, recorder.getRecordedCount());
+        assertEquals(0, recorder.getErrorCount());
+        // Small deltas take a few bytes per sample.
+        assertTrue(file.length() < 10000 * 8);
+
+        Recording replayed = new Recording();
+        SensorReplayer replayer = new SensorReplayer(SensorReplayer.MAX_SPEED);
+        assertEquals(10000, replayer.replay(file, replayed));
+        assertEquals(captured.channels, replayed.channels);
+        assertEquals(captured.timestamps, replayed.timestamps);
+        assertEquals(captured.bits, replayed.bits);
+        assertEquals(10000, replayer.getReplayedCount());
+        assertEquals(captured.timestamps.get(9999) - captured.timestamps.get(0),
+                replayer.getReplayedMillis());
+    }
+
+    @Test
+    public void ignoresUnknownChannels() throws IOException {
+        File file = mFolder.newFile("capture.bin");
+        SensorCapture.Recorder recorder = new SensorCapture.Recorder(file, Long.MAX_VALUE);
+        recorder.onSample(-1, 1, 1f);
+        recorder.onSample(Channel.ID_LIMIT, 2, 2f);
+        recorder.onSample(Channel.PRESSURE, 3, 3f);
+        recorder.close();
+        Recording replayed = new Recording();
+        new SensorReplayer(SensorReplayer.MAX_SPEED).replay(file, replayed);
+        assertEquals(Arrays.asList(Channel.PRESSURE), replayed.channels);
+        assertEquals(Arrays.asList(3L), replayed.timestamps);
+    }
+
+    @Test
+    public void rollsOverToPreviousFile() throws IOException {
+        File file = mFolder.newFile("capture.bin");
+        SensorCapture.Recorder recorder = new SensorCapture.Recorder(file, 64);
+        for (int i = 0; i < 100; i++) {
+            recorder.onSample(Channel.TEMPERATURE, 1000 + i, i);
+        }
+        recorder.close();
+        Recording previous = new Recording();
+        Recording current = new Recording();
+        new SensorReplayer(SensorReplayer.MAX_SPEED).replay(new File(file.getPath() + ".1"),
+                previous);
+        new SensorReplayer(SensorReplayer.MAX_SPEED).replay(file, current);
+        assertFalse(previous.timestamps.isEmpty());
+        assertFalse(current.timestamps.isEmpty());
+        // Each file decodes on its own, and the newest one ends with the last sample.
+        long last = current.timestamps.get(current.timestamps.size() - 1);
+        assertEquals(1099, last);
+        assertEquals(Float.floatToRawIntBits(99f),
+                (int) current.bits.get(current.bits.size() - 1));
+        long first = current.timestamps.get(0);
+        assertEquals(previous.timestamps.get(previous.timestamps.size() - 1) + 1, first);
+        assertEquals(Float.floatToRawIntBits(first - 1000), (int) current.bits.get(0));
+    }
+
+    @Test
+    public void stopsAtTruncatedSample() throws IOException {
+        File file = mFolder.newFile("capture.bin");
+        SensorCapture.Recorder recorder = new SensorCapture.Recorder(file, Long.MAX_VALUE);
+        recorder.onSample(Channel.TEMPERATURE, 1000, 21.5f);
+        recorder.onSample(Channel.TEMPERATURE, 2000, 21.75f);
+        recorder.close();
+        byte[] bytes = new byte[(int) file.length()];
+        try (InputStream in = new FileInputStream(file)) {
+            assertEquals(bytes.length, in.read(bytes));
+        }
+        Recording replayed = new Recording();
+        SensorCapture.Reader reader = new SensorCapture.Reader(
+                new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 1)));
+        assertEquals(1, new SensorReplayer(SensorReplayer.MAX_SPEED).replay(reader, replayed));
+        assertEquals(Arrays.asList(1000L), replayed.timestamps);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        new SensorCapture.Reader(new ByteArrayInputStream(new byte[] {'W', 'S', 'C', '2'}));
+    }
+
+    @Test
+    public void pacesReplayToCaptureTime() throws IOException {
+        File file = mFolder.newFile("capture.bin");
+        SensorCapture.Recorder recorder = new SensorCapture.Recorder(file, Long.MAX_VALUE);
+        recorder.onSample(Channel.TEMPERATURE, 0, 1f);
+        recorder.onSample(Channel.TEMPERATURE, 2000, 2f);
+        recorder.close();
+        long start = System.nanoTime();
+        // 2 seconds at 20 times the original speed.
+        new SensorReplayer(20).replay(file, new Recording());
+        assertTrue(System.nanoTime() - start >= 100000000L);
+    }
+}
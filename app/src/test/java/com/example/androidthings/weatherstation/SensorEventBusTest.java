@@ -0,0 +1,239 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class SensorEventBusTest {
+
+    /**
+     * Runs the drains only when asked to, as a busy consumer thread would.
+     */
+    private static final class ManualExecutor implements Executor {
+        final ArrayDeque<Runnable> pending = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable command) {
+            pending.add(command);
+        }
+
+        void runAll() {
+            while (!pending.isEmpty()) {
+                pending.poll().run();
+            }
+        }
+    }
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static final class Recorder implements SampleSink {
+        final List<Integer> channels = new ArrayList<>();
+        final List<Long> timestamps = new ArrayList<>();
+        final List<Float> values = new ArrayList<>();
+
+        @Override
+        public void onSample(int channel, long timestampMs, float value) {
+            channels.add(channel);
+            timestamps.add(timestampMs);
+            values.add(value);
+        }
+    }
+
+    @Test
+    public void deliversInlineInOrder() {
+        SensorEventBus bus = new SensorEventBus();
+        Recorder recorder = new Recorder();
+        SensorEventBus.Subscription subscription = bus.subscribe("inline",
+                SensorEventBus.DROP_OLDEST, 4, recorder, DIRECT);
+        for (int i = 0; i < 10; i++) {
+            bus.publish(i % 2, 1000 + i, i);
+        }
+        assertEquals(10, recorder.values.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i % 2, (int) recorder.channels.get(i));
+            assertEquals(1000 + i, (long) recorder.timestamps.get(i));
+            assertEquals(i, recorder.values.get(i), 0f);
+        }
+        assertEquals(10, subscription.getDeliveredCount());
+        assertEquals(0, subscription.getDroppedCount());
+    }
+
+    @Test
+    public void dropOldestKeepsNewestSamplesWhenFull() {
+        SensorEventBus bus = new SensorEventBus();
+        ManualExecutor executor = new ManualExecutor();
+        Recorder recorder = new Recorder();
+        // Rounded up to 4.
+        SensorEventBus.Subscription subscription = bus.subscribe("slow",
+                SensorEventBus.DROP_OLDEST, 3, recorder, executor);
+        for (int i = 0; i < 10; i++) {
+            bus.publish(Channel.PRESSURE, 1000 + i, i);
+        }
+        assertEquals(1, executor.pending.size());
+        assertEquals(4, subscription.getQueuedCount());
+        executor.runAll();
+        assertEquals(4, recorder.values.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(6 + i, recorder.values.get(i), 0f);
+            assertEquals(1006 + i, (long) recorder.timestamps.get(i));
+        }
+        assertEquals(6, subscription.getDroppedCount());
+        assertEquals(4, subscription.getDeliveredCount());
+        assertEquals(0, subscription.getQueuedCount());
+    }
+
+    @Test
+    public void conflateKeepsLatestSamplePerChannel() {
+        SensorEventBus bus = new SensorEventBus();
+        ManualExecutor executor = new ManualExecutor();
+        Recorder recorder = new Recorder();
+        SensorEventBus.Subscription subscription = bus.subscribe("display",
+                SensorEventBus.CONFLATE, 0, recorder, executor);
+        for (int i = 0; i < 10; i++) {
+            bus.publish(Channel.TEMPERATURE, 1000 + i, 20 + i);
+        }
+        bus.publish(Channel.PRESSURE, 2000, 1013f);
+        assertEquals(2, subscription.getQueuedCount());
+        executor.runAll();
+        assertEquals(2, recorder.values.size());
+        int temperature = recorder.channels.indexOf(Channel.TEMPERATURE);
+        assertEquals(29f, recorder.values.get(temperature), 0f);
+        assertEquals(1009, (long) recorder.timestamps.get(temperature));
+        int pressure = recorder.channels.indexOf(Channel.PRESSURE);
+        assertEquals(1013f, recorder.values.get(pressure), 0f);
+        assertEquals(9, subscription.getDroppedCount());
+
+        // Nothing new: nothing delivered again.
+        bus.publish(Channel.PRESSURE, 3000, 1014f);
+        executor.runAll();
+        assertEquals(3, recorder.values.size());
+        assertEquals(1014f, recorder.values.get(2), 0f);
+    }
+
+    @Test
+    public void slowConsumerDoesNotHoldBackOthers() {
+        SensorEventBus bus = new SensorEventBus();
+        ManualExecutor slow = new ManualExecutor();
+        Recorder slowRecorder = new Recorder();
+        Recorder fastRecorder = new Recorder();
+        bus.subscribe("slow", SensorEventBus.DROP_OLDEST, 2, slowRecorder, slow);
+        SensorEventBus.Subscription fast = bus.subscribe("fast", SensorEventBus.DROP_OLDEST, 2,
+                fastRecorder, DIRECT);
+        for (int i = 0; i < 5; i++) {
+            bus.publish(Channel.TEMPERATURE, i, i);
+        }
+        assertEquals(5, fastRecorder.values.size());
+        assertEquals(0, slowRecorder.values.size());
+        bus.unsubscribe(fast);
+        bus.publish(Channel.TEMPERATURE, 5, 5);
+        assertEquals(5, fastRecorder.values.size());
+        slow.runAll();
+        assertEquals(2, slowRecorder.values.size());
+        assertEquals(5f, slowRecorder.values.get(1), 0f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownPolicy() {
+        new SensorEventBus().subscribe("x", 7, 4, new Recorder(), DIRECT);
+    }
+
+    // The producer publishes sample i with timestamp and value i. The consumer must see them in
+    // order, each with its own timestamp, and every sample is either delivered or dropped.
+    @Test
+    public void dropOldestUnderConcurrentConsumer() throws Exception {
+        final int samples = 2000000;
+        SensorEventBus bus = new SensorEventBus();
+        final AtomicReference<AssertionError> failure = new AtomicReference<>();
+        final long[] last = {-1};
+        ExecutorService consumer = Executors.newSingleThreadExecutor();
+        SensorEventBus.Subscription subscription = bus.subscribe("concurrent",
+                SensorEventBus.DROP_OLDEST, 64, new SampleSink() {
+                    @Override
+                    public void onSample(int channel, long timestampMs, float value) {
+                        try {
+                            assertEquals(timestampMs, (long) value);
+                            assertEquals(timestampMs & 1, channel);
+                            assertTrue(timestampMs > last[0]);
+                            last[0] = timestampMs;
+                        } catch (AssertionError e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                }, consumer);
+        for (int i = 0; i < samples; i++) {
+            // Exact as floats up to 2^24.
+            bus.publish(i & 1, i, i);
+        }
+        consumer.shutdown();
+        assertTrue(consumer.awaitTermination(10, TimeUnit.SECONDS));
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        assertEquals(samples - 1, last[0]);
+        assertEquals(samples, subscription.getDeliveredCount() + subscription.getDroppedCount());
+    }
+
+    @Test
+    public void conflateUnderConcurrentConsumer() throws Exception {
+        final int samples = 2000000;
+        SensorEventBus bus = new SensorEventBus();
+        final AtomicReference<AssertionError> failure = new AtomicReference<>();
+        final long[] last = {-1, -1};
+        ExecutorService consumer = Executors.newSingleThreadExecutor();
+        bus.subscribe("concurrent", SensorEventBus.CONFLATE, 0, new SampleSink() {
+            @Override
+            public void onSample(int channel, long timestampMs, float value) {
+                try {
+                    // A torn read would pair a timestamp with another sample's value.
+                    assertEquals(timestampMs, (long) value);
+                    assertEquals(timestampMs & 1, channel);
+                    assertTrue(timestampMs > last[channel]);
+                    last[channel] = timestampMs;
+                } catch (AssertionError e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        }, consumer);
+        for (int i = 0; i < samples; i++) {
+            bus.publish(i & 1, i, i);
+        }
+        consumer.shutdown();
+        assertTrue(consumer.awaitTermination(10, TimeUnit.SECONDS));
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        assertEquals(samples - 2, last[0]);
+        assertEquals(samples - 1, last[1]);
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class StartupOrchestratorTest {
+
+    private static final long TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
+
+    // Durations of the fake steps, long enough for the bounds below to hold on a busy machine.
+    private static final long BUTTON_MS = 100;
+    private static final long SENSOR_MS = 200;
+    private static final long CONVERSION_MS = 20;
+    private static final long DISPLAY_MS = 150;
+    private static final long LED_MS = 50;
+    private static final long CLOUD_MS = 500;
+
+    private static void pause(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static StartupOrchestrator.Step sleep(final long ms) {
+        return new StartupOrchestrator.Step() {
+            @Override
+            public void run() {
+                pause(ms);
+            }
+        };
+    }
+
+    private static StartupOrchestrator.Step record(final List<String> ran, final String name) {
+        return new StartupOrchestrator.Step() {
+            @Override
+            public void run() {
+                ran.add(name);
+            }
+        };
+    }
+
+    @Test
+    public void firstSampleIsBoundBySlowestSensingStep() throws InterruptedException {
+        final CountDownLatch firstSample = new CountDownLatch(1);
+        final StartupOrchestrator[] orchestrator = new StartupOrchestrator[1];
+        orchestrator[0] = new StartupOrchestrator(null)
+                .add("button", StartupOrchestrator.PHASE_SENSING, true, sleep(BUTTON_MS))
+                .add("bmp280", StartupOrchestrator.PHASE_SENSING, true,
+                        new StartupOrchestrator.Step() {
+                            @Override
+                            public void run() {
+                                pause(SENSOR_MS);
+                                // The sensor delivers its first sample one conversion later.
+                                new Thread(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        pause(CONVERSION_MS);
+                                        orchestrator[0].onSample();
+                                        firstSample.countDown();
+                                    }
+                                }).start();
+                            }
+                        })
+                .add("display", StartupOrchestrator.PHASE_SENSING, false, sleep(DISPLAY_MS))
+                .add("led", StartupOrchestrator.PHASE_SENSING, true, sleep(LED_MS))
+                .add("cloud", StartupOrchestrator.PHASE_DEFERRED, false, sleep(CLOUD_MS));
+        orchestrator[0].start();
+        assertTrue(firstSample.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        long timeToFirstSample = orchestrator[0].getTimeToFirstSampleMillis();
+        long sequential = BUTTON_MS + SENSOR_MS + DISPLAY_MS + LED_MS + CLOUD_MS
+                + CONVERSION_MS;
+        assertTrue(timeToFirstSample >= SENSOR_MS + CONVERSION_MS);
+        // The sensing steps overlap and the deferred one does not delay the first sample.
+        assertTrue("first sample after " + timeToFirstSample + "ms",
+                timeToFirstSample < BUTTON_MS + SENSOR_MS + DISPLAY_MS);
+        assertTrue(timeToFirstSample < sequential / 2);
+        assertTrue(orchestrator[0].await(TIMEOUT_MS));
+    }
+
+    @Test
+    public void deferredStepsStartAfterSensingSteps() throws InterruptedException {
+        final AtomicLong sensingDone = new AtomicLong();
+        final AtomicLong deferredStart = new AtomicLong();
+        StartupOrchestrator orchestrator = new StartupOrchestrator(null);
+        for (final long ms : new long[] {30, 60, 90}) {
+            orchestrator.add("sensing" + ms, StartupOrchestrator.PHASE_SENSING, true,
+                    new StartupOrchestrator.Step() {
+                        @Override
+                        public void run() {
+                            pause(ms);
+                            long now = System.nanoTime();
+                            long done;
+                            while ((done = sensingDone.get()) < now
+                                    && !sensingDone.compareAndSet(done, now)) {
+                                // Retry.
+                            }
+                        }
+                    });
+        }
+        orchestrator.add("deferred", StartupOrchestrator.PHASE_DEFERRED, false,
+                new StartupOrchestrator.Step() {
+                    @Override
+                    public void run() {
+                        deferredStart.set(System.nanoTime());
+                    }
+                });
+        orchestrator.start();
+        assertTrue(orchestrator.await(TIMEOUT_MS));
+        assertTrue(deferredStart.get() >= sensingDone.get());
+    }
+
+    @Test
+    public void reportsFailuresAndCompletesOnce() throws InterruptedException {
+        final List<String> failures = new CopyOnWriteArrayList<>();
+        final AtomicInteger completions = new AtomicInteger();
+        StartupOrchestrator orchestrator = new StartupOrchestrator(
+                new StartupOrchestrator.Listener() {
+                    @Override
+                    public void onFailure(String name, boolean required, IOException e) {
+                        failures.add(name + (required ? " required" : " optional"));
+                    }
+
+                    @Override
+                    public void onComplete() {
+                        completions.incrementAndGet();
+                    }
+                });
+        StartupOrchestrator.Step failing = new StartupOrchestrator.Step() {
+            @Override
+            public void run() throws IOException {
+                throw new IOException("No such device");
+            }
+        };
+        orchestrator.add("button", StartupOrchestrator.PHASE_SENSING, true, failing)
+                .add("display", StartupOrchestrator.PHASE_SENSING, false, sleep(10))
+                .add("speaker", StartupOrchestrator.PHASE_DEFERRED, false, failing);
+        orchestrator.start();
+        assertTrue(orchestrator.await(TIMEOUT_MS));
+        // onComplete() is called after await() returns.
+        Thread.sleep(50);
+        assertEquals(1, completions.get());
+        assertEquals(2, failures.size());
+        assertTrue(failures.contains("button required"));
+        assertTrue(failures.contains("speaker optional"));
+        assertTrue(orchestrator.getTimeline().contains("failed: No such device"));
+    }
+
+    @Test
+    public void cancelSkipsStepsNotStarted() throws InterruptedException {
+        // Stands for the main looper, busy in onDestroy().
+        final List<Runnable> looper = new CopyOnWriteArrayList<>();
+        final List<String> ran = new CopyOnWriteArrayList<>();
+        final CountDownLatch sensorRunning = new CountDownLatch(1);
+        StartupOrchestrator orchestrator = new StartupOrchestrator(null)
+                .add("button", StartupOrchestrator.PHASE_SENSING, true, new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        looper.add(command);
+                    }
+                }, record(ran, "button"))
+                .add("bmp280", StartupOrchestrator.PHASE_SENSING, true,
+                        new StartupOrchestrator.Step() {
+                            @Override
+                            public void run() {
+                                sensorRunning.countDown();
+                                pause(SENSOR_MS);
+                                ran.add("bmp280");
+                            }
+                        })
+                .add("cloud", StartupOrchestrator.PHASE_DEFERRED, false, record(ran, "cloud"));
+        orchestrator.start();
+        assertTrue(sensorRunning.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        orchestrator.cancel();
+        // Waits for the step already running only.
+        assertTrue(orchestrator.await(TIMEOUT_MS));
+        assertEquals(Arrays.asList("bmp280"), ran);
+        // The looper getting to the button later does not run it.
+        for (Runnable runnable : looper) {
+            runnable.run();
+        }
+        assertEquals(Arrays.asList("bmp280"), ran);
+        assertTrue(orchestrator.getTimeline().contains("cancelled"));
+    }
+
+    @Test
+    public void noSampleBeforeStart() throws InterruptedException {
+        StartupOrchestrator orchestrator = new StartupOrchestrator(null);
+        assertEquals(-1, orchestrator.getTimeToFirstSampleMillis());
+        orchestrator.start();
+        assertTrue(orchestrator.await(TIMEOUT_MS));
+        assertTrue(orchestrator.onSample());
+        assertFalse(orchestrator.onSample());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsStepsAfterStart() {
+        StartupOrchestrator orchestrator = new StartupOrchestrator(null);
+        orchestrator.start();
+        orchestrator.add("late", StartupOrchestrator.PHASE_DEFERRED, false, sleep(0));
+    }
+}
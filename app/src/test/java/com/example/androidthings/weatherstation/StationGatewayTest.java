@@ -0,0 +1,336 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class StationGatewayTest {
+
+    private static final String TOKEN = "site-secret";
+    private static final int MAX_MESSAGE_BYTES = 1024;
+    private static final int TIMEOUT_MS = 5000;
+
+    private final BlockingQueue<byte[]> mForwarded = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Long> mSequences = new LinkedBlockingQueue<>();
+    private final BlockingQueue<String> mSessions = new LinkedBlockingQueue<>();
+    private volatile boolean mStoring = true;
+    private final StationGateway.Uplink mUplink = new StationGateway.Uplink() {
+        @Override
+        public boolean store(List<byte[]> payloads, long[] sequences, String[] sessions) {
+            if (!mStoring) {
+                return false;
+            }
+            for (int i = 0; i < payloads.size(); i++) {
+                mSequences.add(sequences[i]);
+                mSessions.add(sessions[i]);
+            }
+            mForwarded.addAll(payloads);
+            return true;
+        }
+    };
+    private StationGateway mGateway;
+
+    @Before
+    public void setUp() throws IOException {
+        // Every message is handed to the uplink right away.
+        mGateway = new StationGateway(0, TOKEN, MAX_MESSAGE_BYTES,
+                new PublishBatcher.Policy(1, 1024 * 1024, 1000), mUplink);
+        mGateway.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mGateway.close();
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress("127.0.0.1", mGateway.getPort()), TIMEOUT_MS);
+        socket.setSoTimeout(TIMEOUT_MS);
+        return socket;
+    }
+
+    private static byte[] hello(String deviceId, String token) throws IOException {
+        return hello(deviceId, "session", token);
+    }
+
+    private static byte[] hello(String deviceId, String session, String token)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(StreamPublishTransport.MAGIC);
+        output.writeUTF(deviceId);
+        output.writeUTF(session);
+        output.writeUTF(token);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] request(long firstSequence, byte[]... payloads) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(payloads.length);
+        for (int i = 0; i < payloads.length; i++) {
+            output.writeLong(firstSequence + i);
+            output.writeInt(payloads[i].length);
+            output.write(payloads[i]);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] payload(int seed, int length) {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) (seed * 31 + i);
+        }
+        return payload;
+    }
+
+    private byte[] nextForwarded() throws InterruptedException {
+        return mForwarded.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Waits for the gateway to drop the connection.
+    private static void assertDisconnected(Socket socket) {
+        try {
+            assertEquals(-1, socket.getInputStream().read());
+        } catch (IOException e) {
+            // Reset by the gateway.
+        }
+    }
+
+    @Test
+    public void forwardsMessagesAndAcksLastSequence() throws Exception {
+        try (Socket socket = connect()) {
+            OutputStream output = socket.getOutputStream();
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+            output.write(hello("station-1", TOKEN));
+            output.write(request(10, payload(1, 100), payload(2, MAX_MESSAGE_BYTES)));
+            assertEquals(11, input.readLong());
+            assertArrayEquals(payload(1, 100), nextForwarded());
+            assertArrayEquals(payload(2, MAX_MESSAGE_BYTES), nextForwarded());
+            output.write(request(12, payload(3, 0)));
+            assertEquals(12, input.readLong());
+            assertArrayEquals(new byte[0], nextForwarded());
+        }
+        assertEquals(2, mGateway.getRequestCount());
+        assertEquals(3, mGateway.getMessageCount());
+    }
+
+    @Test
+    public void forwardsSequencesAndSessionsOfPeers() throws Exception {
+        try (Socket socket = connect()) {
+            OutputStream output = socket.getOutputStream();
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+            output.write(hello("station-1", "session-1", TOKEN));
+            output.write(request(10, payload(1, 10), payload(2, 10)));
+            assertEquals(11, input.readLong());
+        }
+        assertEquals(Arrays.asList(10L, 11L), Arrays.asList(mSequences.poll(), mSequences.poll()));
+        assertEquals(Arrays.asList("session-1", "session-1"),
+                Arrays.asList(mSessions.poll(), mSessions.poll()));
+    }
+
+    @Test
+    public void acksOnlyOnceBatchIsStored() throws Exception {
+        // Batches of up to ten messages, stored after 200ms.
+        StationGateway gateway = new StationGateway(0, TOKEN, MAX_MESSAGE_BYTES,
+                new PublishBatcher.Policy(10, 1024 * 1024, 200), mUplink);
+        gateway.start();
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress("127.0.0.1", gateway.getPort()), TIMEOUT_MS);
+            socket.setSoTimeout(TIMEOUT_MS);
+            OutputStream output = socket.getOutputStream();
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+            output.write(hello("station-1", TOKEN));
+            output.write(request(0, payload(1, 10), payload(2, 10)));
+            assertEquals(1, input.readLong());
+            // Stored before the ack was sent.
+            assertEquals(2, mForwarded.size());
+        } finally {
+            gateway.close();
+        }
+        assertEquals(1, gateway.getBatchCount());
+    }
+
+    @Test
+    public void disconnectsPeersWhenBatchNotStored() throws Exception {
+        mStoring = false;
+        try (Socket socket = connect()) {
+            OutputStream output = socket.getOutputStream();
+            output.write(hello("station-1", TOKEN));
+            output.write(request(0, payload(1, 50)));
+            assertDisconnected(socket);
+        }
+        assertEquals(1, mGateway.getErrorCount());
+        // Sent again, it is not taken for a repeat.
+        mStoring = true;
+        try (Socket socket = connect()) {
+            OutputStream output = socket.getOutputStream();
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+            output.write(hello("station-1", TOKEN));
+            output.write(request(0, payload(1, 50)));
+            assertEquals(0, input.readLong());
+        }
+        assertArrayEquals(payload(1, 50), nextForwarded());
+        assertEquals(0, mGateway.getDuplicateCount());
+    }
+
+    @Test
+    public void parsesFramesSplitAcrossReads() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(hello("station-1", TOKEN));
+        bytes.write(request(0, payload(1, 300), payload(2, 5)));
+        bytes.write(request(2, payload(3, 40)));
+        try (Socket socket = connect()) {
+            socket.setTcpNoDelay(true);
+            OutputStream output = socket.getOutputStream();
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+            for (byte b : bytes.toByteArray()) {
+                output.write(b);
+                output.flush();
+            }
+            assertEquals(1, input.readLong());
+            assertEquals(2, input.readLong());
+        }
+        assertArrayEquals(payload(1, 300), nextForwarded());
+        assertArrayEquals(payload(2, 5), nextForwarded());
+        assertArrayEquals(payload(3, 40), nextForwarded());
+    }
+
+    @Test
+    public void dropsRepeatedMessages() throws Exception {
+        try (Socket socket = connect()) {
+            OutputStream output = socket.getOutputStream();
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+            output.write(hello("station-1", TOKEN));
+            output.write(request(0, payload(1, 50)));
+            assertEquals(0, input.readLong());
+            // A retry with another sequence number is still acknowledged.
+            output.write(request(7, payload(1, 50)));
+            assertEquals(7, input.readLong());
+        }
+        try (Socket socket = connect()) {
+            OutputStream output = socket.getOutputStream();
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+            // The same content from another station is not a repeat.
+            output.write(hello("station-2", TOKEN));
+            output.write(request(0, payload(1, 50)));
+            assertEquals(0, input.readLong());
+        }
+        assertEquals(2, mGateway.getMessageCount());
+        assertEquals(1, mGateway.getDuplicateCount());
+    }
+
+    @Test
+    public void disconnectsPeerSendingMessageTooLarge() throws Exception {
+        try (Socket socket = connect()) {
+            OutputStream output = socket.getOutputStream();
+            output.write(hello("station-1", TOKEN));
+            // Refused from its header, before the payload is received.
+            DataOutputStream header = new DataOutputStream(output);
+            header.writeInt(1);
+            header.writeLong(0);
+            header.writeInt(MAX_MESSAGE_BYTES + 1);
+            header.flush();
+            assertDisconnected(socket);
+        }
+        assertEquals(1, mGateway.getErrorCount());
+        assertEquals(0, mGateway.getMessageCount());
+        assertTrue(mForwarded.isEmpty());
+    }
+
+    @Test
+    public void disconnectsPeerSendingInvalidCount() throws Exception {
+        try (Socket socket = connect()) {
+            OutputStream output = socket.getOutputStream();
+            output.write(hello("station-1", TOKEN));
+            new DataOutputStream(output).writeInt(-1);
+            assertDisconnected(socket);
+        }
+        assertEquals(1, mGateway.getErrorCount());
+    }
+
+    @Test
+    public void disconnectsPeerWithWrongToken() throws Exception {
+        try (Socket socket = connect()) {
+            OutputStream output = socket.getOutputStream();
+            output.write(hello("station-1", "guess"));
+            output.write(request(0, payload(1, 50)));
+            assertDisconnected(socket);
+        }
+        assertEquals(1, mGateway.getErrorCount());
+        assertEquals(0, mGateway.getRequestCount());
+        assertTrue(mForwarded.isEmpty());
+    }
+
+    @Test
+    public void disconnectsPeerWithoutSession() throws Exception {
+        try (Socket socket = connect()) {
+            socket.getOutputStream().write(hello("station-1", "", TOKEN));
+            assertDisconnected(socket);
+        }
+        assertEquals(1, mGateway.getErrorCount());
+    }
+
+    @Test
+    public void disconnectsPeerWithoutMagic() throws Exception {
+        try (Socket socket = connect()) {
+            socket.getOutputStream().write("GET / HTTP/1.1\r\n\r\n".getBytes("US-ASCII"));
+            assertDisconnected(socket);
+        }
+        assertEquals(1, mGateway.getErrorCount());
+    }
+
+    @Test
+    public void talksToStreamPublishTransport() throws Exception {
+        StreamPublishTransport transport = new StreamPublishTransport("127.0.0.1",
+                mGateway.getPort(), "station-1", "session", TOKEN, TIMEOUT_MS);
+        try {
+            List<byte[]> payloads = Arrays.asList(payload(1, 10), payload(2, 20));
+            transport.send(payloads, PublishPipeline.sequences(5, 2), null);
+        } finally {
+            transport.close();
+        }
+        assertArrayEquals(payload(1, 10), nextForwarded());
+        assertArrayEquals(payload(2, 20), nextForwarded());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyToken() {
+        new StationGateway(0, "", MAX_MESSAGE_BYTES, new PublishBatcher.Policy(1, 1024, 1000),
+                null);
+    }
+}
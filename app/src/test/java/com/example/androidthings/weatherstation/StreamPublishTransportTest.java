@@ -0,0 +1,209 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+public class StreamPublishTransportTest {
+
+    private static final int TIMEOUT_MS = 500;
+
+    // How the server answers each request.
+    private static final int ACK = 0;
+    private static final int WRONG_ACK = 1;
+    private static final int HANG_UP = 2;
+    private static final int SILENCE = 3;
+
+    private ServerSocket mServerSocket;
+    private Thread mThread;
+    private volatile Socket mSocket;
+    private final BlockingQueue<Integer> mReplies = new LinkedBlockingQueue<>();
+    private final List<String> mHellos = Collections.synchronizedList(new ArrayList<String>());
+    private final List<byte[]> mReceived = Collections.synchronizedList(new ArrayList<byte[]>());
+    private final List<Long> mSequences = Collections.synchronizedList(new ArrayList<Long>());
+
+    @Before
+    public void setUp() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!mServerSocket.isClosed()) {
+                    try (Socket socket = mServerSocket.accept()) {
+                        mSocket = socket;
+                        serve(socket);
+                    } catch (IOException | InterruptedException e) {
+                        // Next connection.
+                    }
+                }
+            }
+        });
+        mThread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServerSocket.close();
+        if (mSocket != null) {
+            mSocket.close();
+        }
+        mThread.interrupt();
+        mThread.join();
+    }
+
+    private void serve(Socket socket) throws IOException, InterruptedException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(
+                socket.getInputStream()));
+        DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+        if (input.readInt() != StreamPublishTransport.MAGIC) {
+            return;
+        }
+        mHellos.add(input.readUTF() + "/" + input.readUTF() + "/" + input.readUTF());
+        while (true) {
+            int count = input.readInt();
+            long last = 0;
+            for (int i = 0; i < count; i++) {
+                last = input.readLong();
+                byte[] payload = new byte[input.readInt()];
+                input.readFully(payload);
+                mSequences.add(last);
+                mReceived.add(payload);
+            }
+            int reply = mReplies.take();
+            if (reply == HANG_UP) {
+                return;
+            } else if (reply == SILENCE) {
+                Thread.sleep(2 * TIMEOUT_MS);
+                return;
+            }
+            output.writeLong(reply == ACK ? last : last - 1);
+            output.flush();
+        }
+    }
+
+    private StreamPublishTransport newTransport(int port) {
+        return new StreamPublishTransport("127.0.0.1", port, "station", "session1", "secret",
+                TIMEOUT_MS);
+    }
+
+    @Test
+    public void streamsRequestsOverOneConnection() throws IOException {
+        StreamPublishTransport transport = newTransport(mServerSocket.getLocalPort());
+        mReplies.add(ACK);
+        mReplies.add(ACK);
+        transport.send(Arrays.asList(new byte[] {1}, new byte[] {2, 3}), new long[] {7, 8}, null);
+        transport.send(Arrays.asList(new byte[0]), new long[] {9}, null);
+        transport.close();
+        assertEquals(Arrays.asList("station/session1/secret"), mHellos);
+        assertEquals(Arrays.asList(7L, 8L, 9L), mSequences);
+        assertArrayEquals(new byte[] {2, 3}, mReceived.get(1));
+        assertArrayEquals(new byte[0], mReceived.get(2));
+    }
+
+    @Test
+    public void unexpectedAckFailsAndReconnects() throws IOException {
+        StreamPublishTransport transport = newTransport(mServerSocket.getLocalPort());
+        mReplies.add(WRONG_ACK);
+        try {
+            transport.send(Arrays.asList(new byte[] {1}), new long[] {7}, null);
+            fail();
+        } catch (IOException e) {
+            assertEquals("Unexpected ack 6, expected 7", e.getMessage());
+        }
+        mReplies.add(ACK);
+        transport.send(Arrays.asList(new byte[] {1}), new long[] {7}, null);
+        transport.close();
+        assertEquals(2, mHellos.size());
+    }
+
+    @Test
+    public void closedConnectionIsAnIOException() throws IOException {
+        StreamPublishTransport transport = newTransport(mServerSocket.getLocalPort());
+        mReplies.add(HANG_UP);
+        try {
+            transport.send(Arrays.asList(new byte[] {1}), new long[] {1}, null);
+            fail();
+        } catch (EOFException e) {
+            // Expected.
+        }
+        mReplies.add(ACK);
+        transport.send(Arrays.asList(new byte[] {2}), new long[] {2}, null);
+        transport.close();
+    }
+
+    @Test(expected = SocketTimeoutException.class)
+    public void missingReplyTimesOut() throws IOException {
+        StreamPublishTransport transport = newTransport(mServerSocket.getLocalPort());
+        mReplies.add(SILENCE);
+        try {
+            transport.send(Arrays.asList(new byte[] {1}), new long[] {1}, null);
+        } finally {
+            transport.close();
+        }
+    }
+
+    @Test(expected = ConnectException.class)
+    public void unreachableServerIsAnIOException() throws IOException {
+        int port;
+        try (ServerSocket closed = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = closed.getLocalPort();
+        }
+        newTransport(port).send(Arrays.asList(new byte[] {1}), new long[] {1}, null);
+    }
+
+    @Test
+    public void closedTransportFails() {
+        StreamPublishTransport transport = newTransport(mServerSocket.getLocalPort());
+        transport.close();
+        try {
+            transport.send(Arrays.asList(new byte[] {1}), new long[] {1}, null);
+            fail();
+        } catch (IOException e) {
+            assertEquals("Transport closed", e.getMessage());
+        }
+        assertEquals(0, mHellos.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesMessagesOfOtherSessions() throws IOException {
+        newTransport(mServerSocket.getLocalPort()).send(Arrays.asList(new byte[] {1}),
+                new long[] {1}, new String[] {"peer-session"});
+    }
+}
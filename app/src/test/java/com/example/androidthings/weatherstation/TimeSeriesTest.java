@@ -0,0 +1,196 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TimeSeriesTest {
+
+    @Test
+    public void capacityIsPowerOfTwoMinusOne() {
+        assertEquals(15, new TimeSeries(8).capacity());
+        assertEquals(15, new TimeSeries(15).capacity());
+        assertEquals(31, new TimeSeries(16).capacity());
+    }
+
+    @Test
+    public void emptySeries() {
+        TimeSeries series = new TimeSeries(8);
+        assertTrue(series.isEmpty());
+        assertTrue(Float.isNaN(series.lastValue()));
+        assertEquals(0, series.lastTimestamp());
+        assertEquals(0, series.last(4, new long[4], new float[4]));
+        assertEquals(0, series.range(0, Long.MAX_VALUE, new long[4], new float[4]));
+    }
+
+    @Test
+    public void lastSpansWrapPoint() {
+        TimeSeries series = new TimeSeries(8);
+        for (int i = 0; i < 40; i++) {
+            series.append(1000 + i, i);
+        }
+        assertEquals(15, series.size());
+        assertEquals(39f, series.lastValue(), 0f);
+        assertEquals(1039, series.lastTimestamp());
+        long[] timestamps = new long[20];
+        float[] values = new float[20];
+        // Samples 25 to 39 are held, in slots 9 to 15 then 0 to 7.
+        assertEquals(15, series.last(20, timestamps, values));
+        for (int i = 0; i < 15; i++) {
+            assertEquals(1025 + i, timestamps[i]);
+            assertEquals(25 + i, values[i], 0f);
+        }
+        assertEquals(4, series.last(4, timestamps, values));
+        assertEquals(1036, timestamps[0]);
+    }
+
+    @Test
+    public void rangeMatchesScanAcrossWrapPoint() {
+        TimeSeries series = new TimeSeries(8);
+        long[] timestamps = new long[32];
+        float[] values = new float[32];
+        for (int appended = 1; appended <= 60; appended++) {
+            // Timestamps 10 apart, with repeats, so bounds fall between and on samples.
+            long timestamp = (appended - 1) / 2 * 10;
+            series.append(timestamp, appended - 1);
+            long oldest = Math.max(0, appended - series.capacity());
+            for (long from = -5; from <= timestamp + 15; from += 5) {
+                for (long to = from; to <= timestamp + 20; to += 5) {
+                    int count = series.range(from, to, timestamps, values);
+                    int expected = 0;
+                    for (long i = oldest; i < appended; i++) {
+                        long t = i / 2 * 10;
+                        if (t >= from && t < to) {
+                            assertEquals(t, timestamps[expected]);
+                            assertEquals(i, values[expected], 0f);
+                            expected++;
+                        }
+                    }
+                    assertEquals(expected, count);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rangeReturnsOldestWhenArraysAreShort() {
+        TimeSeries series = new TimeSeries(8);
+        for (int i = 0; i < 20; i++) {
+            series.append(i, i);
+        }
+        long[] timestamps = new long[3];
+        float[] values = new float[3];
+        assertEquals(3, series.range(7, 100, timestamps, values));
+        assertEquals(7, timestamps[0]);
+        assertEquals(9, timestamps[2]);
+    }
+
+    // The writer appends sample i with timestamp and value i, so a reader can tell a torn or
+    // overwritten copy from a consistent one.
+    @Test
+    public void concurrentReadersNeverSeeOverwrittenSlots() throws Exception {
+        final TimeSeries series = new TimeSeries(1000);
+        final int capacity = series.capacity();
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<AssertionError> failure = new AtomicReference<>();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // Exact as floats up to 2^24.
+                for (int i = 0; i < (1 << 24) && failure.get() == null; i++) {
+                    series.append(i, i);
+                }
+                done.set(true);
+            }
+        });
+        Thread[] readers = new Thread[2];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long[] timestamps = new long[capacity];
+                    float[] values = new float[capacity];
+                    try {
+                        while (!done.get()) {
+                            checkLast(series, timestamps, values);
+                            checkRange(series, timestamps, values);
+                        }
+                    } catch (AssertionError e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            readers[r].start();
+        }
+        writer.start();
+        writer.join();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    private static void checkLast(TimeSeries series, long[] timestamps, float[] values) {
+        long before = series.lastTimestamp();
+        int count = series.last(timestamps.length, timestamps, values);
+        for (int i = 0; i < count; i++) {
+            assertEquals(timestamps[i], values[i], 0f);
+            if (i > 0) {
+                assertEquals(timestamps[i - 1] + 1, timestamps[i]);
+            }
+        }
+        if (count > 0) {
+            assertTrue(timestamps[count - 1] >= before);
+        }
+    }
+
+    // Asks for a range starting at the slots the writer is about to overwrite.
+    private static void checkRange(TimeSeries series, long[] timestamps, float[] values) {
+        long to = series.lastTimestamp() + 1;
+        long from = to - series.capacity() + 2;
+        int count = series.range(from, to, timestamps, values);
+        for (int i = 0; i < count; i++) {
+            assertTrue(timestamps[i] >= from && timestamps[i] < to);
+            assertEquals(timestamps[i], values[i], 0f);
+            if (i > 0) {
+                assertEquals(timestamps[i - 1] + 1, timestamps[i]);
+            }
+        }
+        // Samples are only lost to the writer from the old end of the range.
+        assertTrue(count == 0 || timestamps[count - 1] == to - 1);
+    }
+
+    @Test
+    public void storeKeepsOneSeriesPerChannel() {
+        TimeSeriesStore store = new TimeSeriesStore(16);
+        store.append(Channel.TEMPERATURE, 1000, 21.5f);
+        store.append(Channel.PRESSURE, 1000, 1013f);
+        store.append(Channel.PRESSURE, 2000, 1014f);
+        assertEquals(21.5f, store.lastValue(Channel.TEMPERATURE), 0f);
+        assertEquals(1014f, store.lastValue(Channel.PRESSURE), 0f);
+        assertEquals(1, store.get(Channel.TEMPERATURE).size());
+        assertEquals(2, store.get(Channel.PRESSURE).size());
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.client.auth.oauth2.TokenResponseException;
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.json.Json;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.FixedClock;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+public class TokenManagerTest {
+
+    private static final String ACCOUNT = "station@example.iam.gserviceaccount.com";
+    private static final long NOW = 1500000000000L;
+
+    private static PrivateKey sPrivateKey;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final FixedClock mClock = new FixedClock(NOW);
+
+    /**
+     * Answers token requests with {@link #mToken}, valid for an hour, or with an error.
+     */
+    private final MockHttpTransport mTokenServer = new MockHttpTransport() {
+        @Override
+        public LowLevelHttpRequest buildRequest(String method, String url) {
+            MockLowLevelHttpResponse response = new MockLowLevelHttpResponse()
+                    .setContentType(Json.MEDIA_TYPE);
+            if (mToken == null) {
+                response.setStatusCode(400).setContent("{\"error\": \"invalid_grant\"}");
+            } else {
+                response.setContent("{\"access_token\": \"" + mToken
+                        + "\", \"token_type\": \"Bearer\", \"expires_in\": 3600}");
+            }
+            return new MockLowLevelHttpRequest(url).setResponse(response);
+        }
+    };
+    private String mToken;
+
+    @BeforeClass
+    public static void generateKey() throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        sPrivateKey = generator.generateKeyPair().getPrivate();
+    }
+
+    private GoogleCredential newCredential(String account) {
+        return new GoogleCredential.Builder()
+                .setTransport(mTokenServer)
+                .setJsonFactory(JacksonFactory.getDefaultInstance())
+                .setClock(mClock)
+                .setServiceAccountId(account)
+                .setServiceAccountPrivateKey(sPrivateKey)
+                .setServiceAccountScopes(Collections.singleton("https://example.com/pubsub"))
+                .build();
+    }
+
+    @Test
+    public void refreshesRightAwayWithoutToken() {
+        assertEquals(0, TokenManager.getRefreshDelay(newCredential(ACCOUNT), NOW));
+    }
+
+    @Test
+    public void refreshesFiveMinutesBeforeExpiry() throws IOException {
+        mToken = "token1";
+        GoogleCredential credential = newCredential(ACCOUNT);
+        assertTrue(credential.refreshToken());
+        assertEquals("token1", credential.getAccessToken());
+        assertEquals(TimeUnit.MINUTES.toMillis(55), TokenManager.getRefreshDelay(credential, NOW));
+        assertEquals(TimeUnit.MINUTES.toMillis(15), TokenManager.getRefreshDelay(credential,
+                NOW + TimeUnit.MINUTES.toMillis(40)));
+        // Late, e.g. after the device slept: at once.
+        assertEquals(0, TokenManager.getRefreshDelay(credential,
+                NOW + TimeUnit.MINUTES.toMillis(58)));
+    }
+
+    @Test(expected = TokenResponseException.class)
+    public void failedRefreshIsAnIOException() throws IOException {
+        // The token server rejects the account.
+        newCredential(ACCOUNT).refreshToken();
+    }
+
+    @Test
+    public void reusesCachedTokenStillValid() throws IOException {
+        mToken = "token1";
+        GoogleCredential credential = newCredential(ACCOUNT);
+        credential.refreshToken();
+        File cache = new File(mFolder.getRoot(), "token.cache");
+        TokenManager.writeCachedToken(cache, credential);
+        assertFalse(new File(cache.getPath() + ".tmp").exists());
+
+        GoogleCredential restarted = newCredential(ACCOUNT);
+        assertTrue(TokenManager.readCachedToken(cache, restarted, NOW + 1000));
+        assertEquals("token1", restarted.getAccessToken());
+        assertEquals(credential.getExpirationTimeMilliseconds(),
+                restarted.getExpirationTimeMilliseconds());
+        assertEquals(TokenManager.getRefreshDelay(credential, NOW + 1000),
+                TokenManager.getRefreshDelay(restarted, NOW + 1000));
+    }
+
+    @Test
+    public void ignoresCachedTokenAboutToExpire() throws IOException {
+        mToken = "token1";
+        GoogleCredential credential = newCredential(ACCOUNT);
+        credential.refreshToken();
+        File cache = new File(mFolder.getRoot(), "token.cache");
+        TokenManager.writeCachedToken(cache, credential);
+
+        GoogleCredential restarted = newCredential(ACCOUNT);
+        long late = credential.getExpirationTimeMilliseconds() - TimeUnit.MINUTES.toMillis(4);
+        assertFalse(TokenManager.readCachedToken(cache, restarted, late));
+        assertNull(restarted.getAccessToken());
+        assertEquals(0, TokenManager.getRefreshDelay(restarted, late));
+    }
+
+    @Test
+    public void ignoresCachedTokenOfOtherAccount() throws IOException {
+        mToken = "token1";
+        GoogleCredential credential = newCredential(ACCOUNT);
+        credential.refreshToken();
+        File cache = new File(mFolder.getRoot(), "token.cache");
+        TokenManager.writeCachedToken(cache, credential);
+
+        GoogleCredential other = newCredential("other@example.iam.gserviceaccount.com");
+        assertFalse(TokenManager.readCachedToken(cache, other, NOW));
+        assertNull(other.getAccessToken());
+    }
+
+    @Test
+    public void missingCacheIsNotAnError() throws IOException {
+        assertFalse(TokenManager.readCachedToken(new File(mFolder.getRoot(), "token.cache"),
+                newCredential(ACCOUNT), NOW));
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedCacheIsAnError() throws IOException {
+        File cache = mFolder.newFile("token.cache");
+        try (FileOutputStream out = new FileOutputStream(cache)) {
+            out.write(new byte[] {0, 0, 0, 1, 0});
+        }
+        TokenManager.readCachedToken(cache, newCredential(ACCOUNT), NOW);
+    }
+}
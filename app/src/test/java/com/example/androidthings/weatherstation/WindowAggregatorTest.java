@@ -0,0 +1,242 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class WindowAggregatorTest {
+
+    /**
+     * Copy of the statistics of one reported window.
+     */
+    private static final class Window {
+        final int channel;
+        final long startMs;
+        final long endMs;
+        final long count;
+        final float min;
+        final float max;
+        final double mean;
+        final double stddev;
+
+        Window(int channel, long startMs, long endMs, long count, float min, float max,
+               double mean, double stddev) {
+            this.channel = channel;
+            this.startMs = startMs;
+            this.endMs = endMs;
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.mean = mean;
+            this.stddev = stddev;
+        }
+    }
+
+    private static final class Recorder implements WindowAggregator.Listener {
+        final List<Window> windows = new ArrayList<>();
+
+        @Override
+        public void onWindow(int channel, long startMs, long endMs,
+                             WindowAggregator.Stats stats) {
+            windows.add(new Window(channel, startMs, endMs, stats.count, stats.min, stats.max,
+                    stats.mean, stats.stddev()));
+        }
+    }
+
+    // Statistics of every non-empty window whose end a later sample went past, computed from
+    // all the samples.
+    private static List<Window> reference(long[] timestamps, float[] values, long windowMs,
+                                          long slideMs) {
+        List<Window> windows = new ArrayList<>();
+        long last = timestamps[timestamps.length - 1];
+        for (long end = (timestamps[0] / slideMs + 1) * slideMs; end <= last; end += slideMs) {
+            long count = 0;
+            float min = Float.POSITIVE_INFINITY;
+            float max = Float.NEGATIVE_INFINITY;
+            double sum = 0;
+            for (int i = 0; i < timestamps.length; i++) {
+                if (timestamps[i] >= end - windowMs && timestamps[i] < end) {
+                    count++;
+                    min = Math.min(min, values[i]);
+                    max = Math.max(max, values[i]);
+                    sum += values[i];
+                }
+            }
+            if (count == 0) {
+                continue;
+            }
+            double mean = sum / count;
+            double squares = 0;
+            for (int i = 0; i < timestamps.length; i++) {
+                if (timestamps[i] >= end - windowMs && timestamps[i] < end) {
+                    squares += (values[i] - mean) * (values[i] - mean);
+                }
+            }
+            windows.add(new Window(Channel.PRESSURE, end - windowMs, end, count, min, max, mean,
+                    Math.sqrt(squares / count)));
+        }
+        return windows;
+    }
+
+    private static void assertSameWindows(List<Window> expected, List<Window> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Window e = expected.get(i);
+            Window a = actual.get(i);
+            assertEquals(e.channel, a.channel);
+            assertEquals(e.startMs, a.startMs);
+            assertEquals(e.endMs, a.endMs);
+            assertEquals(e.count, a.count);
+            assertEquals(e.min, a.min, 0f);
+            assertEquals(e.max, a.max, 0f);
+            assertEquals(e.mean, a.mean, 1e-6 * Math.abs(e.mean));
+            assertEquals(e.stddev, a.stddev, 1e-4);
+        }
+    }
+
+    private static void checkAgainstReference(long windowMs, long slideMs, long seed) {
+        Random random = new Random(seed);
+        int samples = 2000;
+        long[] timestamps = new long[samples];
+        float[] values = new float[samples];
+        long timestamp = 1500000000000L + random.nextInt(1000);
+        for (int i = 0; i < samples; i++) {
+            // Mostly regular, with the occasional outage longer than a window.
+            timestamp += random.nextInt(50) == 0 ? windowMs * (1 + random.nextInt(3))
+                    : random.nextInt(200);
+            timestamps[i] = timestamp;
+            values[i] = 1013f + (float) random.nextGaussian() * 2f;
+        }
+        Recorder recorder = new Recorder();
+        WindowAggregator aggregator = slideMs == windowMs
+                ? WindowAggregator.tumbling(windowMs, recorder)
+                : WindowAggregator.sliding(windowMs, slideMs, 4096, recorder);
+        for (int i = 0; i < samples; i++) {
+            aggregator.onSample(Channel.PRESSURE, timestamps[i], values[i]);
+        }
+        assertSameWindows(reference(timestamps, values, windowMs, slideMs), recorder.windows);
+        assertEquals(0, aggregator.getOverflowCount());
+    }
+
+    @Test
+    public void tumblingWindowsMatchReference() {
+        for (long seed = 0; seed < 5; seed++) {
+            checkAgainstReference(1000, 1000, seed);
+        }
+    }
+
+    @Test
+    public void slidingWindowsMatchReference() {
+        for (long seed = 0; seed < 5; seed++) {
+            checkAgainstReference(5000, 1000, seed);
+            checkAgainstReference(3000, 1500, seed);
+        }
+    }
+
+    @Test
+    public void reportsWindowWhenNextOneStarts() {
+        Recorder recorder = new Recorder();
+        WindowAggregator aggregator = WindowAggregator.tumbling(1000, recorder);
+        aggregator.onSample(Channel.TEMPERATURE, 100, 20f);
+        aggregator.onSample(Channel.TEMPERATURE, 500, 22f);
+        aggregator.onSample(Channel.TEMPERATURE, 999, 24f);
+        assertEquals(0, recorder.windows.size());
+        aggregator.onSample(Channel.TEMPERATURE, 1000, 30f);
+        assertEquals(1, recorder.windows.size());
+        Window window = recorder.windows.get(0);
+        assertEquals(0, window.startMs);
+        assertEquals(1000, window.endMs);
+        assertEquals(3, window.count);
+        assertEquals(20f, window.min, 0f);
+        assertEquals(24f, window.max, 0f);
+        assertEquals(22, window.mean, 1e-9);
+        assertEquals(Math.sqrt(8 / 3.0), window.stddev, 1e-6);
+    }
+
+    @Test
+    public void channelsAreAggregatedSeparately() {
+        Recorder recorder = new Recorder();
+        WindowAggregator aggregator = WindowAggregator.tumbling(1000, recorder);
+        aggregator.onSample(Channel.TEMPERATURE, 0, 20f);
+        aggregator.onSample(Channel.PRESSURE, 0, 1013f);
+        aggregator.onSample(Channel.TEMPERATURE, 1000, 21f);
+        assertEquals(1, recorder.windows.size());
+        assertEquals(Channel.TEMPERATURE, recorder.windows.get(0).channel);
+        aggregator.onSample(Channel.PRESSURE, 1000, 1014f);
+        assertEquals(2, recorder.windows.size());
+        assertEquals(1013f, recorder.windows.get(1).max, 0f);
+    }
+
+    @Test
+    public void ignoresDerivedChannels() {
+        Recorder recorder = new Recorder();
+        WindowAggregator aggregator = WindowAggregator.tumbling(1000, recorder);
+        int derived = Channel.aggregate(Channel.PRESSURE, Channel.STAT_MEAN);
+        aggregator.onSample(derived, 0, 1f);
+        aggregator.onSample(derived, 5000, 1f);
+        assertEquals(0, recorder.windows.size());
+    }
+
+    @Test
+    public void evictsOldestSamplesWhenSlidingWindowIsFull() {
+        Recorder recorder = new Recorder();
+        WindowAggregator aggregator = WindowAggregator.sliding(1000, 500, 4, recorder);
+        for (int i = 0; i < 6; i++) {
+            aggregator.onSample(Channel.PRESSURE, 100 + i * 10, i);
+        }
+        assertEquals(2, aggregator.getOverflowCount());
+        aggregator.onSample(Channel.PRESSURE, 500, 10f);
+        Window window = recorder.windows.get(0);
+        assertEquals(4, window.count);
+        assertEquals(2f, window.min, 0f);
+        assertEquals(5f, window.max, 0f);
+        assertEquals(3.5, window.mean, 1e-9);
+    }
+
+    @Test
+    public void publishesStatisticsAsDerivedChannels() {
+        final List<Integer> channels = new ArrayList<>();
+        final List<Float> values = new ArrayList<>();
+        WindowAggregator aggregator = WindowAggregator.tumbling(1000,
+                WindowAggregator.toDerivedChannels(new SampleSink() {
+                    @Override
+                    public void onSample(int channel, long timestampMs, float value) {
+                        assertEquals(1000, timestampMs);
+                        channels.add(channel);
+                        values.add(value);
+                    }
+                }));
+        aggregator.onSample(Channel.TEMPERATURE, 0, 20f);
+        aggregator.onSample(Channel.TEMPERATURE, 10, 22f);
+        aggregator.onSample(Channel.TEMPERATURE, 1000, 0f);
+        assertEquals(4, channels.size());
+        assertEquals(Channel.aggregate(Channel.TEMPERATURE, Channel.STAT_MIN),
+                (int) channels.get(0));
+        assertEquals(Channel.aggregate(Channel.TEMPERATURE, Channel.STAT_STDDEV),
+                (int) channels.get(3));
+        assertEquals(20f, values.get(0), 0f);
+        assertEquals(22f, values.get(1), 0f);
+        assertEquals(21f, values.get(2), 1e-6f);
+        assertEquals(1f, values.get(3), 1e-6f);
+    }
+}
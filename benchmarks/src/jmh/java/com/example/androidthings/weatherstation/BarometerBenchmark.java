@@ -0,0 +1,77 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Per-event cost of the barometer UI logic: weather icon selection, forecast and LED bar graph,
+ * for a pressure sweeping the whole display range. The forecast is fed samples 10ms apart, so
+ * its one-minute buckets roll over as at 100Hz.
+ */
+@State(Scope.Thread)
+public class BarometerBenchmark {
+
+    private final int[] mRainbow = new int[7];
+    private final int[] mColors = new int[7];
+    private float mPressure = Barometer.RANGE_LOW;
+    private final PressureTrend mTrend = new PressureTrend();
+    private long mTimestampMs = 1500000000000L;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < mRainbow.length; i++) {
+            mRainbow[i] = 0xFF000000 | (i * 0x242424);
+        }
+    }
+
+    private float nextPressure() {
+        mPressure += 0.37f;
+        if (mPressure > Barometer.RANGE_HIGH) {
+            mPressure = Barometer.RANGE_LOW;
+        }
+        return mPressure;
+    }
+
+    @Benchmark
+    public int weather() {
+        return Barometer.weather(nextPressure());
+    }
+
+    @Benchmark
+    public int forecast() {
+        mTimestampMs += 10;
+        return mTrend.add(mTimestampMs, nextPressure());
+    }
+
+    @Benchmark
+    public int[] barAllocating() {
+        // What updateBarometer does for every pressure event.
+        int[] colors = new int[mRainbow.length];
+        Barometer.fillBar(nextPressure(), mRainbow, colors);
+        return colors;
+    }
+
+    @Benchmark
+    public int[] barReused() {
+        Barometer.fillBar(nextPressure(), mRainbow, mColors);
+        return mColors;
+    }
+}
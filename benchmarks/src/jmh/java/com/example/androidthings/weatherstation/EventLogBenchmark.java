@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+
+/**
+ * Cost of logging a sensor event: kept, filtered out by level or by sampling, or formatted into
+ * a string as the listeners used to. Records are drained inline to a sink discarding them, so
+ * that none are dropped and the drain is part of the cost.
+ */
+@State(Scope.Thread)
+public class EventLogBenchmark {
+
+    private static final EventLog.Event EVENT = EventLog.define("sensor_changed",
+            EventLog.DEBUG, "%s=%.2f", "cd");
+    private static final EventLog.Event SAMPLED_EVENT = EventLog.define("sensor_changed",
+            EventLog.DEBUG, "%s=%.2f", "cd").setSampling(10);
+    private static final EventLog.Event VERBOSE_EVENT = EventLog.define("sensor_changed",
+            EventLog.VERBOSE, "%s=%.2f", "cd");
+
+    @Param({"kept", "sampled", "filtered", "string"})
+    public String mode;
+
+    private EventLog mEventLog;
+    private EventLog.Event mEvent;
+    private float mValue = 1013.25f;
+    private int mCount;
+
+    @Setup
+    public void setUp() {
+        mEventLog = new EventLog(4096).addSink(new EventLog.Sink() {
+            @Override
+            public void write(EventLog.Event event, long timeMillis, long a0, long a1,
+                              long a2) {
+            }
+
+            @Override
+            public void flush(long dropped) {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        mEvent = "sampled".equals(mode) ? SAMPLED_EVENT
+                : "filtered".equals(mode) ? VERBOSE_EVENT : EVENT;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (mEventLog.getDroppedCount() > 0) {
+            throw new IllegalStateException("Records dropped");
+        }
+        mEventLog.close();
+    }
+
+    @Benchmark
+    public Object log() {
+        mValue += 0.01f;
+        if ("string".equals(mode)) {
+            return "sensor changed: " + mValue;
+        }
+        mEventLog.log(mEvent, Channel.PRESSURE, mValue);
+        if ((++mCount & 1023) == 0) {
+            mEventLog.drain();
+        }
+        return null;
+    }
+}
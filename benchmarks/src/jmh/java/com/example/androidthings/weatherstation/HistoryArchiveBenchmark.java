@@ -0,0 +1,102 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queries on four weeks of pressure readings at the device's 5Hz, about 12M samples in 672
+ * hourly segments: one hour of raw samples in the middle of the history, and the whole history
+ * downsampled to one line per hour.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HistoryArchiveBenchmark {
+
+    private static final long PARTITION_MS = TimeUnit.HOURS.toMillis(1);
+    private static final long HISTORY_MS = TimeUnit.DAYS.toMillis(28);
+    private static final long PERIOD_MS = 200;
+    private static final long START_MS = 1500000000000L;
+
+    private File mDirectory;
+    private HistoryArchive mArchive;
+    private HistoryQueries mQueries;
+    private final StringBuilder mOut = new StringBuilder();
+
+    @Setup
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("history", "");
+        if (!mDirectory.delete() || !mDirectory.mkdir()) {
+            throw new IOException("Cannot create " + mDirectory);
+        }
+        HistoryArchive writer = new HistoryArchive(mDirectory, PARTITION_MS, HISTORY_MS * 2);
+        SampleBuffer series = SyntheticSeries.create(8192, 0, (int) PERIOD_MS);
+        int i = 0;
+        for (long t = 0; t < HISTORY_MS; t += PERIOD_MS) {
+            // The odd samples are pressure readings.
+            writer.onSample(Channel.PRESSURE, START_MS + t, series.values[(i++ * 2 + 1) & 8191]);
+        }
+        writer.close();
+        // Queries run on the segments as left on disk, with their index files.
+        mArchive = new HistoryArchive(mDirectory, PARTITION_MS, HISTORY_MS * 2);
+        mQueries = new HistoryQueries(mArchive);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mArchive.close();
+        delete(mDirectory);
+    }
+
+    @Benchmark
+    public int rangeOneHour() throws IOException {
+        mOut.setLength(0);
+        long from = START_MS + HISTORY_MS / 2 + 12345;
+        mQueries.range(Channel.PRESSURE, from, from + PARTITION_MS, Integer.MAX_VALUE, mOut);
+        return mOut.length();
+    }
+
+    @Benchmark
+    public int downsampleFourWeeksHourly() throws IOException {
+        mOut.setLength(0);
+        mQueries.downsample(Channel.PRESSURE, START_MS, START_MS + HISTORY_MS, PARTITION_MS,
+                mOut);
+        return mOut.length();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
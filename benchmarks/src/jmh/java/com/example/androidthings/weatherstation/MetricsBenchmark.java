@@ -0,0 +1,71 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+
+/**
+ * Cost of the instrumentation added to the sensor path: counting an event and timing it into a
+ * histogram, as the sensor listeners do, and of one scrape of a registry the size of the
+ * station's.
+ */
+@State(Scope.Thread)
+public class MetricsBenchmark {
+
+    private Metrics mMetrics;
+    private Metrics.Counter mCounter;
+    private LatencyHistogram mHistogram;
+    private final StringBuilder mScrape = new StringBuilder();
+
+    @Setup
+    public void setUp() {
+        mMetrics = new Metrics();
+        mCounter = mMetrics.counter("events_total", "Events.", "channel", "temperature");
+        mHistogram = mMetrics.histogram("event_duration_seconds", "Event duration.",
+                "channel", "temperature");
+        // About as many metrics as the station exports.
+        for (int i = 0; i < 10; i++) {
+            mMetrics.histogram("histogram_seconds", "Histogram.", "index", String.valueOf(i))
+                    .record(i * 100000L);
+            mMetrics.counter("counter_total", "Counter.", "index", String.valueOf(i)).add(i);
+        }
+    }
+
+    @Benchmark
+    public void count() {
+        mCounter.increment();
+    }
+
+    @Benchmark
+    public void countAndTime() {
+        long start = System.nanoTime();
+        mCounter.increment();
+        mHistogram.record(System.nanoTime() - start);
+    }
+
+    @Benchmark
+    public int scrape() throws IOException {
+        mScrape.setLength(0);
+        mMetrics.writePrometheus(mScrape);
+        return mScrape.length();
+    }
+}
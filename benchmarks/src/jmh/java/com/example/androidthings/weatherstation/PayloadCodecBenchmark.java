@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+
+/**
+ * Cost of building the payload of a published message: the per-minute snapshot of both channels
+ * and a full batch of samples, for each {@link PayloadCodec}.
+ */
+@State(Scope.Thread)
+public class PayloadCodecBenchmark {
+
+    private static final String DEVICE_ID = "rpi3";
+
+    @Param({"json", "binary", "gorilla"})
+    public String codec;
+
+    @Param({"500"})
+    public int batchSize;
+
+    private PayloadCodec mCodec;
+    private SampleBuffer mSnapshot;
+    private SampleBuffer mBatch;
+    private SampleBuffer mDecoded;
+    private byte[] mBatchPayload;
+
+    @Setup
+    public void setUp() {
+        switch (codec) {
+            case "json":
+                mCodec = new JsonPayloadCodec();
+                break;
+            case "binary":
+                mCodec = new BinaryPayloadCodec();
+                break;
+            case "gorilla":
+                mCodec = new GorillaPayloadCodec();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown codec: " + codec);
+        }
+        mSnapshot = new SampleBuffer(Channel.COUNT);
+        mSnapshot.add(Channel.TEMPERATURE, 1500000000000L, 21.5f);
+        mSnapshot.add(Channel.PRESSURE, 1500000000000L, 1013.25f);
+        mBatch = SyntheticSeries.create(batchSize, 1500000000000L, 200);
+        mDecoded = new SampleBuffer(batchSize);
+        mBatchPayload = mCodec.encode(DEVICE_ID, mBatch, 0, mBatch.size());
+    }
+
+    @Benchmark
+    public byte[] encodeSnapshot() {
+        return mCodec.encode(DEVICE_ID, mSnapshot, 0, mSnapshot.size());
+    }
+
+    @Benchmark
+    public byte[] encodeBatch() {
+        // JSON puts one sample per message, like the publisher does.
+        int perPayload = mCodec.maxSamplesPerPayload();
+        byte[] last = null;
+        for (int from = 0; from < mBatch.size(); from += perPayload) {
+            last = mCodec.encode(DEVICE_ID, mBatch, from,
+                    Math.min(from + perPayload, mBatch.size()));
+        }
+        return last;
+    }
+
+    @Benchmark
+    public int decodeBatch() throws IOException {
+        mDecoded.clear();
+        mCodec.decode(mBatchPayload, mDecoded);
+        return mDecoded.size();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * Per-sample cost of the noise filters, and of the pipeline with and without them, for noisy
+ * pressure readings 10ms apart. Run with {@code -prof gc} to check that filtering does not
+ * allocate.
+ */
+@State(Scope.Thread)
+public class SampleFilterBenchmark {
+
+    private static final int SIZE = 4096;
+
+    private final float[] mReadings = new float[SIZE];
+    private int mNext;
+    private long mTimestampMs = 1500000000000L;
+
+    private final SampleFilter mMedian = SampleFilter.median(5);
+    private final SampleFilter mEma = SampleFilter.ema(2000);
+    private final SampleFilter mKalman = SampleFilter.kalman(1e-5f, 0.01f);
+    private final SampleFilter mChain = SampleFilter.chain(SampleFilter.median(5),
+            SampleFilter.kalman(1e-5f, 0.01f));
+
+    private final StationPipeline mRaw = newPipeline(false);
+    private final StationPipeline mFiltered = newPipeline(true);
+
+    public SampleFilterBenchmark() {
+        Random random = new Random(42);
+        for (int i = 0; i < SIZE; i++) {
+            mReadings[i] = 1013.25f + (float) random.nextGaussian() * 0.1f;
+        }
+    }
+
+    private static StationPipeline newPipeline(boolean filtered) {
+        StationPipeline pipeline = new StationPipeline(new TimeSeriesStore(SIZE - 1), new int[7]);
+        pipeline.setDisplayChannel(Channel.PRESSURE);
+        pipeline.setDisplay(new SegmentDisplay() {
+            @Override
+            public void display(float value) {
+            }
+        });
+        pipeline.setLedStrip(new LedStrip() {
+            @Override
+            public void write(int[] colors) {
+            }
+        });
+        if (filtered) {
+            pipeline.setBmp280Filters();
+        }
+        return pipeline;
+    }
+
+    private float nextReading() {
+        mTimestampMs += 10;
+        mNext = (mNext + 1) & (SIZE - 1);
+        return mReadings[mNext];
+    }
+
+    @Benchmark
+    public float median() {
+        return mMedian.filter(mTimestampMs, nextReading());
+    }
+
+    @Benchmark
+    public float ema() {
+        return mEma.filter(mTimestampMs, nextReading());
+    }
+
+    @Benchmark
+    public float kalman() {
+        return mKalman.filter(mTimestampMs, nextReading());
+    }
+
+    @Benchmark
+    public float chain() {
+        return mChain.filter(mTimestampMs, nextReading());
+    }
+
+    @Benchmark
+    public void pipelineRaw() {
+        mRaw.onSample(Channel.PRESSURE, mTimestampMs, nextReading());
+    }
+
+    @Benchmark
+    public void pipelineFiltered() {
+        mFiltered.onSample(Channel.PRESSURE, mTimestampMs, nextReading());
+    }
+}
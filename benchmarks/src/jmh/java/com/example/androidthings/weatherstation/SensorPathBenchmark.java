@@ -0,0 +1,103 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Work done by the sensor listeners for every event, without the Android framework: recording
+ * the sample in the history, batching it for the publisher and reading the history back, and
+ * dispatching it to the consumers of the event bus.
+ */
+@State(Scope.Thread)
+public class SensorPathBenchmark {
+
+    private TimeSeriesStore mHistory;
+    private PublishBatcher mBatcher;
+    private PayloadCodec mCodec;
+    private long mTimestamp = 1500000000000L;
+    private float mValue = 1013.25f;
+    private final long[] mLastTimestamps = new long[60];
+    private final float[] mLastValues = new float[60];
+    private SensorEventBus mBus;
+    private float mConsumed;
+
+    @Setup
+    public void setUp() {
+        mHistory = new TimeSeriesStore((1 << 19) - 1);
+        mBatcher = new PublishBatcher(new PublishBatcher.Policy(500, 256 * 1024,
+                TimeUnit.MINUTES.toMillis(1)));
+        mCodec = new GorillaPayloadCodec();
+        mBus = new SensorEventBus();
+        SampleSink consumer = new SampleSink() {
+            @Override
+            public void onSample(int channel, long timestampMs, float value) {
+                mConsumed += value;
+            }
+        };
+        Executor direct = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        mBus.subscribe("history", SensorEventBus.DROP_OLDEST, 1024, consumer, direct);
+        mBus.subscribe("display", SensorEventBus.CONFLATE, 0, consumer, direct);
+        for (int i = 0; i < 1000; i++) {
+            onSensorChanged();
+        }
+    }
+
+    @Benchmark
+    public boolean onSensorChanged() {
+        mTimestamp += 100;
+        mValue += 0.01f;
+        int channel = (int) (mTimestamp / 100) & 1;
+        mHistory.append(channel, mTimestamp, mValue);
+        if (mBatcher.add(channel, mTimestamp, mValue, mCodec.estimateSampleBytes())) {
+            // The publisher thread would take the batch at this point.
+            mBatcher.drain();
+            return true;
+        }
+        return false;
+    }
+
+    @Benchmark
+    public float publishOnBus() {
+        mTimestamp += 100;
+        mValue += 0.01f;
+        mBus.publish((int) (mTimestamp / 100) & 1, mTimestamp, mValue);
+        return mConsumed;
+    }
+
+    @Benchmark
+    public float lastValue() {
+        return mHistory.lastValue(Channel.PRESSURE);
+    }
+
+    @Benchmark
+    public int lastMinute() {
+        return mHistory.get(Channel.PRESSURE).last(mLastValues.length, mLastTimestamps,
+                mLastValues);
+    }
+}
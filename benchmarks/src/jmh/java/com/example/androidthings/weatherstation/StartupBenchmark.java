@@ -0,0 +1,156 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time from startup to the first sample, with the same component steps run one after the other
+ * on one thread in the order onCreate() used to run them, or by {@link StartupOrchestrator}.
+ * Each peripheral takes a fixed, estimated time to open; the BMP280 delivers its first sample
+ * one conversion after its sensors are registered. Both return the time to the first sample in
+ * nanoseconds.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StartupBenchmark {
+
+    private static final long BUTTON_NANOS = TimeUnit.MILLISECONDS.toNanos(15);
+    private static final long BMP280_NANOS = TimeUnit.MILLISECONDS.toNanos(60);
+    private static final long BMP280_CONVERSION_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long DISPLAY_NANOS = TimeUnit.MILLISECONDS.toNanos(25);
+    private static final long LED_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final long LEDSTRIP_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final long SPEAKER_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long CLOUD_NANOS = TimeUnit.MILLISECONDS.toNanos(150);
+
+    @Param({"sequential", "orchestrated"})
+    public String startup;
+
+    private ScheduledExecutorService mSensor;
+    private StartupOrchestrator mOrchestrator;
+    // Steps in the order onCreate() ran them before the orchestrator.
+    private final List<StartupOrchestrator.Step> mSequentialSteps = new ArrayList<>();
+    private CountDownLatch mFirstSample;
+    private volatile long mFirstSampleNanos;
+
+    @Setup
+    public void setUp() {
+        mSensor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mSensor.shutdownNow();
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpInvocation() {
+        mFirstSample = new CountDownLatch(1);
+        final boolean orchestrated = "orchestrated".equals(startup);
+        StartupOrchestrator.Step bmp280 = new StartupOrchestrator.Step() {
+            @Override
+            public void run() {
+                SimulatedPeripherals.block(BMP280_NANOS);
+                // Sequentially, the dynamic sensor callback registering the listeners ran on
+                // the main looper, once onCreate() returned.
+                if (orchestrated) {
+                    registerSensors();
+                }
+            }
+        };
+        StartupOrchestrator.Step button = step(BUTTON_NANOS);
+        StartupOrchestrator.Step display = step(DISPLAY_NANOS);
+        StartupOrchestrator.Step ledstrip = step(LEDSTRIP_NANOS);
+        StartupOrchestrator.Step led = step(LED_NANOS);
+        StartupOrchestrator.Step speaker = step(SPEAKER_NANOS);
+        StartupOrchestrator.Step cloud = step(CLOUD_NANOS);
+        mOrchestrator = new StartupOrchestrator(null)
+                .add("button", StartupOrchestrator.PHASE_SENSING, true, button)
+                .add("bmp280", StartupOrchestrator.PHASE_SENSING, true, bmp280)
+                .add("display", StartupOrchestrator.PHASE_SENSING, false, display)
+                .add("led", StartupOrchestrator.PHASE_SENSING, true, led)
+                .add("ledstrip", StartupOrchestrator.PHASE_DEFERRED, false, ledstrip)
+                .add("speaker", StartupOrchestrator.PHASE_DEFERRED, true, speaker)
+                .add("cloud", StartupOrchestrator.PHASE_DEFERRED, false, cloud);
+        mSequentialSteps.clear();
+        Collections.addAll(mSequentialSteps, button, bmp280, display, ledstrip, led, speaker,
+                cloud);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDownInvocation() throws InterruptedException {
+        // Deferred components keep starting after the first sample.
+        if ("orchestrated".equals(startup)) {
+            mOrchestrator.await(TimeUnit.SECONDS.toMillis(10));
+        }
+    }
+
+    @Benchmark
+    public long timeToFirstSample() throws Exception {
+        long start = System.nanoTime();
+        if ("sequential".equals(startup)) {
+            for (StartupOrchestrator.Step step : mSequentialSteps) {
+                step.run();
+            }
+            registerSensors();
+        } else {
+            mOrchestrator.start();
+        }
+        mFirstSample.await();
+        return mFirstSampleNanos - start;
+    }
+
+    // The first sample arrives one conversion after the sensors are registered.
+    private void registerSensors() {
+        mSensor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mFirstSampleNanos = System.nanoTime();
+                mOrchestrator.onSample();
+                mFirstSample.countDown();
+            }
+        }, BMP280_CONVERSION_NANOS, TimeUnit.NANOSECONDS);
+    }
+
+    private static StartupOrchestrator.Step step(final long nanos) {
+        return new StartupOrchestrator.Step() {
+            @Override
+            public void run() {
+                SimulatedPeripherals.block(nanos);
+            }
+        };
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.util.Random;
+
+/**
+ * Deterministic BMP280-like readings: both channels interleaved at a fixed period with a little
+ * timestamp jitter and slowly drifting values.
+ */
+final class SyntheticSeries {
+
+    private SyntheticSeries() {
+    }
+
+    static SampleBuffer create(int size, long startMs, int periodMs) {
+        Random random = new Random(42);
+        SampleBuffer samples = new SampleBuffer(size);
+        long timestamp = startMs;
+        float temperature = 21.3f;
+        float pressure = 1013.25f;
+        for (int i = 0; i < size; i++) {
+            timestamp += periodMs / 2 + (random.nextInt(5) == 0 ? random.nextInt(7) - 3 : 0);
+            if (i % 2 == 0) {
+                temperature += random.nextInt(10) == 0 ? 0.01f : 0f;
+                samples.add(Channel.TEMPERATURE, timestamp, temperature);
+            } else {
+                pressure += random.nextInt(4) == 0 ? (random.nextFloat() - 0.5f) * 0.05f : 0f;
+                samples.add(Channel.PRESSURE, timestamp, pressure);
+            }
+        }
+        return samples;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Per-sample cost of window aggregation, for tumbling windows and for sliding windows of 10s
+ * reported every second, with samples of alternating channels every 10ms.
+ */
+@State(Scope.Thread)
+public class WindowAggregatorBenchmark {
+
+    @Param({"tumbling", "sliding"})
+    public String window;
+
+    private WindowAggregator mAggregator;
+    private SampleBuffer mSamples;
+    private double mSum;
+    private long mTimestamp = 1500000000000L;
+    private int mIndex;
+
+    @Setup
+    public void setUp() {
+        mSamples = SyntheticSeries.create(4096, mTimestamp, 20);
+        WindowAggregator.Listener listener = new WindowAggregator.Listener() {
+            @Override
+            public void onWindow(int channel, long startMs, long endMs,
+                                 WindowAggregator.Stats stats) {
+                mSum += stats.mean + stats.stddev() + stats.min + stats.max;
+            }
+        };
+        mAggregator = "tumbling".equals(window)
+                ? WindowAggregator.tumbling(10000, listener)
+                : WindowAggregator.sliding(10000, 1000, 2048, listener);
+    }
+
+    @Benchmark
+    public double onSample() {
+        mTimestamp += 10;
+        mIndex = (mIndex + 1) & (mSamples.size() - 1);
+        mAggregator.onSample(mSamples.channels[mIndex], mTimestamp, mSamples.values[mIndex]);
+        return mSum;
+    }
+}
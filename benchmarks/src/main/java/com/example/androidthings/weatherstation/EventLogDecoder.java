@@ -0,0 +1,54 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Prints event logs written by {@link EventLogFile} as text, e.g. after pulling them from the
+ * device:
+ *
+ * <pre>
+ * adb pull /data/data/com.example.androidthings.weatherstation/files/events.log
+ * ./gradlew :benchmarks:decodeEventLog -PeventLog=$PWD/events.log
+ * </pre>
+ */
+public class EventLogDecoder {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: EventLogDecoder <events.log>...");
+            System.exit(1);
+        }
+        Writer out = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+        for (String path : args) {
+            InputStream in = new BufferedInputStream(new FileInputStream(path));
+            try {
+                EventLogFile.decode(in, out);
+            } finally {
+                in.close();
+            }
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a {@link StationGateway} on localhost against many simulated peer stations, each
+ * publishing through its own {@link StreamPublishTransport}, and forwards the merged batches
+ * through a {@link PublishPipeline} to a {@link LocalRestServer} standing in for Cloud Pub/Sub,
+ * with the sequence number and session of each peer. Some requests are sent twice, as when an
+ * acknowledgment is lost, to check that the gateway drops the repeats and that every other
+ * message reaches the upstream server.
+ *
+ * <pre>
+ * ./gradlew :benchmarks:gatewayLoadTest -PgatewayArgs="--peers 10,100,1000 --seconds 10"
+ * </pre>
+ *
+ * For each number of peers it reports the requests and messages acknowledged per second
+ * against those offered, the acknowledgment latency seen by the peers, which includes the wait
+ * for the batch holding their messages to be stored, the duplicates dropped, and the messages
+ * per upstream request. The gateway saturates where the acknowledged rate falls behind the
+ * offered one.
+ *
+ * Options: --peers (comma-separated), --seconds per run, --interval-ms between the requests of
+ * a peer (a station publishes once per minute), --messages per request, --bytes per message,
+ * --duplicates (fraction of requests sent twice), --threads sending for the peers,
+ * --batch-age-ms (age limit of a gateway batch), --upstream-us (processing time of one upstream
+ * request).
+ */
+public class GatewayLoadTest {
+
+    private static final int TIMEOUT_MS = 10000;
+    private static final String TOKEN = "load-test";
+    // What the publisher's journal can keep, see PubsubPublisher.MAX_MESSAGE_BYTES.
+    private static final int MAX_MESSAGE_BYTES = 256 * 1024 - MessageJournal.RECORD_HEADER_BYTES
+            - StationGateway.MAX_SESSION_BYTES;
+    private static final PublishPipeline.Policy UPSTREAM_POLICY = new PublishPipeline.Policy(
+            4, 64, 5, 100, TimeUnit.SECONDS.toMillis(1), 5, TimeUnit.SECONDS.toMillis(1));
+
+    private int[] mPeers = {10, 100, 1000};
+    private int mSeconds = 10;
+    private long mIntervalMs = 1000;
+    private int mMessages = 2;
+    private int mBytes = 200;
+    private double mDuplicates = 0.01;
+    private int mThreads = 32;
+    private long mBatchAgeMs = 1000;
+    private long mUpstreamNanos = TimeUnit.MILLISECONDS.toNanos(5);
+
+    public static void main(String[] args) throws Exception {
+        GatewayLoadTest test = new GatewayLoadTest();
+        test.parseArguments(args);
+        test.run();
+    }
+
+    private void parseArguments(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--peers":
+                    String[] peers = value.split(",");
+                    mPeers = new int[peers.length];
+                    for (int j = 0; j < peers.length; j++) {
+                        mPeers[j] = Integer.parseInt(peers[j]);
+                    }
+                    break;
+                case "--seconds":
+                    mSeconds = Integer.parseInt(value);
+                    break;
+                case "--interval-ms":
+                    mIntervalMs = Long.parseLong(value);
+                    break;
+                case "--messages":
+                    mMessages = Integer.parseInt(value);
+                    break;
+                case "--bytes":
+                    mBytes = Math.max(16, Integer.parseInt(value));
+                    break;
+                case "--duplicates":
+                    mDuplicates = Double.parseDouble(value);
+                    break;
+                case "--threads":
+                    mThreads = Integer.parseInt(value);
+                    break;
+                case "--batch-age-ms":
+                    mBatchAgeMs = Long.parseLong(value);
+                    break;
+                case "--upstream-us":
+                    mUpstreamNanos = TimeUnit.MICROSECONDS.toNanos(Long.parseLong(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        System.out.println(String.format(Locale.US,
+                "%7s %10s %9s %11s %9s %9s %10s %10s %10s %9s %10s %7s %7s",
+                "peers", "offered/s", "req/s", "msgs/s", "p50_us", "p99_us", "dups_sent",
+                "dups_drop", "upstream", "msgs/req", "delivered", "lost", "errors"));
+        for (int peers : mPeers) {
+            runScenario(peers);
+        }
+    }
+
+    private void runScenario(int peers) throws Exception {
+        LocalRestServer upstream = new LocalRestServer(mUpstreamNanos);
+        upstream.start();
+        PublishTransport upstreamTransport = new HttpPublishTransport("127.0.0.1",
+                upstream.getPort(), "projects/p/topics/t", "gateway", TIMEOUT_MS);
+        final PublishPipeline pipeline = new PublishPipeline(upstreamTransport, UPSTREAM_POLICY);
+        final AtomicLong upstreamFailures = new AtomicLong();
+        final PublishPipeline.Callback callback = new PublishPipeline.Callback() {
+            @Override
+            public void onSuccess(List<byte[]> payloads) {
+            }
+
+            @Override
+            public void onFailure(List<byte[]> payloads, long[] sequences, String[] sessions,
+                                  IOException e) {
+                // On the device these would be journaled.
+                upstreamFailures.addAndGet(payloads.size());
+            }
+        };
+        StationGateway gateway = new StationGateway(0, TOKEN, MAX_MESSAGE_BYTES,
+                new PublishBatcher.Policy(PublishBatcher.MAX_MESSAGES_PER_REQUEST, 1024 * 1024,
+                        mBatchAgeMs),
+                new StationGateway.Uplink() {
+                    // Stands in for the journal of the publisher, which replays the batch.
+                    @Override
+                    public boolean store(List<byte[]> payloads, long[] sequences,
+                                         String[] sessions) {
+                        pipeline.submit(payloads, sequences, sessions, callback);
+                        return true;
+                    }
+                });
+        gateway.start();
+
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong duplicatesSent = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(mThreads);
+        List<Peer> peerList = new ArrayList<>(peers);
+        Random random = new Random(peers);
+        for (int i = 0; i < peers; i++) {
+            Peer peer = new Peer(i, new StreamPublishTransport("127.0.0.1", gateway.getPort(),
+                    "station-" + i, "session-" + i, TOKEN, TIMEOUT_MS), random.nextLong(), latency,
+                    sent, duplicatesSent, errors);
+            peerList.add(peer);
+            // Spread the peers over the interval, as stations started at different times.
+            executor.scheduleAtFixedRate(peer, (long) (random.nextDouble() * mIntervalMs),
+                    mIntervalMs, TimeUnit.MILLISECONDS);
+        }
+
+        long start = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(mSeconds));
+        executor.shutdown();
+        executor.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        for (Peer peer : peerList) {
+            peer.transport.close();
+        }
+        // Hands the last batch upstream, then waits for it to be delivered.
+        gateway.close();
+        pipeline.shutdown(TIMEOUT_MS);
+        upstreamTransport.close();
+        upstream.close();
+
+        long offered = (long) (peers * (seconds * 1000 / mIntervalMs));
+        long acknowledged = latency.getCount();
+        long unique = sent.get() * mMessages;
+        long delivered = upstream.getMessageCount();
+        System.out.println(String.format(Locale.US,
+                "%7d %10.0f %9.0f %11.0f %9d %9d %10d %10d %10d %9.1f %10d %7d %7d",
+                peers, offered / seconds, acknowledged / seconds,
+                acknowledged * mMessages / seconds,
+                TimeUnit.NANOSECONDS.toMicros(latency.getPercentile(0.50)),
+                TimeUnit.NANOSECONDS.toMicros(latency.getPercentile(0.99)),
+                duplicatesSent.get() * mMessages, gateway.getDuplicateCount(),
+                upstream.getRequestCount(),
+                upstream.getRequestCount() > 0
+                        ? (double) delivered / upstream.getRequestCount() : 0,
+                delivered, unique - delivered - upstreamFailures.get(),
+                errors.get() + gateway.getErrorCount()));
+    }
+
+    /**
+     * A station sending one request of distinct messages at every run, and sometimes the same
+     * request again.
+     */
+    private final class Peer implements Runnable {
+        final StreamPublishTransport transport;
+        private final int mId;
+        private final Random mRandom;
+        private final LatencyHistogram mLatency;
+        private final AtomicLong mSent;
+        private final AtomicLong mDuplicatesSent;
+        private final AtomicLong mErrors;
+        private long mSequence;
+        private int mRequests;
+
+        Peer(int id, StreamPublishTransport transport, long seed, LatencyHistogram latency,
+             AtomicLong sent, AtomicLong duplicatesSent, AtomicLong errors) {
+            mId = id;
+            this.transport = transport;
+            mRandom = new Random(seed);
+            mLatency = latency;
+            mSent = sent;
+            mDuplicatesSent = duplicatesSent;
+            mErrors = errors;
+        }
+
+        @Override
+        public void run() {
+            List<byte[]> payloads = new ArrayList<>(mMessages);
+            for (int i = 0; i < mMessages; i++) {
+                byte[] payload = new byte[mBytes];
+                mRandom.nextBytes(payload);
+                // Unique per peer and message, like a real payload's device id and timestamps.
+                ByteBuffer.wrap(payload).putInt(mId).putInt(mRequests).putInt(i);
+                payloads.add(payload);
+            }
+            mRequests++;
+            if (!send(payloads)) {
+                return;
+            }
+            mSent.incrementAndGet();
+            if (mRandom.nextDouble() < mDuplicates && send(payloads)) {
+                mDuplicatesSent.incrementAndGet();
+            }
+        }
+
+        // Sends a request, as the publish pipeline would, numbering its messages in sequence.
+        private boolean send(List<byte[]> payloads) {
+            long[] sequences = PublishPipeline.sequences(mSequence, payloads.size());
+            long start = System.nanoTime();
+            try {
+                transport.send(payloads, sequences, null);
+            } catch (IOException e) {
+                mErrors.incrementAndGet();
+                return false;
+            }
+            mSequence += payloads.size();
+            mLatency.record(System.nanoTime() - start);
+            return true;
+        }
+    }
+}
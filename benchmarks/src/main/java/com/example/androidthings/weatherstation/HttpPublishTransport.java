@@ -0,0 +1,190 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Stand-in for {@link RestPublishTransport} on the JVM: the same JSON publish request, with
+ * base64 payloads and attributes, posted to {@link LocalRestServer} over a keep-alive HTTP/1.1
+ * connection. Each request is written in one go with TCP_NODELAY, as the device's HTTP stack
+ * does; {@code HttpURLConnection} would add delayed-ACK stalls that are not part of the
+ * comparison. It leaves out TLS and OAuth, so it underestimates the cost of the real client.
+ */
+class HttpPublishTransport implements PublishTransport {
+
+    private static final char[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private final String mHost;
+    private final int mPort;
+    private final String mPath;
+    private final String mSession;
+    private final int mTimeoutMs;
+
+    // Guarded by this.
+    private Socket mSocket;
+    private InputStream mInput;
+    private OutputStream mOutput;
+
+    HttpPublishTransport(String host, int port, String topic, String session, int timeoutMs) {
+        mHost = host;
+        mPort = port;
+        mPath = "/v1/" + topic + ":publish";
+        mSession = session;
+        mTimeoutMs = timeoutMs;
+    }
+
+    @Override
+    public synchronized void send(List<byte[]> payloads, long[] sequences, String[] sessions)
+            throws IOException {
+        byte[] body;
+        try {
+            JSONArray messages = new JSONArray();
+            for (int i = 0; i < payloads.size(); i++) {
+                JSONObject attributes = new JSONObject();
+                attributes.put("session",
+                        sessions != null && sessions[i] != null ? sessions[i] : mSession);
+                attributes.put("seq", String.valueOf(sequences[i]));
+                messages.put(new JSONObject()
+                        .put("data", base64(payloads.get(i)))
+                        .put("attributes", attributes));
+            }
+            body = new JSONObject().put("messages", messages).toString()
+                    .getBytes(StandardCharsets.UTF_8);
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteArrayOutputStream request = new ByteArrayOutputStream(body.length + 256);
+        request.write(String.format(Locale.US, "POST %s HTTP/1.1\r\n"
+                + "Host: %s:%d\r\n"
+                + "Content-Type: application/json; charset=UTF-8\r\n"
+                + "Content-Length: %d\r\n\r\n", mPath, mHost, mPort, body.length)
+                .getBytes(StandardCharsets.US_ASCII));
+        request.write(body);
+        try {
+            if (mSocket == null) {
+                connect();
+            }
+            request.writeTo(mOutput);
+            mOutput.flush();
+            readResponse();
+        } catch (IOException e) {
+            disconnect();
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        disconnect();
+    }
+
+    private void connect() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(mHost, mPort), mTimeoutMs);
+            socket.setSoTimeout(mTimeoutMs);
+            mInput = new BufferedInputStream(socket.getInputStream());
+            mOutput = socket.getOutputStream();
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        mSocket = socket;
+    }
+
+    private void disconnect() {
+        if (mSocket == null) {
+            return;
+        }
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+            // Nothing left to do with it.
+        }
+        mSocket = null;
+        mInput = null;
+        mOutput = null;
+    }
+
+    /**
+     * Reads the status line and headers, then discards the body so the connection can carry
+     * the next request.
+     */
+    private void readResponse() throws IOException {
+        String status = readLine();
+        int contentLength = 0;
+        String header;
+        while (!(header = readLine()).isEmpty()) {
+            int colon = header.indexOf(':');
+            if (colon > 0 && header.substring(0, colon).trim()
+                    .equalsIgnoreCase("Content-Length")) {
+                contentLength = Integer.parseInt(header.substring(colon + 1).trim());
+            }
+        }
+        for (int i = 0; i < contentLength; i++) {
+            if (mInput.read() < 0) {
+                throw new IOException("Truncated response");
+            }
+        }
+        if (!status.startsWith("HTTP/1.1 200")) {
+            throw new IOException("Unexpected response: " + status);
+        }
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = mInput.read()) != '\n') {
+            if (c < 0) {
+                throw new IOException("Connection closed");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    private static String base64(byte[] data) {
+        StringBuilder out = new StringBuilder((data.length + 2) / 3 * 4);
+        for (int i = 0; i < data.length; i += 3) {
+            int b = (data[i] & 0xff) << 16
+                    | (i + 1 < data.length ? (data[i + 1] & 0xff) << 8 : 0)
+                    | (i + 2 < data.length ? data[i + 2] & 0xff : 0);
+            out.append(BASE64[b >>> 18 & 63]).append(BASE64[b >>> 12 & 63]);
+            out.append(i + 1 < data.length ? BASE64[b >>> 6 & 63] : '=');
+            out.append(i + 2 < data.length ? BASE64[b & 63] : '=');
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for the Cloud Pub/Sub publish endpoint, receiving the JSON requests of
+ * {@link HttpPublishTransport} over keep-alive HTTP/1.1 connections. Like
+ * {@link LocalStreamServer}, it can take a fixed time to process each request. It only
+ * understands requests with a Content-Length, which is all the transport sends.
+ */
+class LocalRestServer implements Closeable {
+
+    private final long mRequestNanos;
+    private ServerSocket mServerSocket;
+    private volatile boolean mRunning;
+
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mMessages = new AtomicLong();
+
+    /**
+     * @param requestNanos processing time of one request.
+     */
+    LocalRestServer(long requestNanos) {
+        mRequestNanos = requestNanos;
+    }
+
+    void start() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        mRunning = true;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "localRestServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    long getRequestCount() {
+        return mRequests.get();
+    }
+
+    long getMessageCount() {
+        return mMessages.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mRunning = false;
+        mServerSocket.close();
+    }
+
+    private void acceptLoop() {
+        while (mRunning) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serve(socket);
+                    } catch (EOFException e) {
+                        // Client closed the connection.
+                    } catch (IOException e) {
+                        System.err.println("localRestServer: " + e);
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            // Ignored.
+                        }
+                    }
+                }
+            }, "localRestServer-connection");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        DataInputStream input = new DataInputStream(
+                new BufferedInputStream(socket.getInputStream()));
+        OutputStream output = socket.getOutputStream();
+        while (mRunning) {
+            String requestLine = readLine(input);
+            int contentLength = -1;
+            String header;
+            while (!(header = readLine(input)).isEmpty()) {
+                int colon = header.indexOf(':');
+                if (colon > 0 && header.substring(0, colon).trim()
+                        .equalsIgnoreCase("Content-Length")) {
+                    contentLength = Integer.parseInt(header.substring(colon + 1).trim());
+                }
+            }
+            if (!requestLine.startsWith("POST /v1/") || contentLength < 0) {
+                respond(output, "400 Bad Request", new byte[0]);
+                return;
+            }
+            byte[] body = new byte[contentLength];
+            input.readFully(body);
+            byte[] response = process(body);
+            if (response == null) {
+                respond(output, "400 Bad Request", new byte[0]);
+                return;
+            }
+            respond(output, "200 OK", response);
+        }
+    }
+
+    /**
+     * Returns the publish response listing the sequence numbers of the messages, or null if
+     * the request is malformed.
+     */
+    private byte[] process(byte[] body) {
+        try {
+            JSONArray messages = new JSONObject(new String(body, StandardCharsets.UTF_8))
+                    .getJSONArray("messages");
+            JSONArray ids = new JSONArray();
+            for (int i = 0; i < messages.length(); i++) {
+                ids.put(messages.getJSONObject(i).getJSONObject("attributes").getString("seq"));
+            }
+            SimulatedPeripherals.block(mRequestNanos);
+            mRequests.incrementAndGet();
+            mMessages.addAndGet(messages.length());
+            return new JSONObject().put("messageIds", ids).toString()
+                    .getBytes(StandardCharsets.UTF_8);
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    private static void respond(OutputStream output, String status, byte[] body)
+            throws IOException {
+        ByteArrayOutputStream response = new ByteArrayOutputStream(body.length + 128);
+        response.write(String.format(Locale.US, "HTTP/1.1 %s\r\n"
+                + "Content-Type: application/json; charset=UTF-8\r\n"
+                + "Content-Length: %d\r\n\r\n", status, body.length)
+                .getBytes(StandardCharsets.US_ASCII));
+        response.write(body);
+        response.writeTo(output);
+        output.flush();
+    }
+
+    private static String readLine(DataInputStream input) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = input.read()) != '\n') {
+            if (c < 0) {
+                throw new EOFException();
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+}
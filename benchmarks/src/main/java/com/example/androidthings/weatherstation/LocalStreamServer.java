@@ -0,0 +1,150 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for a gateway receiving the frames of {@link StreamPublishTransport}: it reads
+ * requests, optionally takes a fixed time to process each of them, and acknowledges them.
+ */
+class LocalStreamServer implements Closeable {
+
+    private final long mRequestNanos;
+    private ServerSocket mServerSocket;
+    private volatile boolean mRunning;
+
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mMessages = new AtomicLong();
+    private final AtomicLong mBytes = new AtomicLong();
+
+    /**
+     * @param requestNanos processing time of one request.
+     */
+    LocalStreamServer(long requestNanos) {
+        mRequestNanos = requestNanos;
+    }
+
+    void start() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        mRunning = true;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "localStreamServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    long getRequestCount() {
+        return mRequests.get();
+    }
+
+    long getMessageCount() {
+        return mMessages.get();
+    }
+
+    long getByteCount() {
+        return mBytes.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mRunning = false;
+        mServerSocket.close();
+    }
+
+    private void acceptLoop() {
+        while (mRunning) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serve(socket);
+                    } catch (EOFException e) {
+                        // Client closed the connection.
+                    } catch (IOException e) {
+                        System.err.println("localStreamServer: " + e);
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            // Ignored.
+                        }
+                    }
+                }
+            }, "localStreamServer-connection");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        DataInputStream input = new DataInputStream(
+                new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream()));
+        if (input.readInt() != StreamPublishTransport.MAGIC) {
+            throw new IOException("Not a station stream");
+        }
+        input.readUTF(); // deviceId
+        input.readUTF(); // session
+        input.readUTF(); // token, not checked
+        byte[] payload = new byte[1024];
+        while (mRunning) {
+            int count = input.readInt();
+            long sequence = -1;
+            for (int i = 0; i < count; i++) {
+                sequence = input.readLong();
+                int length = input.readInt();
+                if (length > payload.length) {
+                    payload = new byte[Math.max(length, payload.length * 2)];
+                }
+                input.readFully(payload, 0, length);
+                mBytes.addAndGet(length);
+            }
+            SimulatedPeripherals.block(mRequestNanos);
+            mRequests.incrementAndGet();
+            mMessages.addAndGet(count);
+            output.writeLong(sequence);
+            output.flush();
+        }
+    }
+}
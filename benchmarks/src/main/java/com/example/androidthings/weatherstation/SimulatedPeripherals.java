@@ -0,0 +1,69 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stand-ins for the display and LED strip drivers that block for as long as the real bus
+ * transfer would and count their writes.
+ */
+final class SimulatedPeripherals {
+
+    private SimulatedPeripherals() {
+    }
+
+    static final class Display implements SegmentDisplay {
+        private final long mWriteNanos;
+        final AtomicLong writes = new AtomicLong();
+
+        Display(long writeNanos) {
+            mWriteNanos = writeNanos;
+        }
+
+        @Override
+        public void display(float value) {
+            block(mWriteNanos);
+            writes.incrementAndGet();
+        }
+    }
+
+    static final class Strip implements LedStrip {
+        private final long mWriteNanos;
+        final AtomicLong writes = new AtomicLong();
+
+        Strip(long writeNanos) {
+            mWriteNanos = writeNanos;
+        }
+
+        @Override
+        public void write(int[] colors) {
+            block(mWriteNanos);
+            writes.incrementAndGet();
+        }
+    }
+
+    // Blocks the calling thread without using the CPU, like a transfer waiting in the kernel.
+    static void block(long nanos) {
+        long end = System.nanoTime() + nanos;
+        long remaining;
+        while ((remaining = end - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+}
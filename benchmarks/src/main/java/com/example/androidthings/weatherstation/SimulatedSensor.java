@@ -0,0 +1,145 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generates a synthetic BMP280 stream, temperature and pressure alternately, at a fixed rate on
+ * its own thread. Events go through a bounded queue standing for the SensorManager event queue:
+ * when the consumer falls behind, new events are dropped and counted.
+ */
+class SimulatedSensor {
+
+    private final double mRateHz;
+    private final int[] mChannels;
+    private final long[] mTimestamps;
+    private final float[] mValues;
+    private final long[] mCreatedNanos;
+    private final int mMask;
+    private volatile long mHead;
+    private volatile long mTail;
+
+    private volatile boolean mRunning;
+    private Thread mThread;
+    private volatile long mGenerated;
+    private volatile long mDropped;
+
+    /**
+     * @param rateHz        total number of events per second, both channels together.
+     * @param queueCapacity capacity of the event queue, rounded up to a power of two.
+     */
+    SimulatedSensor(double rateHz, int queueCapacity) {
+        int size = Integer.highestOneBit(Math.max(queueCapacity - 1, 1)) << 1;
+        mRateHz = rateHz;
+        mChannels = new int[size];
+        mTimestamps = new long[size];
+        mValues = new float[size];
+        mCreatedNanos = new long[size];
+        mMask = size - 1;
+    }
+
+    void start() {
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                generate();
+            }
+        }, "simulatedSensor");
+        mThread.start();
+    }
+
+    void stop() throws InterruptedException {
+        mRunning = false;
+        mThread.join();
+    }
+
+    long getGeneratedCount() {
+        return mGenerated;
+    }
+
+    long getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * Takes the oldest pending event and publishes it on {@code bus}.
+     *
+     * @return the nanoTime at which the event was generated, or -1 if the queue is empty.
+     */
+    long poll(SensorEventBus bus) {
+        long head = mHead;
+        if (head == mTail) {
+            return -1;
+        }
+        int slot = (int) (head & mMask);
+        int channel = mChannels[slot];
+        long timestamp = mTimestamps[slot];
+        float value = mValues[slot];
+        long created = mCreatedNanos[slot];
+        mHead = head + 1;
+        bus.publish(channel, timestamp, value);
+        return created;
+    }
+
+    private void generate() {
+        Random random = new Random(42);
+        long periodNanos = (long) (1e9 / mRateHz);
+        long start = System.nanoTime();
+        long wallStart = System.currentTimeMillis();
+        float temperature = 21.3f;
+        float pressure = 1013.25f;
+        for (long i = 0; mRunning; i++) {
+            long deadline = start + i * periodNanos;
+            long wait;
+            while ((wait = deadline - System.nanoTime()) > 0 && mRunning) {
+                if (wait > 100000) {
+                    LockSupport.parkNanos(wait - 50000);
+                }
+            }
+            int channel;
+            float value;
+            if ((i & 1) == 0) {
+                temperature += (random.nextFloat() - 0.5f) * 0.02f;
+                channel = Channel.TEMPERATURE;
+                value = temperature;
+            } else {
+                pressure += (random.nextFloat() - 0.5f) * 0.05f;
+                channel = Channel.PRESSURE;
+                value = pressure;
+            }
+            offer(channel, wallStart + (deadline - start) / 1000000, value, System.nanoTime());
+            mGenerated = i + 1;
+        }
+    }
+
+    private void offer(int channel, long timestampMs, float value, long createdNanos) {
+        long tail = mTail;
+        if (tail - mHead > mMask) {
+            mDropped++;
+            return;
+        }
+        int slot = (int) (tail & mMask);
+        mChannels[slot] = channel;
+        mTimestamps[slot] = timestampMs;
+        mValues[slot] = value;
+        mCreatedNanos[slot] = createdNanos;
+        mTail = tail + 1;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publisher side of the simulation: batches samples with the real {@link PublishBatcher} and
+ * {@link PayloadCodec} on its own thread like the publisher's HandlerThread, and sends the
+ * payloads through the real {@link PublishPipeline} to a fake network that takes a fixed time
+ * per request.
+ */
+class SimulatedUplink implements SampleSink {
+
+    private static final String DEVICE_ID = "simulator";
+
+    private final PublishBatcher mBatcher;
+    private final PayloadCodec mCodec;
+    private final long mRequestNanos;
+    private final PublishPipeline mPipeline;
+    private final Object mLock = new Object();
+    private boolean mReady;
+    private volatile boolean mRunning;
+    private Thread mThread;
+
+    private final AtomicLong mMessages = new AtomicLong();
+    private final AtomicLong mBytes = new AtomicLong();
+
+    /**
+     * @param maxInFlight requests sent concurrently.
+     */
+    SimulatedUplink(PublishBatcher.Policy policy, PayloadCodec codec, long requestNanos,
+                    int maxInFlight) {
+        mBatcher = new PublishBatcher(policy);
+        mCodec = codec;
+        mRequestNanos = requestNanos;
+        mPipeline = new PublishPipeline(new PublishTransport() {
+            @Override
+            public void send(List<byte[]> payloads, long[] sequences, String[] sessions)
+                    throws IOException {
+                SimulatedPeripherals.block(mRequestNanos);
+            }
+
+            @Override
+            public void close() {
+            }
+        }, new PublishPipeline.Policy(maxInFlight, maxInFlight * 16, 3, 100,
+                TimeUnit.SECONDS.toMillis(5), 5, TimeUnit.SECONDS.toMillis(10)));
+    }
+
+    @Override
+    public void onSample(int channel, long timestampMs, float value) {
+        if (mBatcher.add(channel, timestampMs, value, mCodec.estimateSampleBytes())) {
+            synchronized (mLock) {
+                mReady = true;
+                mLock.notify();
+            }
+        }
+    }
+
+    void start() {
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                publishLoop();
+            }
+        }, "simulatedUplink");
+        mThread.start();
+    }
+
+    void stop() throws InterruptedException {
+        mRunning = false;
+        synchronized (mLock) {
+            mLock.notify();
+        }
+        mThread.join();
+        mPipeline.shutdown(TimeUnit.SECONDS.toMillis(10));
+    }
+
+    long getMessageCount() {
+        return mMessages.get();
+    }
+
+    long getByteCount() {
+        return mBytes.get();
+    }
+
+    private void publishLoop() {
+        PublishPipeline.Callback callback = new PublishPipeline.Callback() {
+            @Override
+            public void onSuccess(List<byte[]> payloads) {
+                long bytes = 0;
+                for (byte[] payload : payloads) {
+                    bytes += payload.length;
+                }
+                mMessages.addAndGet(payloads.size());
+                mBytes.addAndGet(bytes);
+            }
+
+            @Override
+            public void onFailure(List<byte[]> payloads, long[] sequences, String[] sessions,
+                                  IOException e) {
+                // The real publisher would journal them.
+            }
+        };
+        long maxAgeMs = mBatcher.getPolicy().maxAgeMs;
+        long nextSequence = 0;
+        while (mRunning) {
+            synchronized (mLock) {
+                if (!mReady) {
+                    try {
+                        mLock.wait(maxAgeMs);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                mReady = false;
+            }
+            List<byte[]> payloads = new ArrayList<>();
+            if (mBatcher.drainTo(mCodec, DEVICE_ID, payloads) > 0) {
+                mPipeline.submit(payloads, PublishPipeline.sequences(nextSequence,
+                        payloads.size()), null, callback);
+                nextSequence += payloads.size();
+            }
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the station's processing pipeline on a plain JVM against simulated peripherals, for a
+ * range of sampling rates, and reports throughput, dropped events and end-to-end latency from
+ * event generation to the end of its processing. The first rate at which events get dropped or
+ * pile up in the queue is the saturation point of the pipeline.
+ *
+ * <pre>
+ * ./gradlew :benchmarks:simulate -PsimArgs="--rates 1,100,1000,10000 --seconds 5"
+ * </pre>
+ *
+ * Options: --rates (Hz, comma-separated), --seconds per rate, --queue (event queue capacity),
+ * --display-us and --led-us (cost of one write), --uplink-ms (cost of one publish request),
+ * --inflight (publish requests sent concurrently).
+ *
+ * With --replay, the pipeline is fed a {@link SensorCapture} instead, pulled from the device or
+ * made by {@link SyntheticCapture}, at --speed times its original pace or {@code max}. The
+ * uplink then publishes one-minute aggregates as the station does. The run reports the
+ * throughput and the final state of the pipeline, to be compared across commits:
+ *
+ * <pre>
+ * ./gradlew :benchmarks:simulate -PsimArgs="--replay $PWD/capture.bin --speed max"
+ * </pre>
+ */
+public class StationSimulator {
+
+    private static final int LEDSTRIP_MAX_FPS = 30;
+    private static final int RAINBOW_SIZE = 7;
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private double[] mRates = {1, 10, 100, 1000, 2000, 5000, 10000, 20000, 50000};
+    private int mSeconds = 5;
+    private int mQueueCapacity = 1024;
+    // One HT16K33 update is about 10 bytes on a 100kHz I2C bus.
+    private long mDisplayNanos = TimeUnit.MICROSECONDS.toNanos(1000);
+    // One frame for 7 APA102 LEDs is 36 bytes on the SPI bus.
+    private long mLedNanos = TimeUnit.MICROSECONDS.toNanos(300);
+    private long mUplinkNanos = TimeUnit.MILLISECONDS.toNanos(150);
+    private int mMaxInFlight = 4;
+    private File mReplay;
+    private double mSpeed = SensorReplayer.MAX_SPEED;
+    private static final long AGGREGATION_WINDOW_MS = TimeUnit.MINUTES.toMillis(1);
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        StationSimulator simulator = new StationSimulator();
+        simulator.parseArguments(args);
+        if (simulator.mReplay != null) {
+            simulator.replay();
+        } else {
+            simulator.run();
+        }
+    }
+
+    private void parseArguments(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--rates":
+                    String[] rates = value.split(",");
+                    mRates = new double[rates.length];
+                    for (int j = 0; j < rates.length; j++) {
+                        mRates[j] = Double.parseDouble(rates[j]);
+                    }
+                    break;
+                case "--seconds":
+                    mSeconds = Integer.parseInt(value);
+                    break;
+                case "--queue":
+                    mQueueCapacity = Integer.parseInt(value);
+                    break;
+                case "--display-us":
+                    mDisplayNanos = TimeUnit.MICROSECONDS.toNanos(Long.parseLong(value));
+                    break;
+                case "--led-us":
+                    mLedNanos = TimeUnit.MICROSECONDS.toNanos(Long.parseLong(value));
+                    break;
+                case "--uplink-ms":
+                    mUplinkNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(value));
+                    break;
+                case "--inflight":
+                    mMaxInFlight = Integer.parseInt(value);
+                    break;
+                case "--replay":
+                    mReplay = new File(value);
+                    break;
+                case "--speed":
+                    mSpeed = value.equals("max") ? SensorReplayer.MAX_SPEED
+                            : Double.parseDouble(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+    }
+
+    private void run() throws InterruptedException {
+        System.out.println(String.format(Locale.US,
+                "%10s %10s %10s %8s %10s %10s %10s %9s %7s %9s %9s %9s",
+                "rate_hz", "generated", "delivered", "dropped", "p50_us", "p99_us", "max_us",
+                "display", "i2c_%", "led", "messages", "kB_sent"));
+        double saturation = Double.NaN;
+        for (double rate : mRates) {
+            Result result = runScenario(rate);
+            System.out.println(String.format(Locale.US,
+                    "%10.0f %10d %10d %8d %10d %10d %10d %9d %7.1f %9d %9d %9.1f",
+                    rate, result.generated, result.delivered, result.dropped,
+                    result.percentileMicros(0.50), result.percentileMicros(0.99),
+                    result.maxMicros(), result.displayWrites, result.busUtilization * 100,
+                    result.ledWrites,
+                    result.uplinkMessages, result.uplinkBytes / 1024.0));
+            // Saturated: events dropped, or more than 50ms worth of them still queued.
+            long backlog = result.generated - result.dropped - result.delivered;
+            if (Double.isNaN(saturation) && (result.dropped > 0
+                    || backlog > Math.max(1, rate / 20))) {
+                saturation = rate;
+            }
+        }
+        System.out.println(Double.isNaN(saturation)
+                ? "No saturation up to " + mRates[mRates.length - 1] + " Hz"
+                : "Saturated at " + saturation + " Hz");
+    }
+
+    private void replay() throws InterruptedException, IOException {
+        StationPipeline pipeline = newPipeline();
+        SimulatedPeripherals.Display display = new SimulatedPeripherals.Display(mDisplayNanos);
+        SimulatedPeripherals.Strip strip = new SimulatedPeripherals.Strip(mLedNanos);
+        LedRenderer renderer = new LedRenderer(strip, RAINBOW_SIZE, LEDSTRIP_MAX_FPS);
+        BusScheduler i2cBus = new BusScheduler("I2C1");
+        pipeline.setDisplay(new CoalescingDisplay(display, i2cBus));
+        pipeline.setLedStrip(renderer);
+        SimulatedUplink uplink = new SimulatedUplink(new PublishBatcher.Policy(500, 256 * 1024,
+                TimeUnit.MINUTES.toMillis(1)), new GorillaPayloadCodec(), mUplinkNanos,
+                mMaxInFlight);
+        final WindowAggregator aggregator = WindowAggregator.tumbling(AGGREGATION_WINDOW_MS,
+                WindowAggregator.toDerivedChannels(uplink));
+        // Everything runs on this thread, which plays the role of the sensor thread, except the
+        // peripheral and uplink I/O.
+        final SensorEventBus bus = new SensorEventBus();
+        bus.subscribe("pipeline", SensorEventBus.DROP_OLDEST, mQueueCapacity, pipeline,
+                DIRECT_EXECUTOR);
+        bus.subscribe("uplink", SensorEventBus.DROP_OLDEST, mQueueCapacity, new SampleSink() {
+            @Override
+            public void onSample(int channel, long timestampMs, float value) {
+                aggregator.onSample(channel, timestampMs, value);
+            }
+        }, DIRECT_EXECUTOR);
+        final LatencyHistogram durations = new LatencyHistogram();
+        SensorReplayer replayer = new SensorReplayer(mSpeed);
+        i2cBus.start();
+        renderer.start();
+        uplink.start();
+        long start = System.nanoTime();
+        long samples = replayer.replay(mReplay, new SampleSink() {
+            @Override
+            public void onSample(int channel, long timestampMs, float value) {
+                long begin = System.nanoTime();
+                bus.publish(channel, timestampMs, value);
+                durations.record(System.nanoTime() - begin);
+            }
+        });
+        double seconds = (System.nanoTime() - start) / 1e9;
+        renderer.stop();
+        i2cBus.stop();
+        uplink.stop();
+
+        PressureTrend trend = pipeline.getPressureTrend();
+        double capturedHours = replayer.getReplayedMillis() / 3600e3;
+        System.out.println(String.format(Locale.US,
+                "%10s %11s %8s %12s %9s %8s %8s %9s %9s %9s %9s %9s %9s %9s %9s %12s",
+                "samples", "captured_h", "wall_s", "samples_per_s", "speedup", "p50_us",
+                "p99_us", "display", "display_x", "led", "led_x", "messages", "kB_sent",
+                "forecast", "icon_x", "tendency_3h"));
+        System.out.println(String.format(Locale.US,
+                "%10d %11.1f %8.2f %12.0f %9.0f %8d %8d %9d %9d %9d %9d %9d %9.1f %9d %9d %12.3f",
+                samples, capturedHours, seconds, samples / seconds, capturedHours * 3600 / seconds,
+                TimeUnit.NANOSECONDS.toMicros(durations.getPercentile(0.50)),
+                TimeUnit.NANOSECONDS.toMicros(durations.getPercentile(0.99)),
+                display.writes.get(), pipeline.getDisplayWritesAvoided(), strip.writes.get(),
+                pipeline.getLedWritesAvoided(), uplink.getMessageCount(),
+                uplink.getByteCount() / 1024.0, trend.getForecast(),
+                trend.getSuppressedChangeCount(), trend.getTendency(PressureTrend.HORIZON_3H)));
+    }
+
+    private static StationPipeline newPipeline() {
+        int[] rainbow = new int[RAINBOW_SIZE];
+        for (int i = 0; i < rainbow.length; i++) {
+            rainbow[i] = 0xFF000000 | (i * 0x242424);
+        }
+        StationPipeline pipeline = new StationPipeline(new TimeSeriesStore((1 << 19) - 1),
+                rainbow);
+        pipeline.setBmp280Filters();
+        return pipeline;
+    }
+
+    private Result runScenario(double rate) throws InterruptedException {
+        StationPipeline pipeline = newPipeline();
+        SimulatedPeripherals.Display display = new SimulatedPeripherals.Display(mDisplayNanos);
+        SimulatedPeripherals.Strip strip = new SimulatedPeripherals.Strip(mLedNanos);
+        LedRenderer renderer = new LedRenderer(strip, RAINBOW_SIZE, LEDSTRIP_MAX_FPS);
+        BusScheduler i2cBus = new BusScheduler("I2C1");
+        pipeline.setDisplay(new CoalescingDisplay(display, i2cBus));
+        pipeline.setLedStrip(renderer);
+        SimulatedUplink uplink = new SimulatedUplink(new PublishBatcher.Policy(500, 256 * 1024,
+                TimeUnit.SECONDS.toMillis(1)), new GorillaPayloadCodec(), mUplinkNanos,
+                mMaxInFlight);
+        // Both consumers run inline on the delivering thread, like the pipeline on the device;
+        // the uplink only batches there and publishes on its own thread.
+        SensorEventBus bus = new SensorEventBus();
+        bus.subscribe("pipeline", SensorEventBus.DROP_OLDEST, mQueueCapacity, pipeline,
+                DIRECT_EXECUTOR);
+        bus.subscribe("uplink", SensorEventBus.DROP_OLDEST, mQueueCapacity, uplink,
+                DIRECT_EXECUTOR);
+
+        SimulatedSensor sensor = new SimulatedSensor(rate, mQueueCapacity);
+        LatencyHistogram latencies = new LatencyHistogram();
+        long delivered = 0;
+        i2cBus.start();
+        renderer.start();
+        uplink.start();
+        sensor.start();
+        // This thread plays the role of the main looper delivering sensor events.
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(mSeconds);
+        while (System.nanoTime() < end) {
+            long created = sensor.poll(bus);
+            if (created < 0) {
+                Thread.yield();
+                continue;
+            }
+            latencies.record(System.nanoTime() - created);
+            delivered++;
+        }
+        sensor.stop();
+        uplink.stop();
+        renderer.stop();
+        i2cBus.stop();
+
+        Result result = new Result();
+        result.generated = sensor.getGeneratedCount();
+        result.dropped = sensor.getDroppedCount();
+        result.delivered = delivered;
+        result.latencies = latencies;
+        result.displayWrites = display.writes.get();
+        result.busUtilization = i2cBus.getUtilization();
+        result.ledWrites = strip.writes.get();
+        result.uplinkMessages = uplink.getMessageCount();
+        result.uplinkBytes = uplink.getByteCount();
+        return result;
+    }
+
+    private static final class Result {
+        long generated;
+        long delivered;
+        long dropped;
+        LatencyHistogram latencies;
+        long displayWrites;
+        float busUtilization;
+        long ledWrites;
+        long uplinkMessages;
+        long uplinkBytes;
+
+        long percentileMicros(double percentile) {
+            return TimeUnit.NANOSECONDS.toMicros(latencies.getPercentile(percentile));
+        }
+
+        long maxMicros() {
+            return TimeUnit.NANOSECONDS.toMicros(latencies.getMax());
+        }
+    }
+}
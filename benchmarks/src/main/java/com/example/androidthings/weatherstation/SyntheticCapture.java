@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes a {@link SensorCapture} of synthetic weather, to replay with the simulator when no
+ * capture from the device is at hand: a daily temperature cycle, pressure systems passing every
+ * few days, and the BMP280's noise and resolution, at the station's sensor rate.
+ *
+ * <pre>
+ * ./gradlew :benchmarks:synthesizeCapture -PcaptureArgs="--days 30 --out $PWD/month.bin"
+ * </pre>
+ *
+ * Options: --days, --rate-hz (per channel), --seed, --out.
+ */
+public class SyntheticCapture {
+
+    private static final long START_MS = 1500000000000L;
+
+    public static void main(String[] args) throws IOException {
+        int days = 30;
+        double rateHz = 5;
+        long seed = 42;
+        File out = new File("capture.bin");
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--days":
+                    days = Integer.parseInt(value);
+                    break;
+                case "--rate-hz":
+                    rateHz = Double.parseDouble(value);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(value);
+                    break;
+                case "--out":
+                    out = new File(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        long samples = write(out, days, rateHz, seed);
+        System.out.println("Wrote " + samples + " samples, " + out.length() / 1024 + " kB, to "
+                + out);
+    }
+
+    static long write(File file, int days, double rateHz, long seed) throws IOException {
+        Random random = new Random(seed);
+        long periodMs = Math.max(1, (long) (1000 / rateHz));
+        long endMs = START_MS + TimeUnit.DAYS.toMillis(days);
+        long count = 0;
+        SensorCapture.Recorder recorder = new SensorCapture.Recorder(file, Long.MAX_VALUE);
+        try {
+            for (long t = START_MS; t < endMs; t += periodMs) {
+                double hours = (t - START_MS) / 3600e3;
+                double temperature = 15 + 6 * Math.sin(2 * Math.PI * (hours - 9) / 24)
+                        + random.nextGaussian() * 0.05;
+                double pressure = 1012 + 12 * Math.sin(2 * Math.PI * hours / 97)
+                        + 5 * Math.sin(2 * Math.PI * hours / 31 + 1)
+                        + random.nextGaussian() * 0.03;
+                // The BMP280 resolves 0.01 degree and 0.0016 hPa.
+                recorder.onSample(Channel.TEMPERATURE, t,
+                        (float) (Math.round(temperature * 100) / 100.));
+                recorder.onSample(Channel.PRESSURE, t + periodMs / 2,
+                        (float) (Math.round(pressure / 0.0016) * 0.0016));
+                count += 2;
+            }
+        } finally {
+            recorder.close();
+        }
+        if (recorder.getErrorCount() > 0) {
+            throw new IOException("Error writing " + file);
+        }
+        return count;
+    }
+}
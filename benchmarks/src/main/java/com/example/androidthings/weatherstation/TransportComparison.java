@@ -0,0 +1,192 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends the same publish requests through the REST and the stream transports, each against its
+ * local stand-in server, and reports message throughput and per-request latency for several
+ * batch sizes. Small batches show the per-request overhead of HTTP and JSON that the persistent
+ * stream avoids.
+ *
+ * <pre>
+ * ./gradlew :benchmarks:compareTransports -PcompareArgs="--messages 1,50 --requests 2000"
+ * </pre>
+ *
+ * Options: --messages (messages per request, comma-separated), --requests per sender,
+ * --senders (threads, each with its own transport), --bytes (size of one message),
+ * --server-us (processing time of one request on the server).
+ */
+public class TransportComparison {
+
+    private static final String[] TRANSPORTS = {"rest", "stream"};
+    private static final int TIMEOUT_MS = 10000;
+
+    private int[] mMessages = {1, 10, 50};
+    private int mRequests = 2000;
+    private int mSenders = 1;
+    private int mBytes = 40;
+    private long mServerNanos = 0;
+
+    public static void main(String[] args) throws Exception {
+        TransportComparison comparison = new TransportComparison();
+        comparison.parseArguments(args);
+        comparison.run();
+    }
+
+    private void parseArguments(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--messages":
+                    String[] messages = value.split(",");
+                    mMessages = new int[messages.length];
+                    for (int j = 0; j < messages.length; j++) {
+                        mMessages[j] = Integer.parseInt(messages[j]);
+                    }
+                    break;
+                case "--requests":
+                    mRequests = Integer.parseInt(value);
+                    break;
+                case "--senders":
+                    mSenders = Integer.parseInt(value);
+                    break;
+                case "--bytes":
+                    mBytes = Integer.parseInt(value);
+                    break;
+                case "--server-us":
+                    mServerNanos = TimeUnit.MICROSECONDS.toNanos(Long.parseLong(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        System.out.println(String.format(Locale.US, "%10s %9s %9s %12s %10s %10s %10s %7s",
+                "transport", "msgs/req", "requests", "msgs/s", "p50_us", "p99_us", "max_us",
+                "errors"));
+        for (int messages : mMessages) {
+            for (String transport : TRANSPORTS) {
+                runScenario(transport, messages);
+            }
+        }
+    }
+
+    private void runScenario(final String name, int messages) throws Exception {
+        final List<byte[]> payloads = new ArrayList<>(messages);
+        Random random = new Random(messages);
+        for (int i = 0; i < messages; i++) {
+            byte[] payload = new byte[mBytes];
+            random.nextBytes(payload);
+            payloads.add(payload);
+        }
+
+        LocalRestServer restServer = null;
+        LocalStreamServer streamServer = null;
+        int port;
+        if ("rest".equals(name)) {
+            restServer = new LocalRestServer(mServerNanos);
+            restServer.start();
+            port = restServer.getPort();
+        } else {
+            streamServer = new LocalStreamServer(mServerNanos);
+            streamServer.start();
+            port = streamServer.getPort();
+        }
+
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong errors = new AtomicLong();
+        final PublishTransport[] transports = new PublishTransport[mSenders];
+        for (int i = 0; i < mSenders; i++) {
+            transports[i] = "rest".equals(name)
+                    ? new HttpPublishTransport("127.0.0.1", port, "projects/p/topics/t",
+                            "session", TIMEOUT_MS)
+                    : new StreamPublishTransport("127.0.0.1", port, "sender-" + i, "session", "",
+                            TIMEOUT_MS);
+        }
+
+        // Warm up the JIT and open the connections before measuring.
+        sendAll(transports, payloads, Math.max(1, mRequests / 10), null, errors);
+        errors.set(0);
+        long start = System.nanoTime();
+        sendAll(transports, payloads, mRequests, latency, errors);
+        long elapsed = System.nanoTime() - start;
+
+        for (PublishTransport transport : transports) {
+            transport.close();
+        }
+        if (restServer != null) {
+            restServer.close();
+        } else {
+            streamServer.close();
+        }
+
+        double throughput = (double) latency.getCount() * messages
+                / (elapsed / (double) TimeUnit.SECONDS.toNanos(1));
+        System.out.println(String.format(Locale.US, "%10s %9d %9d %12.0f %10d %10d %10d %7d",
+                name, messages, latency.getCount(), throughput,
+                TimeUnit.NANOSECONDS.toMicros(latency.getPercentile(0.50)),
+                TimeUnit.NANOSECONDS.toMicros(latency.getPercentile(0.99)),
+                TimeUnit.NANOSECONDS.toMicros(latency.getMax()), errors.get()));
+    }
+
+    /**
+     * Sends {@code requests} requests from each transport on its own thread, recording the
+     * latency of the successful ones when {@code latency} is not null.
+     */
+    private static void sendAll(final PublishTransport[] transports, final List<byte[]> payloads,
+                                final int requests, final LatencyHistogram latency,
+                                final AtomicLong errors) throws InterruptedException {
+        Thread[] threads = new Thread[transports.length];
+        for (int i = 0; i < transports.length; i++) {
+            final PublishTransport transport = transports[i];
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long sequence = 0;
+                    for (int j = 0; j < requests; j++) {
+                        long[] sequences = PublishPipeline.sequences(sequence, payloads.size());
+                        long start = System.nanoTime();
+                        try {
+                            transport.send(payloads, sequences, null);
+                        } catch (IOException e) {
+                            errors.incrementAndGet();
+                            continue;
+                        }
+                        sequence += payloads.size();
+                        if (latency != null) {
+                            latency.record(System.nanoTime() - start);
+                        }
+                    }
+                }
+            }, "sender-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+}